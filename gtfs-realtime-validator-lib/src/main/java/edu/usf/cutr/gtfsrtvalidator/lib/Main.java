@@ -18,10 +18,14 @@
 package edu.usf.cutr.gtfsrtvalidator.lib;
 
 import edu.usf.cutr.gtfsrtvalidator.lib.batch.BatchProcessor;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.IterationStatistics;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
 import org.apache.commons.cli.*;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
@@ -37,6 +41,13 @@ public class Main {
     private final static String PLAIN_TEXT = "plainText";
     private final static String RETURN_STATS = "stats";
     private final static String IGNORE_SHAPES = "ignoreShapes";
+    private final static String MAX_OCCURRENCES = "maxOccurrences";
+    private final static String RULE_CONFIG = "ruleConfig";
+    private final static String RULE_PROFILE = "ruleProfile";
+    private final static String ENABLE_RULES = "enableRules";
+    private final static String DISABLE_RULES = "disableRules";
+    private final static String MAX_ENTITY_SIZE = "maxEntitySize";
+    private final static String MAX_FEED_SIZE = "maxFeedSize";
 
     public static void main(String[] args) throws InterruptedException, ParseException {
         // Parse command line parameters
@@ -52,11 +63,17 @@ public class Main {
         String plainText = getPlainTextFileExtensionfromArgs(options, args);
         boolean returnStats = getReturnStatsFromArgs(options, args);
         boolean ignoreShapes = getIgnoreShapesFromArgs(options, args);
+        int maxOccurrences = getMaxOccurrencesFromArgs(options, args);
+        RuleSelection ruleSelection = getRuleSelectionFromArgs(options, args);
         BatchProcessor.Builder builder = new BatchProcessor.Builder(gtfs, gtfsRealtime)
                 .sortBy(sortBy)
                 .setPlainTextExtension(plainText)
                 .setReturnStatistics(returnStats)
-                .setIgnoreShapes(ignoreShapes);
+                .setIgnoreShapes(ignoreShapes)
+                .setMaxOccurrencesPerRule(maxOccurrences)
+                .setRuleSelection(ruleSelection)
+                .setMaxEntitySizeBytes(getMaxEntitySizeFromArgs(options, args))
+                .setMaxMessageSizeBytes(getMaxFeedSizeFromArgs(options, args));
         BatchProcessor processor = builder.build();
         try {
             List<IterationStatistics> stats = processor.processFeeds();
@@ -102,6 +119,10 @@ public class Main {
                 .hasArg()
                 .desc("If the validator should ignore the shapes.txt file of the GTFS feed.")
                 .build();
+        Option maxOccurrences = Option.builder(MAX_OCCURRENCES)
+                .hasArg()
+                .desc("The maximum number of occurrences to write for each rule for each GTFS-realtime file.  The total number of occurrences is still recorded.")
+                .build();
 
         options.addOption(gtfsOption);
         options.addOption(gtfsRealtimeOption);
@@ -109,6 +130,38 @@ public class Main {
         options.addOption(plainText);
         options.addOption(saveStats);
         options.addOption(ignoreShapes);
+        Option ruleConfig = Option.builder(RULE_CONFIG)
+                .hasArg()
+                .desc("The path to a properties file that defines the rule profile and rules that are enabled or disabled.")
+                .build();
+        Option ruleProfile = Option.builder(RULE_PROFILE)
+                .hasArg()
+                .desc("The rule profile to validate with - 'all' (default), 'freshness', or a profile defined in the -ruleConfig file.")
+                .build();
+        Option enableRules = Option.builder(ENABLE_RULES)
+                .hasArg()
+                .desc("A comma-separated list of validators to run in addition to the rule profile (e.g., 'StopValidator,VehicleValidator').")
+                .build();
+        Option disableRules = Option.builder(DISABLE_RULES)
+                .hasArg()
+                .desc("A comma-separated list of validators or rule IDs to skip (e.g., 'VehicleValidator,W009').")
+                .build();
+
+        options.addOption(maxOccurrences);
+        options.addOption(ruleConfig);
+        options.addOption(ruleProfile);
+        options.addOption(enableRules);
+        options.addOption(disableRules);
+        Option maxEntitySize = Option.builder(MAX_ENTITY_SIZE)
+                .hasArg()
+                .desc("The maximum size in bytes of the header or of a single entity of a GTFS-realtime file.  Files with a larger header or entity are skipped.")
+                .build();
+        Option maxFeedSize = Option.builder(MAX_FEED_SIZE)
+                .hasArg()
+                .desc("The maximum size in bytes of a GTFS-realtime file.  Larger files are skipped.")
+                .build();
+        options.addOption(maxEntitySize);
+        options.addOption(maxFeedSize);
         return options;
     }
 
@@ -218,4 +271,93 @@ public class Main {
         CommandLine cmd = parser.parse(options, args);
         return cmd.hasOption(IGNORE_SHAPES);
     }
+
+    /**
+     * Returns the maximum number of occurrences to write for each rule if the "-maxOccurrences" parameter is included, or
+     * RuleUtils.NO_OCCURRENCE_LIMIT if it is not
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum number of occurrences to write for each rule if the "-maxOccurrences" parameter is included, or
+     * RuleUtils.NO_OCCURRENCE_LIMIT if it is not
+     */
+    private static int getMaxOccurrencesFromArgs(Options options, String[] args) throws ParseException {
+        int maxOccurrences = RuleUtils.NO_OCCURRENCE_LIMIT;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_OCCURRENCES)) {
+            maxOccurrences = Integer.valueOf(cmd.getOptionValue(MAX_OCCURRENCES));
+        }
+        return maxOccurrences;
+    }
+
+    /**
+     * Returns the maximum size of the header or of a single entity of a GTFS-realtime file if the "-maxEntitySize"
+     * parameter is included, or FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES if it is not
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum size of the header or of a single entity of a GTFS-realtime file if the "-maxEntitySize"
+     * parameter is included, or FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES if it is not
+     */
+    private static int getMaxEntitySizeFromArgs(Options options, String[] args) throws ParseException {
+        int maxEntitySize = FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_ENTITY_SIZE)) {
+            maxEntitySize = Integer.valueOf(cmd.getOptionValue(MAX_ENTITY_SIZE));
+        }
+        return maxEntitySize;
+    }
+
+    /**
+     * Returns the maximum size of a GTFS-realtime file if the "-maxFeedSize" parameter is included, or
+     * FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES if it is not
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum size of a GTFS-realtime file if the "-maxFeedSize" parameter is included, or
+     * FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES if it is not
+     */
+    private static long getMaxFeedSizeFromArgs(Options options, String[] args) throws ParseException {
+        long maxFeedSize = FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_FEED_SIZE)) {
+            maxFeedSize = Long.valueOf(cmd.getOptionValue(MAX_FEED_SIZE));
+        }
+        return maxFeedSize;
+    }
+
+    /**
+     * Returns the rules to validate with, based on the "-ruleConfig" file and the "-ruleProfile", "-enableRules", and
+     * "-disableRules" parameters.  Command line parameters are applied after the "-ruleConfig" file.  If none of these
+     * parameters are included all rules are used.
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the rules to validate with
+     */
+    private static RuleSelection getRuleSelectionFromArgs(Options options, String[] args) throws ParseException {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        RuleSelection ruleSelection = new RuleSelection();
+        if (cmd.hasOption(RULE_CONFIG)) {
+            try {
+                ruleSelection = RuleSelection.fromFile(new File(cmd.getOptionValue(RULE_CONFIG)));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read rule configuration file " + cmd.getOptionValue(RULE_CONFIG), e);
+            }
+        }
+        if (cmd.hasOption(RULE_PROFILE)) {
+            ruleSelection.setProfile(cmd.getOptionValue(RULE_PROFILE));
+        }
+        if (cmd.hasOption(ENABLE_RULES)) {
+            ruleSelection.enable(RuleSelection.parseList(cmd.getOptionValue(ENABLE_RULES)));
+        }
+        if (cmd.hasOption(DISABLE_RULES)) {
+            ruleSelection.disable(RuleSelection.parseList(cmd.getOptionValue(DISABLE_RULES)));
+        }
+        return ruleSelection;
+    }
 }
@@ -19,18 +19,24 @@ package edu.usf.cutr.gtfsrtvalidator.lib.batch;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.transit.realtime.GtfsRealtime;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.SortUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.DeltaValidator;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.IterationHistory;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.IterationStatistics;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleStatistics;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
-import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.*;
 import org.apache.commons.io.IOUtils;
 import org.onebusaway.gtfs.impl.GtfsDaoImpl;
 import org.onebusaway.gtfs.model.Agency;
@@ -47,6 +53,7 @@ import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.stream.Collectors;
 
@@ -58,13 +65,19 @@ public class BatchProcessor {
     private static final org.slf4j.Logger _log = LoggerFactory.getLogger(BatchProcessor.class);
 
     // Validation rules
-    private final static List<FeedEntityValidator> mValidationRules = new ArrayList<>();
+    private List<FeedEntityValidator> mValidationRules;
+    private RuleSelection mRuleSelection = new RuleSelection();
     public final static String RESULTS_FILE_EXTENSION = ".results.json";
     private SortBy mSortBy = SortBy.DATE_MODIFIED;
     private String mPlainTextExtension = null;
     private boolean mReturnStatistics = false;
     private List<IterationStatistics> mIterationStatistics;
     private boolean mIgnoreShapes = false;
+    private int mMaxOccurrencesPerRule = RuleUtils.NO_OCCURRENCE_LIMIT;
+    private boolean mDeltaValidation = true;
+    private DeltaValidator mDeltaValidator;
+    private int mMaxEntitySizeBytes = FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES;
+    private long mMaxMessageSizeBytes = FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES;
 
     // GTFS
     private GtfsDaoImpl mGtfsData = new GtfsDaoImpl();
@@ -117,6 +130,47 @@ public class BatchProcessor {
         mIgnoreShapes = ignoreShapes;
     }
 
+    /**
+     * Sets the maximum number of occurrences that will be written to the results for each rule for each GTFS-realtime file.  The
+     * total number of occurrences is still recorded for each rule.  Default is RuleUtils.NO_OCCURRENCE_LIMIT, which writes all occurrences.
+     *
+     * @param maxOccurrencesPerRule the maximum number of occurrences that will be written for each rule, or RuleUtils.NO_OCCURRENCE_LIMIT to write all occurrences
+     */
+    private void setMaxOccurrencesPerRule(int maxOccurrencesPerRule) {
+        mMaxOccurrencesPerRule = maxOccurrencesPerRule;
+    }
+
+    /**
+     * Sets the validator to only validate entities that are new or changed since the previous GTFS-realtime file for
+     * entity-local rules (see DeltaValidator).  Results are the same either way.  Default is true.
+     *
+     * @param deltaValidation true if only new or changed entities should be validated by entity-local rules, false if all entities should be validated
+     */
+    private void setDeltaValidation(boolean deltaValidation) {
+        mDeltaValidation = deltaValidation;
+    }
+
+    /**
+     * Sets the maximum sizes of the GTFS-realtime files that are validated (see FeedMessageReader).  Files that are larger
+     * are skipped.
+     *
+     * @param maxEntitySizeBytes  the maximum size of the header or of a single entity, in bytes
+     * @param maxMessageSizeBytes the maximum size of an entire GTFS-realtime file, in bytes
+     */
+    private void setFeedSizeLimits(int maxEntitySizeBytes, long maxMessageSizeBytes) {
+        mMaxEntitySizeBytes = maxEntitySizeBytes;
+        mMaxMessageSizeBytes = maxMessageSizeBytes;
+    }
+
+    /**
+     * Sets the rules that will be run on each GTFS-realtime file.  Default is all rules.
+     *
+     * @param ruleSelection the rules that will be run on each GTFS-realtime file
+     */
+    private void setRuleSelection(RuleSelection ruleSelection) {
+        mRuleSelection = ruleSelection;
+    }
+
     /**
      * Process the GTFS and GTFS-realtime feeds provided in the constructor. If setReturnStatistics() is set to true,
      * the method will return a list of IterationStatistics (one per GTFS-rt file) for performance in the batch
@@ -137,27 +191,23 @@ public class BatchProcessor {
         String timeZoneText = null;
         double gtfsReadTime = readGtfsData();
 
+        // Initialize validation rules
+        mValidationRules = mRuleSelection.createValidators();
+        _log.info("Validating with " + mRuleSelection);
+        mDeltaValidator = mDeltaValidation ? new DeltaValidator() : null;
+
+        // Only build the GTFS metadata needed by the selected rules
+        Set<MetadataFacet> facets = RuleSelection.getRequiredMetadata(mValidationRules);
+        if (mIgnoreShapes) {
+            facets.remove(MetadataFacet.SHAPES);
+        }
+
         Collection<Agency> agencies = mGtfsData.getAllAgencies();
         for (Agency agency : agencies) {
             timeZoneText = agency.getTimezone();
             break;
         }
-        mGtfsMetadata = new GtfsMetadata(mPathToGtfsFile.getAbsolutePath(), TimeZone.getTimeZone(timeZoneText), mGtfsData, mIgnoreShapes);
-
-        // Initialize validation rules
-        synchronized (mValidationRules) {
-            if (mValidationRules.isEmpty()) {
-                mValidationRules.add(new CrossFeedDescriptorValidator());
-                mValidationRules.add(new VehicleValidator());
-                mValidationRules.add(new TimestampValidator());
-                mValidationRules.add(new StopTimeUpdateValidator());
-                mValidationRules.add(new TripDescriptorValidator());
-                mValidationRules.add(new StopValidator());
-                mValidationRules.add(new FrequencyTypeZeroValidator());
-                mValidationRules.add(new FrequencyTypeOneValidator());
-                mValidationRules.add(new HeaderValidator());
-            }
-        }
+        mGtfsMetadata = new GtfsMetadata(mPathToGtfsFile.getAbsolutePath(), TimeZone.getTimeZone(timeZoneText), mGtfsData, facets);
         // Configure output
         ObjectMapper mapper = new ObjectMapper();
         mapper.enable(SerializationFeature.INDENT_OUTPUT);
@@ -185,7 +235,8 @@ public class BatchProcessor {
                 .collect(Collectors.toList());
 
         MessageDigest md = MessageDigest.getInstance("MD5");
-        GtfsRealtime.FeedMessage prevMessage = null;
+        // Only a summary of the previous message is kept, not the message itself
+        PreviousIterationState prevState = null;
         byte[] prevHash = null;
 
         for (Path path : paths) {
@@ -232,8 +283,9 @@ public class BatchProcessor {
             long startProtobufDecode = System.nanoTime();
             GtfsRealtime.FeedMessage message;
             try {
-                message = GtfsRealtime.FeedMessage.parseFrom(protobuf);
-            } catch (InvalidProtocolBufferException e) {
+                // Parsed the same way as monitored feeds, with size limits instead of protobuf's fixed 64 MB limit
+                message = FeedMessageReader.parseFrom(protobuf, mMaxEntitySizeBytes, mMaxMessageSizeBytes);
+            } catch (IOException e) {
                 _log.error("Error reading GTFS-rt message from byte array, skipping to next file: " + e);
                 continue;
             }
@@ -243,11 +295,11 @@ public class BatchProcessor {
                 stats.setDecodeProtobufTime(pbDecode);
             }
 
-            GtfsRealtime.FeedMessage combinedMessage = null;
+            CombinedFeed combinedFeed = null;
             // See if more than one entity type exists in this feed
             if (GtfsUtils.isCombinedFeed(message)) {
                 // Run CrossFeedDescriptorValidator on this message
-                combinedMessage = message;
+                combinedFeed = CombinedFeed.of(message);
             }
 
             List<ErrorListHelperModel> allErrorLists = new ArrayList<>();
@@ -258,7 +310,20 @@ public class BatchProcessor {
             }
             for (FeedEntityValidator rule : mValidationRules) {
                 long startRuleNanos = System.nanoTime();
-                List<ErrorListHelperModel> errorLists = rule.validate(timestamp, mGtfsData, mGtfsMetadata, message, prevMessage, combinedMessage);
+                List<ErrorListHelperModel> errorLists;
+                try {
+                    if (mDeltaValidator != null) {
+                        errorLists = mDeltaValidator.validate(rule, timestamp, mGtfsData, mGtfsMetadata, message, prevState, combinedFeed);
+                    } else {
+                        errorLists = rule.validateWithCombinedFeed(timestamp, mGtfsData, mGtfsMetadata, message, prevState, combinedFeed);
+                    }
+                } catch (RuntimeException e) {
+                    // A failing rule doesn't stop the other rules for this file
+                    _log.error(rule.getClass().getSimpleName() + " failed on " + path.getFileName() + " - skipping its results for this file", e);
+                    errorLists = new ArrayList<>();
+                }
+                mRuleSelection.filterResults(errorLists);
+                RuleUtils.limitOccurrences(errorLists, mMaxOccurrencesPerRule);
                 allErrorLists.addAll(errorLists);
                 double ruleExecutionTime = getElapsedTime(startRuleNanos, System.nanoTime());
                 consoleOutput.append("\n" + rule.getClass().getSimpleName() + " - rule = " + getElapsedTimeString(ruleExecutionTime));
@@ -291,7 +356,7 @@ public class BatchProcessor {
             }
 
             prevHash = currentHash;
-            prevMessage = message;
+            prevState = PreviousIterationState.of(message).withHistory(prevState, IterationHistory.DEFAULT_MAX_ITERATIONS);
         }
         return mIterationStatistics;
     }
@@ -335,6 +400,11 @@ public class BatchProcessor {
         private String mPlainTextExtension = null;
         private boolean mReturnStatistics = false;
         private boolean mIgnoreShapes = false;
+        private int mMaxOccurrencesPerRule = RuleUtils.NO_OCCURRENCE_LIMIT;
+        private RuleSelection mRuleSelection = null;
+        private boolean mDeltaValidation = true;
+        private int mMaxEntitySizeBytes = FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES;
+        private long mMaxMessageSizeBytes = FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES;
 
         public Builder(String pathToGtfsFile, String pathToGtfsRealtime) {
             mPathToGtfsFile = pathToGtfsFile;
@@ -390,6 +460,70 @@ public class BatchProcessor {
             return this;
         }
 
+        /**
+         * Sets the maximum number of occurrences that will be written to the results for each rule for each GTFS-realtime file.  The
+         * total number of occurrences is still recorded for each rule in the "totalOccurrences" field.  Default is
+         * RuleUtils.NO_OCCURRENCE_LIMIT, which writes all occurrences.  Setting a limit is recommended for feeds that can produce the
+         * same error for a very large number of entities, as each occurrence is held in memory and written to the results file.
+         *
+         * @param maxOccurrencesPerRule the maximum number of occurrences that will be written for each rule, or RuleUtils.NO_OCCURRENCE_LIMIT to write all occurrences
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setMaxOccurrencesPerRule(int maxOccurrencesPerRule) {
+            mMaxOccurrencesPerRule = maxOccurrencesPerRule;
+            return this;
+        }
+
+        /**
+         * Sets the rules that will be run on each GTFS-realtime file, using a profile and individually enabled or disabled rules.
+         * GTFS metadata that's only needed by rules that aren't run (e.g., shapes.txt for VehicleValidator) won't be built.
+         * Default is all rules.
+         *
+         * @param ruleSelection the rules that will be run on each GTFS-realtime file
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setRuleSelection(RuleSelection ruleSelection) {
+            mRuleSelection = ruleSelection;
+            return this;
+        }
+
+        /**
+         * Sets the validator to only validate entities that are new or changed since the previous GTFS-realtime file for
+         * rules that are entity-local (i.e., results for an entity only depend on that entity and the GTFS data), carrying
+         * forward the results for unchanged entities.  Results are identical either way.  Default is true.
+         *
+         * @param deltaValidation true if only new or changed entities should be validated by entity-local rules, false if all entities should be validated
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setDeltaValidation(boolean deltaValidation) {
+            mDeltaValidation = deltaValidation;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of the header or of a single entity in a GTFS-realtime file.  Files with a larger header
+         * or entity are skipped.  Default is FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES.
+         *
+         * @param maxEntitySizeBytes the maximum size of the header or of a single entity, in bytes
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setMaxEntitySizeBytes(int maxEntitySizeBytes) {
+            mMaxEntitySizeBytes = maxEntitySizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of a GTFS-realtime file.  Larger files are skipped.  Default is
+         * FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES.
+         *
+         * @param maxMessageSizeBytes the maximum size of a GTFS-realtime file, in bytes
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setMaxMessageSizeBytes(long maxMessageSizeBytes) {
+            mMaxMessageSizeBytes = maxMessageSizeBytes;
+            return this;
+        }
+
         public BatchProcessor build() {
             BatchProcessor bp = new BatchProcessor(mPathToGtfsFile, mPathToGtfsRealtime);
             if (mSortBy != null) {
@@ -400,6 +534,12 @@ public class BatchProcessor {
             }
             bp.setIgnoreShapes(mIgnoreShapes);
             bp.setReturnStatistics(mReturnStatistics);
+            bp.setMaxOccurrencesPerRule(mMaxOccurrencesPerRule);
+            bp.setDeltaValidation(mDeltaValidation);
+            bp.setFeedSizeLimits(mMaxEntitySizeBytes, mMaxMessageSizeBytes);
+            if (mRuleSelection != null) {
+                bp.setRuleSelection(mRuleSelection);
+            }
             return bp;
         }
     }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.gtfsrtvalidator.lib.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.Serializable;
+
+/**
+ * A server of a cluster of validators that share the same database.  Each server renews its row while it's running, so
+ * the other servers know how many servers to share the monitored feeds with.
+ */
+@XmlRootElement
+@Entity
+@Table(name = "ClusterNode")
+public class ClusterNodeModel implements Serializable {
+
+    @Id
+    @Column(name = "nodeId")
+    private String nodeId;
+
+    // Time (in milliseconds since the epoch) after which the server is assumed to have stopped
+    @Column(name = "expirationTime")
+    private long expirationTime;
+
+    public ClusterNodeModel() {
+    }
+
+    public ClusterNodeModel(String nodeId, long expirationTime) {
+        this.nodeId = nodeId;
+        this.expirationTime = expirationTime;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public void setExpirationTime(long expirationTime) {
+        this.expirationTime = expirationTime;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.gtfsrtvalidator.lib.model;
+
+import javax.persistence.*;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.Serializable;
+
+/**
+ * The lease of a cluster server on the GTFS-realtime feeds of one GTFS feed.  Only the server that holds the lease
+ * monitors those feeds, so feeds that are validated together (see CombinedFeedAggregator) always run on the same server.
+ * The lease expires if the server doesn't renew it, so another server can take over the feeds.
+ */
+@XmlRootElement
+@Entity
+@Table(name = "FeedLease")
+public class FeedLeaseModel implements Serializable {
+
+    @Id
+    @Column(name = "gtfsFeedID")
+    private int gtfsFeedId;
+
+    // ID of the server that holds the lease, or null if no server holds it
+    @Column(name = "ownerNodeId")
+    private String ownerNodeId;
+
+    // Time (in milliseconds since the epoch) after which another server can take the lease
+    @Column(name = "expirationTime")
+    private long expirationTime;
+
+    // Incremented each time the lease is taken, renewed or released, so two servers can't take the same lease
+    @Column(name = "leaseVersion")
+    private int version;
+
+    // Number of GTFS-realtime feeds of this GTFS feed that are monitored
+    @Transient
+    private int monitoredFeedCount;
+
+    public FeedLeaseModel() {
+    }
+
+    public FeedLeaseModel(int gtfsFeedId) {
+        this.gtfsFeedId = gtfsFeedId;
+    }
+
+    public int getGtfsFeedId() {
+        return gtfsFeedId;
+    }
+
+    public void setGtfsFeedId(int gtfsFeedId) {
+        this.gtfsFeedId = gtfsFeedId;
+    }
+
+    public String getOwnerNodeId() {
+        return ownerNodeId;
+    }
+
+    public void setOwnerNodeId(String ownerNodeId) {
+        this.ownerNodeId = ownerNodeId;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public void setExpirationTime(long expirationTime) {
+        this.expirationTime = expirationTime;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getMonitoredFeedCount() {
+        return monitoredFeedCount;
+    }
+
+    public void setMonitoredFeedCount(int monitoredFeedCount) {
+        this.monitoredFeedCount = monitoredFeedCount;
+    }
+
+    /**
+     * Returns true if the lease can be taken by a server at the provided time, because no server holds it or it expired
+     *
+     * @param now the current time, in milliseconds since the epoch
+     * @return true if the lease can be taken by a server at the provided time, false if another server holds it
+     */
+    public boolean isAvailable(long now) {
+        return ownerNodeId == null || expirationTime <= now;
+    }
+
+    @Override
+    public String toString() {
+        return "FeedLeaseModel{" +
+                "gtfsFeedId=" + gtfsFeedId +
+                ", ownerNodeId='" + ownerNodeId + '\'' +
+                ", expirationTime=" + expirationTime +
+                ", version=" + version +
+                ", monitoredFeedCount=" + monitoredFeedCount +
+                '}';
+    }
+}
@@ -37,6 +37,12 @@ public class GtfsRtFeedModel implements Serializable {
     private int gtfsRtId;
     @Transient
     private boolean enableShapes;
+    @Transient
+    private String ruleProfile;
+    @Transient
+    private String enableRules;
+    @Transient
+    private String disableRules;
 
     public GtfsRtFeedModel(){}
 
@@ -72,6 +78,45 @@ public class GtfsRtFeedModel implements Serializable {
         this.enableShapes = enableShapes;
     }
 
+    /**
+     * Returns the name of the rule profile to validate this feed with, or null if the server default should be used
+     *
+     * @return the name of the rule profile to validate this feed with, or null if the server default should be used
+     */
+    public String getRuleProfile() {
+        return ruleProfile;
+    }
+
+    public void setRuleProfile(String ruleProfile) {
+        this.ruleProfile = ruleProfile;
+    }
+
+    /**
+     * Returns a comma-separated list of validators to run in addition to the rule profile, or null if none were provided
+     *
+     * @return a comma-separated list of validators to run in addition to the rule profile, or null if none were provided
+     */
+    public String getEnableRules() {
+        return enableRules;
+    }
+
+    public void setEnableRules(String enableRules) {
+        this.enableRules = enableRules;
+    }
+
+    /**
+     * Returns a comma-separated list of validators or rule IDs to skip, or null if none were provided
+     *
+     * @return a comma-separated list of validators or rule IDs to skip, or null if none were provided
+     */
+    public String getDisableRules() {
+        return disableRules;
+    }
+
+    public void setDisableRules(String disableRules) {
+        this.disableRules = disableRules;
+    }
+
     @Override
     public String toString() {
         return "GtfsRtFeedModel{" +
@@ -79,6 +124,9 @@ public class GtfsRtFeedModel implements Serializable {
                 ", gtfsId=" + gtfsFeedModel.getFeedId() +
                 ", gtfsRtId=" + gtfsRtId +
                 ", enableShapes=" + enableShapes +
+                ", ruleProfile='" + ruleProfile + '\'' +
+                ", enableRules='" + enableRules + '\'' +
+                ", disableRules='" + disableRules + '\'' +
                 '}';
     }
 }
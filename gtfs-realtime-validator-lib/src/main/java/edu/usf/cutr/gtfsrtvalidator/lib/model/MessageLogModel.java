@@ -44,6 +44,9 @@ public class MessageLogModel implements Serializable {
     private ValidationRule validationRule;
     @Column(name = "errorDetails")
     private String errorDetails;
+    // Total number of occurrences found for this rule, which may be larger than the number of occurrences stored if occurrences were capped
+    @Column(name = "totalOccurrences", columnDefinition = "integer default 0")
+    private int totalOccurrences;
 
     public int getMessageId() {
         return messageId;
@@ -76,4 +79,19 @@ public class MessageLogModel implements Serializable {
     public void setErrorDetails(String errorDetails) {
         this.errorDetails = errorDetails;
     }
+
+    /**
+     * Returns the total number of occurrences of this rule that were found in the iteration, which may be larger than
+     * the number of occurrences that were stored if the occurrences were capped
+     *
+     * @return the total number of occurrences of this rule that were found in the iteration, which may be larger than
+     * the number of occurrences that were stored if the occurrences were capped
+     */
+    public int getTotalOccurrences() {
+        return totalOccurrences;
+    }
+
+    public void setTotalOccurrences(int totalOccurrences) {
+        this.totalOccurrences = totalOccurrences;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.gtfsrtvalidator.lib.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.Serializable;
+
+/**
+ * A GTFS-realtime feed that clients of a cluster are monitoring, and the settings it's monitored with.  Clients can start
+ * monitoring the feed on any server of the cluster, and the feed is monitored by the server that holds the lease of its
+ * GTFS feed (see FeedLeaseModel).
+ */
+@XmlRootElement
+@Entity
+@Table(name = "MonitoredFeed")
+public class MonitoredFeedModel implements Serializable {
+
+    @Id
+    @Column(name = "rtFeedID")
+    private int gtfsRtId;
+
+    @Column(name = "gtfsFeedID")
+    private int gtfsFeedId;
+
+    // Number of clients monitoring the feed - the feed is no longer monitored when this reaches zero
+    @Column(name = "clientCount")
+    private int clientCount;
+
+    // Incremented each time the settings change, so the server monitoring the feed restarts it with the new settings
+    @Column(name = "settingsVersion")
+    private int version;
+
+    // In seconds
+    @Column(name = "updateInterval")
+    private int updateInterval;
+
+    @Column(name = "enableShapes")
+    private boolean enableShapes;
+
+    @Column(name = "ruleProfile")
+    private String ruleProfile;
+
+    @Column(name = "enableRules")
+    private String enableRules;
+
+    @Column(name = "disableRules")
+    private String disableRules;
+
+    // Name of a FeedScheduler.OverrunPolicy
+    @Column(name = "overrunPolicy")
+    private String overrunPolicy;
+
+    // Name of a FeedScheduler.Priority
+    @Column(name = "priority")
+    private String priority;
+
+    public MonitoredFeedModel() {
+    }
+
+    public int getGtfsRtId() {
+        return gtfsRtId;
+    }
+
+    public void setGtfsRtId(int gtfsRtId) {
+        this.gtfsRtId = gtfsRtId;
+    }
+
+    public int getGtfsFeedId() {
+        return gtfsFeedId;
+    }
+
+    public void setGtfsFeedId(int gtfsFeedId) {
+        this.gtfsFeedId = gtfsFeedId;
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    public void setClientCount(int clientCount) {
+        this.clientCount = clientCount;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getUpdateInterval() {
+        return updateInterval;
+    }
+
+    public void setUpdateInterval(int updateInterval) {
+        this.updateInterval = updateInterval;
+    }
+
+    public boolean getEnableShapes() {
+        return enableShapes;
+    }
+
+    public void setEnableShapes(boolean enableShapes) {
+        this.enableShapes = enableShapes;
+    }
+
+    public String getRuleProfile() {
+        return ruleProfile;
+    }
+
+    public void setRuleProfile(String ruleProfile) {
+        this.ruleProfile = ruleProfile;
+    }
+
+    public String getEnableRules() {
+        return enableRules;
+    }
+
+    public void setEnableRules(String enableRules) {
+        this.enableRules = enableRules;
+    }
+
+    public String getDisableRules() {
+        return disableRules;
+    }
+
+    public void setDisableRules(String disableRules) {
+        this.disableRules = disableRules;
+    }
+
+    public String getOverrunPolicy() {
+        return overrunPolicy;
+    }
+
+    public void setOverrunPolicy(String overrunPolicy) {
+        this.overrunPolicy = overrunPolicy;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    @Override
+    public String toString() {
+        return "MonitoredFeedModel{" +
+                "gtfsRtId=" + gtfsRtId +
+                ", gtfsFeedId=" + gtfsFeedId +
+                ", clientCount=" + clientCount +
+                ", version=" + version +
+                ", updateInterval=" + updateInterval +
+                ", enableShapes=" + enableShapes +
+                ", ruleProfile='" + ruleProfile + '\'' +
+                ", enableRules='" + enableRules + '\'' +
+                ", disableRules='" + disableRules + '\'' +
+                ", overrunPolicy='" + overrunPolicy + '\'' +
+                ", priority='" + priority + '\'' +
+                '}';
+    }
+}
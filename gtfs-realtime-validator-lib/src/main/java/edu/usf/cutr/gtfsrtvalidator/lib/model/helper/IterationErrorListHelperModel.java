@@ -27,6 +27,7 @@ public class IterationErrorListHelperModel {
     private String errorId;
     private String title;
     private int errorOccurrences;
+    private int totalOccurrences;
 
     public IterationErrorListHelperModel() {
         this.viewIterationErrorsModelList = new ArrayList<>();
@@ -63,4 +64,19 @@ public class IterationErrorListHelperModel {
     public void setErrorOccurrences(int errorOccurrences) {
         this.errorOccurrences = errorOccurrences;
     }
+
+    /**
+     * Returns the total number of occurrences of this error/warning in the iteration, which may be larger than
+     * errorOccurrences (the number of stored occurrences) if the occurrences were capped
+     *
+     * @return the total number of occurrences of this error/warning in the iteration, which may be larger than
+     * errorOccurrences (the number of stored occurrences) if the occurrences were capped
+     */
+    public int getTotalOccurrences() {
+        return totalOccurrences;
+    }
+
+    public void setTotalOccurrences(int totalOccurrences) {
+        this.totalOccurrences = totalOccurrences;
+    }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.util;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a GTFS-realtime FeedMessage from a stream one FeedEntity at a time, so the entire message graph doesn't need
+ * to be held in memory.  The header is read first, and then entities are returned from nextEntity() until the end of
+ * the stream.
+ * <p>
+ * Unlike FeedMessage.parseFrom(), which fails on messages larger than protobuf's default 64 MB size limit, the size
+ * of each entity and the total size of the message are limited separately.  The FeedMessage header must come before
+ * the entities, which is the case for all protobuf serializers that write fields in field number order.  Unknown
+ * fields and extensions of the FeedMessage itself are skipped.
+ * <p>
+ * Feeds are checked when monitoring starts and parsed in each iteration with the same reader (see parseFrom()), so a
+ * feed is accepted or rejected the same way in both places.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FeedMessageReader implements Closeable {
+
+    // Default maximum size of a single FeedEntity, in bytes
+    public static final int DEFAULT_MAX_ENTITY_SIZE_BYTES = 16 * 1024 * 1024;
+    // Default maximum size of the entire FeedMessage, in bytes
+    public static final long DEFAULT_MAX_MESSAGE_SIZE_BYTES = 1024L * 1024 * 1024;
+
+    // Wire type of embedded messages in the protobuf encoding
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private final InputStream mInputStream;
+    private final CodedInputStream mInput;
+    private final int mMaxEntitySizeBytes;
+    private final long mMaxMessageSizeBytes;
+
+    private GtfsRealtime.FeedHeader mHeader;
+    private long mBytesRead;
+    private int mEntityCount;
+    private boolean mAtEnd;
+
+    /**
+     * Creates a new FeedMessageReader with the default size limits
+     *
+     * @param inputStream stream containing a serialized GTFS-realtime FeedMessage
+     */
+    public FeedMessageReader(InputStream inputStream) {
+        this(inputStream, DEFAULT_MAX_ENTITY_SIZE_BYTES, DEFAULT_MAX_MESSAGE_SIZE_BYTES);
+    }
+
+    /**
+     * Creates a new FeedMessageReader
+     *
+     * @param inputStream         stream containing a serialized GTFS-realtime FeedMessage
+     * @param maxEntitySizeBytes  the maximum size of the header or of a single entity, in bytes
+     * @param maxMessageSizeBytes the maximum size of the entire FeedMessage, in bytes
+     */
+    public FeedMessageReader(InputStream inputStream, int maxEntitySizeBytes, long maxMessageSizeBytes) {
+        if (maxEntitySizeBytes <= 0 || maxMessageSizeBytes <= 0) {
+            throw new IllegalArgumentException("Size limits must be positive");
+        }
+        mInputStream = inputStream;
+        mInput = CodedInputStream.newInstance(inputStream);
+        mMaxEntitySizeBytes = maxEntitySizeBytes;
+        mMaxMessageSizeBytes = maxMessageSizeBytes;
+        // Sizes are checked against our own limits before each field is read, and the size counter is reset for each field
+        mInput.setSizeLimit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses an entire FeedMessage that is already in memory, with the provided size limits
+     *
+     * @param bytes               the serialized GTFS-realtime FeedMessage
+     * @param maxEntitySizeBytes  the maximum size of the header or of a single entity, in bytes
+     * @param maxMessageSizeBytes the maximum size of the entire FeedMessage, in bytes
+     * @return the FeedMessage, with the header and all entities
+     * @throws IOException if the message can't be parsed, the header doesn't come before the entities, or the message
+     *                     is larger than the size limits
+     */
+    public static GtfsRealtime.FeedMessage parseFrom(byte[] bytes, int maxEntitySizeBytes, long maxMessageSizeBytes) throws IOException {
+        try (FeedMessageReader reader = new FeedMessageReader(new ByteArrayInputStream(bytes), maxEntitySizeBytes, maxMessageSizeBytes)) {
+            return reader.readFeedMessage();
+        }
+    }
+
+    /**
+     * Returns the header of the FeedMessage, reading it from the stream if it hasn't been read yet
+     *
+     * @return the header of the FeedMessage
+     * @throws IOException if the stream can't be read, the header is larger than the entity size limit, or the header
+     *                     isn't the first field in the message
+     */
+    public GtfsRealtime.FeedHeader readHeader() throws IOException {
+        if (mHeader != null) {
+            return mHeader;
+        }
+        while (true) {
+            int tag = readTag();
+            if (tag == 0) {
+                throw new InvalidProtocolBufferException("GTFS-realtime FeedMessage doesn't have a header");
+            }
+            int fieldNumber = tag >>> 3;
+            if (fieldNumber == GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                GtfsRealtime.FeedHeader.Builder builder = GtfsRealtime.FeedHeader.newBuilder();
+                readMessage(builder, "header");
+                mHeader = builder.build();
+                return mHeader;
+            }
+            if (fieldNumber == GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER) {
+                throw new InvalidProtocolBufferException("GTFS-realtime FeedMessage entities come before the header, so the message can't be streamed");
+            }
+            skipField(tag);
+        }
+    }
+
+    /**
+     * Returns the next entity in the FeedMessage, or null if there are no more entities.  The header is read first if it
+     * hasn't been read yet.
+     *
+     * @return the next entity in the FeedMessage, or null if there are no more entities
+     * @throws IOException if the stream can't be read, or the entity or the message is larger than the size limits
+     */
+    public GtfsRealtime.FeedEntity nextEntity() throws IOException {
+        readHeader();
+        while (!mAtEnd) {
+            int tag = readTag();
+            if (tag == 0) {
+                mAtEnd = true;
+                break;
+            }
+            if ((tag >>> 3) == GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+                GtfsRealtime.FeedEntity.Builder builder = GtfsRealtime.FeedEntity.newBuilder();
+                readMessage(builder, "entity " + mEntityCount);
+                mEntityCount++;
+                return builder.build();
+            }
+            skipField(tag);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the remaining entities in the stream into a FeedMessage, for use by rules that need the entire message
+     *
+     * @return a FeedMessage with the header and all remaining entities in the stream
+     * @throws IOException if the stream can't be read, or an entity or the message is larger than the size limits
+     */
+    public GtfsRealtime.FeedMessage readFeedMessage() throws IOException {
+        GtfsRealtime.FeedMessage.Builder builder = GtfsRealtime.FeedMessage.newBuilder();
+        builder.setHeader(readHeader());
+        GtfsRealtime.FeedEntity entity;
+        while ((entity = nextEntity()) != null) {
+            builder.addEntity(entity);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of entities that have been read from the stream
+     *
+     * @return the number of entities that have been read from the stream
+     */
+    public int getEntityCount() {
+        return mEntityCount;
+    }
+
+    /**
+     * Returns the number of bytes of the FeedMessage that have been read from the stream
+     *
+     * @return the number of bytes of the FeedMessage that have been read from the stream
+     */
+    public long getBytesRead() {
+        return mBytesRead + mInput.getTotalBytesRead();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+
+    /**
+     * Reads the next field tag, resetting the size counter of the CodedInputStream so it doesn't overflow on large messages
+     */
+    private int readTag() throws IOException {
+        mBytesRead += mInput.getTotalBytesRead();
+        mInput.resetSizeCounter();
+        if (mBytesRead > mMaxMessageSizeBytes) {
+            throw new InvalidProtocolBufferException("GTFS-realtime FeedMessage is larger than the limit of " + mMaxMessageSizeBytes + " bytes");
+        }
+        return mInput.readTag();
+    }
+
+    /**
+     * Reads a length-delimited message into the builder, after checking its length against the size limits
+     */
+    private void readMessage(Message.Builder builder, String description) throws IOException {
+        int length = readLength(description);
+        int oldLimit = mInput.pushLimit(length);
+        builder.mergeFrom(mInput, ExtensionRegistryLite.getEmptyRegistry());
+        mInput.checkLastTagWas(0);
+        mInput.popLimit(oldLimit);
+        if (!builder.isInitialized()) {
+            throw new InvalidProtocolBufferException("GTFS-realtime " + description + " is missing required fields");
+        }
+    }
+
+    /**
+     * Skips an unknown field, checking the length of length-delimited fields against the size limits first
+     */
+    private void skipField(int tag) throws IOException {
+        if ((tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+            mInput.skipRawBytes(readLength("field " + (tag >>> 3)));
+        } else if (!mInput.skipField(tag)) {
+            // An end group tag at the top level of the message
+            throw new InvalidProtocolBufferException("GTFS-realtime FeedMessage contains an unexpected end group tag");
+        }
+    }
+
+    /**
+     * Reads the length of a length-delimited field and checks it against the size limits
+     */
+    private int readLength(String description) throws IOException {
+        int length = mInput.readRawVarint32();
+        if (length < 0 || length > mMaxEntitySizeBytes) {
+            throw new InvalidProtocolBufferException("GTFS-realtime " + description + " is " + length + " bytes, larger than the limit of " + mMaxEntitySizeBytes + " bytes");
+        }
+        if (getBytesRead() + length > mMaxMessageSizeBytes) {
+            throw new InvalidProtocolBufferException("GTFS-realtime FeedMessage is larger than the limit of " + mMaxMessageSizeBytes + " bytes");
+        }
+        return length;
+    }
+}
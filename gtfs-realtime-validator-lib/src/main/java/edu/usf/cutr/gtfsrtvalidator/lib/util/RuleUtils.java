@@ -18,7 +18,9 @@ package edu.usf.cutr.gtfsrtvalidator.lib.util;
 
 import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -26,6 +28,11 @@ import java.util.List;
  */
 public class RuleUtils {
 
+    /**
+     * Value for the maximum number of occurrences per rule that indicates that all occurrences should be kept
+     */
+    public static final int NO_OCCURRENCE_LIMIT = -1;
+
     /**
      * Adds occurrence for rule
      *
@@ -39,4 +46,30 @@ public class RuleUtils {
         list.add(om);
         log.debug(om.getPrefix() + " " + rule.getOccurrenceSuffix());
     }
+
+    /**
+     * Records the total number of occurrences for each rule in the provided errorLists on the rule's MessageLogModel,
+     * and then drops all occurrences after the first maxOccurrences occurrences for each rule.  This bounds the
+     * number of occurrences that are held in memory and written to the database or JSON output when a feed has the
+     * same problem for a very large number of entities.
+     *
+     * @param errorLists     list of errors and warnings output from validation
+     * @param maxOccurrences the maximum number of occurrences to keep for each rule, or a negative value such as NO_OCCURRENCE_LIMIT if all occurrences should be kept
+     */
+    public static void limitOccurrences(List<ErrorListHelperModel> errorLists, int maxOccurrences) {
+        if (errorLists == null) {
+            return;
+        }
+        for (ErrorListHelperModel errorList : errorLists) {
+            List<OccurrenceModel> occurrences = errorList.getOccurrenceList();
+            if (occurrences == null) {
+                continue;
+            }
+            errorList.getErrorMessage().setTotalOccurrences(occurrences.size());
+            if (maxOccurrences >= 0 && occurrences.size() > maxOccurrences) {
+                // Copy the occurrences we keep so the rest of the original list can be garbage collected
+                errorList.setOccurrenceList(new ArrayList<>(occurrences.subList(0, maxOccurrences)));
+            }
+        }
+    }
 }
@@ -78,6 +78,52 @@ public class TimestampUtils {
         return String.format("%02d:%02d:%02d", secondsAfterMidnight / 3600, (secondsAfterMidnight / 60) % 60, secondsAfterMidnight % 60);
     }
 
+    /**
+     * Convert 24hr clock time like "06:00:00" to seconds after midnight.  Only clock times in the exact format produced by
+     * secondsAfterMidnightToClock() are converted (e.g., "6:00:00" and "06:60:00" are not), so that comparing the
+     * returned seconds is the same as comparing the clock text.
+     *
+     * @param clockTime 24hr clock time like "06:00:00", which can exceed 24 hrs if service goes into the next service day
+     * @return the number of seconds after midnight for the clock time, or -1 if the clock time isn't in the format produced by secondsAfterMidnightToClock()
+     */
+    public static int clockToSecondsAfterMidnight(String clockTime) {
+        if (clockTime == null) {
+            return -1;
+        }
+        int length = clockTime.length();
+        int hourLength = length - 6;
+        // Hours are zero-padded to two digits, and we limit hours to 5 digits to avoid overflow
+        if (hourLength < 2 || hourLength > 5 || clockTime.charAt(hourLength) != ':' || clockTime.charAt(hourLength + 3) != ':') {
+            return -1;
+        }
+        if (hourLength > 2 && clockTime.charAt(0) == '0') {
+            // Hours with more than two digits aren't zero-padded
+            return -1;
+        }
+        int hours = parseDigits(clockTime, 0, hourLength);
+        int minutes = parseDigits(clockTime, hourLength + 1, hourLength + 3);
+        int seconds = parseDigits(clockTime, hourLength + 4, length);
+        if (hours < 0 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59) {
+            return -1;
+        }
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    /**
+     * Returns the non-negative integer value of the decimal digits in text from start (inclusive) to end (exclusive), or -1 if any character isn't a digit
+     */
+    private static int parseDigits(String text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
     /**
      * Convert POSIX time to 24hr clock time like "06:00:00"
      *
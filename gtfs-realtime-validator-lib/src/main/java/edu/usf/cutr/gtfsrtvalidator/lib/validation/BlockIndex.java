@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+import java.util.*;
+
+import static org.hibernate.internal.util.StringHelper.isEmpty;
+
+/**
+ * An index of the GTFS trips.txt blocks, built once when GtfsMetadata is built so rules can check trip_updates against
+ * blocks with hash lookups instead of searching the trips of each block (see GtfsMetadata.getBlockIndex()).
+ * <p>
+ * Trips are in the same block if they have the same block_id and the same service_id, so a block_id that is used on
+ * different service days results in one Block per service_id.  Trips in each block are ordered by their first
+ * departure time from stop_times.txt.  This class is immutable.
+ */
+public class BlockIndex {
+
+    // Index used when the BLOCKS facet of GtfsMetadata isn't built
+    public static final BlockIndex EMPTY = new BlockIndex(Collections.emptyList(), Collections.emptyMap());
+
+    // First departure time of trips that don't have any times in stop_times.txt
+    public static final int NO_DEPARTURE_TIME = -1;
+
+    // Maps block_id to the blocks with that block_id, one per service_id
+    private final Map<String, List<Block>> mBlocks = new HashMap<>();
+    // Maps trip_id to the block of that trip
+    private final Map<String, Block> mTripBlocks = new HashMap<>();
+    // Maps trip_id to the position of the trip in its block
+    private final Map<String, Integer> mTripPositions = new HashMap<>();
+    // Maps route_id to the stop_ids that are visited by more than one trip in a block that includes a trip on that route
+    private final Map<String, Set<String>> mRouteRepeatedStopIds = new HashMap<>();
+    // All stop_ids that are visited by more than one trip in the same block
+    private final Set<String> mRepeatedStopIds = new HashSet<>();
+
+    /**
+     * Builds the index for the provided trips
+     *
+     * @param trips         the trips from GTFS trips.txt
+     * @param tripStopTimes a map of trip_id to the stop_times of that trip sorted by stop_sequence
+     */
+    public BlockIndex(Collection<Trip> trips, Map<String, List<StopTime>> tripStopTimes) {
+        // Group the trips by block_id and service_id
+        Map<String, List<Trip>> blockTrips = new HashMap<>();
+        for (Trip trip : trips) {
+            if (isEmpty(trip.getBlockId())) {
+                continue;
+            }
+            String serviceId = trip.getServiceId() != null ? trip.getServiceId().getId() : null;
+            blockTrips.computeIfAbsent(trip.getBlockId() + "\u0000" + serviceId, k -> new ArrayList<>()).add(trip);
+        }
+
+        for (List<Trip> tripList : blockTrips.values()) {
+            Block block = new Block(tripList, tripStopTimes);
+            mBlocks.computeIfAbsent(block.getBlockId(), k -> new ArrayList<>()).add(block);
+            for (int i = 0; i < block.getTripCount(); i++) {
+                mTripBlocks.put(block.getTripId(i), block);
+                mTripPositions.put(block.getTripId(i), i);
+            }
+            mRepeatedStopIds.addAll(block.getRepeatedStopIds());
+            if (!block.getRepeatedStopIds().isEmpty()) {
+                for (Trip trip : tripList) {
+                    if (trip.getRoute() != null) {
+                        mRouteRepeatedStopIds.computeIfAbsent(trip.getRoute().getId().getId(), k -> new HashSet<>())
+                                .addAll(block.getRepeatedStopIds());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the block of the provided trip_id, or null if the trip doesn't have a block_id
+     *
+     * @param tripId GTFS trips.txt trip_id
+     * @return the block of the provided trip_id, or null if the trip doesn't have a block_id
+     */
+    public Block getBlock(String tripId) {
+        return mTripBlocks.get(tripId);
+    }
+
+    /**
+     * Returns the position of the provided trip_id in its block, starting at 0 for the trip with the earliest first
+     * departure, or -1 if the trip doesn't have a block_id
+     *
+     * @param tripId GTFS trips.txt trip_id
+     * @return the position of the provided trip_id in its block, or -1 if the trip doesn't have a block_id
+     */
+    public int getPosition(String tripId) {
+        Integer position = mTripPositions.get(tripId);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Returns the blocks with the provided block_id (one per service_id), or an empty list if no trips have that block_id
+     *
+     * @param blockId GTFS trips.txt block_id
+     * @return the blocks with the provided block_id, or an empty list if no trips have that block_id
+     */
+    public List<Block> getBlocks(String blockId) {
+        List<Block> blocks = mBlocks.get(blockId);
+        return blocks != null ? Collections.unmodifiableList(blocks) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the number of distinct block_ids in GTFS trips.txt
+     *
+     * @return the number of distinct block_ids in GTFS trips.txt
+     */
+    public int getBlockIdCount() {
+        return mBlocks.size();
+    }
+
+    /**
+     * Returns the stop_ids that are visited by more than one trip in a block that includes a trip on the provided route,
+     * or an empty set if there aren't any
+     *
+     * @param routeId GTFS routes.txt route_id
+     * @return the stop_ids that are visited by more than one trip in a block that includes a trip on the provided route
+     */
+    public Set<String> getRepeatedStopIds(String routeId) {
+        Set<String> stopIds = mRouteRepeatedStopIds.get(routeId);
+        return stopIds != null ? Collections.unmodifiableSet(stopIds) : Collections.emptySet();
+    }
+
+    /**
+     * Returns all stop_ids that are visited by more than one trip in the same block
+     *
+     * @return all stop_ids that are visited by more than one trip in the same block
+     */
+    public Set<String> getRepeatedStopIds() {
+        return Collections.unmodifiableSet(mRepeatedStopIds);
+    }
+
+    /**
+     * The trips with the same block_id and service_id, ordered by their first departure time
+     */
+    public static class Block {
+        private final String mBlockId;
+        private final String mServiceId;
+        private final String[] mTripIds;
+        // Seconds after midnight, or NO_DEPARTURE_TIME
+        private final int[] mFirstDepartureTimes;
+        private final Set<String> mRepeatedStopIds = new HashSet<>();
+
+        private Block(List<Trip> trips, Map<String, List<StopTime>> tripStopTimes) {
+            Trip first = trips.get(0);
+            mBlockId = first.getBlockId();
+            mServiceId = first.getServiceId() != null ? first.getServiceId().getId() : null;
+
+            int count = trips.size();
+            Map<String, Integer> departureTimes = new HashMap<>(count * 2);
+            for (Trip trip : trips) {
+                departureTimes.put(trip.getId().getId(), findFirstDepartureTime(tripStopTimes.get(trip.getId().getId())));
+            }
+            List<String> tripIds = new ArrayList<>(departureTimes.keySet());
+            // Trips without times go last, and ties are broken by trip_id so the order is stable
+            tripIds.sort(Comparator.comparing((String tripId) -> departureTimes.get(tripId) == NO_DEPARTURE_TIME)
+                    .thenComparing(departureTimes::get)
+                    .thenComparing(Comparator.naturalOrder()));
+            mTripIds = tripIds.toArray(new String[0]);
+            mFirstDepartureTimes = new int[mTripIds.length];
+            for (int i = 0; i < mTripIds.length; i++) {
+                mFirstDepartureTimes[i] = departureTimes.get(mTripIds[i]);
+            }
+
+            // Find the stops that are visited by more than one trip in this block
+            Map<String, String> stopTrips = new HashMap<>();
+            for (String tripId : mTripIds) {
+                List<StopTime> stopTimes = tripStopTimes.get(tripId);
+                if (stopTimes == null) {
+                    continue;
+                }
+                for (StopTime stopTime : stopTimes) {
+                    String stopId = stopTime.getStop().getId().getId();
+                    String firstTripId = stopTrips.putIfAbsent(stopId, tripId);
+                    if (firstTripId != null && !firstTripId.equals(tripId)) {
+                        mRepeatedStopIds.add(stopId);
+                    }
+                }
+            }
+        }
+
+        private static int findFirstDepartureTime(List<StopTime> stopTimes) {
+            if (stopTimes == null || stopTimes.isEmpty()) {
+                return NO_DEPARTURE_TIME;
+            }
+            StopTime first = stopTimes.get(0);
+            if (first.isDepartureTimeSet()) {
+                return first.getDepartureTime();
+            }
+            if (first.isArrivalTimeSet()) {
+                return first.getArrivalTime();
+            }
+            return NO_DEPARTURE_TIME;
+        }
+
+        /**
+         * Returns the GTFS trips.txt block_id of this block
+         *
+         * @return the GTFS trips.txt block_id of this block
+         */
+        public String getBlockId() {
+            return mBlockId;
+        }
+
+        /**
+         * Returns the GTFS trips.txt service_id of the trips in this block
+         *
+         * @return the GTFS trips.txt service_id of the trips in this block
+         */
+        public String getServiceId() {
+            return mServiceId;
+        }
+
+        /**
+         * Returns the number of trips in this block
+         *
+         * @return the number of trips in this block
+         */
+        public int getTripCount() {
+            return mTripIds.length;
+        }
+
+        /**
+         * Returns the trip_id at the provided position in this block
+         *
+         * @param position position of the trip in the block, starting at 0 for the trip with the earliest first departure
+         * @return the trip_id at the provided position in this block
+         */
+        public String getTripId(int position) {
+            return mTripIds[position];
+        }
+
+        /**
+         * Returns the departure time of the first stop_time of the trip at the provided position in this block, in
+         * seconds after midnight, or NO_DEPARTURE_TIME if the trip doesn't have any times in stop_times.txt
+         *
+         * @param position position of the trip in the block, starting at 0 for the trip with the earliest first departure
+         * @return the departure time of the first stop_time of the trip in seconds after midnight, or NO_DEPARTURE_TIME if the trip doesn't have any times
+         */
+        public int getFirstDepartureTime(int position) {
+            return mFirstDepartureTimes[position];
+        }
+
+        /**
+         * Returns the stop_ids that are visited by more than one trip in this block
+         *
+         * @return the stop_ids that are visited by more than one trip in this block
+         */
+        public Set<String> getRepeatedStopIds() {
+            return Collections.unmodifiableSet(mRepeatedStopIds);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.common.collect.Iterables;
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only view of the entities from all GTFS-realtime feeds being monitored simultaneously for the same GTFS
+ * dataset, without copying the entities into a new FeedMessage.  The header is the header with the largest timestamp
+ * from all feeds (see #239).  A FeedMessage containing all entities is only built if toFeedMessage() is called.
+ */
+public class CombinedFeed {
+
+    private final List<GtfsRealtime.FeedMessage> mFeedMessages;
+    private final GtfsRealtime.FeedHeader mHeader;
+    private final int mEntityCount;
+    private GtfsRealtime.FeedMessage mFeedMessage;
+
+    /**
+     * Creates a view of the provided GTFS-realtime feed messages.  Null feed messages are ignored.
+     *
+     * @param feedMessages the GTFS-realtime feed messages for all feeds being monitored for the same GTFS dataset
+     */
+    public CombinedFeed(List<GtfsRealtime.FeedMessage> feedMessages) {
+        List<GtfsRealtime.FeedMessage> messages = new ArrayList<>(feedMessages.size());
+        GtfsRealtime.FeedHeader header = null;
+        int entityCount = 0;
+        for (GtfsRealtime.FeedMessage message : feedMessages) {
+            if (message == null) {
+                continue;
+            }
+            messages.add(message);
+            if (header == null || message.getHeader().getTimestamp() > header.getTimestamp()) {
+                // Use largest header timestamp with multiple feeds - see #239
+                header = message.getHeader();
+            }
+            entityCount += message.getEntityCount();
+        }
+        mFeedMessages = Collections.unmodifiableList(messages);
+        mHeader = header;
+        mEntityCount = entityCount;
+        if (mFeedMessages.size() == 1) {
+            // A single feed message already contains all entities
+            mFeedMessage = mFeedMessages.get(0);
+        }
+    }
+
+    /**
+     * Returns a view of a single GTFS-realtime feed message that contains more than one type of entity, or null if
+     * feedMessage is null
+     *
+     * @param feedMessage the GTFS-realtime feed message
+     * @return a view of a single GTFS-realtime feed message, or null if feedMessage is null
+     */
+    public static CombinedFeed of(GtfsRealtime.FeedMessage feedMessage) {
+        if (feedMessage == null) {
+            return null;
+        }
+        return new CombinedFeed(Collections.singletonList(feedMessage));
+    }
+
+    /**
+     * Returns the header with the largest timestamp from all feeds, or null if there aren't any feed messages
+     *
+     * @return the header with the largest timestamp from all feeds, or null if there aren't any feed messages
+     */
+    public GtfsRealtime.FeedHeader getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * Returns the entities from all feeds, in the order of the feed messages
+     *
+     * @return the entities from all feeds, in the order of the feed messages
+     */
+    public Iterable<GtfsRealtime.FeedEntity> getEntities() {
+        List<Iterable<GtfsRealtime.FeedEntity>> entityLists = new ArrayList<>(mFeedMessages.size());
+        for (GtfsRealtime.FeedMessage message : mFeedMessages) {
+            entityLists.add(message.getEntityList());
+        }
+        return Iterables.unmodifiableIterable(Iterables.concat(entityLists));
+    }
+
+    /**
+     * Returns the number of entities from all feeds
+     *
+     * @return the number of entities from all feeds
+     */
+    public int getEntityCount() {
+        return mEntityCount;
+    }
+
+    /**
+     * Returns the feed messages that make up this combined feed
+     *
+     * @return the feed messages that make up this combined feed
+     */
+    public List<GtfsRealtime.FeedMessage> getFeedMessages() {
+        return mFeedMessages;
+    }
+
+    /**
+     * Returns a FeedMessage with the header and all entities of the combined feed, which is only built the first time
+     * this method is called.  This should only be used when the combined feed needs to be serialized, or by rules that
+     * don't support the CombinedFeed view.
+     *
+     * @return a FeedMessage with the header and all entities of the combined feed
+     */
+    public synchronized GtfsRealtime.FeedMessage toFeedMessage() {
+        if (mFeedMessage == null) {
+            GtfsRealtime.FeedMessage.Builder builder = GtfsRealtime.FeedMessage.newBuilder();
+            if (mHeader != null) {
+                builder.setHeader(mHeader);
+            }
+            for (GtfsRealtime.FeedMessage message : mFeedMessages) {
+                builder.addAllEntity(message.getEntityList());
+            }
+            mFeedMessage = builder.buildPartial();
+        }
+        return mFeedMessage;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.protobuf.ByteString;
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MessageLogModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import org.onebusaway.gtfs.services.GtfsMutableDao;
+
+import java.util.*;
+
+/**
+ * Validates only the entities that are new or have changed since the last iteration for rules that are entity-local
+ * (see FeedEntityValidator.isEntityLocal()), and carries forward the results from the last iteration for entities that
+ * haven't changed.  Entities are matched by entity ID and the serialized bytes of the entity, so the results are
+ * identical to validating the entire feed message.  Rules that aren't entity-local are always run on the entire feed message.
+ * <p>
+ * A DeltaValidator holds the results for the last feed message for each rule, so one instance should be used per
+ * GTFS-realtime feed.  This class is not thread-safe.
+ */
+public class DeltaValidator {
+
+    // Sorts results in the same order as the entity-local rules - errors and then warnings, by rule ID
+    private static final Comparator<ValidationRule> RULE_ORDER = Comparator.comparing(ValidationRule::getErrorId);
+
+    private final Map<FeedEntityValidator, RuleCache> mCaches = new HashMap<>();
+
+    // Serialized bytes of each entity in the last feed message, shared by all rules
+    private GtfsRealtime.FeedMessage mLastFeedMessage;
+    private List<ByteString> mLastEntityBytes;
+
+    private int mValidatedEntityCount;
+    private int mReusedEntityCount;
+
+    /**
+     * Validates the rule against the feed message, only re-validating entities that are new or changed since the last
+     * call for this rule if the rule is entity-local.  Parameters are the same as FeedEntityValidator.validateWithCombinedFeed().
+     *
+     * @param rule the rule to run
+     * @param currentTimeMillis the current system time, in milliseconds
+     * @param gtfsData    GTFS schedule data
+     * @param gtfsMetadata Data structures that contain processed information about the GTFS data
+     * @param feedMessage Current GTFS-rt data that was most recently captured
+     * @param previousState Summary of the GTFS-rt data from the previous iteration of the feed, or null
+     * @param combinedFeed A view of the entities from all GTFS-rt feeds being monitored simultaneously for the same GTFS dataset, or null
+     * @return a list of errors and warnings that was generated by the rule, identical to the results of rule.validateWithCombinedFeed()
+     */
+    public List<ErrorListHelperModel> validate(FeedEntityValidator rule, long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, PreviousIterationState previousState, CombinedFeed combinedFeed) {
+        if (!rule.isEntityLocal()) {
+            return rule.validateWithCombinedFeed(currentTimeMillis, gtfsData, gtfsMetadata, feedMessage, previousState, combinedFeed);
+        }
+
+        RuleCache cache = mCaches.get(rule);
+        if (cache == null || cache.mGtfsData != gtfsData || cache.mGtfsMetadata != gtfsMetadata) {
+            // Results depend on the GTFS data, so we can't re-use results from different GTFS data
+            cache = new RuleCache(gtfsData, gtfsMetadata);
+            mCaches.put(rule, cache);
+        }
+
+        List<ByteString> entityBytes = getEntityBytes(feedMessage);
+        List<GtfsRealtime.FeedEntity> entities = feedMessage.getEntityList();
+        Map<String, EntityResult> currentResults = new HashMap<>(entities.size() * 2);
+        Map<ValidationRule, List<OccurrenceModel>> occurrences = new TreeMap<>(RULE_ORDER);
+
+        for (int i = 0; i < entities.size(); i++) {
+            GtfsRealtime.FeedEntity entity = entities.get(i);
+            ByteString bytes = entityBytes.get(i);
+            EntityResult result = cache.mResults.get(entity.getId());
+            if (result == null || !result.mBytes.equals(bytes)) {
+                // New or changed entity (or a duplicate entity ID) - validate it again
+                result = validateEntity(rule, currentTimeMillis, gtfsData, gtfsMetadata, feedMessage.getHeader(), entity, bytes);
+                mValidatedEntityCount++;
+            } else {
+                mReusedEntityCount++;
+            }
+            currentResults.put(entity.getId(), result);
+
+            for (Map.Entry<ValidationRule, List<String>> entry : result.mPrefixes.entrySet()) {
+                List<OccurrenceModel> list = occurrences.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+                for (String prefix : entry.getValue()) {
+                    // Always create new OccurrenceModels, as they are persisted and trimmed by the caller
+                    list.add(new OccurrenceModel(prefix));
+                }
+            }
+        }
+        // Only keep the results for entities in this feed message
+        cache.mResults = currentResults;
+
+        List<ErrorListHelperModel> errors = new ArrayList<>();
+        for (Map.Entry<ValidationRule, List<OccurrenceModel>> entry : occurrences.entrySet()) {
+            errors.add(new ErrorListHelperModel(new MessageLogModel(entry.getKey()), entry.getValue()));
+        }
+        return errors;
+    }
+
+    /**
+     * Returns the total number of entities that have been validated by entity-local rules
+     *
+     * @return the total number of entities that have been validated by entity-local rules
+     */
+    public int getValidatedEntityCount() {
+        return mValidatedEntityCount;
+    }
+
+    /**
+     * Returns the total number of entities for which results from the last iteration were re-used by entity-local rules
+     *
+     * @return the total number of entities for which results from the last iteration were re-used by entity-local rules
+     */
+    public int getReusedEntityCount() {
+        return mReusedEntityCount;
+    }
+
+    /**
+     * Removes all results from previous iterations, so all entities are validated again
+     */
+    public void clear() {
+        mCaches.clear();
+        mLastFeedMessage = null;
+        mLastEntityBytes = null;
+    }
+
+    /**
+     * Returns the serialized bytes of each entity in the feed message, serializing each entity only once for all rules
+     */
+    private List<ByteString> getEntityBytes(GtfsRealtime.FeedMessage feedMessage) {
+        if (feedMessage != mLastFeedMessage) {
+            List<ByteString> bytes = new ArrayList<>(feedMessage.getEntityCount());
+            for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+                bytes.add(entity.toByteString());
+            }
+            mLastFeedMessage = feedMessage;
+            mLastEntityBytes = bytes;
+        }
+        return mLastEntityBytes;
+    }
+
+    /**
+     * Runs the rule on a feed message containing only the provided entity
+     */
+    private EntityResult validateEntity(FeedEntityValidator rule, long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedHeader header, GtfsRealtime.FeedEntity entity, ByteString bytes) {
+        GtfsRealtime.FeedMessage singleEntityMessage = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(header)
+                .addEntity(entity)
+                .build();
+        List<ErrorListHelperModel> errorLists = rule.validate(currentTimeMillis, gtfsData, gtfsMetadata, singleEntityMessage, null, null);
+        Map<ValidationRule, List<String>> prefixes = new HashMap<>();
+        for (ErrorListHelperModel errorList : errorLists) {
+            List<String> entityPrefixes = new ArrayList<>(errorList.getOccurrenceList().size());
+            for (OccurrenceModel occurrence : errorList.getOccurrenceList()) {
+                entityPrefixes.add(occurrence.getPrefix());
+            }
+            prefixes.put(errorList.getErrorMessage().getValidationRule(), entityPrefixes);
+        }
+        return new EntityResult(bytes, prefixes);
+    }
+
+    /**
+     * Results for a single rule for all entities in the last feed message, and the GTFS data used to create them
+     */
+    private static class RuleCache {
+        private final GtfsMutableDao mGtfsData;
+        private final GtfsMetadata mGtfsMetadata;
+        private Map<String, EntityResult> mResults = new HashMap<>();
+
+        RuleCache(GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata) {
+            mGtfsData = gtfsData;
+            mGtfsMetadata = gtfsMetadata;
+        }
+    }
+
+    /**
+     * Occurrence prefixes for each rule ID for a single entity
+     */
+    private static class EntityResult {
+        private final ByteString mBytes;
+        private final Map<ValidationRule, List<String>> mPrefixes;
+
+        EntityResult(ByteString bytes, Map<ValidationRule, List<String>> prefixes) {
+            mBytes = bytes;
+            mPrefixes = prefixes;
+        }
+    }
+}
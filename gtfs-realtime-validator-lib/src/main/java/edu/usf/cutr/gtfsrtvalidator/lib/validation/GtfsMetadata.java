@@ -47,16 +47,23 @@ public class GtfsMetadata {
     String mFeedUrl;
     TimeZone mTimeZone;
 
+    // The optional parts of this metadata that were built
+    private Set<MetadataFacet> mFacets;
+
     private Set<String> mAgencyIds = new HashSet<>();
     private Set<String> mRouteIds = new HashSet<>();
     // Maps trip_ids to the GTFS trip
     private Map<String, Trip> mTrips = new HashMap<>();
     // Maps trip_ids to a list of StopTimes
     private Map<String, List<StopTime>> mTripStopTimes = new HashMap<>();
+    // Maps trip_ids to stop_time lookup tables, which are built the first time a trip is seen in a GTFS-rt feed
+    private Map<String, TripStopTimes> mIndexedTripStopTimes = new ConcurrentHashMap<>();
     private Set<String> mStopIds = new HashSet<>();
     private Set<String> mExactTimesZeroTripIds = new HashSet<>();
     // Maps trip_id to a list of Frequency objects
     private Map<String, List<Frequency>> mExactTimesOneTrips = new HashMap<>();
+    // Maps trip_id to an index of the frequency periods for exact_times=1 trips
+    private Map<String, TripFrequencies> mExactTimesOneFrequencies = new HashMap<>();
     // Maps shape_id to a list of ShapePoints
     private Map<String, List<ShapePoint>> mShapePoints = new HashMap<>();
     // Map trip_id to a polyline of the trip shape from shapes.txt
@@ -87,6 +94,15 @@ public class GtfsMetadata {
     // A map of trips that visit a stop more than once, where the key is the trip_id and the value is a list of the stops visited more than once
     private Map<String, List<String>> mTripsWithMultiStops = new HashMap<>();
 
+    // Blocks from trips.txt, or an empty index if the BLOCKS facet isn't built
+    private BlockIndex mBlockIndex = BlockIndex.EMPTY;
+
+    // Locations from stops.txt, or an empty index if the STOP_INDEX facet isn't built
+    private StopIndex mStopIndex = StopIndex.EMPTY;
+
+    // Maps trip_ids to facts derived from trips.txt, stop_times.txt and frequencies.txt for that trip
+    private Map<String, TripFacts> mTripFacts = new HashMap<>();
+
     /**
      * Builds the metadata for a particular GTFS feed
      *
@@ -98,11 +114,30 @@ public class GtfsMetadata {
      *                      certain spatial rules such as E029 will not be executed.
      */
     public GtfsMetadata(String feedUrl, TimeZone timeZone, GtfsMutableDao gtfsData, boolean ignoreShapes) {
+        this(feedUrl, timeZone, gtfsData, getFacets(ignoreShapes));
+    }
+
+    /**
+     * Builds the metadata for a particular GTFS feed, including only the provided optional facets.  Rules that read a
+     * facet that wasn't built will see empty data for that facet.
+     *
+     * @param feedUrl URL for the GTFS zip file
+     * @param timeZone the agency_timezone from GTFS agency.txt, or null if the current time zone should be used.
+     * @param gtfsData GTFS feed to build the metadata for
+     * @param facets the optional facets of the metadata that should be built - see FeedEntityValidator.getRequiredMetadata()
+     */
+    public GtfsMetadata(String feedUrl, TimeZone timeZone, GtfsMutableDao gtfsData, Set<MetadataFacet> facets) {
         long startTime = System.nanoTime();
-        _log.info("Building GtfsMetadata for " + feedUrl + "...");
+        _log.info("Building GtfsMetadata for " + feedUrl + " with " + facets + "...");
 
         mFeedUrl = feedUrl;
         mTimeZone = timeZone;
+        mFacets = MetadataFacet.none();
+        mFacets.addAll(facets);
+        if (mFacets.contains(MetadataFacet.MULTI_STOP_TRIPS) || mFacets.contains(MetadataFacet.BLOCKS)) {
+            // Trips that visit the same stop more than once and the order of trips in blocks are found from stop_times.txt
+            mFacets.add(MetadataFacet.STOP_TIMES);
+        }
 
         // Get all agency_ids from the GTFS feed
         Collection<Agency> agencyAndIds = gtfsData.getAllAgencies();
@@ -124,7 +159,7 @@ public class GtfsMetadata {
         ShapeFactory sf = JtsSpatialContext.GEO.getShapeFactory();
         ShapeFactory.MultiPointBuilder shapeBuilder = sf.multiPoint();
         Collection<ShapePoint> shapePoints = gtfsData.getAllShapePoints();
-        if (shapePoints != null && !ignoreShapes && shapePoints.size() > 3) {
+        if (shapePoints != null && mFacets.contains(MetadataFacet.SHAPES) && shapePoints.size() > 3) {
             for (ShapePoint p : shapePoints) {
                 String shapeId = p.getShapeId().getId();
                 // If there isn't already a list for this shape_id, create one
@@ -149,13 +184,15 @@ public class GtfsMetadata {
             _log.debug("Shape points for " + feedUrl + " are sorted.");
         }
 
-        // Get all StopTimes and map them to trip_ids
-        for (StopTime stopTime : gtfsData.getAllStopTimes()) {
-            String tripId = stopTime.getTrip().getId().getId();
+        if (mFacets.contains(MetadataFacet.STOP_TIMES)) {
+            // Get all StopTimes and map them to trip_ids
+            for (StopTime stopTime : gtfsData.getAllStopTimes()) {
+                String tripId = stopTime.getTrip().getId().getId();
 
-            // If there isn't already a list for this trip, create one
-            List<StopTime> stopTimes = mTripStopTimes.computeIfAbsent(tripId, k -> new ArrayList<>());
-            stopTimes.add(stopTime);
+                // If there isn't already a list for this trip, create one
+                List<StopTime> stopTimes = mTripStopTimes.computeIfAbsent(tripId, k -> new ArrayList<>());
+                stopTimes.add(stopTime);
+            }
         }
 
         /**
@@ -192,26 +229,37 @@ public class GtfsMetadata {
         /**
          * Process GTFS stop_times.txt
          */
-        long stopTimesStartTime = System.nanoTime();
-        for (Map.Entry<String, List<StopTime>> tripStopTimes : mTripStopTimes.entrySet()) {
-            // Create the map of trip_ids to List of stop_ids for trips that visit a stop more than once
-            String tripId = tripStopTimes.getKey();
-            Set<String> allStopIds = new HashSet<>();
-            List<String> duplicateStopIds = new ArrayList<>();
-
-            for (StopTime stopTime : tripStopTimes.getValue()) {
-                if (allStopIds.contains(stopTime.getStop().getId().getId())) {
-                    // If we've already seen this stop_id for this trip, then add it to the duplicates list
-                    duplicateStopIds.add(stopTime.getStop().getId().getId());
+        if (mFacets.contains(MetadataFacet.MULTI_STOP_TRIPS)) {
+            long stopTimesStartTime = System.nanoTime();
+            for (Map.Entry<String, List<StopTime>> tripStopTimes : mTripStopTimes.entrySet()) {
+                // Create the map of trip_ids to List of stop_ids for trips that visit a stop more than once
+                String tripId = tripStopTimes.getKey();
+                Set<String> allStopIds = new HashSet<>();
+                List<String> duplicateStopIds = new ArrayList<>();
+
+                for (StopTime stopTime : tripStopTimes.getValue()) {
+                    if (allStopIds.contains(stopTime.getStop().getId().getId())) {
+                        // If we've already seen this stop_id for this trip, then add it to the duplicates list
+                        duplicateStopIds.add(stopTime.getStop().getId().getId());
+                    }
+                    allStopIds.add(stopTime.getStop().getId().getId());
                 }
-                allStopIds.add(stopTime.getStop().getId().getId());
-            }
 
-            if (!duplicateStopIds.isEmpty()) {
-                mTripsWithMultiStops.put(tripId, duplicateStopIds);
+                if (!duplicateStopIds.isEmpty()) {
+                    mTripsWithMultiStops.put(tripId, duplicateStopIds);
+                }
             }
+            TimestampUtils.logDuration(_log, "Repeated stop_ids for trips in stop_times.txt processed for " + feedUrl + " in ", stopTimesStartTime);
+        }
+
+        /**
+         * Index GTFS trips.txt blocks, now that stop_times.txt is sorted for each trip
+         */
+        if (mFacets.contains(MetadataFacet.BLOCKS)) {
+            long blocksStartTime = System.nanoTime();
+            mBlockIndex = new BlockIndex(mTrips.values(), mTripStopTimes);
+            TimestampUtils.logDuration(_log, mBlockIndex.getBlockIdCount() + " blocks in trips.txt indexed for " + feedUrl + " in ", blocksStartTime);
         }
-        TimestampUtils.logDuration(_log, "Repeated stop_ids for trips in stop_times.txt processed for " + feedUrl + " in ", stopTimesStartTime);
 
         /**
          * Process GTFS stops.txt
@@ -230,28 +278,95 @@ public class GtfsMetadata {
         mStopBoundingBox = stopShape.getBoundingBox();
         mStopBoundingBoxWithBuffer = mStopBoundingBox.getBuffered(regionBufferDegrees, mStopBoundingBox.getContext()).getBoundingBox();
 
+        if (mFacets.contains(MetadataFacet.STOP_INDEX)) {
+            long stopIndexStartTime = System.nanoTime();
+            mStopIndex = new StopIndex(stops);
+            TimestampUtils.logDuration(_log, mStopIndex.size() + " stops in stops.txt indexed for " + feedUrl + " in ", stopIndexStartTime);
+        }
+
         /**
          * Process GTFS frequencies.txt
          */
-        Collection<Frequency> frequencies = gtfsData.getAllFrequencies();
-        for (Frequency f : frequencies) {
-            if (f.getExactTimes() == 0) {
-                // All exact_times=0 trips
-                mExactTimesZeroTripIds.add(f.getTrip().getId().getId());
-            } else if (f.getExactTimes() == 1) {
-                // All exact_times=1 trips
-                List<Frequency> frequencyList = mExactTimesOneTrips.get(f.getTrip().getId().getId());
-                if (frequencyList == null) {
-                    frequencyList = new ArrayList<>();
+        if (mFacets.contains(MetadataFacet.FREQUENCIES)) {
+            Collection<Frequency> frequencies = gtfsData.getAllFrequencies();
+            for (Frequency f : frequencies) {
+                if (f.getExactTimes() == 0) {
+                    // All exact_times=0 trips
+                    mExactTimesZeroTripIds.add(f.getTrip().getId().getId());
+                } else if (f.getExactTimes() == 1) {
+                    // All exact_times=1 trips
+                    List<Frequency> frequencyList = mExactTimesOneTrips.get(f.getTrip().getId().getId());
+                    if (frequencyList == null) {
+                        frequencyList = new ArrayList<>();
+                    }
+                    frequencyList.add(f);
+                    mExactTimesOneTrips.put(f.getTrip().getId().getId(), frequencyList);
                 }
-                frequencyList.add(f);
-                mExactTimesOneTrips.put(f.getTrip().getId().getId(), frequencyList);
+            }
+            for (Map.Entry<String, List<Frequency>> entry : mExactTimesOneTrips.entrySet()) {
+                mExactTimesOneFrequencies.put(entry.getKey(), new TripFrequencies(entry.getValue()));
             }
         }
 
+        /**
+         * Derive the facts for each trip, now that stop_times.txt and frequencies.txt are processed
+         */
+        for (Trip trip : mTrips.values()) {
+            String tripId = trip.getId().getId();
+            List<StopTime> stopTimes = mTripStopTimes.get(tripId);
+            boolean hasFirstArrivalTime = stopTimes != null && !stopTimes.isEmpty();
+            TripFacts.FrequencyType frequencyType = TripFacts.FrequencyType.NONE;
+            if (mExactTimesOneTrips.containsKey(tripId)) {
+                frequencyType = TripFacts.FrequencyType.EXACT_TIMES_ONE;
+            } else if (mExactTimesZeroTripIds.contains(tripId)) {
+                frequencyType = TripFacts.FrequencyType.EXACT_TIMES_ZERO;
+            }
+            mTripFacts.put(tripId, new TripFacts(tripId,
+                    trip.getRoute() != null ? trip.getRoute().getId().getId() : null,
+                    trip.getDirectionId(),
+                    trip.getBlockId(),
+                    hasFirstArrivalTime,
+                    hasFirstArrivalTime ? stopTimes.get(0).getArrivalTime() : 0,
+                    frequencyType,
+                    mTripsWithMultiStops.containsKey(tripId)));
+        }
+
         TimestampUtils.logDuration(_log, "Built GtfsMetadata for " + feedUrl + " in ", startTime);
     }
 
+    /**
+     * Returns the facets that should be built for the legacy ignoreShapes setting
+     *
+     * @param ignoreShapes true if the GTFS shapes.txt should be ignored, false if it should be processed
+     * @return the facets that should be built for the legacy ignoreShapes setting
+     */
+    private static Set<MetadataFacet> getFacets(boolean ignoreShapes) {
+        Set<MetadataFacet> facets = MetadataFacet.all();
+        if (ignoreShapes) {
+            facets.remove(MetadataFacet.SHAPES);
+        }
+        return facets;
+    }
+
+    /**
+     * Returns the optional facets that were built for this metadata
+     *
+     * @return the optional facets that were built for this metadata
+     */
+    public Set<MetadataFacet> getFacets() {
+        return Collections.unmodifiableSet(mFacets);
+    }
+
+    /**
+     * Returns true if all of the provided facets were built for this metadata, false if they were not
+     *
+     * @param facets the facets to check
+     * @return true if all of the provided facets were built for this metadata, false if they were not
+     */
+    public boolean hasFacets(Set<MetadataFacet> facets) {
+        return mFacets.containsAll(facets);
+    }
+
     public Set<String> getRouteIds() {
         return mRouteIds;
     }
@@ -291,6 +406,15 @@ public class GtfsMetadata {
         return mExactTimesOneTrips;
     }
 
+    /**
+     * Returns a map where key is trips.txt trip_id, value is an index of the frequencies.txt periods for that exact_times = 1 trip_id
+     *
+     * @return a map where key is trips.txt trip_id, value is an index of the frequencies.txt periods for that exact_times = 1 trip_id
+     */
+    public Map<String, TripFrequencies> getExactTimesOneFrequencies() {
+        return mExactTimesOneFrequencies;
+    }
+
     /**
      * Returns a map where key is trips.txt trip_id, and the value is a list of StopTime objects from stop_times.txt sorted by stop_sequence
      *
@@ -300,6 +424,25 @@ public class GtfsMetadata {
         return mTripStopTimes;
     }
 
+    /**
+     * Returns the stop_times.txt records for the provided trip_id sorted by stop_sequence, with lookup tables to find a
+     * stop_time by stop_sequence or stop_id, or null if the trip doesn't have any stop_times
+     * <p>
+     * The lookup tables for a trip are built the first time this method is called for that trip_id, so memory isn't used
+     * for trips that never appear in the GTFS-rt feed.
+     *
+     * @param tripId the GTFS trip_id to retrieve the stop_times for
+     * @return the stop_times.txt records for the provided trip_id sorted by stop_sequence, with lookup tables to find a
+     * stop_time by stop_sequence or stop_id, or null if the trip doesn't have any stop_times
+     */
+    public TripStopTimes getIndexedTripStopTimes(String tripId) {
+        List<StopTime> stopTimes = mTripStopTimes.get(tripId);
+        if (stopTimes == null) {
+            return null;
+        }
+        return mIndexedTripStopTimes.computeIfAbsent(tripId, k -> new TripStopTimes(stopTimes));
+    }
+
     /**
      * Returns the agency_timezone from GTFS agency.txt, or null if the current time zone should be used.  Please refer to http://en.wikipedia.org/wiki/List_of_tz_zones for a list of valid values.
      *
@@ -403,4 +546,32 @@ public class GtfsMetadata {
     public Map<String, List<String>> getTripsWithMultiStops() {
         return mTripsWithMultiStops;
     }
+
+    /**
+     * Returns the index of GTFS trips.txt blocks, which is empty if the BLOCKS facet wasn't built
+     *
+     * @return the index of GTFS trips.txt blocks, which is empty if the BLOCKS facet wasn't built
+     */
+    public BlockIndex getBlockIndex() {
+        return mBlockIndex;
+    }
+
+    /**
+     * Returns the spatial index of GTFS stops.txt locations, which is empty if the STOP_INDEX facet wasn't built
+     *
+     * @return the spatial index of GTFS stops.txt locations, which is empty if the STOP_INDEX facet wasn't built
+     */
+    public StopIndex getStopIndex() {
+        return mStopIndex;
+    }
+
+    /**
+     * Returns the facts derived from GTFS trips.txt, stop_times.txt and frequencies.txt for the provided trip_id, or null if the trip_id isn't in GTFS trips.txt
+     *
+     * @param tripId the GTFS trip_id to retrieve the facts for
+     * @return the facts derived from GTFS trips.txt, stop_times.txt and frequencies.txt for the provided trip_id, or null if the trip_id isn't in GTFS trips.txt
+     */
+    public TripFacts getTripFacts(String tripId) {
+        return mTripFacts.get(tripId);
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+/**
+ * The summaries of the last iterations of a GTFS-realtime feed, newest first, so rules can check how entities change over
+ * several iterations (e.g., vehicles that jump between positions, predictions that move backwards, or entities that
+ * haven't been updated for several minutes).
+ * <p>
+ * The summaries are kept in a ring buffer with room for a fixed number of iterations.  Appending an iteration creates a
+ * new history that shares the summaries with this one, so this class is immutable and a history can be passed between
+ * threads.  Use PreviousIterationState.withHistory() to add an iteration and PreviousIterationState.getHistory() to
+ * read the history in a rule.
+ */
+public class IterationHistory {
+
+    // Default number of iterations kept for each feed, including the previous iteration
+    public static final int DEFAULT_MAX_ITERATIONS = 10;
+
+    static final IterationHistory EMPTY = new IterationHistory(new PreviousIterationState[0], -1, 0);
+
+    private final PreviousIterationState[] mIterations;
+    private final int mNewest;
+    private final int mSize;
+
+    private IterationHistory(PreviousIterationState[] iterations, int newest, int size) {
+        mIterations = iterations;
+        mNewest = newest;
+        mSize = size;
+    }
+
+    /**
+     * Returns a new history with the provided iteration as the newest iteration, dropping the oldest iterations if there
+     * are more than maxIterations
+     *
+     * @param state         the summary of the newest iteration
+     * @param maxIterations the maximum number of iterations in the new history
+     * @return a new history with the provided iteration as the newest iteration
+     */
+    IterationHistory append(PreviousIterationState state, int maxIterations) {
+        PreviousIterationState[] iterations;
+        int newest;
+        if (maxIterations == mIterations.length) {
+            // Overwrite the oldest slot of a copy of the ring
+            iterations = mIterations.clone();
+            newest = (mNewest + 1) % iterations.length;
+        } else {
+            // The size of the history changed - copy the iterations that are kept, oldest first
+            iterations = new PreviousIterationState[maxIterations];
+            int kept = Math.min(mSize, maxIterations - 1);
+            for (int age = kept - 1, i = 0; age >= 0; age--, i++) {
+                iterations[i] = get(age);
+            }
+            newest = kept;
+        }
+        iterations[newest] = state;
+        return new IterationHistory(iterations, newest, Math.min(mSize + 1, maxIterations));
+    }
+
+    /**
+     * Returns the number of iterations in the history
+     *
+     * @return the number of iterations in the history
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of iterations that are kept in the history
+     *
+     * @return the maximum number of iterations that are kept in the history
+     */
+    public int getMaxIterations() {
+        return mIterations.length;
+    }
+
+    /**
+     * Returns the summary of an iteration in the history
+     *
+     * @param age 0 for the newest iteration, 1 for the iteration before it, up to size() - 1 for the oldest iteration
+     * @return the summary of the iteration with the provided age
+     */
+    public PreviousIterationState get(int age) {
+        if (age < 0 || age >= mSize) {
+            throw new IndexOutOfBoundsException("Age " + age + " of a history with " + mSize + " iterations");
+        }
+        return mIterations[(mNewest - age + mIterations.length) % mIterations.length];
+    }
+
+    /**
+     * Returns the number of consecutive iterations, starting with the newest, that contain an entity with the provided
+     * ID.  For example, a result of 3 means the entity was in the last 3 iterations and
+     * either wasn't in the iteration before them or the history only has 3 iterations.
+     *
+     * @param entityId the ID of the entity
+     * @return the number of consecutive iterations, starting with the newest, that contain an entity with the provided ID
+     */
+    public int countConsecutive(String entityId) {
+        int age = 0;
+        while (age < mSize && get(age).indexOf(entityId) >= 0) {
+            age++;
+        }
+        return age;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Optional parts of GtfsMetadata that are expensive to build for large GTFS feeds.  Each rule declares the facets it
+ * needs via FeedEntityValidator.getRequiredMetadata(), so GtfsMetadata only builds the facets needed by enabled rules.
+ * <p>
+ * Agencies, routes, trips, stops (including the stops.txt bounding box) and the time zone are always built.
+ */
+public enum MetadataFacet {
+    /**
+     * stop_times.txt grouped by trip_id and sorted by stop_sequence
+     */
+    STOP_TIMES,
+
+    /**
+     * Trips that visit the same stop_id more than once (requires STOP_TIMES)
+     */
+    MULTI_STOP_TRIPS,
+
+    /**
+     * trips.txt blocks with their trips ordered by first departure, and the stop_ids visited by more than one trip in
+     * a block (requires STOP_TIMES)
+     */
+    BLOCKS,
+
+    /**
+     * frequencies.txt exact_times=0 trip_ids and exact_times=1 frequencies
+     */
+    FREQUENCIES,
+
+    /**
+     * stops.txt locations in a grid index for nearest-stop and radius queries
+     */
+    STOP_INDEX,
+
+    /**
+     * shapes.txt points, trip polylines and the shapes.txt bounding box
+     */
+    SHAPES;
+
+    /**
+     * Returns a new set containing all facets
+     *
+     * @return a new set containing all facets
+     */
+    public static Set<MetadataFacet> all() {
+        return EnumSet.allOf(MetadataFacet.class);
+    }
+
+    /**
+     * Returns a new empty set of facets
+     *
+     * @return a new empty set of facets
+     */
+    public static Set<MetadataFacet> none() {
+        return EnumSet.noneOf(MetadataFacet.class);
+    }
+}
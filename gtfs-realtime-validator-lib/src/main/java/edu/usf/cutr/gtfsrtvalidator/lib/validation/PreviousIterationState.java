@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact summary of the GTFS-realtime message from the previous iteration of a feed - the content hash, the header
+ * timestamp, and for each entity the ID, hash, timestamp, trip ID, vehicle position and stop time predictions.  Rules that
+ * compare a feed message to the previous iteration read this summary instead of the previous FeedMessage, so the
+ * previous message doesn't need to be kept in memory.
+ * <p>
+ * A summary can also carry the summaries of the iterations before it (see withHistory() and getHistory()), so rules can
+ * look further back than the previous iteration.
+ * <p>
+ * Hashes are 64-bit murmur3 hashes of the serialized header and entities, so two messages with the same content have
+ * the same content hash.  This class is immutable.
+ */
+public class PreviousIterationState {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final long mContentHash;
+    private final long mHeaderTimestamp;
+    private final String[] mEntityIds;
+    private final long[] mEntityHashes;
+    private final long[] mEntityTimestamps;
+    private final String[] mTripIds;
+    private final float[] mLatitudes;
+    private final float[] mLongitudes;
+    // Predictions of entity i are at positions mPredictionOffsets[i] until mPredictionOffsets[i + 1]
+    private final int[] mPredictionOffsets;
+    private final int[] mPredictionStopSequences;
+    private final String[] mPredictionStopIds;
+    private final long[] mPredictionTimes;
+    private final Map<String, Integer> mEntityIndexes;
+    // Summaries of this and earlier iterations, or null if only this iteration is known
+    private final IterationHistory mHistory;
+
+    private PreviousIterationState(Builder builder) {
+        int count = builder.mCount;
+        int predictionCount = builder.mPredictionCount;
+        mContentHash = builder.mContentHash;
+        mHeaderTimestamp = builder.mHeaderTimestamp;
+        mEntityIds = Arrays.copyOf(builder.mEntityIds, count);
+        mEntityHashes = Arrays.copyOf(builder.mEntityHashes, count);
+        mEntityTimestamps = Arrays.copyOf(builder.mEntityTimestamps, count);
+        mTripIds = Arrays.copyOf(builder.mTripIds, count);
+        mLatitudes = Arrays.copyOf(builder.mLatitudes, count);
+        mLongitudes = Arrays.copyOf(builder.mLongitudes, count);
+        mPredictionOffsets = Arrays.copyOf(builder.mPredictionOffsets, count + 1);
+        mPredictionOffsets[count] = predictionCount;
+        mPredictionStopSequences = Arrays.copyOf(builder.mPredictionStopSequences, predictionCount);
+        mPredictionStopIds = Arrays.copyOf(builder.mPredictionStopIds, predictionCount);
+        mPredictionTimes = Arrays.copyOf(builder.mPredictionTimes, predictionCount);
+        mEntityIndexes = new HashMap<>(count * 2);
+        for (int i = count - 1; i >= 0; i--) {
+            // Keep the first index for duplicate entity IDs
+            mEntityIndexes.put(mEntityIds[i], i);
+        }
+        mHistory = null;
+    }
+
+    private PreviousIterationState(PreviousIterationState state, IterationHistory history) {
+        mContentHash = state.mContentHash;
+        mHeaderTimestamp = state.mHeaderTimestamp;
+        mEntityIds = state.mEntityIds;
+        mEntityHashes = state.mEntityHashes;
+        mEntityTimestamps = state.mEntityTimestamps;
+        mTripIds = state.mTripIds;
+        mLatitudes = state.mLatitudes;
+        mLongitudes = state.mLongitudes;
+        mPredictionOffsets = state.mPredictionOffsets;
+        mPredictionStopSequences = state.mPredictionStopSequences;
+        mPredictionStopIds = state.mPredictionStopIds;
+        mPredictionTimes = state.mPredictionTimes;
+        mEntityIndexes = state.mEntityIndexes;
+        mHistory = history;
+    }
+
+    /**
+     * Summarizes the provided feed message so it can be used as the previous iteration when validating the next message
+     *
+     * @param feedMessage the feed message to summarize, or null
+     * @return the summary of the provided feed message, or null if feedMessage is null
+     */
+    public static PreviousIterationState of(GtfsRealtime.FeedMessage feedMessage) {
+        if (feedMessage == null) {
+            return null;
+        }
+        Builder builder = new Builder(feedMessage.getHeader(), feedMessage.getEntityCount());
+        for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+            builder.addEntity(entity);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a copy of this summary that also carries the history of earlier iterations of the feed - the history of
+     * the previous iteration plus this iteration, keeping at most maxIterations iterations.  Only the summaries are
+     * shared between iterations, so memory for each feed is bounded by maxIterations summaries.
+     *
+     * @param previous      the summary of the previous iteration of the feed, or null if this is the first iteration
+     * @param maxIterations the maximum number of iterations to keep in the history, including this one
+     * @return a copy of this summary whose getHistory() includes this iteration and up to maxIterations - 1 earlier iterations
+     */
+    public PreviousIterationState withHistory(PreviousIterationState previous, int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("maxIterations must be at least 1");
+        }
+        // Summaries in a history don't carry their own history, so earlier iterations can be garbage collected
+        PreviousIterationState detached = mHistory == null ? this : new PreviousIterationState(this, null);
+        IterationHistory earlier = previous != null ? previous.getHistory() : IterationHistory.EMPTY;
+        return new PreviousIterationState(detached, earlier.append(detached, maxIterations));
+    }
+
+    /**
+     * Returns the summaries of this and earlier iterations of the feed, with this iteration at age 0.  If this summary
+     * wasn't created with withHistory() the history only contains this iteration.
+     *
+     * @return the summaries of this and earlier iterations of the feed, with this iteration at age 0
+     */
+    public IterationHistory getHistory() {
+        if (mHistory != null) {
+            return mHistory;
+        }
+        return IterationHistory.EMPTY.append(this, 1);
+    }
+
+    /**
+     * Returns true if the provided feed message has the same content as the message this state was created from, false
+     * if it does not.  Messages with a different header timestamp or number of entities are rejected without hashing.
+     *
+     * @param feedMessage the feed message to compare
+     * @return true if the provided feed message has the same content as the message this state was created from, false if it does not
+     */
+    public boolean isSameContent(GtfsRealtime.FeedMessage feedMessage) {
+        if (feedMessage == null
+                || feedMessage.getHeader().getTimestamp() != mHeaderTimestamp
+                || feedMessage.getEntityCount() != mEntityIds.length) {
+            return false;
+        }
+        HashBuffer buffer = new HashBuffer();
+        long contentHash = buffer.hash(feedMessage.getHeader());
+        for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+            contentHash = combine(contentHash, buffer.hash(entity));
+        }
+        return contentHash == mContentHash;
+    }
+
+    /**
+     * Returns the hash of the entire message
+     *
+     * @return the hash of the entire message
+     */
+    public long getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * Returns the header timestamp of the message, or 0 if it wasn't populated
+     *
+     * @return the header timestamp of the message, or 0 if it wasn't populated
+     */
+    public long getHeaderTimestamp() {
+        return mHeaderTimestamp;
+    }
+
+    /**
+     * Returns the number of entities in the message
+     *
+     * @return the number of entities in the message
+     */
+    public int getEntityCount() {
+        return mEntityIds.length;
+    }
+
+    /**
+     * Returns the ID of the entity at the provided position in the message
+     *
+     * @param index position of the entity in the message
+     * @return the ID of the entity at the provided position in the message
+     */
+    public String getEntityId(int index) {
+        return mEntityIds[index];
+    }
+
+    /**
+     * Returns the hash of the entity at the provided position in the message
+     *
+     * @param index position of the entity in the message
+     * @return the hash of the entity at the provided position in the message
+     */
+    public long getEntityHash(int index) {
+        return mEntityHashes[index];
+    }
+
+    /**
+     * Returns the trip_update or vehicle timestamp of the entity at the provided position in the message, or 0 if it
+     * wasn't populated
+     *
+     * @param index position of the entity in the message
+     * @return the trip_update or vehicle timestamp of the entity at the provided position in the message, or 0 if it wasn't populated
+     */
+    public long getEntityTimestamp(int index) {
+        return mEntityTimestamps[index];
+    }
+
+    /**
+     * Returns the trip_id of the trip_update or vehicle of the entity at the provided position in the message, or null if
+     * it wasn't populated
+     *
+     * @param index position of the entity in the message
+     * @return the trip_id of the trip_update or vehicle of the entity at the provided position in the message, or null if it wasn't populated
+     */
+    public String getTripId(int index) {
+        return mTripIds[index];
+    }
+
+    /**
+     * Returns the latitude of the vehicle position of the entity at the provided position in the message, or Float.NaN
+     * if it wasn't populated
+     *
+     * @param index position of the entity in the message
+     * @return the latitude of the vehicle position of the entity at the provided position in the message, or Float.NaN if it wasn't populated
+     */
+    public float getLatitude(int index) {
+        return mLatitudes[index];
+    }
+
+    /**
+     * Returns the longitude of the vehicle position of the entity at the provided position in the message, or Float.NaN
+     * if it wasn't populated
+     *
+     * @param index position of the entity in the message
+     * @return the longitude of the vehicle position of the entity at the provided position in the message, or Float.NaN if it wasn't populated
+     */
+    public float getLongitude(int index) {
+        return mLongitudes[index];
+    }
+
+    /**
+     * Returns the number of stop_time_updates of the trip_update of the entity at the provided position in the message
+     *
+     * @param index position of the entity in the message
+     * @return the number of stop_time_updates of the trip_update of the entity at the provided position in the message
+     */
+    public int getPredictionCount(int index) {
+        return mPredictionOffsets[index + 1] - mPredictionOffsets[index];
+    }
+
+    /**
+     * Returns the stop_sequence of a stop_time_update of the entity at the provided position in the message, or -1 if it
+     * wasn't populated
+     *
+     * @param index      position of the entity in the message
+     * @param prediction position of the stop_time_update in the trip_update, from 0 to getPredictionCount(index) - 1
+     * @return the stop_sequence of the stop_time_update, or -1 if it wasn't populated
+     */
+    public int getPredictionStopSequence(int index, int prediction) {
+        return mPredictionStopSequences[predictionPosition(index, prediction)];
+    }
+
+    /**
+     * Returns the stop_id of a stop_time_update of the entity at the provided position in the message, or null if it
+     * wasn't populated
+     *
+     * @param index      position of the entity in the message
+     * @param prediction position of the stop_time_update in the trip_update, from 0 to getPredictionCount(index) - 1
+     * @return the stop_id of the stop_time_update, or null if it wasn't populated
+     */
+    public String getPredictionStopId(int index, int prediction) {
+        return mPredictionStopIds[predictionPosition(index, prediction)];
+    }
+
+    /**
+     * Returns the predicted arrival time of a stop_time_update of the entity at the provided position in the message, or
+     * the predicted departure time if there isn't an arrival time, or 0 if neither was populated
+     *
+     * @param index      position of the entity in the message
+     * @param prediction position of the stop_time_update in the trip_update, from 0 to getPredictionCount(index) - 1
+     * @return the predicted arrival time of the stop_time_update, or the departure time if there isn't an arrival time, or 0 if neither was populated
+     */
+    public long getPredictionTime(int index, int prediction) {
+        return mPredictionTimes[predictionPosition(index, prediction)];
+    }
+
+    /**
+     * Returns the position of the first entity with the provided ID in the message, or -1 if there isn't an entity with that ID
+     *
+     * @param entityId the ID of the entity
+     * @return the position of the first entity with the provided ID in the message, or -1 if there isn't an entity with that ID
+     */
+    public int indexOf(String entityId) {
+        Integer index = mEntityIndexes.get(entityId);
+        return index == null ? -1 : index;
+    }
+
+    private int predictionPosition(int index, int prediction) {
+        if (prediction < 0 || prediction >= getPredictionCount(index)) {
+            throw new IndexOutOfBoundsException("Prediction " + prediction + " of entity " + index);
+        }
+        return mPredictionOffsets[index] + prediction;
+    }
+
+    private static long getTimestamp(GtfsRealtime.FeedEntity entity) {
+        if (entity.hasTripUpdate()) {
+            return entity.getTripUpdate().getTimestamp();
+        }
+        if (entity.hasVehicle()) {
+            return entity.getVehicle().getTimestamp();
+        }
+        return 0;
+    }
+
+    private static long combine(long hash, long value) {
+        return hash * 31 + value;
+    }
+
+    /**
+     * Builds the summary of a feed message one entity at a time, so a message that is read as a stream (see
+     * FeedMessageReader) can be summarized without holding all of its entities in memory
+     */
+    public static class Builder {
+        private final HashBuffer mHashBuffer = new HashBuffer();
+        private final long mHeaderTimestamp;
+        private long mContentHash;
+        private int mCount;
+        private String[] mEntityIds;
+        private long[] mEntityHashes;
+        private long[] mEntityTimestamps;
+        private String[] mTripIds;
+        private float[] mLatitudes;
+        private float[] mLongitudes;
+        private int[] mPredictionOffsets;
+        private int mPredictionCount;
+        private int[] mPredictionStopSequences = new int[16];
+        private String[] mPredictionStopIds = new String[16];
+        private long[] mPredictionTimes = new long[16];
+
+        /**
+         * Creates a builder for the summary of a message with the provided header
+         *
+         * @param header the header of the feed message
+         */
+        public Builder(GtfsRealtime.FeedHeader header) {
+            this(header, 16);
+        }
+
+        private Builder(GtfsRealtime.FeedHeader header, int expectedEntityCount) {
+            mHeaderTimestamp = header.getTimestamp();
+            mContentHash = mHashBuffer.hash(header);
+            int capacity = Math.max(expectedEntityCount, 1);
+            mEntityIds = new String[capacity];
+            mEntityHashes = new long[capacity];
+            mEntityTimestamps = new long[capacity];
+            mTripIds = new String[capacity];
+            mLatitudes = new float[capacity];
+            mLongitudes = new float[capacity];
+            mPredictionOffsets = new int[capacity + 1];
+        }
+
+        /**
+         * Adds the next entity of the feed message to the summary
+         *
+         * @param entity the next entity of the feed message
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder addEntity(GtfsRealtime.FeedEntity entity) {
+            if (mCount == mEntityIds.length) {
+                int capacity = mCount * 2;
+                mEntityIds = Arrays.copyOf(mEntityIds, capacity);
+                mEntityHashes = Arrays.copyOf(mEntityHashes, capacity);
+                mEntityTimestamps = Arrays.copyOf(mEntityTimestamps, capacity);
+                mTripIds = Arrays.copyOf(mTripIds, capacity);
+                mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+                mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+                mPredictionOffsets = Arrays.copyOf(mPredictionOffsets, capacity + 1);
+            }
+            long hash = mHashBuffer.hash(entity);
+            mEntityIds[mCount] = entity.getId();
+            mEntityHashes[mCount] = hash;
+            mEntityTimestamps[mCount] = getTimestamp(entity);
+            mTripIds[mCount] = null;
+            mLatitudes[mCount] = Float.NaN;
+            mLongitudes[mCount] = Float.NaN;
+            mPredictionOffsets[mCount] = mPredictionCount;
+            if (entity.hasTripUpdate()) {
+                GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
+                if (tripUpdate.getTrip().hasTripId()) {
+                    mTripIds[mCount] = tripUpdate.getTrip().getTripId();
+                }
+                for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+                    addPrediction(stopTimeUpdate);
+                }
+            } else if (entity.hasVehicle()) {
+                GtfsRealtime.VehiclePosition vehicle = entity.getVehicle();
+                if (vehicle.getTrip().hasTripId()) {
+                    mTripIds[mCount] = vehicle.getTrip().getTripId();
+                }
+                if (vehicle.hasPosition()) {
+                    mLatitudes[mCount] = vehicle.getPosition().getLatitude();
+                    mLongitudes[mCount] = vehicle.getPosition().getLongitude();
+                }
+            }
+            mContentHash = combine(mContentHash, hash);
+            mCount++;
+            return this;
+        }
+
+        public PreviousIterationState build() {
+            return new PreviousIterationState(this);
+        }
+
+        private void addPrediction(GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate) {
+            if (mPredictionCount == mPredictionTimes.length) {
+                int capacity = mPredictionCount * 2;
+                mPredictionStopSequences = Arrays.copyOf(mPredictionStopSequences, capacity);
+                mPredictionStopIds = Arrays.copyOf(mPredictionStopIds, capacity);
+                mPredictionTimes = Arrays.copyOf(mPredictionTimes, capacity);
+            }
+            mPredictionStopSequences[mPredictionCount] = stopTimeUpdate.hasStopSequence() ? stopTimeUpdate.getStopSequence() : -1;
+            mPredictionStopIds[mPredictionCount] = stopTimeUpdate.hasStopId() ? stopTimeUpdate.getStopId() : null;
+            long time = 0;
+            if (stopTimeUpdate.hasArrival() && stopTimeUpdate.getArrival().hasTime()) {
+                time = stopTimeUpdate.getArrival().getTime();
+            } else if (stopTimeUpdate.hasDeparture() && stopTimeUpdate.getDeparture().hasTime()) {
+                time = stopTimeUpdate.getDeparture().getTime();
+            }
+            mPredictionTimes[mPredictionCount] = time;
+            mPredictionCount++;
+        }
+    }
+
+    /**
+     * Serializes messages into a re-used buffer so they can be hashed without allocating a new array for each message
+     */
+    private static class HashBuffer {
+        private byte[] mBuffer = new byte[1024];
+
+        long hash(MessageLite message) {
+            int size = message.getSerializedSize();
+            if (size > mBuffer.length) {
+                mBuffer = new byte[Math.max(size, mBuffer.length * 2)];
+            }
+            CodedOutputStream output = CodedOutputStream.newInstance(mBuffer, 0, size);
+            try {
+                message.writeTo(output);
+            } catch (IOException e) {
+                // Writing to an array of the serialized size can't fail
+                throw new IllegalStateException("Couldn't serialize " + message.getClass().getSimpleName(), e);
+            }
+            return HASH_FUNCTION.hashBytes(mBuffer, 0, size).asLong();
+        }
+    }
+}
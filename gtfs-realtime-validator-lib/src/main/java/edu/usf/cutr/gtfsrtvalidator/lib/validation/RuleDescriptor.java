@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+
+import java.util.*;
+
+/**
+ * Describes a validator - the rules it can emit, the GtfsMetadata and GTFS-rt data it reads, and how expensive it is
+ * to run - so validators can be selected, ordered and scheduled without running them.  Validators return their
+ * descriptor from FeedEntityValidator.getDescriptor().
+ */
+public class RuleDescriptor {
+
+    /**
+     * Expected cost of running a validator on a feed message, relative to the other validators
+     */
+    public enum Cost {
+        /**
+         * Checks the header or a few fields of each entity using hash lookups
+         */
+        LOW,
+
+        /**
+         * Checks most fields of each entity, or each stop_time_update against GTFS stop_times.txt
+         */
+        MEDIUM,
+
+        /**
+         * Spatial calculations or other work that is expensive per entity
+         */
+        HIGH
+    }
+
+    private final String mName;
+    private final List<ValidationRule> mRules;
+    private final Set<MetadataFacet> mRequiredMetadata;
+    private final boolean mEntityLocal;
+    private final boolean mUsesPreviousFeedMessage;
+    private final boolean mUsesCombinedFeed;
+    private final Cost mCost;
+
+    private RuleDescriptor(Builder builder) {
+        mName = builder.mName;
+        mRules = Collections.unmodifiableList(new ArrayList<>(builder.mRules));
+        mRequiredMetadata = Collections.unmodifiableSet(builder.mRequiredMetadata);
+        mEntityLocal = builder.mEntityLocal;
+        mUsesPreviousFeedMessage = builder.mUsesPreviousFeedMessage;
+        mUsesCombinedFeed = builder.mUsesCombinedFeed;
+        mCost = builder.mCost;
+    }
+
+    /**
+     * Returns a builder for the descriptor of the provided validator, initialized with the validator class name,
+     * FeedEntityValidator.getRequiredMetadata() and FeedEntityValidator.isEntityLocal().  Validators that aren't
+     * entity-local are assumed to use the previous feed message and the combined feed until declared otherwise.
+     *
+     * @param validator the validator to describe
+     * @return a builder for the descriptor of the provided validator
+     */
+    public static Builder newBuilder(FeedEntityValidator validator) {
+        Builder builder = new Builder(validator.getClass().getSimpleName());
+        builder.mRequiredMetadata = EnumSet.noneOf(MetadataFacet.class);
+        builder.mRequiredMetadata.addAll(validator.getRequiredMetadata());
+        builder.mEntityLocal = validator.isEntityLocal();
+        builder.mUsesPreviousFeedMessage = !builder.mEntityLocal;
+        builder.mUsesCombinedFeed = !builder.mEntityLocal;
+        return builder;
+    }
+
+    /**
+     * Returns the name of the validator, which is used to enable or disable it (see RuleSelection)
+     *
+     * @return the name of the validator, which is used to enable or disable it
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the rules that the validator can emit, or an empty list if they weren't declared
+     *
+     * @return the rules that the validator can emit, or an empty list if they weren't declared
+     */
+    public List<ValidationRule> getRules() {
+        return mRules;
+    }
+
+    /**
+     * Returns the IDs of the rules that the validator can emit (e.g., "E001"), or an empty set if they weren't declared
+     *
+     * @return the IDs of the rules that the validator can emit (e.g., "E001"), or an empty set if they weren't declared
+     */
+    public Set<String> getRuleIds() {
+        Set<String> ids = new LinkedHashSet<>();
+        for (ValidationRule rule : mRules) {
+            ids.add(rule.getErrorId());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the optional parts of GtfsMetadata that the validator reads
+     *
+     * @return the optional parts of GtfsMetadata that the validator reads
+     */
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return mRequiredMetadata;
+    }
+
+    /**
+     * Returns true if the results of the validator for each entity depend only on that entity and the GTFS data (see
+     * FeedEntityValidator.isEntityLocal()), false if they do not
+     *
+     * @return true if the results of the validator for each entity depend only on that entity and the GTFS data, false if they do not
+     */
+    public boolean isEntityLocal() {
+        return mEntityLocal;
+    }
+
+    /**
+     * Returns true if the validator reads the feed message from the previous iteration, false if it does not
+     *
+     * @return true if the validator reads the feed message from the previous iteration, false if it does not
+     */
+    public boolean usesPreviousFeedMessage() {
+        return mUsesPreviousFeedMessage;
+    }
+
+    /**
+     * Returns true if the validator reads the combined feed of all GTFS-rt feeds for the same GTFS data, false if it does not
+     *
+     * @return true if the validator reads the combined feed of all GTFS-rt feeds for the same GTFS data, false if it does not
+     */
+    public boolean usesCombinedFeed() {
+        return mUsesCombinedFeed;
+    }
+
+    /**
+     * Returns the expected cost of running the validator on a feed message
+     *
+     * @return the expected cost of running the validator on a feed message
+     */
+    public Cost getCost() {
+        return mCost;
+    }
+
+    @Override
+    public String toString() {
+        return "RuleDescriptor{" +
+                "name='" + mName + '\'' +
+                ", rules=" + getRuleIds() +
+                ", requiredMetadata=" + mRequiredMetadata +
+                ", entityLocal=" + mEntityLocal +
+                ", usesPreviousFeedMessage=" + mUsesPreviousFeedMessage +
+                ", usesCombinedFeed=" + mUsesCombinedFeed +
+                ", cost=" + mCost +
+                '}';
+    }
+
+    public static class Builder {
+        private final String mName;
+        private List<ValidationRule> mRules = new ArrayList<>();
+        private Set<MetadataFacet> mRequiredMetadata = MetadataFacet.all();
+        private boolean mEntityLocal = false;
+        private boolean mUsesPreviousFeedMessage = true;
+        private boolean mUsesCombinedFeed = true;
+        private Cost mCost = Cost.MEDIUM;
+
+        /**
+         * Creates a builder for a descriptor with the provided validator name.  See RuleDescriptor.newBuilder() to
+         * initialize the builder from a validator.
+         *
+         * @param name the name of the validator
+         */
+        public Builder(String name) {
+            mName = name;
+        }
+
+        /**
+         * @param rules the rules that the validator can emit
+         * @return this Builder so methods can be chained together
+         */
+        public Builder setRules(ValidationRule... rules) {
+            mRules = Arrays.asList(rules);
+            return this;
+        }
+
+        /**
+         * @param requiredMetadata the optional parts of GtfsMetadata that the validator reads
+         * @return this Builder so methods can be chained together
+         */
+        public Builder setRequiredMetadata(Set<MetadataFacet> requiredMetadata) {
+            mRequiredMetadata = EnumSet.noneOf(MetadataFacet.class);
+            mRequiredMetadata.addAll(requiredMetadata);
+            return this;
+        }
+
+        /**
+         * @param entityLocal true if the results of the validator for each entity depend only on that entity and the GTFS data
+         * @return this Builder so methods can be chained together
+         */
+        public Builder setEntityLocal(boolean entityLocal) {
+            mEntityLocal = entityLocal;
+            return this;
+        }
+
+        /**
+         * @param usesPreviousFeedMessage true if the validator reads the feed message from the previous iteration
+         * @return this Builder so methods can be chained together
+         */
+        public Builder setUsesPreviousFeedMessage(boolean usesPreviousFeedMessage) {
+            mUsesPreviousFeedMessage = usesPreviousFeedMessage;
+            return this;
+        }
+
+        /**
+         * @param usesCombinedFeed true if the validator reads the combined feed of all GTFS-rt feeds for the same GTFS data
+         * @return this Builder so methods can be chained together
+         */
+        public Builder setUsesCombinedFeed(boolean usesCombinedFeed) {
+            mUsesCombinedFeed = usesCombinedFeed;
+            return this;
+        }
+
+        /**
+         * @param cost the expected cost of running the validator on a feed message
+         * @return this Builder so methods can be chained together
+         */
+        public Builder setCost(Cost cost) {
+            mCost = cost;
+            return this;
+        }
+
+        public RuleDescriptor build() {
+            return new RuleDescriptor(this);
+        }
+    }
+}
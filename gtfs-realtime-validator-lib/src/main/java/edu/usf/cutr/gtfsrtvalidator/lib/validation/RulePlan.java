@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Schedules the validators for a feed message using their descriptors (see RuleDescriptor):
+ * <ul>
+ * <li>Validators run in order of decreasing cost, so the most expensive validators start first</li>
+ * <li>If an executor is provided, validators that are entity-local and don't read the previous or combined feed
+ * messages run on the executor while the calling thread runs the other validators.  The calling thread runs any of
+ * them that the executor hasn't started by the time it finishes its own validators, so a busy (or the same) executor
+ * can't deadlock the caller.</li>
+ * </ul>
+ * Results are always returned in the order the validators were provided, so they are the same whether or not
+ * validators run in parallel.  A RulePlan doesn't hold any state between calls, so it can be shared by any number of
+ * threads as long as the validators can.
+ */
+public class RulePlan {
+
+    private final List<FeedEntityValidator> mRules;
+    private final List<FeedEntityValidator> mExecutionOrder;
+    private final Set<FeedEntityValidator> mIndependentRules;
+    private final boolean mUsesCombinedFeed;
+
+    /**
+     * Creates a plan for the provided validators
+     *
+     * @param rules the validators to run, in the order their results should be returned
+     */
+    public RulePlan(List<FeedEntityValidator> rules) {
+        mRules = Collections.unmodifiableList(new ArrayList<>(rules));
+        Map<FeedEntityValidator, RuleDescriptor> descriptors = new HashMap<>();
+        Set<FeedEntityValidator> independentRules = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean usesCombinedFeed = false;
+        for (FeedEntityValidator rule : mRules) {
+            RuleDescriptor descriptor = rule.getDescriptor();
+            descriptors.put(rule, descriptor);
+            if (descriptor.isEntityLocal() && !descriptor.usesPreviousFeedMessage() && !descriptor.usesCombinedFeed()) {
+                independentRules.add(rule);
+            }
+            usesCombinedFeed |= descriptor.usesCombinedFeed();
+        }
+        List<FeedEntityValidator> executionOrder = new ArrayList<>(mRules);
+        // Stable, so validators with the same cost keep the order they were provided in
+        executionOrder.sort(Comparator.comparing((FeedEntityValidator rule) -> descriptors.get(rule).getCost()).reversed());
+        mExecutionOrder = Collections.unmodifiableList(executionOrder);
+        mIndependentRules = independentRules;
+        mUsesCombinedFeed = usesCombinedFeed;
+    }
+
+    /**
+     * Returns the validators in the order their results are returned from run()
+     *
+     * @return the validators in the order their results are returned from run()
+     */
+    public List<FeedEntityValidator> getRules() {
+        return mRules;
+    }
+
+    /**
+     * Returns the validators in the order they are started, most expensive first
+     *
+     * @return the validators in the order they are started, most expensive first
+     */
+    public List<FeedEntityValidator> getExecutionOrder() {
+        return mExecutionOrder;
+    }
+
+    /**
+     * Returns true if the provided validator can run at the same time as the other validators of the same feed
+     * message, because its results only depend on the entities and the GTFS data, false if it can't
+     *
+     * @param rule a validator of this plan
+     * @return true if the provided validator can run at the same time as the other validators, false if it can't
+     */
+    public boolean isIndependent(FeedEntityValidator rule) {
+        return mIndependentRules.contains(rule);
+    }
+
+    /**
+     * Returns true if any of the validators reads the combined feed, so callers can skip building it when none do
+     *
+     * @return true if any of the validators reads the combined feed, false if none do
+     */
+    public boolean usesCombinedFeed() {
+        return mUsesCombinedFeed;
+    }
+
+    /**
+     * Runs each validator on a feed message
+     *
+     * @param validation runs a validator on the feed message and returns its results
+     * @param executor   the executor that independent validators run on, or null to run all validators on the calling thread
+     * @return the results of each validator, in the order the validators were provided
+     */
+    public List<List<ErrorListHelperModel>> run(Function<FeedEntityValidator, List<ErrorListHelperModel>> validation, Executor executor) {
+        Map<FeedEntityValidator, List<ErrorListHelperModel>> results = new IdentityHashMap<>();
+        Map<FeedEntityValidator, FutureTask<List<ErrorListHelperModel>>> tasks = new LinkedHashMap<>();
+        if (executor != null) {
+            for (FeedEntityValidator rule : mExecutionOrder) {
+                if (!isIndependent(rule)) {
+                    continue;
+                }
+                FutureTask<List<ErrorListHelperModel>> task = new FutureTask<>(() -> validation.apply(rule));
+                tasks.put(rule, task);
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // The calling thread runs it below
+                }
+            }
+        }
+        for (FeedEntityValidator rule : mExecutionOrder) {
+            if (!tasks.containsKey(rule)) {
+                results.put(rule, validation.apply(rule));
+            }
+        }
+        for (Map.Entry<FeedEntityValidator, FutureTask<List<ErrorListHelperModel>>> entry : tasks.entrySet()) {
+            FutureTask<List<ErrorListHelperModel>> task = entry.getValue();
+            // Does nothing if the executor already started the task
+            task.run();
+            results.put(entry.getKey(), getResult(task));
+        }
+
+        List<List<ErrorListHelperModel>> orderedResults = new ArrayList<>(mRules.size());
+        for (FeedEntityValidator rule : mRules) {
+            orderedResults.add(results.get(rule));
+        }
+        return orderedResults;
+    }
+
+    /**
+     * Waits for the task to finish and returns its result, rethrowing any exception thrown by the validator
+     */
+    private static List<ErrorListHelperModel> getResult(FutureTask<List<ErrorListHelperModel>> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // The task is already running, so wait for it to finish and restore the interrupt afterwards
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.CrossFeedDescriptorValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.HeaderValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.TimestampValidator;
+import org.onebusaway.gtfs.services.GtfsMutableDao;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Selects which rules are run during validation, using a named profile plus rules that are individually enabled or
+ * disabled.  A selection can be created in code, or read from a properties file like:
+ * <pre>
+ * # Use the built-in "freshness" profile, or a profile defined below
+ * profile=freshness
+ * # Validators to run in addition to the profile
+ * enable=StopValidator
+ * # Validators (e.g., VehicleValidator) or individual rule IDs (e.g., W009) to skip
+ * disable=W008
+ * # Define a new profile
+ * profile.positions=VehicleValidator,TimestampValidator,HeaderValidator
+ * </pre>
+ * Validators are discovered using java.util.ServiceLoader (see FeedEntityValidator) and are identified by the name in
+ * their descriptor, which is their class name by default (e.g., "TimestampValidator").  Disabling a validator skips it
+ * entirely (and the GtfsMetadata facets that only it needs, see getRequiredMetadata()), while disabling an individual
+ * rule ID removes that rule's results from the validator output.  A validator is also skipped if its descriptor
+ * declares the rules it emits and all of them are disabled.
+ * <p>
+ * Validators from other jars that declare they use the previous feed message without overriding
+ * FeedEntityValidator.validateWithCombinedFeed() are loaded with a warning, and are run without the previous feed
+ * message (see readsPreviousIteration()).
+ */
+public class RuleSelection {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(RuleSelection.class);
+
+    // Built-in profiles
+    public static final String PROFILE_ALL = "all";
+    public static final String PROFILE_FRESHNESS = "freshness";
+
+    // Keys used in rule selection properties files
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_ENABLE = "enable";
+    public static final String KEY_DISABLE = "disable";
+    public static final String KEY_PROFILE_PREFIX = "profile.";
+
+    private static final Pattern RULE_ID_PATTERN = Pattern.compile("^[EW]\\d{3}$");
+
+    // All available validators by name, in the order they are executed
+    private static final Map<String, Supplier<FeedEntityValidator>> ALL_VALIDATORS = new LinkedHashMap<>();
+    // Descriptors of all available validators by name
+    private static final Map<String, RuleDescriptor> DESCRIPTORS = new HashMap<>();
+
+    static {
+        // Built-in validators are listed first in META-INF/services, followed by validators from other jars on the classpath
+        for (FeedEntityValidator validator : ServiceLoader.load(FeedEntityValidator.class, RuleSelection.class.getClassLoader())) {
+            register(validator);
+        }
+    }
+
+    private final Map<String, Set<String>> mProfiles = new HashMap<>();
+    private String mProfile = PROFILE_ALL;
+    private final Set<String> mEnabledValidators = new HashSet<>();
+    private final Set<String> mDisabledValidators = new HashSet<>();
+    private final Set<String> mDisabledRuleIds = new HashSet<>();
+
+    /**
+     * Creates a new rule selection that runs all rules
+     */
+    public RuleSelection() {
+        mProfiles.put(PROFILE_ALL, new HashSet<>(ALL_VALIDATORS.keySet()));
+        // Feed freshness monitoring - header and timestamps, plus consistency between feeds
+        mProfiles.put(PROFILE_FRESHNESS, new HashSet<>(Arrays.asList(
+                TimestampValidator.class.getSimpleName(),
+                HeaderValidator.class.getSimpleName(),
+                CrossFeedDescriptorValidator.class.getSimpleName())));
+    }
+
+    /**
+     * Creates a rule selection from the provided properties - see the class documentation for the format
+     *
+     * @param properties properties that define the rule selection
+     * @return a rule selection for the provided properties
+     * @throws IllegalArgumentException if the properties reference a profile or validator that doesn't exist
+     */
+    public static RuleSelection fromProperties(Properties properties) {
+        RuleSelection selection = new RuleSelection();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(KEY_PROFILE_PREFIX)) {
+                selection.defineProfile(key.substring(KEY_PROFILE_PREFIX.length()), parseList(properties.getProperty(key)));
+            }
+        }
+        if (properties.getProperty(KEY_PROFILE) != null) {
+            selection.setProfile(properties.getProperty(KEY_PROFILE).trim());
+        }
+        selection.enable(parseList(properties.getProperty(KEY_ENABLE)));
+        selection.disable(parseList(properties.getProperty(KEY_DISABLE)));
+        return selection;
+    }
+
+    /**
+     * Creates a rule selection from the provided properties file - see the class documentation for the format
+     *
+     * @param file properties file that defines the rule selection
+     * @return a rule selection for the provided properties file
+     * @throws IOException              if the file can't be read
+     * @throws IllegalArgumentException if the file references a profile or validator that doesn't exist
+     */
+    public static RuleSelection fromFile(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        }
+        return fromProperties(properties);
+    }
+
+    /**
+     * Splits a comma-separated list of validator names or rule IDs (e.g., "VehicleValidator, W009") into a list
+     *
+     * @param list a comma-separated list of validator names or rule IDs, or null
+     * @return the items in the list, or an empty list if the list is null or empty
+     */
+    public static List<String> parseList(String list) {
+        List<String> items = new ArrayList<>();
+        if (list == null) {
+            return items;
+        }
+        for (String item : list.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Returns the names of all available validators, in the order they are executed
+     *
+     * @return the names of all available validators, in the order they are executed
+     */
+    public static Set<String> getValidatorNames() {
+        return Collections.unmodifiableSet(ALL_VALIDATORS.keySet());
+    }
+
+    /**
+     * Defines a new profile (or replaces an existing profile) with the provided name
+     *
+     * @param name       name of the profile
+     * @param validators validator names included in the profile
+     * @return this RuleSelection so methods can be chained together
+     * @throws IllegalArgumentException if one of the validators doesn't exist
+     */
+    public RuleSelection defineProfile(String name, Collection<String> validators) {
+        for (String validator : validators) {
+            checkValidatorName(validator);
+        }
+        mProfiles.put(name, new HashSet<>(validators));
+        return this;
+    }
+
+    /**
+     * Sets the profile used as the starting set of validators (default is PROFILE_ALL)
+     *
+     * @param profile the name of a built-in or defined profile
+     * @return this RuleSelection so methods can be chained together
+     * @throws IllegalArgumentException if the profile doesn't exist
+     */
+    public RuleSelection setProfile(String profile) {
+        if (!mProfiles.containsKey(profile)) {
+            throw new IllegalArgumentException("Unknown rule profile '" + profile + "' - available profiles are " + mProfiles.keySet());
+        }
+        mProfile = profile;
+        return this;
+    }
+
+    /**
+     * Returns the name of the profile used as the starting set of validators
+     *
+     * @return the name of the profile used as the starting set of validators
+     */
+    public String getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Runs the provided validators in addition to the validators in the profile
+     *
+     * @param validators validator names to enable
+     * @return this RuleSelection so methods can be chained together
+     * @throws IllegalArgumentException if one of the validators doesn't exist
+     */
+    public RuleSelection enable(Collection<String> validators) {
+        for (String validator : validators) {
+            checkValidatorName(validator);
+            mEnabledValidators.add(validator);
+            mDisabledValidators.remove(validator);
+        }
+        return this;
+    }
+
+    /**
+     * Skips the provided validators or rule IDs, even if they are included in the profile or enabled
+     *
+     * @param validatorsOrRuleIds validator names (e.g., "VehicleValidator") or rule IDs (e.g., "W009") to disable
+     * @return this RuleSelection so methods can be chained together
+     * @throws IllegalArgumentException if one of the validators doesn't exist
+     */
+    public RuleSelection disable(Collection<String> validatorsOrRuleIds) {
+        for (String item : validatorsOrRuleIds) {
+            if (RULE_ID_PATTERN.matcher(item).matches()) {
+                mDisabledRuleIds.add(item);
+            } else {
+                checkValidatorName(item);
+                mDisabledValidators.add(item);
+                mEnabledValidators.remove(item);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns true if the provided rule ID (e.g., "W009") hasn't been disabled, false if it has
+     *
+     * @param ruleId the rule ID to check
+     * @return true if the provided rule ID (e.g., "W009") hasn't been disabled, false if it has
+     */
+    public boolean isRuleEnabled(String ruleId) {
+        return !mDisabledRuleIds.contains(ruleId);
+    }
+
+    /**
+     * Creates new instances of the selected validators, in the order they should be executed
+     *
+     * @return new instances of the selected validators, in the order they should be executed
+     */
+    public List<FeedEntityValidator> createValidators() {
+        Set<String> selected = new HashSet<>(mProfiles.get(mProfile));
+        selected.addAll(mEnabledValidators);
+        selected.removeAll(mDisabledValidators);
+
+        List<FeedEntityValidator> validators = new ArrayList<>();
+        for (Map.Entry<String, Supplier<FeedEntityValidator>> entry : ALL_VALIDATORS.entrySet()) {
+            if (selected.contains(entry.getKey()) && !allRulesDisabled(DESCRIPTORS.get(entry.getKey()))) {
+                validators.add(entry.getValue().get());
+            }
+        }
+        return validators;
+    }
+
+    /**
+     * Returns true if the descriptor declares the rules the validator emits and all of them have been disabled, so
+     * the validator doesn't need to run
+     */
+    private boolean allRulesDisabled(RuleDescriptor descriptor) {
+        Set<String> ruleIds = descriptor.getRuleIds();
+        return !ruleIds.isEmpty() && mDisabledRuleIds.containsAll(ruleIds);
+    }
+
+    /**
+     * Removes the results for rule IDs that have been disabled from the provided validator output
+     *
+     * @param errorLists list of errors and warnings output from validation
+     * @return the provided list, without results for rule IDs that have been disabled
+     */
+    public List<ErrorListHelperModel> filterResults(List<ErrorListHelperModel> errorLists) {
+        if (errorLists != null && !mDisabledRuleIds.isEmpty()) {
+            errorLists.removeIf(errorList -> !isRuleEnabled(errorList.getErrorMessage().getValidationRule().getErrorId()));
+        }
+        return errorLists;
+    }
+
+    /**
+     * Returns the GtfsMetadata facets needed by at least one of the provided validators
+     *
+     * @param validators the validators that will be executed
+     * @return the GtfsMetadata facets needed by at least one of the provided validators
+     */
+    public static Set<MetadataFacet> getRequiredMetadata(Collection<FeedEntityValidator> validators) {
+        Set<MetadataFacet> facets = MetadataFacet.none();
+        for (FeedEntityValidator validator : validators) {
+            facets.addAll(validator.getRequiredMetadata());
+        }
+        return facets;
+    }
+
+    /**
+     * Returns the descriptor of the validator with the provided name
+     *
+     * @param validator the name of the validator
+     * @return the descriptor of the validator with the provided name
+     * @throws IllegalArgumentException if the validator doesn't exist
+     */
+    public static RuleDescriptor getDescriptor(String validator) {
+        checkValidatorName(validator);
+        return DESCRIPTORS.get(validator);
+    }
+
+    /**
+     * Returns false if the validator declares that it uses the previous feed message but doesn't override
+     * FeedEntityValidator.validateWithCombinedFeed() to read the summary of the previous iteration, so it is always
+     * passed a null previous feed message, true otherwise
+     *
+     * @param validator the validator to check
+     * @return false if the validator declares that it uses the previous feed message but can't read it, true otherwise
+     */
+    public static boolean readsPreviousIteration(FeedEntityValidator validator) {
+        if (!validator.getDescriptor().usesPreviousFeedMessage()) {
+            return true;
+        }
+        try {
+            Method method = validator.getClass().getMethod("validateWithCombinedFeed", long.class, GtfsMutableDao.class, GtfsMetadata.class,
+                    GtfsRealtime.FeedMessage.class, PreviousIterationState.class, CombinedFeed.class);
+            // The interface's default method, unless the validator overrides it
+            return !method.isDefault();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Registers a validator found by the ServiceLoader, using its descriptor name.  New instances are created using the
+     * public no-argument constructor of the validator class.
+     */
+    private static void register(FeedEntityValidator validator) {
+        RuleDescriptor descriptor = validator.getDescriptor();
+        if (ALL_VALIDATORS.containsKey(descriptor.getName())) {
+            _log.warn("Validator " + validator.getClass().getName() + " has the same name as another validator (" + descriptor.getName() + ") - skipping it");
+            return;
+        }
+        if (!readsPreviousIteration(validator)) {
+            _log.warn("Validator " + validator.getClass().getName() + " declares that it uses the previous feed message but doesn't override "
+                    + "validateWithCombinedFeed() to read the previous iteration - it will be run without the previous feed message. "
+                    + "Declare setUsesPreviousFeedMessage(false) in its descriptor if it doesn't need it.");
+        }
+        Class<? extends FeedEntityValidator> validatorClass = validator.getClass();
+        ALL_VALIDATORS.put(descriptor.getName(), () -> {
+            try {
+                return validatorClass.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException("Couldn't create validator " + validatorClass.getName(), e);
+            }
+        });
+        DESCRIPTORS.put(descriptor.getName(), descriptor);
+    }
+
+    private static void checkValidatorName(String validator) {
+        if (!ALL_VALIDATORS.containsKey(validator)) {
+            throw new IllegalArgumentException("Unknown validator '" + validator + "' - available validators are " + ALL_VALIDATORS.keySet());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RuleSelection{" +
+                "profile='" + mProfile + '\'' +
+                ", enabled=" + mEnabledValidators +
+                ", disabled=" + mDisabledValidators +
+                ", disabledRuleIds=" + mDisabledRuleIds +
+                '}';
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MessageLogModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.W010;
+
+/**
+ * Enforces a time budget for each validator, so a pathological feed can't stall validation of a GTFS-realtime feed.
+ * Validators run on the calling thread, so they don't need any threads besides the ones validating feeds.
+ * <p>
+ * The budget is enforced in two ways:
+ * <ul>
+ * <li>Cooperatively - validators call checkBudget() while looping over entities, which throws a RuleTimeoutException
+ * once the budget is used up</li>
+ * <li>By a watchdog - when the budget is used up, a single timer thread shared by all watchdogs interrupts the thread
+ * running the validator, which stops validators that are waiting or blocked and makes checkBudget() throw.  The
+ * interrupt is cleared before validate() returns.</li>
+ * </ul>
+ * When a validator exceeds its budget, W010 is returned instead of the results of that validator for that iteration,
+ * even if the validator finished without checking its budget.  A validator that times out for maxConsecutiveTimeouts
+ * iterations in a row is disabled for disableMillis, and W010 is returned for each iteration while it is disabled, so a
+ * validator that never checks its budget only holds the calling thread for a few iterations.
+ * <p>
+ * The timeout history is kept per validator name, so a RuleWatchdog should be used per GTFS-realtime feed if a
+ * pathological feed shouldn't disable validators for other feeds.  This class is thread-safe.
+ */
+public class RuleWatchdog {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(RuleWatchdog.class);
+
+    // Budget value that runs validators without a time limit
+    public static final long NO_BUDGET = 0;
+
+    public static final long DEFAULT_BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_MAX_CONSECUTIVE_TIMEOUTS = 3;
+    public static final long DEFAULT_DISABLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // Deadline of the validator running on the current thread, in System.nanoTime(), or null if there is no deadline
+    private static final ThreadLocal<Long> mDeadlineNanos = new ThreadLocal<>();
+
+    // Interrupts the threads running validators that have used up their budget
+    private static final ScheduledThreadPoolExecutor mTimer = createTimer();
+
+    private final long mBudgetMillis;
+    private final int mMaxConsecutiveTimeouts;
+    private final long mDisableMillis;
+    private final Map<String, RuleState> mStates = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a watchdog with the provided budget that disables a validator for DEFAULT_DISABLE_MILLIS after
+     * DEFAULT_MAX_CONSECUTIVE_TIMEOUTS timeouts in a row
+     *
+     * @param budgetMillis the maximum time each validator may run on each feed message, in milliseconds, or NO_BUDGET to run validators without a time limit
+     */
+    public RuleWatchdog(long budgetMillis) {
+        this(budgetMillis, DEFAULT_MAX_CONSECUTIVE_TIMEOUTS, DEFAULT_DISABLE_MILLIS);
+    }
+
+    /**
+     * Creates a watchdog with the provided budget
+     *
+     * @param budgetMillis           the maximum time each validator may run on each feed message, in milliseconds, or NO_BUDGET to run validators without a time limit
+     * @param maxConsecutiveTimeouts the number of timeouts in a row after which a validator is disabled
+     * @param disableMillis          how long a validator is disabled for, in milliseconds
+     */
+    public RuleWatchdog(long budgetMillis, int maxConsecutiveTimeouts, long disableMillis) {
+        mBudgetMillis = budgetMillis;
+        mMaxConsecutiveTimeouts = maxConsecutiveTimeouts;
+        mDisableMillis = disableMillis;
+    }
+
+    /**
+     * Throws a RuleTimeoutException if the validator running on the current thread has used up its time budget or the
+     * watchdog has interrupted it.  Validators should call this once per entity (or other unit of work that can
+     * grow with the size of the feed).  This returns immediately if the validator isn't running under a RuleWatchdog.
+     *
+     * @throws RuleTimeoutException if the validator running on the current thread has used up its time budget
+     */
+    public static void checkBudget() {
+        Long deadlineNanos = mDeadlineNanos.get();
+        if (deadlineNanos == null) {
+            return;
+        }
+        if (System.nanoTime() - deadlineNanos > 0 || Thread.currentThread().isInterrupted()) {
+            throw new RuleTimeoutException("Time budget exceeded");
+        }
+    }
+
+    /**
+     * Runs the validation for the provided validator on the calling thread within the time budget.  If the validator is
+     * disabled or exceeds its budget, a W010 occurrence is returned instead of the results of the validator.
+     *
+     * @param rule       the validator being run, used to track timeouts
+     * @param validation runs the validator and returns its results
+     * @return the results of the validation, or a W010 occurrence if the validator is disabled or timed out
+     */
+    public List<ErrorListHelperModel> validate(FeedEntityValidator rule, Supplier<List<ErrorListHelperModel>> validation) {
+        if (mBudgetMillis <= NO_BUDGET) {
+            return validation.get();
+        }
+        String name = rule.getClass().getSimpleName();
+        RuleState state = mStates.computeIfAbsent(name, k -> new RuleState());
+        synchronized (state) {
+            if (state.mDisabledUntilMillis > System.currentTimeMillis()) {
+                return timeoutResult(name + " timed out in " + mMaxConsecutiveTimeouts + " iterations in a row and is disabled for " + TimeUnit.MILLISECONDS.toSeconds(mDisableMillis) + " seconds");
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(mBudgetMillis);
+        Thread thread = Thread.currentThread();
+        // Set when the validator finishes, or when the timer interrupts it - whichever happens first
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        ScheduledFuture<?> timer = mTimer.schedule(() -> {
+            if (finished.compareAndSet(false, true)) {
+                interrupted.set(true);
+                thread.interrupt();
+            }
+        }, mBudgetMillis, TimeUnit.MILLISECONDS);
+        Long outerDeadlineNanos = mDeadlineNanos.get();
+        mDeadlineNanos.set(deadlineNanos);
+        List<ErrorListHelperModel> errorLists;
+        try {
+            errorLists = validation.get();
+        } catch (RuleTimeoutException e) {
+            errorLists = null;
+        } finally {
+            if (outerDeadlineNanos != null) {
+                mDeadlineNanos.set(outerDeadlineNanos);
+            } else {
+                mDeadlineNanos.remove();
+            }
+            if (!finished.compareAndSet(false, true)) {
+                // The timer has interrupted this thread (or is about to) - wait for it, and clear the interrupt so it
+                // doesn't affect the next validator
+                while (!interrupted.get()) {
+                    Thread.yield();
+                }
+                Thread.interrupted();
+            }
+            timer.cancel(false);
+        }
+
+        if (interrupted.get() || System.nanoTime() - deadlineNanos > 0) {
+            return timedOut(name, state);
+        }
+        if (errorLists == null) {
+            // The thread was interrupted by someone else - validation of this feed is being stopped
+            return new ArrayList<>();
+        }
+        synchronized (state) {
+            state.mConsecutiveTimeouts = 0;
+        }
+        return errorLists;
+    }
+
+    /**
+     * Returns true if the validator with the provided name is currently disabled because it timed out repeatedly, false if it is not
+     *
+     * @param validatorName the name of the validator (e.g., "VehicleValidator")
+     * @return true if the validator with the provided name is currently disabled because it timed out repeatedly, false if it is not
+     */
+    public boolean isDisabled(String validatorName) {
+        RuleState state = mStates.get(validatorName);
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            return state.mDisabledUntilMillis > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns the maximum time each validator may run on each feed message, in milliseconds
+     *
+     * @return the maximum time each validator may run on each feed message, in milliseconds
+     */
+    public long getBudgetMillis() {
+        return mBudgetMillis;
+    }
+
+    private List<ErrorListHelperModel> timedOut(String name, RuleState state) {
+        synchronized (state) {
+            state.mConsecutiveTimeouts++;
+            if (state.mConsecutiveTimeouts >= mMaxConsecutiveTimeouts) {
+                _log.warn(name + " timed out in " + state.mConsecutiveTimeouts + " iterations in a row - disabling it for " + TimeUnit.MILLISECONDS.toSeconds(mDisableMillis) + " seconds");
+                state.mConsecutiveTimeouts = 0;
+                state.mDisabledUntilMillis = System.currentTimeMillis() + mDisableMillis;
+            } else {
+                _log.warn(name + " exceeded its time budget of " + mBudgetMillis + " ms");
+            }
+        }
+        return timeoutResult(name + " exceeded its time budget of " + mBudgetMillis + " ms");
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("rule-watchdog")
+                .setDaemon(true)
+                .build());
+        // Most validators finish within their budget, so don't keep their cancelled timeouts until they would have run
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private List<ErrorListHelperModel> timeoutResult(String prefix) {
+        List<OccurrenceModel> occurrences = new ArrayList<>();
+        occurrences.add(new OccurrenceModel(prefix));
+        List<ErrorListHelperModel> errorLists = new ArrayList<>();
+        errorLists.add(new ErrorListHelperModel(new MessageLogModel(W010), occurrences));
+        return errorLists;
+    }
+
+    /**
+     * Timeout history for a single validator
+     */
+    private static class RuleState {
+        private int mConsecutiveTimeouts;
+        private long mDisabledUntilMillis;
+    }
+}
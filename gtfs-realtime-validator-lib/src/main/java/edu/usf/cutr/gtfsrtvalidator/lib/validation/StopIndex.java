@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import org.locationtech.spatial4j.distance.DistanceUtils;
+import org.onebusaway.gtfs.model.Stop;
+
+import java.util.*;
+
+/**
+ * A spatial index of the locations in GTFS stops.txt, so rules can find the stops nearest to a vehicle, or the stops
+ * within a distance of a vehicle, without checking every stop (see GtfsMetadata.getStopIndex()).
+ * <p>
+ * This is a KD-tree packed into arrays: the stops in each range of positions are split at the middle position by
+ * latitude or longitude (whichever the stops are spread the farthest along), so there are no node objects and each
+ * query only reads the ranges that can hold stops within range of the query point.  A grid of cells doesn't work as well
+ * for GTFS data, because stops are much denser downtown than in the suburbs.  Distances are great-circle distances in
+ * meters, including between stops on both sides of the antimeridian.  This class is immutable.
+ */
+public class StopIndex {
+
+    // Index used when the STOP_INDEX facet of GtfsMetadata isn't built
+    public static final StopIndex EMPTY = new StopIndex(Collections.emptyList());
+
+    private static final double EARTH_RADIUS_METERS = DistanceUtils.EARTH_MEAN_RADIUS_KM * 1000;
+    // Ranges with this many stops or fewer aren't split
+    private static final int LEAF_SIZE = 8;
+
+    // Stop data in tree order
+    private final String[] mStopIds;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double[] mCosLatitudes;
+    // True if the range with its middle at this position is split by longitude, false if it's split by latitude
+    private final boolean[] mSplitOnLongitude;
+    // Cosine of the latitude of the stop farthest from the equator, which bounds the length of a degree of longitude
+    private final double mMinCosLatitude;
+
+    /**
+     * Builds the index for the provided stops
+     *
+     * @param stops the stops from GTFS stops.txt
+     */
+    public StopIndex(Collection<Stop> stops) {
+        int count = stops.size();
+        mStopIds = new String[count];
+        mLatitudes = new double[count];
+        mLongitudes = new double[count];
+        mCosLatitudes = new double[count];
+        mSplitOnLongitude = new boolean[count];
+
+        double maxAbsLatitude = 0;
+        int i = 0;
+        for (Stop stop : stops) {
+            mStopIds[i] = stop.getId().getId();
+            mLatitudes[i] = stop.getLat();
+            mLongitudes[i] = stop.getLon();
+            maxAbsLatitude = Math.max(maxAbsLatitude, Math.abs(stop.getLat()));
+            i++;
+        }
+        mMinCosLatitude = Math.max(Math.cos(Math.toRadians(maxAbsLatitude)), 0);
+
+        build(0, count);
+        for (i = 0; i < count; i++) {
+            mCosLatitudes[i] = Math.cos(Math.toRadians(mLatitudes[i]));
+        }
+    }
+
+    /**
+     * Returns the great-circle distance between two points, in meters
+     *
+     * @param lat1 latitude of the first point
+     * @param lon1 longitude of the first point
+     * @param lat2 latitude of the second point
+     * @param lon2 longitude of the second point
+     * @return the great-circle distance between the two points, in meters
+     */
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        return toMeters(haversine(lat1, lon1, Math.cos(Math.toRadians(lat1)), lat2, lon2, Math.cos(Math.toRadians(lat2))));
+    }
+
+    /**
+     * Returns the number of stops in the index
+     *
+     * @return the number of stops in the index
+     */
+    public int size() {
+        return mStopIds.length;
+    }
+
+    /**
+     * Returns the stop_id of the stop at the provided position in the index
+     *
+     * @param index position of the stop in the index, as returned by findNearest() or findWithinRadius()
+     * @return the stop_id of the stop at the provided position in the index
+     */
+    public String getStopId(int index) {
+        return mStopIds[index];
+    }
+
+    /**
+     * Returns the latitude of the stop at the provided position in the index
+     *
+     * @param index position of the stop in the index, as returned by findNearest() or findWithinRadius()
+     * @return the latitude of the stop at the provided position in the index
+     */
+    public double getLatitude(int index) {
+        return mLatitudes[index];
+    }
+
+    /**
+     * Returns the longitude of the stop at the provided position in the index
+     *
+     * @param index position of the stop in the index, as returned by findNearest() or findWithinRadius()
+     * @return the longitude of the stop at the provided position in the index
+     */
+    public double getLongitude(int index) {
+        return mLongitudes[index];
+    }
+
+    /**
+     * Returns the distance from the stop at the provided position in the index to a point, in meters
+     *
+     * @param index position of the stop in the index, as returned by findNearest() or findWithinRadius()
+     * @param lat   latitude of the point
+     * @param lon   longitude of the point
+     * @return the distance from the stop at the provided position in the index to the point, in meters
+     */
+    public double distanceMeters(int index, double lat, double lon) {
+        return toMeters(haversine(lat, lon, Math.cos(Math.toRadians(lat)), mLatitudes[index], mLongitudes[index], mCosLatitudes[index]));
+    }
+
+    /**
+     * Returns the positions in the index of the k stops nearest to a point, nearest first.  Use getStopId() to get the
+     * stop_id of each stop.
+     *
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @param k   the number of stops to return
+     * @return the positions in the index of the k stops nearest to the point (or all stops if there are fewer than k), nearest first
+     */
+    public int[] findNearest(double lat, double lon, int k) {
+        k = Math.min(k, mStopIds.length);
+        if (k <= 0) {
+            return new int[0];
+        }
+        Query query = new Query(lat, lon);
+        NearestStops nearest = new NearestStops(k);
+        findNearest(0, mStopIds.length, query, nearest);
+        return nearest.toSortedArray();
+    }
+
+    /**
+     * Returns the positions in the index of the stops within the provided distance of a point, nearest first.  Use
+     * getStopId() to get the stop_id of each stop.
+     *
+     * @param lat          latitude of the point
+     * @param lon          longitude of the point
+     * @param radiusMeters the maximum distance from the point, in meters
+     * @return the positions in the index of the stops within radiusMeters of the point, nearest first
+     */
+    public int[] findWithinRadius(double lat, double lon, double radiusMeters) {
+        if (mStopIds.length == 0 || radiusMeters < 0) {
+            return new int[0];
+        }
+        Query query = new Query(lat, lon);
+        StopDistances found = new StopDistances();
+        double maxHaversine = Math.pow(Math.sin(Math.min(radiusMeters / EARTH_RADIUS_METERS / 2, Math.PI / 2)), 2);
+        findWithinRadius(0, mStopIds.length, query, maxHaversine, found);
+        return found.toSortedArray();
+    }
+
+    private void findNearest(int from, int to, Query query, NearestStops nearest) {
+        if (to - from <= LEAF_SIZE) {
+            for (int i = from; i < to; i++) {
+                nearest.offer(i, query.haversineTo(i));
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        nearest.offer(middle, query.haversineTo(middle));
+        double delta = query.deltaTo(middle);
+        // Search the half that contains the point first, so the other half can usually be skipped
+        if (delta < 0) {
+            findNearest(from, middle, query, nearest);
+            if (!nearest.isFull() || query.minHaversineAcross(middle, delta) < nearest.getFarthestHaversine()) {
+                findNearest(middle + 1, to, query, nearest);
+            }
+        } else {
+            findNearest(middle + 1, to, query, nearest);
+            if (!nearest.isFull() || query.minHaversineAcross(middle, delta) < nearest.getFarthestHaversine()) {
+                findNearest(from, middle, query, nearest);
+            }
+        }
+    }
+
+    private void findWithinRadius(int from, int to, Query query, double maxHaversine, StopDistances found) {
+        if (to - from <= LEAF_SIZE) {
+            for (int i = from; i < to; i++) {
+                found.addIfWithin(i, query.haversineTo(i), maxHaversine);
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        found.addIfWithin(middle, query.haversineTo(middle), maxHaversine);
+        double delta = query.deltaTo(middle);
+        boolean searchOtherHalf = query.minHaversineAcross(middle, delta) <= maxHaversine;
+        if (delta < 0 || searchOtherHalf) {
+            findWithinRadius(from, middle, query, maxHaversine, found);
+        }
+        if (delta >= 0 || searchOtherHalf) {
+            findWithinRadius(middle + 1, to, query, maxHaversine, found);
+        }
+    }
+
+    /**
+     * Orders the stops in the provided range so the stop at the middle position splits the stops before it from the
+     * stops after it, and then orders both halves the same way
+     */
+    private void build(int from, int to) {
+        if (to - from <= LEAF_SIZE) {
+            return;
+        }
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE, minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            minLat = Math.min(minLat, mLatitudes[i]);
+            maxLat = Math.max(maxLat, mLatitudes[i]);
+            minLon = Math.min(minLon, mLongitudes[i]);
+            maxLon = Math.max(maxLon, mLongitudes[i]);
+        }
+        // Compare the spread of the stops in meters rather than degrees, since degrees of longitude are shorter
+        boolean splitOnLongitude = (maxLon - minLon) * Math.cos(Math.toRadians((minLat + maxLat) / 2)) > maxLat - minLat;
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, splitOnLongitude ? mLongitudes : mLatitudes);
+        mSplitOnLongitude[middle] = splitOnLongitude;
+        build(from, middle);
+        build(middle + 1, to);
+    }
+
+    /**
+     * Moves the stops between left and right (inclusive) so the stop at position k has the coordinate it would have if
+     * the stops were sorted by that coordinate, all stops before it have a lower or equal coordinate, and all stops after
+     * it have a higher or equal coordinate
+     */
+    private void select(int left, int right, int k, double[] coordinates) {
+        while (right > left) {
+            double pivot = coordinates[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinates[i] < pivot) {
+                    i++;
+                }
+                while (coordinates[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        String stopId = mStopIds[i];
+        mStopIds[i] = mStopIds[j];
+        mStopIds[j] = stopId;
+        double lat = mLatitudes[i];
+        mLatitudes[i] = mLatitudes[j];
+        mLatitudes[j] = lat;
+        double lon = mLongitudes[i];
+        mLongitudes[i] = mLongitudes[j];
+        mLongitudes[j] = lon;
+    }
+
+    /**
+     * Returns the haversine of the central angle between two points, sin^2(distance / 2R), which orders points the same
+     * way as their distance but is cheaper to compute.  Queries compare these values and only convert the results to meters.
+     */
+    private static double haversine(double lat1, double lon1, double cosLat1, double lat2, double lon2, double cosLat2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        return Math.min(1, sinLat * sinLat + cosLat1 * cosLat2 * sinLon * sinLon);
+    }
+
+    private static double toMeters(double haversine) {
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(haversine));
+    }
+
+    /**
+     * Sorts the first count positions by their haversine values (see haversine()), using a heap sort so the values
+     * don't need to be boxed, and returns the sorted positions
+     */
+    private static int[] sortByDistance(int[] indexes, double[] haversines, int count) {
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(indexes, haversines, i, indexes[i], haversines[i], count);
+        }
+        for (int end = count - 1; end > 0; end--) {
+            int index = indexes[end];
+            double haversine = haversines[end];
+            indexes[end] = indexes[0];
+            haversines[end] = haversines[0];
+            siftDown(indexes, haversines, 0, index, haversine, end);
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+
+    /**
+     * Places the provided stop at position i of a max-heap of the provided size, moving larger children up
+     */
+    private static void siftDown(int[] indexes, double[] haversines, int i, int index, double haversine, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && haversines[child + 1] > haversines[child]) {
+                child++;
+            }
+            if (haversines[child] <= haversine) {
+                break;
+            }
+            indexes[i] = indexes[child];
+            haversines[i] = haversines[child];
+            i = child;
+        }
+        indexes[i] = index;
+        haversines[i] = haversine;
+    }
+
+    /**
+     * The point being searched for, with the values that are the same for every stop it's compared to
+     */
+    private class Query {
+        private final double mLat;
+        private final double mLon;
+        private final double mCosLat;
+        // Lower bound of the cosine of the latitude of the point and of every stop
+        private final double mMinCosLat;
+
+        Query(double lat, double lon) {
+            mLat = lat;
+            mLon = lon;
+            mCosLat = Math.cos(Math.toRadians(lat));
+            mMinCosLat = Math.max(Math.min(mCosLat, mMinCosLatitude), 0);
+        }
+
+        double haversineTo(int index) {
+            return haversine(mLat, mLon, mCosLat, mLatitudes[index], mLongitudes[index], mCosLatitudes[index]);
+        }
+
+        /**
+         * Returns the difference between the point and the stop at the provided position, along the coordinate that
+         * splits the range with its middle at that position
+         */
+        double deltaTo(int middle) {
+            return mSplitOnLongitude[middle] ? mLon - mLongitudes[middle] : mLat - mLatitudes[middle];
+        }
+
+        /**
+         * Returns a lower bound of the haversine value from the point to any stop on the other side of the split at the
+         * provided position, where delta is the result of deltaTo()
+         */
+        double minHaversineAcross(int middle, double delta) {
+            double degrees = Math.abs(delta);
+            if (mSplitOnLongitude[middle]) {
+                // The other side extends to the antimeridian, where it wraps around towards the point - e.g., a stop at
+                // -179.9 is close to a point at 179.9 even if the split is at 0
+                degrees = Math.min(degrees, delta >= 0 ? 180 - mLon : 180 + mLon);
+            }
+            double halfRadians = Math.toRadians(Math.max(Math.min(degrees, 180), 0)) / 2;
+            double sinHalf = (mSplitOnLongitude[middle] ? mMinCosLat : 1) * Math.sin(halfRadians);
+            return sinHalf * sinHalf;
+        }
+    }
+
+    /**
+     * Positions of stops and their haversine values, in the order they were found
+     */
+    private static class StopDistances {
+        private int[] mIndexes = new int[16];
+        private double[] mHaversines = new double[16];
+        private int mSize;
+
+        void addIfWithin(int index, double haversine, double maxHaversine) {
+            if (haversine > maxHaversine) {
+                return;
+            }
+            if (mSize == mIndexes.length) {
+                mIndexes = Arrays.copyOf(mIndexes, mSize * 2);
+                mHaversines = Arrays.copyOf(mHaversines, mSize * 2);
+            }
+            mIndexes[mSize] = index;
+            mHaversines[mSize] = haversine;
+            mSize++;
+        }
+
+        int[] toSortedArray() {
+            return sortByDistance(mIndexes, mHaversines, mSize);
+        }
+    }
+
+    /**
+     * A bounded max-heap of stop positions by haversine value, holding the k nearest stops offered to it
+     */
+    private static class NearestStops {
+        private final int[] mIndexes;
+        private final double[] mHaversines;
+        private int mSize;
+
+        NearestStops(int k) {
+            mIndexes = new int[k];
+            mHaversines = new double[k];
+        }
+
+        boolean isFull() {
+            return mSize == mIndexes.length;
+        }
+
+        double getFarthestHaversine() {
+            return mHaversines[0];
+        }
+
+        void offer(int index, double haversine) {
+            if (!isFull()) {
+                // Sift up
+                int i = mSize++;
+                while (i > 0 && mHaversines[(i - 1) / 2] < haversine) {
+                    mIndexes[i] = mIndexes[(i - 1) / 2];
+                    mHaversines[i] = mHaversines[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                mIndexes[i] = index;
+                mHaversines[i] = haversine;
+            } else if (haversine < mHaversines[0]) {
+                // Replace the farthest stop
+                siftDown(mIndexes, mHaversines, 0, index, haversine, mSize);
+            }
+        }
+
+        int[] toSortedArray() {
+            return sortByDistance(mIndexes, mHaversines, mSize);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MessageLogModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import org.onebusaway.gtfs.services.GtfsMutableDao;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Validates a GTFS-realtime feed read from a FeedMessageReader one entity at a time.  Entity-local rules (see
+ * FeedEntityValidator.isEntityLocal()) are run on each entity as it is read, so if all rules are entity-local only one
+ * entity is held in memory at a time.  If any rule isn't entity-local, the entire FeedMessage is materialized while
+ * the entities are read and those rules are run on it afterwards.  Results are identical to running each rule on the
+ * entire feed message.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class StreamingValidator {
+
+    // Sorts results in the same order as the entity-local rules - errors and then warnings, by rule ID
+    private static final Comparator<ValidationRule> RULE_ORDER = Comparator.comparing(ValidationRule::getErrorId);
+
+    private final List<FeedEntityValidator> mRules;
+    private final List<FeedEntityValidator> mEntityLocalRules = new ArrayList<>();
+    private final boolean mNeedsFeedMessage;
+
+    private GtfsRealtime.FeedMessage mFeedMessage;
+    private PreviousIterationState mIterationState;
+
+    /**
+     * Creates a new StreamingValidator for the provided rules
+     *
+     * @param rules the rules to run on each feed
+     */
+    public StreamingValidator(List<FeedEntityValidator> rules) {
+        mRules = new ArrayList<>(rules);
+        boolean needsFeedMessage = false;
+        for (FeedEntityValidator rule : mRules) {
+            if (rule.isEntityLocal()) {
+                mEntityLocalRules.add(rule);
+            } else {
+                needsFeedMessage = true;
+            }
+        }
+        mNeedsFeedMessage = needsFeedMessage;
+    }
+
+    /**
+     * Validates the feed read from the reader against all rules, in the order the rules were provided
+     *
+     * @param reader              the reader for the GTFS-realtime feed
+     * @param currentTimeMillis   the current system time, in milliseconds
+     * @param gtfsData            GTFS schedule data
+     * @param gtfsMetadata        Data structures that contain processed information about the GTFS data
+     * @param previousState       Summary of the GTFS-rt data from the previous iteration of the feed, or null
+     * @param combinedFeed        A view of the entities from all GTFS-rt feeds being monitored simultaneously for the same GTFS dataset, or null
+     * @return a list of errors and warnings that was generated by the rules
+     * @throws IOException if the feed can't be read or is larger than the size limits of the reader
+     */
+    public List<ErrorListHelperModel> validate(FeedMessageReader reader, long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, PreviousIterationState previousState, CombinedFeed combinedFeed) throws IOException {
+        mFeedMessage = null;
+        mIterationState = null;
+        GtfsRealtime.FeedHeader header = reader.readHeader();
+        PreviousIterationState.Builder stateBuilder = new PreviousIterationState.Builder(header);
+        GtfsRealtime.FeedMessage.Builder feedMessageBuilder = mNeedsFeedMessage ? GtfsRealtime.FeedMessage.newBuilder().setHeader(header) : null;
+
+        Map<FeedEntityValidator, Map<ValidationRule, List<OccurrenceModel>>> entityLocalResults = new HashMap<>();
+        for (FeedEntityValidator rule : mEntityLocalRules) {
+            entityLocalResults.put(rule, new TreeMap<>(RULE_ORDER));
+        }
+
+        GtfsRealtime.FeedEntity entity;
+        while ((entity = reader.nextEntity()) != null) {
+            stateBuilder.addEntity(entity);
+            if (feedMessageBuilder != null) {
+                feedMessageBuilder.addEntity(entity);
+            }
+            if (mEntityLocalRules.isEmpty()) {
+                continue;
+            }
+            GtfsRealtime.FeedMessage singleEntityMessage = GtfsRealtime.FeedMessage.newBuilder()
+                    .setHeader(header)
+                    .addEntity(entity)
+                    .build();
+            for (FeedEntityValidator rule : mEntityLocalRules) {
+                Map<ValidationRule, List<OccurrenceModel>> occurrences = entityLocalResults.get(rule);
+                for (ErrorListHelperModel errorList : rule.validate(currentTimeMillis, gtfsData, gtfsMetadata, singleEntityMessage, null, null)) {
+                    occurrences.computeIfAbsent(errorList.getErrorMessage().getValidationRule(), k -> new ArrayList<>())
+                            .addAll(errorList.getOccurrenceList());
+                }
+            }
+        }
+        if (feedMessageBuilder != null) {
+            mFeedMessage = feedMessageBuilder.build();
+        }
+        mIterationState = stateBuilder.build();
+
+        List<ErrorListHelperModel> errors = new ArrayList<>();
+        for (FeedEntityValidator rule : mRules) {
+            if (rule.isEntityLocal()) {
+                for (Map.Entry<ValidationRule, List<OccurrenceModel>> entry : entityLocalResults.get(rule).entrySet()) {
+                    errors.add(new ErrorListHelperModel(new MessageLogModel(entry.getKey()), entry.getValue()));
+                }
+            } else {
+                errors.addAll(rule.validateWithCombinedFeed(currentTimeMillis, gtfsData, gtfsMetadata, mFeedMessage, previousState, combinedFeed));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Returns true if any of the rules isn't entity-local, and therefore the entire feed message is held in memory while validating
+     *
+     * @return true if any of the rules isn't entity-local, and therefore the entire feed message is held in memory while validating
+     */
+    public boolean isFeedMessageMaterialized() {
+        return mNeedsFeedMessage;
+    }
+
+    /**
+     * Returns the feed message from the last call to validate() if it was materialized for rules that aren't
+     * entity-local, or null if it wasn't materialized
+     *
+     * @return the feed message from the last call to validate() if it was materialized, or null if it wasn't materialized
+     */
+    public GtfsRealtime.FeedMessage getFeedMessage() {
+        return mFeedMessage;
+    }
+
+    /**
+     * Returns the summary of the feed message from the last call to validate(), which should be passed as the previous
+     * state when validating the next iteration of the feed.  The summary is built while entities are read, so it is
+     * available even if the feed message wasn't materialized.  The summary doesn't carry a history - use
+     * PreviousIterationState.withHistory() to keep the summaries of earlier iterations.
+     *
+     * @return the summary of the feed message from the last call to validate(), or null if validate() hasn't completed
+     */
+    public PreviousIterationState getIterationState() {
+        return mIterationState;
+    }
+}
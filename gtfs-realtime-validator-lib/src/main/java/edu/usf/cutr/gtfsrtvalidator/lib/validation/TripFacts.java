@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+
+/**
+ * Facts about a GTFS trip that are derived from trips.txt, stop_times.txt, and frequencies.txt when GtfsMetadata is
+ * built, so rules can look up everything they need for a trip with a single lookup (see GtfsMetadata.getTripFacts()).
+ * <p>
+ * Facts that depend on an optional facet of GtfsMetadata that wasn't built (see MetadataFacet) have their default
+ * values - e.g., hasFirstArrivalTime() is false if STOP_TIMES wasn't built.
+ */
+public class TripFacts {
+
+    /**
+     * The type of frequency-based service for a trip, from GTFS frequencies.txt exact_times
+     */
+    public enum FrequencyType {
+        // Trip isn't in frequencies.txt
+        NONE,
+        // Trip is in frequencies.txt with exact_times = 0 (or empty)
+        EXACT_TIMES_ZERO,
+        // Trip is in frequencies.txt with exact_times = 1
+        EXACT_TIMES_ONE
+    }
+
+    private final String mTripId;
+    private final String mRouteId;
+    private final String mDirectionId;
+    // direction_id parsed as an integer, or null if it isn't the text of an integer
+    private final Integer mDirectionIdValue;
+    private final String mBlockId;
+    private final boolean mHasFirstArrivalTime;
+    private final int mFirstArrivalTime;
+    private final String mFirstArrivalClock;
+    private final FrequencyType mFrequencyType;
+    private final boolean mMultiStop;
+
+    /**
+     * Creates the facts for a GTFS trip
+     *
+     * @param tripId            GTFS trips.txt trip_id
+     * @param routeId           GTFS trips.txt route_id
+     * @param directionId       GTFS trips.txt direction_id, or null if the trip doesn't have a direction_id
+     * @param blockId           GTFS trips.txt block_id, or null if the trip doesn't have a block_id
+     * @param hasFirstArrivalTime true if the trip has at least one record in stop_times.txt, false if it does not
+     * @param firstArrivalTime  the arrival_time of the first stop_time for the trip (ordered by stop_sequence), in seconds after midnight
+     * @param frequencyType     the type of frequency-based service for the trip
+     * @param multiStop         true if the trip visits the same stop more than once, false if it does not
+     */
+    public TripFacts(String tripId, String routeId, String directionId, String blockId, boolean hasFirstArrivalTime,
+                     int firstArrivalTime, FrequencyType frequencyType, boolean multiStop) {
+        mTripId = tripId;
+        mRouteId = routeId;
+        mDirectionId = directionId;
+        mDirectionIdValue = parseDirectionId(directionId);
+        mBlockId = blockId;
+        mHasFirstArrivalTime = hasFirstArrivalTime;
+        mFirstArrivalTime = firstArrivalTime;
+        mFirstArrivalClock = hasFirstArrivalTime ? TimestampUtils.secondsAfterMidnightToClock(firstArrivalTime) : null;
+        mFrequencyType = frequencyType;
+        mMultiStop = multiStop;
+    }
+
+    /**
+     * Returns the direction_id as an integer if the text is the canonical form of an integer (e.g., "1"), so that it can
+     * be compared to a GTFS-rt direction_id, or null if it isn't
+     */
+    private static Integer parseDirectionId(String directionId) {
+        if (directionId == null) {
+            return null;
+        }
+        try {
+            int value = Integer.parseInt(directionId);
+            if (String.valueOf(value).equals(directionId)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Not a number - fall through
+        }
+        return null;
+    }
+
+    public String getTripId() {
+        return mTripId;
+    }
+
+    public String getRouteId() {
+        return mRouteId;
+    }
+
+    /**
+     * Returns the GTFS trips.txt direction_id text, or null if the trip doesn't have a direction_id
+     *
+     * @return the GTFS trips.txt direction_id text, or null if the trip doesn't have a direction_id
+     */
+    public String getDirectionId() {
+        return mDirectionId;
+    }
+
+    /**
+     * Returns true if the GTFS trips.txt direction_id matches the provided GTFS-rt direction_id, false if it does not (including if the GTFS trip doesn't have a direction_id)
+     *
+     * @param directionId a GTFS-rt trip.direction_id
+     * @return true if the GTFS trips.txt direction_id matches the provided GTFS-rt direction_id, false if it does not (including if the GTFS trip doesn't have a direction_id)
+     */
+    public boolean isDirectionId(int directionId) {
+        return mDirectionIdValue != null && mDirectionIdValue == directionId;
+    }
+
+    /**
+     * Returns the GTFS trips.txt block_id, or null if the trip doesn't have a block_id
+     *
+     * @return the GTFS trips.txt block_id, or null if the trip doesn't have a block_id
+     */
+    public String getBlockId() {
+        return mBlockId;
+    }
+
+    /**
+     * Returns true if the trip has at least one record in GTFS stop_times.txt, false if it does not
+     *
+     * @return true if the trip has at least one record in GTFS stop_times.txt, false if it does not
+     */
+    public boolean hasFirstArrivalTime() {
+        return mHasFirstArrivalTime;
+    }
+
+    /**
+     * Returns the arrival_time of the first stop_time for this trip in seconds after midnight, if hasFirstArrivalTime() is true
+     *
+     * @return the arrival_time of the first stop_time for this trip in seconds after midnight, if hasFirstArrivalTime() is true
+     */
+    public int getFirstArrivalTime() {
+        return mFirstArrivalTime;
+    }
+
+    /**
+     * Returns the arrival_time of the first stop_time for this trip as 24hr clock time like "06:00:00", or null if hasFirstArrivalTime() is false
+     *
+     * @return the arrival_time of the first stop_time for this trip as 24hr clock time like "06:00:00", or null if hasFirstArrivalTime() is false
+     */
+    public String getFirstArrivalClock() {
+        return mFirstArrivalClock;
+    }
+
+    public FrequencyType getFrequencyType() {
+        return mFrequencyType;
+    }
+
+    /**
+     * Returns true if this trip is defined in GTFS frequencies.txt, false if it is not
+     *
+     * @return true if this trip is defined in GTFS frequencies.txt, false if it is not
+     */
+    public boolean isFrequencyBased() {
+        return mFrequencyType != FrequencyType.NONE;
+    }
+
+    /**
+     * Returns true if this trip visits the same stop more than once, false if it does not
+     *
+     * @return true if this trip visits the same stop more than once, false if it does not
+     */
+    public boolean isMultiStop() {
+        return mMultiStop;
+    }
+}
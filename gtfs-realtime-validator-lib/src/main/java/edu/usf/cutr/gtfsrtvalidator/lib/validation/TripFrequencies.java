@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import org.onebusaway.gtfs.model.Frequency;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * The frequency periods from GTFS frequencies.txt for a single trip, indexed so a start_time can be checked against all
+ * periods without stepping through each headway (see GtfsMetadata.getExactTimesOneFrequencies())
+ */
+public class TripFrequencies {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(TripFrequencies.class);
+
+    // Frequency periods, in the same order as frequencies.txt
+    private final int[] mStartTimes;
+    private final int[] mEndTimes;
+    private final int[] mHeadwaySecs;
+
+    // The last trip start time of the last frequency period, and that period's headway, used in error messages
+    private final String mLastStartTime;
+    private final Integer mLastHeadwaySecs;
+
+    /**
+     * Creates the index of frequency periods for a trip
+     *
+     * @param frequencies the frequencies.txt records for a single trip
+     */
+    public TripFrequencies(List<Frequency> frequencies) {
+        int size = frequencies.size();
+        mStartTimes = new int[size];
+        mEndTimes = new int[size];
+        mHeadwaySecs = new int[size];
+
+        String lastStartTime = null;
+        Integer lastHeadwaySecs = null;
+        for (int i = 0; i < size; i++) {
+            Frequency f = frequencies.get(i);
+            mStartTimes[i] = f.getStartTime();
+            mEndTimes[i] = f.getEndTime();
+            mHeadwaySecs[i] = f.getHeadwaySecs();
+            if (mHeadwaySecs[i] <= 0) {
+                // There's only one trip in a period without a valid headway - its start_time
+                _log.warn("frequencies.txt trip_id " + f.getTrip().getId().getId() + " has an invalid headway_secs of " + mHeadwaySecs[i] + " - only start_time " + TimestampUtils.secondsAfterMidnightToClock(mStartTimes[i]) + " will be considered a valid trip start time");
+            }
+            if (mStartTimes[i] < mEndTimes[i]) {
+                int lastStart = mStartTimes[i];
+                if (mHeadwaySecs[i] > 0) {
+                    lastStart += ((mEndTimes[i] - 1 - mStartTimes[i]) / mHeadwaySecs[i]) * mHeadwaySecs[i];
+                }
+                lastStartTime = TimestampUtils.secondsAfterMidnightToClock(lastStart);
+                lastHeadwaySecs = mHeadwaySecs[i];
+            }
+        }
+        mLastStartTime = lastStartTime;
+        mLastHeadwaySecs = lastHeadwaySecs;
+    }
+
+    /**
+     * Returns true if the provided time is the start time of a trip in at least one frequency period - i.e., the time is
+     * within the period and is some multiple (including zero) of headway_secs later than the period start_time
+     *
+     * @param secondsAfterMidnight the trip start time in seconds after midnight (see TimestampUtils.clockToSecondsAfterMidnight())
+     * @return true if the provided time is the start time of a trip in at least one frequency period, false if it is not
+     */
+    public boolean isStartTime(int secondsAfterMidnight) {
+        if (secondsAfterMidnight < 0) {
+            return false;
+        }
+        for (int i = 0; i < mStartTimes.length; i++) {
+            if (secondsAfterMidnight < mStartTimes[i] || secondsAfterMidnight >= mEndTimes[i]) {
+                continue;
+            }
+            if (mHeadwaySecs[i] <= 0) {
+                if (secondsAfterMidnight == mStartTimes[i]) {
+                    return true;
+                }
+            } else if ((secondsAfterMidnight - mStartTimes[i]) % mHeadwaySecs[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the last trip start time in the last frequency period as 24hr clock time like "06:00:00", or null if there aren't any trips
+     *
+     * @return the last trip start time in the last frequency period as 24hr clock time like "06:00:00", or null if there aren't any trips
+     */
+    public String getLastStartTime() {
+        return mLastStartTime;
+    }
+
+    /**
+     * Returns the headway_secs of the last frequency period that has trips, or null if there aren't any trips
+     *
+     * @return the headway_secs of the last frequency period that has trips, or null if there aren't any trips
+     */
+    public Integer getLastHeadwaySecs() {
+        return mLastHeadwaySecs;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import org.onebusaway.gtfs.model.StopTime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The GTFS stop_times.txt records for a single trip sorted by stop_sequence, with lookup tables so a GTFS-rt
+ * stop_time_update can be matched to a stop_time by stop_sequence or stop_id in constant time (see
+ * GtfsMetadata.getIndexedTripStopTimes())
+ */
+public class TripStopTimes {
+
+    private final List<StopTime> mStopTimes;
+    // Maps stop_sequence to the index of the stop_time in mStopTimes
+    private final Map<Integer, Integer> mStopSequenceToIndex;
+    // Maps stop_id to the indexes of all stop_times for that stop_id in mStopTimes, in ascending order (trips with loops visit a stop more than once)
+    private final Map<String, int[]> mStopIdToIndexes;
+
+    /**
+     * Creates the lookup tables for the stop_times of a trip
+     *
+     * @param stopTimes the stop_times.txt records for a single trip, sorted by stop_sequence
+     */
+    public TripStopTimes(List<StopTime> stopTimes) {
+        mStopTimes = stopTimes;
+        mStopSequenceToIndex = new HashMap<>(stopTimes.size() * 2);
+        Map<String, List<Integer>> stopIdToIndexes = new HashMap<>(stopTimes.size() * 2);
+        for (int i = 0; i < stopTimes.size(); i++) {
+            StopTime stopTime = stopTimes.get(i);
+            // If stop_sequence is repeated (invalid GTFS) use the first stop_time
+            mStopSequenceToIndex.putIfAbsent(stopTime.getStopSequence(), i);
+            stopIdToIndexes.computeIfAbsent(stopTime.getStop().getId().getId(), k -> new ArrayList<>(1)).add(i);
+        }
+        mStopIdToIndexes = new HashMap<>(stopIdToIndexes.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : stopIdToIndexes.entrySet()) {
+            List<Integer> indexList = entry.getValue();
+            int[] indexes = new int[indexList.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = indexList.get(i);
+            }
+            mStopIdToIndexes.put(entry.getKey(), indexes);
+        }
+    }
+
+    /**
+     * Returns the stop_times.txt records for this trip, sorted by stop_sequence
+     *
+     * @return the stop_times.txt records for this trip, sorted by stop_sequence
+     */
+    public List<StopTime> getStopTimes() {
+        return mStopTimes;
+    }
+
+    /**
+     * Returns the index in getStopTimes() of the stop_time with the provided stop_sequence, or -1 if this trip doesn't have that stop_sequence
+     *
+     * @param stopSequence the stop_sequence to find
+     * @return the index in getStopTimes() of the stop_time with the provided stop_sequence, or -1 if this trip doesn't have that stop_sequence
+     */
+    public int getIndexOfStopSequence(int stopSequence) {
+        Integer index = mStopSequenceToIndex.get(stopSequence);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Returns the index in getStopTimes() of the first stop_time at or after fromIndex with the provided stop_id, or -1 if
+     * there isn't one.  Trips with loops visit the same stop_id more than once, so fromIndex should be the index after the
+     * last stop_time that was matched for this trip.
+     *
+     * @param stopId    the stop_id to find
+     * @param fromIndex the index in getStopTimes() to start looking from
+     * @return the index in getStopTimes() of the first stop_time at or after fromIndex with the provided stop_id, or -1 if there isn't one
+     */
+    public int getIndexOfStopId(String stopId, int fromIndex) {
+        int[] indexes = mStopIdToIndexes.get(stopId);
+        if (indexes == null) {
+            return -1;
+        }
+        // A stop_id is only visited a few times in a trip, so a linear search is fastest
+        for (int index : indexes) {
+            if (index >= fromIndex) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
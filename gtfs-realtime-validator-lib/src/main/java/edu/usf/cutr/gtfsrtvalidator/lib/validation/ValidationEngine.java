@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import org.onebusaway.gtfs.impl.GtfsDaoImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+import org.onebusaway.gtfs.services.GtfsMutableDao;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.getElapsedTime;
+import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.getElapsedTimeString;
+
+/**
+ * Validates GTFS-realtime messages in memory against a GTFS dataset, without reading files or writing to a database,
+ * so validation can be embedded in other applications.  The GTFS data and GtfsMetadata are loaded once when the engine
+ * is built and are only read afterwards, so a single ValidationEngine can be shared by any number of threads, each
+ * validating different messages at the same time.
+ * <p>
+ * Example:
+ * <pre>
+ * ValidationEngine engine = new ValidationEngine.Builder("gtfs.zip").build();
+ * ValidationResult previous = null;
+ * for (byte[] message : messages) {
+ *     previous = engine.validate(message, previous, System.currentTimeMillis());
+ *     ...
+ * }
+ * </pre>
+ */
+public class ValidationEngine {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(ValidationEngine.class);
+
+    // Default largest buffer that is kept for re-use by each thread when decoding direct ByteBuffers
+    public static final int DEFAULT_MAX_POOLED_BUFFER_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private final GtfsMutableDao mGtfsData;
+    private final GtfsMetadata mGtfsMetadata;
+    private final RuleSelection mRuleSelection;
+    // Validators don't hold any state between calls, so they are shared by all threads
+    private final List<FeedEntityValidator> mValidationRules;
+    private final RulePlan mRulePlan;
+    // Runs independent validators of the same message in parallel, or null to run all validators on the calling thread
+    private final Executor mExecutor;
+    private final int mMaxOccurrencesPerRule;
+    private final int mMaxPooledBufferSizeBytes;
+    private final RuleWatchdog mRuleWatchdog;
+    private final int mMaxHistoryIterations;
+    private final ThreadLocal<byte[]> mBuffers = new ThreadLocal<>();
+
+    private ValidationEngine(Builder builder, GtfsMutableDao gtfsData, String gtfsName) {
+        mGtfsData = gtfsData;
+        mRuleSelection = builder.mRuleSelection != null ? builder.mRuleSelection : new RuleSelection();
+        mValidationRules = Collections.unmodifiableList(mRuleSelection.createValidators());
+        mRulePlan = new RulePlan(mValidationRules);
+        mExecutor = builder.mExecutor;
+        mMaxOccurrencesPerRule = builder.mMaxOccurrencesPerRule;
+        mMaxPooledBufferSizeBytes = builder.mMaxPooledBufferSizeBytes;
+        mRuleWatchdog = new RuleWatchdog(builder.mRuleTimeBudgetMillis);
+        mMaxHistoryIterations = builder.mMaxHistoryIterations;
+
+        // Only build the GTFS metadata needed by the selected rules
+        Set<MetadataFacet> facets = RuleSelection.getRequiredMetadata(mValidationRules);
+        if (builder.mIgnoreShapes) {
+            facets.remove(MetadataFacet.SHAPES);
+        }
+        String timeZoneText = null;
+        for (Agency agency : gtfsData.getAllAgencies()) {
+            timeZoneText = agency.getTimezone();
+            break;
+        }
+        mGtfsMetadata = new GtfsMetadata(gtfsName, TimeZone.getTimeZone(timeZoneText), gtfsData, facets);
+        _log.info("Validation engine for " + gtfsName + " created with " + mRuleSelection);
+    }
+
+    /**
+     * Decodes and validates a GTFS-realtime message
+     *
+     * @param protobuf          the GTFS-realtime message, in protocol buffer format
+     * @param previous          the result of validating the previous message from the same GTFS-realtime feed, or null if this is the first message
+     * @param currentTimeMillis the current time, in milliseconds
+     * @return the errors and warnings for the message, which should be passed as the previous result when validating the next message from the same feed
+     * @throws IOException if the message isn't a valid GTFS-realtime protocol buffer
+     */
+    public ValidationResult validate(byte[] protobuf, ValidationResult previous, long currentTimeMillis) throws IOException {
+        return validate(protobuf, 0, protobuf.length, previous, currentTimeMillis);
+    }
+
+    /**
+     * Decodes and validates a GTFS-realtime message from the remaining bytes of the buffer.  The position of the buffer
+     * isn't changed.  Direct buffers are copied into a buffer that is re-used by the calling thread.
+     *
+     * @param protobuf          the GTFS-realtime message, in protocol buffer format
+     * @param previous          the result of validating the previous message from the same GTFS-realtime feed, or null if this is the first message
+     * @param currentTimeMillis the current time, in milliseconds
+     * @return the errors and warnings for the message, which should be passed as the previous result when validating the next message from the same feed
+     * @throws IOException if the message isn't a valid GTFS-realtime protocol buffer
+     */
+    public ValidationResult validate(ByteBuffer protobuf, ValidationResult previous, long currentTimeMillis) throws IOException {
+        if (protobuf.hasArray()) {
+            return validate(protobuf.array(), protobuf.arrayOffset() + protobuf.position(), protobuf.remaining(), previous, currentTimeMillis);
+        }
+        int length = protobuf.remaining();
+        byte[] buffer = borrowBuffer(length);
+        protobuf.duplicate().get(buffer, 0, length);
+        return validate(buffer, 0, length, previous, currentTimeMillis);
+    }
+
+    /**
+     * Validates a GTFS-realtime message that has already been decoded
+     *
+     * @param feedMessage       the GTFS-realtime message
+     * @param previous          the result of validating the previous message from the same GTFS-realtime feed, or null if this is the first message
+     * @param currentTimeMillis the current time, in milliseconds
+     * @return the errors and warnings for the message, which should be passed as the previous result when validating the next message from the same feed
+     */
+    public ValidationResult validate(GtfsRealtime.FeedMessage feedMessage, ValidationResult previous, long currentTimeMillis) {
+        return validate(feedMessage, previous, currentTimeMillis, System.nanoTime());
+    }
+
+    /**
+     * Returns the GTFS data used for validation
+     *
+     * @return the GTFS data used for validation
+     */
+    public GtfsMutableDao getGtfsData() {
+        return mGtfsData;
+    }
+
+    /**
+     * Returns the metadata built from the GTFS data for the selected rules
+     *
+     * @return the metadata built from the GTFS data for the selected rules
+     */
+    public GtfsMetadata getGtfsMetadata() {
+        return mGtfsMetadata;
+    }
+
+    /**
+     * Returns the validators that are run on each message, in the order their results are returned.  Validators are
+     * started in the order of RulePlan.getExecutionOrder().
+     *
+     * @return the validators that are run on each message, in the order their results are returned
+     */
+    public List<FeedEntityValidator> getValidationRules() {
+        return mValidationRules;
+    }
+
+    private ValidationResult validate(byte[] protobuf, int offset, int length, ValidationResult previous, long currentTimeMillis) throws IOException {
+        long startTimeNanos = System.nanoTime();
+        CodedInputStream input = CodedInputStream.newInstance(protobuf, offset, length);
+        // The whole message is already in memory, so protobuf's default 64 MB limit doesn't protect anything
+        input.setSizeLimit(Integer.MAX_VALUE);
+        GtfsRealtime.FeedMessage feedMessage = GtfsRealtime.FeedMessage.parseFrom(input);
+        return validate(feedMessage, previous, currentTimeMillis, startTimeNanos);
+    }
+
+    private ValidationResult validate(GtfsRealtime.FeedMessage feedMessage, ValidationResult previous, long currentTimeMillis, long startTimeNanos) {
+        PreviousIterationState previousState = previous != null ? previous.getIterationState() : null;
+        // If more than one entity type exists in this feed, run CrossFeedDescriptorValidator on this message
+        CombinedFeed combinedFeed = mRulePlan.usesCombinedFeed() && GtfsUtils.isCombinedFeed(feedMessage) ? CombinedFeed.of(feedMessage) : null;
+
+        List<List<ErrorListHelperModel>> results = mRulePlan.run(rule -> {
+            try {
+                return mRuleWatchdog.validate(rule,
+                        () -> rule.validateWithCombinedFeed(currentTimeMillis, mGtfsData, mGtfsMetadata, feedMessage, previousState, combinedFeed));
+            } catch (RuntimeException e) {
+                // A failing validator doesn't stop the other validators of this message
+                _log.error(rule.getClass().getSimpleName() + " failed - skipping its results for this message", e);
+                return new ArrayList<>();
+            }
+        }, mExecutor);
+        List<ErrorListHelperModel> allErrorLists = new ArrayList<>();
+        for (List<ErrorListHelperModel> errorLists : results) {
+            mRuleSelection.filterResults(errorLists);
+            RuleUtils.limitOccurrences(errorLists, mMaxOccurrencesPerRule);
+            allErrorLists.addAll(errorLists);
+        }
+        PreviousIterationState iterationState = PreviousIterationState.of(feedMessage).withHistory(previousState, mMaxHistoryIterations);
+        return new ValidationResult(iterationState, allErrorLists, currentTimeMillis, System.nanoTime() - startTimeNanos);
+    }
+
+    /**
+     * Returns the watchdog that enforces the time budget for each validator
+     *
+     * @return the watchdog that enforces the time budget for each validator
+     */
+    public RuleWatchdog getRuleWatchdog() {
+        return mRuleWatchdog;
+    }
+
+    /**
+     * Returns a buffer of at least the provided length, re-using the buffer of the calling thread if it is large enough
+     */
+    private byte[] borrowBuffer(int length) {
+        byte[] buffer = mBuffers.get();
+        if (buffer != null && buffer.length >= length) {
+            return buffer;
+        }
+        buffer = new byte[length];
+        if (length <= mMaxPooledBufferSizeBytes) {
+            mBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    public static class Builder {
+        private final File mGtfsFile;
+        private final GtfsMutableDao mGtfsData;
+        private RuleSelection mRuleSelection = null;
+        private boolean mIgnoreShapes = false;
+        private int mMaxOccurrencesPerRule = RuleUtils.NO_OCCURRENCE_LIMIT;
+        private int mMaxPooledBufferSizeBytes = DEFAULT_MAX_POOLED_BUFFER_SIZE_BYTES;
+        private long mRuleTimeBudgetMillis = RuleWatchdog.NO_BUDGET;
+        private int mMaxHistoryIterations = IterationHistory.DEFAULT_MAX_ITERATIONS;
+        private Executor mExecutor = null;
+
+        /**
+         * Creates a builder for an engine that validates against the provided GTFS zip file
+         *
+         * @param pathToGtfsFile the path of the GTFS zip file (including zip file name)
+         */
+        public Builder(String pathToGtfsFile) {
+            mGtfsFile = new File(pathToGtfsFile);
+            mGtfsData = null;
+        }
+
+        /**
+         * Creates a builder for an engine that validates against GTFS data that has already been loaded.  The GTFS
+         * data must not be modified after the engine is built.
+         *
+         * @param gtfsData GTFS schedule data
+         */
+        public Builder(GtfsMutableDao gtfsData) {
+            mGtfsFile = null;
+            mGtfsData = gtfsData;
+        }
+
+        /**
+         * Sets the rules that will be run on each message.  Default is all rules.
+         *
+         * @param ruleSelection the rules that will be run on each message
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setRuleSelection(RuleSelection ruleSelection) {
+            mRuleSelection = ruleSelection;
+            return this;
+        }
+
+        /**
+         * Sets the engine to ignore shapes.txt if ignoreShapes is true, or to process the shapes.txt if ignoreShapes is false (default).
+         * Setting this to true will prevent the validator from checking rules like E029 that require spatial data.
+         *
+         * @param ignoreShapes true if the engine should ignore the shapes.txt file for this feed, or false if it should process shapes.txt
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setIgnoreShapes(boolean ignoreShapes) {
+            mIgnoreShapes = ignoreShapes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of occurrences that will be returned for each rule for each message.  The total number
+         * of occurrences is still recorded for each rule.  Default is RuleUtils.NO_OCCURRENCE_LIMIT, which returns all occurrences.
+         *
+         * @param maxOccurrencesPerRule the maximum number of occurrences that will be returned for each rule, or RuleUtils.NO_OCCURRENCE_LIMIT to return all occurrences
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setMaxOccurrencesPerRule(int maxOccurrencesPerRule) {
+            mMaxOccurrencesPerRule = maxOccurrencesPerRule;
+            return this;
+        }
+
+        /**
+         * Sets the largest buffer that each thread keeps for re-use when decoding direct ByteBuffers.  Messages larger
+         * than this are decoded using a new buffer each time.  Default is DEFAULT_MAX_POOLED_BUFFER_SIZE_BYTES.
+         *
+         * @param maxPooledBufferSizeBytes the largest buffer that each thread keeps for re-use, in bytes
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setMaxPooledBufferSizeBytes(int maxPooledBufferSizeBytes) {
+            mMaxPooledBufferSizeBytes = maxPooledBufferSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time each validator may run on each message.  Validators always run on the calling thread (or
+         * the executor, see setExecutor()).  A validator that exceeds its budget is stopped and W010 is returned instead of
+         * its results, and a validator that times out repeatedly is temporarily disabled (see RuleWatchdog).  Timeouts are
+         * tracked for the engine as a whole, not per feed.  Default is RuleWatchdog.NO_BUDGET, which runs validators without
+         * a time limit.
+         *
+         * @param ruleTimeBudgetMillis the maximum time each validator may run on each message, in milliseconds, or RuleWatchdog.NO_BUDGET for no limit
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setRuleTimeBudgetMillis(long ruleTimeBudgetMillis) {
+            mRuleTimeBudgetMillis = ruleTimeBudgetMillis;
+            return this;
+        }
+
+        /**
+         * Sets the number of iterations of each feed that are kept in the history of a ValidationResult (see
+         * PreviousIterationState.getHistory()), including the iteration of that result.  The history is carried from
+         * the previous result passed to validate(), so memory is bounded by this many iteration summaries per feed.
+         * Default is IterationHistory.DEFAULT_MAX_ITERATIONS.
+         *
+         * @param maxHistoryIterations the number of iterations kept for each feed, at least 1
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setMaxHistoryIterations(int maxHistoryIterations) {
+            if (maxHistoryIterations < 1) {
+                throw new IllegalArgumentException("maxHistoryIterations must be at least 1");
+            }
+            mMaxHistoryIterations = maxHistoryIterations;
+            return this;
+        }
+
+        /**
+         * Sets an executor to run validators that are entity-local and don't read the previous or combined feed
+         * messages, while the calling thread runs the other validators of the same message (see RulePlan).  This
+         * shortens the time to validate a single large message, at the cost of using more threads.  Results are the
+         * same either way.  Default is null, which runs all validators on the calling thread.
+         *
+         * @param executor the executor to run independent validators on, or null to run all validators on the calling thread
+         * @return this Builder instance so methods can be chained together
+         */
+        public Builder setExecutor(Executor executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Reads the GTFS data (if a GTFS file was provided) and builds the GtfsMetadata needed by the selected rules
+         *
+         * @return a new ValidationEngine
+         * @throws IOException if the GTFS file can't be read
+         */
+        public ValidationEngine build() throws IOException {
+            if (mGtfsData != null) {
+                return new ValidationEngine(this, mGtfsData, "GTFS data");
+            }
+            _log.info("Reading GTFS data from " + mGtfsFile + "...");
+            long startGtfsRead = System.nanoTime();
+            GtfsDaoImpl gtfsData = new GtfsDaoImpl();
+            GtfsReader reader = new GtfsReader();
+            reader.setInputLocation(mGtfsFile);
+            reader.setEntityStore(gtfsData);
+            reader.run();
+            _log.info(mGtfsFile.getName() + " read in " + getElapsedTimeString(getElapsedTime(startGtfsRead, System.nanoTime())));
+            return new ValidationEngine(this, gtfsData, mGtfsFile.getAbsolutePath());
+        }
+    }
+}
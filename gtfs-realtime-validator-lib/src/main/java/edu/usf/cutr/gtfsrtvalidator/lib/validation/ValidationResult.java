@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The results of validating one GTFS-realtime message with a ValidationEngine.  The result is also the state that is
+ * passed to ValidationEngine.validate() when the next message from the same feed is validated.
+ */
+public class ValidationResult {
+
+    private final PreviousIterationState mIterationState;
+    private final List<ErrorListHelperModel> mErrorLists;
+    private final long mCurrentTimeMillis;
+    private final long mElapsedNanos;
+
+    ValidationResult(PreviousIterationState iterationState, List<ErrorListHelperModel> errorLists, long currentTimeMillis, long elapsedNanos) {
+        mIterationState = iterationState;
+        mErrorLists = Collections.unmodifiableList(errorLists);
+        mCurrentTimeMillis = currentTimeMillis;
+        mElapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the summary of the GTFS-realtime message that was validated.  Only this summary is kept, not the message itself.
+     *
+     * @return the summary of the GTFS-realtime message that was validated
+     */
+    public PreviousIterationState getIterationState() {
+        return mIterationState;
+    }
+
+    /**
+     * Returns the errors and warnings for the GTFS-realtime message, with one list of occurrences per rule
+     *
+     * @return the errors and warnings for the GTFS-realtime message, with one list of occurrences per rule
+     */
+    public List<ErrorListHelperModel> getErrorLists() {
+        return mErrorLists;
+    }
+
+    /**
+     * Returns the current time used for validation, in milliseconds
+     *
+     * @return the current time used for validation, in milliseconds
+     */
+    public long getCurrentTimeMillis() {
+        return mCurrentTimeMillis;
+    }
+
+    /**
+     * Returns the time taken to decode and validate the GTFS-realtime message, in nanoseconds
+     *
+     * @return the time taken to decode and validate the GTFS-realtime message, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+}
@@ -56,6 +56,9 @@ public class ValidationRules {
     public static final ValidationRule W009 = new ValidationRule("W009", "WARNING", "schedule_relationship not populated",
             "trip.schedule_relationship and stop_time_update.schedule_relationship should be populated",
             "does not have a schedule_relationship");
+    public static final ValidationRule W010 = new ValidationRule("W010", "WARNING", "Validation rule timed out",
+            "Validation rules should finish within their time budget - very large or malformed feeds can prevent a rule from being checked",
+            "and the rule wasn't checked for this feed iteration");
 
     /**
      * Errors
@@ -82,12 +85,10 @@ public class ValidationRules {
             "Frequency-based exact_times=0 trip_updates must contain trip_id, start_time, and start_date",
             "which is required for frequency-based exact_times = 0 trips");
 
-    // TODO - implement - see https://github.com/CUTR-at-USF/gtfs-realtime-validator/issues/156
     public static final ValidationRule E007 = new ValidationRule("E007", "ERROR", "Trips with same vehicle_id are not in the same block",
             "If more than one trip_update has the same vehicle_id, then these trips must belong to the same GTFS trips.txt block_id",
             "do not belong to the same block but have the same vehicle_id");
 
-    // TODO - implement - see https://github.com/CUTR-at-USF/gtfs-realtime-validator/issues/157
     public static final ValidationRule E008 = new ValidationRule("E008", "ERROR", "trip_id not provided for blocks with reoccurring stop_ids",
             "If a GTFS block contains multiple references to the same stopId (i.e., the bus visits the same stopId more than once in the same block), but in different trips, then in the GTFS-rt data the tripId for each TripUpdate.TripDescriptor must be provided. In this case, the bus wouldn't visit the same stopId more than once in the same trip.",
             "does not have a trip_id but visits the same stop_id more than once in the block");
@@ -111,7 +112,6 @@ public class ValidationRules {
             "For frequency-based exact_times=0 trips, schedule_relationship should be UNSCHEDULED or empty.",
             "schedule_relationship is not UNSCHEDULED or empty");
 
-    // TODO - implement - see https://github.com/CUTR-at-USF/gtfs-realtime-validator/issues/158
     public static final ValidationRule E014 = new ValidationRule("E014", "ERROR", "Predictions for trips are out-of-order in the block",
             "trip_updates for each trip in the feed must match the sequential order for the trips in the block. For example, if we have trip_ids 1, 2, and 3 that all belong to the same block, and the vehicle travels trip 1, then trip 2, and then trip 3, the trip_updates should occur in the GTFS-rt feed in the order trips 1, 2, and 3. For example, trip 3 predictions shouldn't occur in the feed prior to trip 2 predictions.",
             "predictions are not ordered by appearance in block");
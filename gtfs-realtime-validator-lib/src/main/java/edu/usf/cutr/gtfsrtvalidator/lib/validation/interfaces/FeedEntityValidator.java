@@ -19,13 +19,22 @@ package edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces;
 
 import com.google.transit.realtime.GtfsRealtime;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
 import org.onebusaway.gtfs.services.GtfsMutableDao;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * Interface used for all rules that produce error or warning messages
+ * <p>
+ * Validators are discovered using java.util.ServiceLoader, so rules in other jars are registered by listing their
+ * class names in META-INF/services/edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator.
+ * Implementations must have a public no-argument constructor.
  */
 public interface FeedEntityValidator {
     /**
@@ -40,4 +49,61 @@ public interface FeedEntityValidator {
      * @return a list of errors and warnings that was generated by the implementing rule
      */
     List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage);
+
+    /**
+     * Validates a particular rule implemented by this interface, using a view of the combined feed that doesn't copy the
+     * entities of all GTFS-rt feeds into a new message, and a summary of the previous iteration instead of the previous
+     * feed message.  This is how the validator runs rules.  By default the combined feed is converted to a FeedMessage
+     * and validate() is called without a previous feed message - rules that read the combined feed should override this
+     * to avoid building that message, and rules that compare against the previous iteration must override this to read previousState.
+     * <p>
+     * Only the summary of the previous iteration is kept, so the default implementation always passes a null previous
+     * feed message to validate(), as in the first iteration of a feed.  RuleSelection logs a warning when it loads a rule
+     * whose descriptor declares that it uses the previous feed message (the default for rules that aren't entity-local -
+     * see RuleDescriptor.newBuilder()) but doesn't override this method.
+     *
+     * @param currentTimeMillis the current system time, in milliseconds
+     * @param gtfsData    GTFS schedule data
+     * @param gtfsMetadata Data structures that contain processed information about the GTFS data
+     * @param feedMessage Current GTFS-rt data that was most recently captured (should NOT have the same content as previousState)
+     * @param previousState Summary of the GTFS-rt data from the previous iteration of the feed, or null if this is the first iteration
+     * @param combinedFeed A view of the entities from all GTFS-rt feeds being monitored simultaneously for the same GTFS dataset.  If only one GTFS-rt feed is being monitored for the GTFS dataset, then this is null.
+     * @return a list of errors and warnings that was generated by the implementing rule
+     */
+    default List<ErrorListHelperModel> validateWithCombinedFeed(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, PreviousIterationState previousState, CombinedFeed combinedFeed) {
+        return validate(currentTimeMillis, gtfsData, gtfsMetadata, feedMessage, null, combinedFeed == null ? null : combinedFeed.toFeedMessage());
+    }
+
+    /**
+     * Returns the optional parts of GtfsMetadata that this rule reads.  GtfsMetadata facets that aren't required by any
+     * enabled rule aren't built.  By default all facets are required.
+     *
+     * @return the optional parts of GtfsMetadata that this rule reads
+     */
+    default Set<MetadataFacet> getRequiredMetadata() {
+        return MetadataFacet.all();
+    }
+
+    /**
+     * Returns true if the results of this rule for each entity depend only on that entity and the GTFS data - i.e., not on
+     * the current time, the feed header, other entities, or the previous and combined feed messages - and if occurrences
+     * are reported in the order of the entities in the feed, with errors and warnings sorted by rule ID.  Results for
+     * entity-local rules are cached between iterations by DeltaValidator so only new or changed entities are validated
+     * again.  By default rules are not entity-local.
+     *
+     * @return true if the results of this rule for each entity depend only on that entity and the GTFS data, false if they do not
+     */
+    default boolean isEntityLocal() {
+        return false;
+    }
+
+    /**
+     * Returns the descriptor of this validator - the rules it can emit, the data it reads, and its expected cost.  By
+     * default the descriptor is built from the class name, getRequiredMetadata() and isEntityLocal().
+     *
+     * @return the descriptor of this validator
+     */
+    default RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this).build();
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.validation.rules;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MessageLogModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.BlockIndex;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import org.onebusaway.gtfs.services.GtfsMutableDao;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.*;
+
+/**
+ * Rules for trip_updates of trips that belong to a GTFS trips.txt block.  Blocks are looked up in
+ * GtfsMetadata.getBlockIndex(), so each trip_update is checked with a few hash lookups regardless of the size of its block.
+ *
+ * E007 - Trips with same vehicle_id are not in the same block
+ * E008 - trip_id not provided for blocks with reoccurring stop_ids
+ * E014 - Predictions for trips are out-of-order in the block
+ */
+public class BlockValidator implements FeedEntityValidator {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(BlockValidator.class);
+
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return EnumSet.of(MetadataFacet.BLOCKS);
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(E007, E008, E014)
+                .setUsesPreviousFeedMessage(false)
+                .setUsesCombinedFeed(false)
+                .setCost(RuleDescriptor.Cost.LOW)
+                .build();
+    }
+
+    @Override
+    public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
+        List<OccurrenceModel> errorListE007 = new ArrayList<>();
+        List<OccurrenceModel> errorListE008 = new ArrayList<>();
+        List<OccurrenceModel> errorListE014 = new ArrayList<>();
+
+        BlockIndex blockIndex = gtfsMetadata.getBlockIndex();
+        // Maps vehicle_id to the first trip_id seen in the feed for that vehicle that has a block_id
+        Map<String, String> vehicleTripIds = new HashMap<>();
+        // Maps each block and start_date to the trip_id in that block with the latest position seen so far in the feed
+        Map<String, String> blockLastTripIds = new HashMap<>();
+
+        for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+            RuleWatchdog.checkBudget();
+            if (!entity.hasTripUpdate()) {
+                continue;
+            }
+            GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
+            GtfsRealtime.TripDescriptor trip = tripUpdate.getTrip();
+
+            if (!trip.hasTripId()) {
+                // E008 - trip_id not provided for blocks with reoccurring stop_ids
+                Set<String> repeatedStopIds = trip.hasRouteId() ? blockIndex.getRepeatedStopIds(trip.getRouteId()) : blockIndex.getRepeatedStopIds();
+                if (repeatedStopIds.isEmpty()) {
+                    continue;
+                }
+                for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+                    if (stopTimeUpdate.hasStopId() && repeatedStopIds.contains(stopTimeUpdate.getStopId())) {
+                        String prefix = "entity ID " + entity.getId() + (trip.hasRouteId() ? " with route_id " + trip.getRouteId() : "") + " (stop_id " + stopTimeUpdate.getStopId() + ")";
+                        RuleUtils.addOccurrence(E008, prefix, errorListE008, _log);
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            String tripId = trip.getTripId();
+            BlockIndex.Block block = blockIndex.getBlock(tripId);
+            if (block == null) {
+                // Trip isn't in GTFS trips.txt or doesn't have a block_id
+                continue;
+            }
+
+            if (tripUpdate.hasVehicle() && tripUpdate.getVehicle().hasId()) {
+                // E007 - Trips with same vehicle_id are not in the same block
+                String vehicleId = tripUpdate.getVehicle().getId();
+                String firstTripId = vehicleTripIds.putIfAbsent(vehicleId, tripId);
+                if (firstTripId != null) {
+                    BlockIndex.Block firstBlock = blockIndex.getBlock(firstTripId);
+                    if (!firstBlock.getBlockId().equals(block.getBlockId())) {
+                        String prefix = "vehicle_id " + vehicleId + " trip_id " + firstTripId + " (block_id " + firstBlock.getBlockId() + ") and trip_id " + tripId + " (block_id " + block.getBlockId() + ")";
+                        RuleUtils.addOccurrence(E007, prefix, errorListE007, _log);
+                    }
+                }
+            }
+
+            // E014 - Predictions for trips are out-of-order in the block
+            int position = blockIndex.getPosition(tripId);
+            if (block.getFirstDepartureTime(position) == BlockIndex.NO_DEPARTURE_TIME) {
+                // Trips without times in stop_times.txt can't be ordered
+                continue;
+            }
+            String blockKey = block.getBlockId() + "\u0000" + block.getServiceId() + "\u0000" + trip.getStartDate();
+            String lastTripId = blockLastTripIds.get(blockKey);
+            if (lastTripId == null || blockIndex.getPosition(lastTripId) < position) {
+                blockLastTripIds.put(blockKey, tripId);
+            } else if (blockIndex.getPosition(lastTripId) > position) {
+                String prefix = "block_id " + block.getBlockId() + " trip_id " + tripId + " appears after trip_id " + lastTripId + " -";
+                RuleUtils.addOccurrence(E014, prefix, errorListE014, _log);
+            }
+        }
+
+        List<ErrorListHelperModel> errors = new ArrayList<>();
+        if (!errorListE007.isEmpty()) {
+            errors.add(new ErrorListHelperModel(new MessageLogModel(E007), errorListE007));
+        }
+        if (!errorListE008.isEmpty()) {
+            errors.add(new ErrorListHelperModel(new MessageLogModel(E008), errorListE008));
+        }
+        if (!errorListE014.isEmpty()) {
+            errors.add(new ErrorListHelperModel(new MessageLogModel(E014), errorListE014));
+        }
+        return errors;
+    }
+}
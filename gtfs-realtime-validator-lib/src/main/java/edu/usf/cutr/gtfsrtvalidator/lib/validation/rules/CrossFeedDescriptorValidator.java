@@ -22,7 +22,12 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.MessageLogModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
 import org.apache.commons.lang3.StringUtils;
 import org.onebusaway.gtfs.model.Trip;
@@ -36,7 +41,7 @@ import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.W003;
 
 /**
  * This class examines multiple GTFS-rt feeds for the same GTFS dataset to identify potential discrepencies in them.
- * It uses the combinedFeedMessage data structure for this, instead of the feedMessage
+ * It uses the combined feed for this, instead of the feedMessage
  *
  * W003 - ID in one feed missing from the other
  * E047 - VehiclePosition and TripUpdate ID pairing mismatch
@@ -45,9 +50,29 @@ public class CrossFeedDescriptorValidator implements FeedEntityValidator {
 
     private static final org.slf4j.Logger _log = LoggerFactory.getLogger(CrossFeedDescriptorValidator.class);
 
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return MetadataFacet.none();
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(E047, W003)
+                .setUsesPreviousFeedMessage(false)
+                .setUsesCombinedFeed(true)
+                .setCost(RuleDescriptor.Cost.MEDIUM)
+                .build();
+    }
+
     @Override
     public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
-        if (combinedFeedMessage == null) {
+        return validateWithCombinedFeed(currentTimeMillis, gtfsData, gtfsMetadata, feedMessage, PreviousIterationState.of(previousFeedMessage), CombinedFeed.of(combinedFeedMessage));
+    }
+
+    @Override
+    public List<ErrorListHelperModel> validateWithCombinedFeed(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, PreviousIterationState previousState, CombinedFeed combinedFeed) {
+        if (combinedFeed == null) {
             // If only one GTFS-rt feed is being monitored for the GTFS dataset, then don't run any of the cross-feed rules
             return new ArrayList<>();
         }
@@ -77,7 +102,8 @@ public class CrossFeedDescriptorValidator implements FeedEntityValidator {
         int vehiclePositionCount = 0;
 
         // Build the maps
-        for (GtfsRealtime.FeedEntity entity : combinedFeedMessage.getEntityList()) {
+        for (GtfsRealtime.FeedEntity entity : combinedFeed.getEntities()) {
+            RuleWatchdog.checkBudget();
             if (entity.hasTripUpdate() && hasTripId(entity.getTripUpdate())) {
                 tripUpdateCount++;
                 String tripId = entity.getTripUpdate().getTrip().getTripId();
@@ -23,13 +23,17 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.TripFrequencies;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
-import org.onebusaway.gtfs.model.Frequency;
 import org.onebusaway.gtfs.services.GtfsMutableDao;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.E019;
 
@@ -42,90 +46,36 @@ public class FrequencyTypeOneValidator implements FeedEntityValidator {
 
     private static final org.slf4j.Logger _log = LoggerFactory.getLogger(FrequencyTypeOneValidator.class);
 
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return EnumSet.of(MetadataFacet.FREQUENCIES);
+    }
+
+    @Override
+    public boolean isEntityLocal() {
+        return true;
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(E019)
+                .setUsesPreviousFeedMessage(false)
+                .setUsesCombinedFeed(false)
+                .setCost(RuleDescriptor.Cost.LOW)
+                .build();
+    }
+
     @Override
     public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
         List<OccurrenceModel> errorListE019 = new ArrayList<>();
 
         for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
             if (entity.hasTripUpdate()) {
-                GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
-
-                List<Frequency> frequenceTypeOneList = gtfsMetadata.getExactTimesOneTrips().get(tripUpdate.getTrip().getTripId());
-                if (frequenceTypeOneList != null) {
-                    boolean foundMatch = false;
-                    String gtfsStartTimeString = null;
-                    Integer headwaySecs = null;
-                    // For at least one frequency period for this trip_id, start_time in the GTFS-rt data must be some multiple (including zero) of headway_secs later than the start_time
-                    for (Frequency f : frequenceTypeOneList) {
-                        int startTime = f.getStartTime();
-                        // See if the GTFS-rt start_time matches at least one multiple of GTFS start_time for this frequency
-                        while (startTime < f.getEndTime()) {
-                            // Convert seconds after midnight to 24hr clock time like "06:00:00"
-                            gtfsStartTimeString = TimestampUtils.secondsAfterMidnightToClock(startTime);
-                            headwaySecs = f.getHeadwaySecs();
-                            _log.debug("start time = " + startTime);
-                            _log.debug("formatted start time = " + gtfsStartTimeString);
-                            if (tripUpdate.getTrip().getStartTime().equals(gtfsStartTimeString)) {
-                                // We found a matching multiple - no error for this GTFS-rt start_time
-                                foundMatch = true;
-                                break;
-                            }
-                            startTime += f.getHeadwaySecs();
-                        }
-                        if (foundMatch) {
-                            // If we found at least one matching frequency with a matching multiple of headway_secs for the GTFS-rt start_time, then no error
-                            break;
-                        }
-                    }
-                    if (!foundMatch) {
-                        // E019 - GTFS-rt frequency exact_times = 1 trip start_time must match GTFS data
-                        String prefix = "GTFS-rt trip_id " + tripUpdate.getTrip().getTripId() +
-                                " has start_time of " + tripUpdate.getTrip().getStartTime() +
-                                " and GTFS frequencies.txt start_time is " + gtfsStartTimeString + " with a headway of " + headwaySecs + " seconds ";
-                        RuleUtils.addOccurrence(E019, prefix, errorListE019, _log);
-                    }
-                }
+                checkE019(entity.getTripUpdate().getTrip(), gtfsMetadata, errorListE019);
             }
-
             if (entity.hasVehicle()) {
-                GtfsRealtime.VehiclePosition vehiclePosition = entity.getVehicle();
-
-                // E019 - GTFS-rt frequency exact_times = 1 trip start_date and start_time must match GTFS data
-                List<Frequency> frequenceTypeOneList = gtfsMetadata.getExactTimesOneTrips().get(vehiclePosition.getTrip().getTripId());
-                if (frequenceTypeOneList != null) {
-                    boolean foundMatch = false;
-                    String gtfsStartTimeString = null;
-                    Integer headwaySecs = null;
-                    // For at least one frequency period for this trip_id, start_time in the GTFS-rt data must be some multiple (including zero) of headway_secs later than the start_time
-                    for (Frequency f : frequenceTypeOneList) {
-                        int startTime = f.getStartTime();
-                        // See if the GTFS-rt start_time matches at least one multiple of GTFS start_time for this frequency
-                        while (startTime < f.getEndTime()) {
-                            // Convert seconds after midnight to 24hr clock time like "06:00:00"
-                            gtfsStartTimeString = String.format("%02d:%02d:%02d", startTime / 3600, startTime % 360, startTime % 60);
-                            headwaySecs = f.getHeadwaySecs();
-                            _log.debug("start time = " + startTime);
-                            _log.debug("formatted start time = " + gtfsStartTimeString);
-                            if (vehiclePosition.hasTrip() && vehiclePosition.getTrip().getStartTime().equals(gtfsStartTimeString)) {
-                                // We found a matching multiple - no error for this GTFS-rt start_time
-                                foundMatch = true;
-                                break;
-                            }
-                            startTime += f.getHeadwaySecs();
-                        }
-                        if (foundMatch) {
-                            // If we found at least one matching frequency with a matching multiple of headway_secs for the GTFS-rt start_time, then no error
-                            break;
-                        }
-                    }
-                    if (!foundMatch) {
-                        // E019 - GTFS-rt frequency exact_times = 1 trip start_time must match GTFS data
-                        String prefix = "GTFS-rt trip_id " + vehiclePosition.getTrip().getTripId() +
-                                " has start_time of " + vehiclePosition.getTrip().getStartTime() +
-                                " and GTFS frequencies.txt start_time is " + gtfsStartTimeString + " with a headway of " + headwaySecs + " seconds ";
-                        RuleUtils.addOccurrence(E019, prefix, errorListE019, _log);
-                    }
-                }
+                checkE019(entity.getVehicle().getTrip(), gtfsMetadata, errorListE019);
             }
         }
         List<ErrorListHelperModel> errors = new ArrayList<>();
@@ -134,4 +84,28 @@ public class FrequencyTypeOneValidator implements FeedEntityValidator {
         }
         return errors;
     }
+
+    /**
+     * Checks rule E019 - "GTFS-rt frequency type 1 trip start_time must be a multiple of GTFS data start_time", and adds any errors that are found to the provided error list
+     *
+     * @param trip         The TripDescriptor of the TripUpdate or VehiclePosition to be evaluated for rule E019
+     * @param gtfsMetadata metadata for the static GTFS data
+     * @param errors       list to add any errors for E019 to
+     */
+    private void checkE019(GtfsRealtime.TripDescriptor trip, GtfsMetadata gtfsMetadata, List<OccurrenceModel> errors) {
+        TripFrequencies frequencies = gtfsMetadata.getExactTimesOneFrequencies().get(trip.getTripId());
+        if (frequencies == null) {
+            // Not an exact_times = 1 trip
+            return;
+        }
+        // For at least one frequency period for this trip_id, start_time in the GTFS-rt data must be some multiple (including zero) of headway_secs later than the start_time
+        int startTime = TimestampUtils.clockToSecondsAfterMidnight(trip.getStartTime());
+        if (!frequencies.isStartTime(startTime)) {
+            // E019 - GTFS-rt frequency exact_times = 1 trip start_time must match GTFS data
+            String prefix = "GTFS-rt trip_id " + trip.getTripId() +
+                    " has start_time of " + trip.getStartTime() +
+                    " and GTFS frequencies.txt start_time is " + frequencies.getLastStartTime() + " with a headway of " + frequencies.getLastHeadwaySecs() + " seconds ";
+            RuleUtils.addOccurrence(E019, prefix, errors, _log);
+        }
+    }
 }
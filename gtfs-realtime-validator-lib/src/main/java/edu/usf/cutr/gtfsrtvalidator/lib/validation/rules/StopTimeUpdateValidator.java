@@ -25,6 +25,10 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.TripStopTimes;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
 import org.onebusaway.gtfs.model.Stop;
@@ -33,8 +37,10 @@ import org.onebusaway.gtfs.services.GtfsMutableDao;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA;
 import static com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SKIPPED;
@@ -57,6 +63,26 @@ public class StopTimeUpdateValidator implements FeedEntityValidator {
 
     private static final org.slf4j.Logger _log = LoggerFactory.getLogger(StopTimeUpdateValidator.class);
 
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return EnumSet.of(MetadataFacet.STOP_TIMES, MetadataFacet.MULTI_STOP_TRIPS);
+    }
+
+    @Override
+    public boolean isEntityLocal() {
+        return true;
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(ValidationRules.E002, ValidationRules.E009, ValidationRules.E036, ValidationRules.E037, ValidationRules.E040, ValidationRules.E041, ValidationRules.E042, ValidationRules.E043, ValidationRules.E044, ValidationRules.E045, ValidationRules.E046, ValidationRules.E051)
+                .setUsesPreviousFeedMessage(false)
+                .setUsesCombinedFeed(false)
+                .setCost(RuleDescriptor.Cost.MEDIUM)
+                .build();
+    }
+
     @Override
     public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
         List<GtfsRealtime.FeedEntity> entityList = feedMessage.getEntityList();
@@ -74,15 +100,17 @@ public class StopTimeUpdateValidator implements FeedEntityValidator {
         List<OccurrenceModel> e051List = new ArrayList<>();
 
         for (GtfsRealtime.FeedEntity entity : entityList) {
+            RuleWatchdog.checkBudget();
             if (entity.hasTripUpdate()) {
                 GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
                 checkE041(entity, tripUpdate, e041List);
-                List<StopTime> gtfsStopTimes = null;
+                TripStopTimes gtfsStopTimes = null;
+                // Index of the GTFS stop_time after the last one that was matched to a stop_time_update
                 int gtfsStopTimeIndex = 0;
                 String tripId = null;
                 if (tripUpdate.hasTrip() && tripUpdate.getTrip().hasTripId()) {
                     tripId = tripUpdate.getTrip().getTripId();
-                    gtfsStopTimes = gtfsMetadata.getTripStopTimes().get(tripId);
+                    gtfsStopTimes = gtfsMetadata.getIndexedTripStopTimes(tripId);
                 }
 
                 List<GtfsRealtime.TripUpdate.StopTimeUpdate> rtStopTimeUpdateList = tripUpdate.getStopTimeUpdateList();
@@ -93,9 +121,11 @@ public class StopTimeUpdateValidator implements FeedEntityValidator {
                 String previousRtStopId = null;
                 boolean foundE009error = false;
                 boolean addedStopSequenceFromStopId = false;
+                // Number of stop_time_updates left out of rtStopSequenceList because their stop_sequence isn't in GTFS (E051)
+                int unknownRtStopSequenceCount = 0;
                 Map<String, List<String>> tripWithMultiStop = gtfsMetadata.getTripsWithMultiStops();
-                boolean unknownRtStopSequence = false;
                 for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : rtStopTimeUpdateList) {
+                    boolean unknownRtStopSequence = false;
                     if (!foundE009error && tripId != null && tripWithMultiStop.containsKey(tripId) && !stopTimeUpdate.hasStopSequence()) {
                         // E009 - GTFS-rt stop_sequence isn't provided for trip that visits same stop_id more than once
                         List<String> stopIds = tripWithMultiStop.get(tripId);
@@ -110,60 +140,45 @@ public class StopTimeUpdateValidator implements FeedEntityValidator {
                     }
                     previousRtStopSequence = stopTimeUpdate.getStopSequence();
                     previousRtStopId = stopTimeUpdate.getStopId();
-                    if (stopTimeUpdate.hasStopSequence()) {
-                        rtStopSequenceList.add(stopTimeUpdate.getStopSequence());
-                    }
                     if (stopTimeUpdate.hasStopId()) {
                         rtStopIdList.add(stopTimeUpdate.getStopId());
                     }
                     if (gtfsStopTimes != null) {
-                        // Loop through GTFS stop_time.txt to try and find a matching GTFS stop
-                        while (gtfsStopTimeIndex < gtfsStopTimes.size()) {
-                            int gtfsStopSequence = gtfsStopTimes.get(gtfsStopTimeIndex).getStopSequence();
-                            Stop gtfsStop = gtfsStopTimes.get(gtfsStopTimeIndex).getStop();
-                            boolean foundStopSequence = false;
-                            boolean foundStopId = false;
-                            if (stopTimeUpdate.hasStopSequence()) {
-                                if (gtfsStopSequence == stopTimeUpdate.getStopSequence()) {
-                                    // Found a matching stop_sequence from GTFS stop_times.txt
-                                    checkE045(entity, tripUpdate, stopTimeUpdate, gtfsStopSequence, gtfsStop, e045List);
-                                    checkE046(entity, tripUpdate, stopTimeUpdate, gtfsStopTimes.get(gtfsStopTimeIndex), e046List);
-                                    foundStopSequence = true;
-                                }
-                            }
-                            if (stopTimeUpdate.hasStopId()) {
-                                if (gtfsStop.getId().getId().equals(stopTimeUpdate.getStopId())) {
-                                    /**
-                                     * Found a matching stop_id - note that there could be loops in routes, so unlike
-                                     * stop_sequence this isn't a definitive match between this stopTimeUpdate and a GTFS stop_times.txt entry
-                                     */
-                                    foundStopId = true;
-                                }
-                            }
-                            gtfsStopTimeIndex++;
-                            if (foundStopSequence) {
-                                // We caught up with the stop_sequence in GTFS data - stop so we can pick up from here in next WHILE loop
-                                break;
+                        if (stopTimeUpdate.hasStopSequence()) {
+                            // Find the GTFS stop_times.txt record with the same stop_sequence
+                            int index = gtfsStopTimes.getIndexOfStopSequence(stopTimeUpdate.getStopSequence());
+                            if (index >= 0) {
+                                StopTime gtfsStopTime = gtfsStopTimes.getStopTimes().get(index);
+                                checkE045(entity, tripUpdate, stopTimeUpdate, gtfsStopTime.getStopSequence(), gtfsStopTime.getStop(), e045List);
+                                checkE046(entity, tripUpdate, stopTimeUpdate, gtfsStopTime, e046List);
+                                rtStopSequenceList.add(stopTimeUpdate.getStopSequence());
+                                gtfsStopTimeIndex = index + 1;
                             } else {
-                                if (stopTimeUpdate.hasStopSequence() && gtfsStopTimeIndex == gtfsStopTimes.size()) {
-                                    // For E051 - we've reached the last GTFS stop_times.txt record for the GTFS-rt stop_time_update and haven't found stop_sequence (#261)
-                                    unknownRtStopSequence = true;
-                                }
-                                if (!stopTimeUpdate.hasStopSequence() && foundStopId) {
-                                    // For E002 - in the case when stop_sequence is missing from the GTFS-rt feed, add the GTFS stop_sequence (See #159)
-                                    if (!stopTimeUpdate.hasStopSequence()) {
-                                        rtStopSequenceList.add(gtfsStopSequence);
-                                        addedStopSequenceFromStopId = true;
-                                    }
+                                // For E051 - this stop_sequence isn't in GTFS stop_times.txt for this trip (#261).  It's not added
+                                // to the list for E002, as the producer should fix the stop_sequence and not the order of stop_time_updates.
+                                unknownRtStopSequence = true;
+                                unknownRtStopSequenceCount++;
+                            }
+                        } else if (stopTimeUpdate.hasStopId()) {
+                            /**
+                             * Find the next GTFS stop_times.txt record with a matching stop_id - note that there could be loops in routes, so unlike
+                             * stop_sequence this isn't a definitive match between this stopTimeUpdate and a GTFS stop_times.txt entry.  We use the
+                             * first match after the last GTFS stop_time that was matched.
+                             */
+                            int index = gtfsStopTimes.getIndexOfStopId(stopTimeUpdate.getStopId(), gtfsStopTimeIndex);
+                            if (index >= 0) {
+                                StopTime gtfsStopTime = gtfsStopTimes.getStopTimes().get(index);
+                                // For E002 - in the case when stop_sequence is missing from the GTFS-rt feed, add the GTFS stop_sequence (See #159)
+                                rtStopSequenceList.add(gtfsStopTime.getStopSequence());
+                                addedStopSequenceFromStopId = true;
 
-                                    // E046 hasn't been checked yet if a stop_sequence doesn't exist - check now
-                                    checkE046(entity, tripUpdate, stopTimeUpdate, gtfsStopTimes.get(gtfsStopTimeIndex - 1), e046List);
-                                    // We caught up with a matching stop_id in GTFS data - stop so we can pick up from here in next WHILE loop
-                                    // Note that for routes with loops, we could potentially be stopping prematurely
-                                    break;
-                                }
+                                // E046 hasn't been checked yet if a stop_sequence doesn't exist - check now
+                                checkE046(entity, tripUpdate, stopTimeUpdate, gtfsStopTime, e046List);
+                                gtfsStopTimeIndex = index + 1;
                             }
                         }
+                    } else if (stopTimeUpdate.hasStopSequence()) {
+                        rtStopSequenceList.add(stopTimeUpdate.getStopSequence());
                     }
                     checkE040(entity, tripUpdate, stopTimeUpdate, e040List);
                     checkE042(entity, tripUpdate, stopTimeUpdate, e042List);
@@ -173,11 +188,6 @@ public class StopTimeUpdateValidator implements FeedEntityValidator {
                     if (unknownRtStopSequence) {
                         // E051 - GTFS-rt stop_sequence not found in GTFS data
                         RuleUtils.addOccurrence(ValidationRules.E051, "GTFS-rt " + GtfsUtils.getTripId(entity, tripUpdate) + " contains stop_sequence " + stopTimeUpdate.getStopSequence(), e051List, _log);
-                        // We couldn't find this stopTimeUpdate.stop_sequence in the GTFS stop_times.txt for this trip (E051). To keep validator running complexity
-                        // at O(n) for evaluating TripUpdates w/ GTFS stop_times.txt (i.e., don't loop through the entire GTFS stop_times.txt for each GTFS-rt stop_time_update, which would be O(n*m)), we
-                        // will skip validating the stop_time_updates for the rest of this trip.  When the producer fixes this erroneous stop_time_update.stop_sequence,
-                        // the remaining stop_time_updates for this GTFS-rt trip will be validated.
-                        break;
                     }
                 }
 
@@ -188,7 +198,7 @@ public class StopTimeUpdateValidator implements FeedEntityValidator {
                     RuleUtils.addOccurrence(ValidationRules.E002, id + " stop_sequence " + rtStopSequenceList.toString(), e002List, _log);
                 } else if (addedStopSequenceFromStopId) {
                     // TripUpdate was missing at least one stop_sequence
-                    if (rtStopSequenceList.size() < rtStopTimeUpdateList.size()) {
+                    if (rtStopSequenceList.size() + unknownRtStopSequenceCount < rtStopTimeUpdateList.size()) {
                         // We didn't find all of the stop_time_updates in GTFS using stop_id, so stop_time_updates are
                         // out of sequence
                         // E002 - stop_time_updates for a given trip_id must be sorted by increasing stop_sequence
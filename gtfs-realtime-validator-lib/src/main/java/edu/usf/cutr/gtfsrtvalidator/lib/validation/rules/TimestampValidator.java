@@ -24,7 +24,11 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
 import org.onebusaway.gtfs.services.GtfsMutableDao;
 import org.slf4j.LoggerFactory;
@@ -32,6 +36,7 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.getAge;
@@ -61,9 +66,29 @@ public class TimestampValidator implements FeedEntityValidator {
     private final static long MAX_AGE_SECONDS = 65L; // Maximum allowed age for GTFS-realtime feed, in seconds (W008)
     private final static long IN_FUTURE_TOLERANCE_SECONDS = 60L; // Maximum allowed amount of time for a timetamp to be in the future, in seconds (E050)
 
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return MetadataFacet.none();
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(E001, E012, E017, E018, E022, E025, E048, E050, W001, W007, W008)
+                .setUsesPreviousFeedMessage(true)
+                .setUsesCombinedFeed(false)
+                .setCost(RuleDescriptor.Cost.MEDIUM)
+                .build();
+    }
+
     @Override
     public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
-        if (feedMessage.equals(previousFeedMessage)) {
+        return validateWithCombinedFeed(currentTimeMillis, gtfsData, gtfsMetadata, feedMessage, PreviousIterationState.of(previousFeedMessage), null);
+    }
+
+    @Override
+    public List<ErrorListHelperModel> validateWithCombinedFeed(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, PreviousIterationState previousState, CombinedFeed combinedFeed) {
+        if (previousState != null && previousState.isSameContent(feedMessage)) {
             throw new IllegalArgumentException("feedMessage and previousFeedMessage must not be the same");
         }
         List<OccurrenceModel> w001List = new ArrayList<>();
@@ -117,15 +142,15 @@ public class TimestampValidator implements FeedEntityValidator {
                 }
             }
 
-            if (previousFeedMessage != null && previousFeedMessage.getHeader().getTimestamp() != 0) {
-                long previousTimestamp = previousFeedMessage.getHeader().getTimestamp();
+            if (previousState != null && previousState.getHeaderTimestamp() != 0) {
+                long previousTimestamp = previousState.getHeaderTimestamp();
                 long interval = headerTimestamp - previousTimestamp;
                 if (headerTimestamp == previousTimestamp) {
                     // E017 - GTFS-rt content changed but has the same timestamp
                     RuleUtils.addOccurrence(E017, "header.timestamp of " + headerTimestamp, e017List, _log);
                 } else if (headerTimestamp < previousTimestamp) {
                     // E018 - GTFS-rt header timestamp decreased between two sequential iterations
-                    String prefix = "header.timestamp of " + headerTimestamp + " is less than the header.timestamp of " + previousFeedMessage.getHeader().getTimestamp();
+                    String prefix = "header.timestamp of " + headerTimestamp + " is less than the header.timestamp of " + previousTimestamp;
                     RuleUtils.addOccurrence(E018, prefix, e018List, _log);
                 } else if (interval > MINIMUM_REFRESH_INTERVAL_SECONDS) {
                     // W007 - Refresh interval is more than 35 seconds
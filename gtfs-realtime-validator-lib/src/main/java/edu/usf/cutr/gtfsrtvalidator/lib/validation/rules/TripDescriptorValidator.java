@@ -24,15 +24,19 @@ import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.TripFacts;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
 import org.apache.commons.lang3.StringUtils;
-import org.onebusaway.gtfs.model.StopTime;
-import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.services.GtfsMutableDao;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.*;
 
@@ -72,6 +76,26 @@ public class TripDescriptorValidator implements FeedEntityValidator {
 
     private static final org.slf4j.Logger _log = LoggerFactory.getLogger(TripDescriptorValidator.class);
 
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return EnumSet.of(MetadataFacet.STOP_TIMES, MetadataFacet.FREQUENCIES);
+    }
+
+    @Override
+    public boolean isEntityLocal() {
+        return true;
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(E003, E004, E016, E020, E021, E023, E024, E030, E031, E032, E033, E034, E035, W006, W009)
+                .setUsesPreviousFeedMessage(false)
+                .setUsesCombinedFeed(false)
+                .setCost(RuleDescriptor.Cost.MEDIUM)
+                .build();
+    }
+
     @Override
     public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
         List<OccurrenceModel> errorListE003 = new ArrayList<>();
@@ -92,14 +116,15 @@ public class TripDescriptorValidator implements FeedEntityValidator {
 
         // Check the route_id values against the values from the GTFS feed
         for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+            RuleWatchdog.checkBudget();
             if (entity.hasTripUpdate()) {
                 GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
+                // Facts for the GTFS trip, or null if the trip_id isn't in GTFS trips.txt
+                TripFacts tripFacts = gtfsMetadata.getTripFacts(tripUpdate.getTrip().getTripId());
                 if (!tripUpdate.getTrip().hasTripId()) {
                     checkW006(entity, tripUpdate.getTrip(), errorListW006);
                 } else {
-                    String tripId = tripUpdate.getTrip().getTripId();
-                    Trip trip = gtfsMetadata.getTrips().get(tripId);
-                    if (trip == null) {
+                    if (tripFacts == null) {
                         if (!GtfsUtils.isAddedTrip(tripUpdate.getTrip())) {
                             // Trip isn't in GTFS data and isn't an ADDED trip - E003
                             RuleUtils.addOccurrence(E003, GtfsUtils.getTripId(entity, tripUpdate), errorListE003, _log);
@@ -110,7 +135,7 @@ public class TripDescriptorValidator implements FeedEntityValidator {
                             RuleUtils.addOccurrence(E016, GtfsUtils.getTripId(entity, tripUpdate), errorListE016, _log);
                         }
                         if (tripUpdate.getTrip().hasStartTime()) {
-                            checkE023(tripUpdate, tripUpdate.getTrip(), gtfsMetadata, errorListE023);
+                            checkE023(tripUpdate, tripUpdate.getTrip(), tripFacts, errorListE023);
                         }
                     }
                 }
@@ -121,19 +146,18 @@ public class TripDescriptorValidator implements FeedEntityValidator {
 
                 checkE021(tripUpdate, tripUpdate.getTrip(), errorListE021);
                 checkE004(tripUpdate, tripUpdate.getTrip(), gtfsMetadata, errorListE004);
-                checkE024(tripUpdate, tripUpdate.getTrip(), gtfsMetadata, errorListE024);
+                checkE024(tripUpdate, tripUpdate.getTrip(), tripFacts, errorListE024);
                 checkE035(entity, tripUpdate.getTrip(), gtfsMetadata, errorListE035);
 
-                boolean foundW009 = false;
+                // Compare against the occurrences of earlier entities, so each trip is checked on its own (W009 is entity-local)
+                int previousW009Count = errorListW009.size();
                 List<GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdateList = tripUpdate.getStopTimeUpdateList();
                 for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : stopTimeUpdateList) {
                     // Only flag one occurrence of W009 for stop_time_update per trip to avoid flooding the database
-                    if (!foundW009) {
-                        checkW009(entity, stopTimeUpdate, errorListW009);
-                        if (!errorListW009.isEmpty()) {
-                            foundW009 = true;
-                        }
+                    if (errorListW009.size() > previousW009Count) {
+                        break;
                     }
+                    checkW009(entity, stopTimeUpdate, errorListW009);
                 }
                 if (tripUpdate.hasTrip()) {
                     checkW009(entity, tripUpdate.getTrip(), errorListW009);
@@ -141,13 +165,14 @@ public class TripDescriptorValidator implements FeedEntityValidator {
             }
             if (entity.hasVehicle() && entity.getVehicle().hasTrip()) {
                 GtfsRealtime.TripDescriptor trip = entity.getVehicle().getTrip();
+                // Facts for the GTFS trip, or null if the trip_id isn't in GTFS trips.txt
+                TripFacts tripFacts = gtfsMetadata.getTripFacts(trip.getTripId());
                 if (!trip.hasTripId()) {
                     checkW006(entity, trip, errorListW006);
                 } else {
                     String tripId = trip.getTripId();
                     if (!StringUtils.isEmpty(tripId)) {
-                        Trip gtfsTrip = gtfsMetadata.getTrips().get(tripId);
-                        if (gtfsTrip == null) {
+                        if (tripFacts == null) {
                             if (!GtfsUtils.isAddedTrip(trip)) {
                                 // E003 - Trip isn't in GTFS data and isn't an ADDED trip
                                 RuleUtils.addOccurrence(E003, "vehicle_id " + entity.getVehicle().getVehicle().getId() + " trip_id " + tripId, errorListE003, _log);
@@ -158,7 +183,7 @@ public class TripDescriptorValidator implements FeedEntityValidator {
                                 RuleUtils.addOccurrence(E016, "vehicle_id " + entity.getVehicle().getVehicle().getId() + " trip_id " + tripId, errorListE016, _log);
                             }
                             if (trip.hasStartTime()) {
-                                checkE023(entity.getVehicle(), trip, gtfsMetadata, errorListE023);
+                                checkE023(entity.getVehicle(), trip, tripFacts, errorListE023);
                             }
                         }
                     }
@@ -170,7 +195,7 @@ public class TripDescriptorValidator implements FeedEntityValidator {
 
                 checkE004(entity.getVehicle(), trip, gtfsMetadata, errorListE004);
                 checkE021(entity.getVehicle(), trip, errorListE021);
-                checkE024(entity.getVehicle(), trip, gtfsMetadata, errorListE024);
+                checkE024(entity.getVehicle(), trip, tripFacts, errorListE024);
                 checkE035(entity, trip, gtfsMetadata, errorListE035);
                 checkW009(entity, trip, errorListW009);
             }
@@ -280,22 +305,20 @@ public class TripDescriptorValidator implements FeedEntityValidator {
     /**
      * Checks rule E023 - "start_time does not match GTFS initial arrival_time", and adds any errors that are found to the provided error list
      *
-     * @param entity The VehiclePosition or TripUpdate that contains the data to be evaluated for rule E023
-     * @param trip   The TripDescriptor be evaluated for rule E023
-     * @param errors list to add any errors for E023 to
+     * @param entity    The VehiclePosition or TripUpdate that contains the data to be evaluated for rule E023
+     * @param trip      The TripDescriptor be evaluated for rule E023
+     * @param tripFacts facts for the GTFS trip with the same trip_id, or null if the trip_id isn't in GTFS trips.txt
+     * @param errors    list to add any errors for E023 to
      */
-    private void checkE023(Object entity, GtfsRealtime.TripDescriptor trip, GtfsMetadata gtfsMetadata, List<OccurrenceModel> errors) {
+    private void checkE023(Object entity, GtfsRealtime.TripDescriptor trip, TripFacts tripFacts, List<OccurrenceModel> errors) {
         String startTime = trip.getStartTime();
-        String tripId = trip.getTripId();
-        if (tripId != null && !gtfsMetadata.getExactTimesZeroTripIds().contains(tripId) && !gtfsMetadata.getExactTimesOneTrips().containsKey(tripId)) {
+        if (tripFacts != null && !tripFacts.isFrequencyBased()) {
             // Trip is a normal (not frequencies.txt) trip
-            List<StopTime> stopTimes = gtfsMetadata.getTripStopTimes().get(tripId);
-            if (stopTimes == null || stopTimes.isEmpty()) {
-                // There isn't a trip in GTFS trips.txt for this trip, or it doesn't have any records in GTFS stop_times.txt
+            if (!tripFacts.hasFirstArrivalTime()) {
+                // The trip doesn't have any records in GTFS stop_times.txt
                 return;
             }
-            int firstArrivalTime = stopTimes.get(0).getArrivalTime();
-            String formattedArrivalTime = TimestampUtils.secondsAfterMidnightToClock(firstArrivalTime);
+            String formattedArrivalTime = tripFacts.getFirstArrivalClock();
             if (!startTime.equals(formattedArrivalTime)) {
                 String prefix = "GTFS-rt " + GtfsUtils.getVehicleAndTripIdText(entity) + " start_time is " + startTime + " and GTFS initial arrival_time is " + formattedArrivalTime;
                 RuleUtils.addOccurrence(E023, prefix, errors, _log);
@@ -323,16 +346,14 @@ public class TripDescriptorValidator implements FeedEntityValidator {
      *
      * @param entity       The VehiclePosition or TripUpdate that contains the data to be evaluated for rule E024
      * @param trip         The TripDescriptor be evaluated for rule E024
-     * @param gtfsMetadata metadata for the static GTFS data
+     * @param tripFacts    facts for the GTFS trip with the same trip_id, or null if the trip_id isn't in GTFS trips.txt
      * @param errors       list to add any errors for E024 to
      */
-    private void checkE024(Object entity, GtfsRealtime.TripDescriptor trip, GtfsMetadata gtfsMetadata, List<OccurrenceModel> errors) {
+    private void checkE024(Object entity, GtfsRealtime.TripDescriptor trip, TripFacts tripFacts, List<OccurrenceModel> errors) {
         if (trip.hasDirectionId()) {
             int directionId = trip.getDirectionId();
-            Trip gtfsTrip = gtfsMetadata.getTrips().get(trip.getTripId());
-            if (gtfsTrip != null &&
-                    (gtfsTrip.getDirectionId() == null || !gtfsTrip.getDirectionId().equals(String.valueOf(directionId)))) {
-                String prefix = "GTFS-rt " + GtfsUtils.getVehicleAndTripIdText(entity) + " trip.direction_id is " + directionId + " but GTFS trip.direction_id is " + gtfsTrip.getDirectionId();
+            if (tripFacts != null && !tripFacts.isDirectionId(directionId)) {
+                String prefix = "GTFS-rt " + GtfsUtils.getVehicleAndTripIdText(entity) + " trip.direction_id is " + directionId + " but GTFS trip.direction_id is " + tripFacts.getDirectionId();
                 RuleUtils.addOccurrence(E024, prefix, errors, _log);
             }
         }
@@ -351,10 +372,10 @@ public class TripDescriptorValidator implements FeedEntityValidator {
         String routeId = entitySelector.getRouteId();
         GtfsRealtime.TripDescriptor tripDescriptor = entitySelector.getTrip();
         if (tripDescriptor.hasTripId()) {
-            Trip gtfsTrip = gtfsMetadata.getTrips().get(tripDescriptor.getTripId());
-            if (gtfsTrip != null && !routeId.equals(gtfsTrip.getRoute().getId().getId())) {
+            TripFacts tripFacts = gtfsMetadata.getTripFacts(tripDescriptor.getTripId());
+            if (tripFacts != null && !routeId.equals(tripFacts.getRouteId())) {
                 String prefix = "alert ID " + entity.getId() + " informed_entity.trip.trip_id "
-                        + tripDescriptor.getTripId() + " does not belong to informed_entity.route_id " + routeId + " (GTFS says it belongs to route_id " + gtfsTrip.getRoute().getId().getId() + ")";
+                        + tripDescriptor.getTripId() + " does not belong to informed_entity.route_id " + routeId + " (GTFS says it belongs to route_id " + tripFacts.getRouteId() + ")";
                 RuleUtils.addOccurrence(E030, prefix, errors, _log);
             }
         }
@@ -435,13 +456,13 @@ public class TripDescriptorValidator implements FeedEntityValidator {
                 // route_id isn't in GTFS data (which will be caught by E004) - return;
                 return;
             }
-            Trip gtfsTrip = gtfsMetadata.getTrips().get(trip.getTripId());
-            if (gtfsTrip == null) {
+            TripFacts tripFacts = gtfsMetadata.getTripFacts(trip.getTripId());
+            if (tripFacts == null) {
                 // trip_id isn't in GTFS data (which will be caught by E003) - return;
                 return;
             }
-            String gtfsRouteId = gtfsTrip.getRoute().getId().getId();
-            if (!gtfsRouteId.equals(trip.getRouteId())) {
+            String gtfsRouteId = tripFacts.getRouteId();
+            if (!trip.getRouteId().equals(gtfsRouteId)) {
                 RuleUtils.addOccurrence(E035, "GTFS-rt entity ID " + entity.getId() + " trip_id " + trip.getTripId() + " has route_id " + trip.getRouteId() + " but belongs to GTFS route_id " + gtfsRouteId, errors, _log);
             }
         }
@@ -24,6 +24,9 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
 import org.apache.commons.lang3.StringUtils;
 import org.locationtech.spatial4j.shape.Shape;
@@ -31,8 +34,10 @@ import org.onebusaway.gtfs.services.GtfsMutableDao;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils.getTripId;
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils.getVehicleId;
@@ -56,6 +61,21 @@ public class VehicleValidator implements FeedEntityValidator {
 
     public static final float MAX_REALISTIC_SPEED_METERS_PER_SECOND = 26.0f;  // Approx. 60 miles per hour
 
+    @Override
+    public Set<MetadataFacet> getRequiredMetadata() {
+        return EnumSet.of(MetadataFacet.SHAPES);
+    }
+
+    @Override
+    public RuleDescriptor getDescriptor() {
+        return RuleDescriptor.newBuilder(this)
+                .setRules(E026, E027, E028, E029, E052, W002, W004)
+                .setUsesPreviousFeedMessage(false)
+                .setUsesCombinedFeed(false)
+                .setCost(RuleDescriptor.Cost.HIGH)
+                .build();
+    }
+
     @Override
     public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
         List<GtfsRealtime.FeedEntity> entityList = feedMessage.getEntityList();
@@ -70,6 +90,7 @@ public class VehicleValidator implements FeedEntityValidator {
         HashSet<String> vehicleIds = new HashSet<>(entityList.size());
 
         for (GtfsRealtime.FeedEntity entity : entityList) {
+            RuleWatchdog.checkBudget();
             if (entity.hasTripUpdate()) {
                 GtfsRealtime.TripUpdate tripUpdate = entity.getTripUpdate();
 
@@ -242,6 +263,7 @@ public class VehicleValidator implements FeedEntityValidator {
     private boolean hasDetourAlert(List<GtfsRealtime.FeedEntity> entityList, String tripId, String routeId) {
         // This could get expensive for a lot of alerts
         for (GtfsRealtime.FeedEntity e : entityList) {
+            RuleWatchdog.checkBudget();
             if (e.hasAlert()) {
                 GtfsRealtime.Alert a = e.getAlert();
                 if (a.hasEffect() && a.getEffect().equals(GtfsRealtime.Alert.Effect.DETOUR)) {
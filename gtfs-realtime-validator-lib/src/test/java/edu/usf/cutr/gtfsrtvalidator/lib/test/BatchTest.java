@@ -23,9 +23,13 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -64,4 +68,41 @@ public class BatchTest {
             }
         }
     }
+
+    @Test
+    public void testOversizedFeed() throws IOException, NoSuchAlgorithmException {
+        // Copy the GTFS-realtime file to its own directory, so only that file is validated
+        Path gtfsRealtimeDir = Files.createTempDirectory("batchOversizedFeed");
+        Path feed = Files.copy(Paths.get("src/test/resources/bullrunner-vehicle-positions"), gtfsRealtimeDir.resolve("bullrunner-vehicle-positions"));
+        File results = new File(feed.toAbsolutePath() + BatchProcessor.RESULTS_FILE_EXTENSION);
+        long feedSize = Files.size(feed);
+
+        // A file larger than the message size limit is skipped without results
+        new BatchProcessor.Builder("src/test/resources/bullrunner-gtfs.zip", gtfsRealtimeDir.toString())
+                .setMaxMessageSizeBytes(feedSize - 1)
+                .build()
+                .processFeeds();
+        assertFalse(results.exists());
+
+        // A file with an entity larger than the entity size limit is skipped without results
+        new BatchProcessor.Builder("src/test/resources/bullrunner-gtfs.zip", gtfsRealtimeDir.toString())
+                .setMaxEntitySizeBytes(10)
+                .build()
+                .processFeeds();
+        assertFalse(results.exists());
+
+        // A file within the limits is validated
+        new BatchProcessor.Builder("src/test/resources/bullrunner-gtfs.zip", gtfsRealtimeDir.toString())
+                .setMaxMessageSizeBytes(feedSize)
+                .build()
+                .processFeeds();
+        assertTrue(results.exists());
+        ObjectMapper mapper = new ObjectMapper();
+        ErrorListHelperModel[] allErrorLists = mapper.readValue(results, ErrorListHelperModel[].class);
+        assertTrue(allErrorLists.length == 3 || allErrorLists.length == 4);
+
+        Files.delete(results.toPath());
+        Files.delete(feed);
+        Files.delete(gtfsRealtimeDir);
+    }
 }
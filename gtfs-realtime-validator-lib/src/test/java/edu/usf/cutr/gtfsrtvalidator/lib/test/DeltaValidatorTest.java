@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.DeltaValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.StopTimeUpdateValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.StopValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.TripDescriptorValidator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for validating only new or changed entities between iterations
+ */
+public class DeltaValidatorTest extends FeedMessageTest {
+
+    public DeltaValidatorTest() throws IOException {
+    }
+
+    @Test
+    public void testEntityLocalRules() {
+        assertTrue(new StopValidator().isEntityLocal());
+        assertTrue(new StopTimeUpdateValidator().isEntityLocal());
+        assertTrue(new TripDescriptorValidator().isEntityLocal());
+        for (FeedEntityValidator validator : new RuleSelection().setProfile(RuleSelection.PROFILE_FRESHNESS).createValidators()) {
+            // Timestamp, header, and cross-feed rules depend on more than a single entity
+            assertFalse(validator.isEntityLocal());
+        }
+    }
+
+    @Test
+    public void testDeltaMatchesFullValidation() {
+        List<FeedEntityValidator> validators = new RuleSelection().createValidators();
+        DeltaValidator deltaValidator = new DeltaValidator();
+
+        // Iteration 1 - all entities are new
+        GtfsRealtime.FeedMessage message1 = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("2", "BAD_TRIP", "A", "DUMMY2"),
+                tripUpdate("3", "1", "A", "B"));
+        assertSameResults(validators, deltaValidator, message1, null);
+        int localValidators = countEntityLocal(validators);
+        assertEquals(3 * localValidators, deltaValidator.getValidatedEntityCount());
+        assertEquals(0, deltaValidator.getReusedEntityCount());
+
+        // Iteration 2 - entity 2 changes, entities 1 and 3 are unchanged
+        GtfsRealtime.FeedMessage message2 = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("2", "BAD_TRIP", "DUMMY3", "DUMMY2"),
+                tripUpdate("3", "1", "A", "B"));
+        assertSameResults(validators, deltaValidator, message2, message1);
+        assertEquals(4 * localValidators, deltaValidator.getValidatedEntityCount());
+        assertEquals(2 * localValidators, deltaValidator.getReusedEntityCount());
+
+        // Iteration 3 - entity 1 is removed, entity 4 is added, and the order of entities changes
+        GtfsRealtime.FeedMessage message3 = buildMessage(
+                tripUpdate("3", "1", "A", "B"),
+                tripUpdate("4", "1", "DUMMY4", "DUMMY5"),
+                tripUpdate("2", "BAD_TRIP", "DUMMY3", "DUMMY2"));
+        assertSameResults(validators, deltaValidator, message3, message2);
+        assertEquals(5 * localValidators, deltaValidator.getValidatedEntityCount());
+        assertEquals(4 * localValidators, deltaValidator.getReusedEntityCount());
+
+        // Iteration 4 - entity 1 returns, and results from iteration 2 shouldn't be re-used for it
+        GtfsRealtime.FeedMessage message4 = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("3", "1", "A", "B"));
+        assertSameResults(validators, deltaValidator, message4, message3);
+        assertEquals(6 * localValidators, deltaValidator.getValidatedEntityCount());
+        assertEquals(5 * localValidators, deltaValidator.getReusedEntityCount());
+    }
+
+    @Test
+    public void testDuplicateEntityIds() {
+        List<FeedEntityValidator> validators = new RuleSelection().createValidators();
+        DeltaValidator deltaValidator = new DeltaValidator();
+
+        // Entities with the same ID but different content must each be validated
+        GtfsRealtime.FeedMessage message = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("1", "BAD_TRIP", "A", "DUMMY2"));
+        assertSameResults(validators, deltaValidator, message, null);
+        GtfsRealtime.FeedMessage previousMessage = buildMessage(tripUpdate("1", "1", "DUMMY1", "A"));
+        assertSameResults(validators, deltaValidator, message, previousMessage);
+    }
+
+    @Test
+    public void testW009ForEachTrip() {
+        List<FeedEntityValidator> validators = Arrays.asList(new TripDescriptorValidator());
+        DeltaValidator deltaValidator = new DeltaValidator();
+
+        // Neither trip has a schedule_relationship for its stop_time_updates, so W009 is flagged once for each trip
+        GtfsRealtime.FeedMessage message = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("2", "1", "A", "B"));
+        assertSameResults(validators, deltaValidator, message, null);
+        int stopTimeUpdateWarnings = 0;
+        for (String occurrence : toStrings(new TripDescriptorValidator().validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, message, null, null))) {
+            if (occurrence.startsWith("W009") && occurrence.contains("stop_sequence")) {
+                stopTimeUpdateWarnings++;
+            }
+        }
+        assertEquals(2, stopTimeUpdateWarnings);
+    }
+
+    private int countEntityLocal(List<FeedEntityValidator> validators) {
+        int count = 0;
+        for (FeedEntityValidator validator : validators) {
+            if (validator.isEntityLocal()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Asserts that the results from the DeltaValidator are the same as validating the entire feed message for each rule
+     */
+    private void assertSameResults(List<FeedEntityValidator> validators, DeltaValidator deltaValidator, GtfsRealtime.FeedMessage message, GtfsRealtime.FeedMessage previousMessage) {
+        for (FeedEntityValidator validator : validators) {
+            List<ErrorListHelperModel> expected = validator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, message, previousMessage, null);
+            List<ErrorListHelperModel> actual = deltaValidator.validate(validator, TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, message, PreviousIterationState.of(previousMessage), null);
+            assertEquals(validator.getClass().getSimpleName(), toStrings(expected), toStrings(actual));
+        }
+    }
+
+    private List<String> toStrings(List<ErrorListHelperModel> errorLists) {
+        List<String> strings = new ArrayList<>();
+        for (ErrorListHelperModel errorList : errorLists) {
+            for (OccurrenceModel occurrence : errorList.getOccurrenceList()) {
+                strings.add(errorList.getErrorMessage().getValidationRule().getErrorId() + " " + occurrence.getPrefix());
+            }
+        }
+        return strings;
+    }
+
+    private GtfsRealtime.FeedMessage buildMessage(GtfsRealtime.FeedEntity... entities) {
+        GtfsRealtime.FeedHeader.Builder header = GtfsRealtime.FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion("1.0")
+                .setTimestamp(TimestampUtils.MIN_POSIX_TIME);
+        return GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(header)
+                .addAllEntity(Arrays.asList(entities))
+                .build();
+    }
+
+    private GtfsRealtime.FeedEntity tripUpdate(String entityId, String tripId, String... stopIds) {
+        GtfsRealtime.TripUpdate.Builder tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId));
+        int stopSequence = 1;
+        for (String stopId : stopIds) {
+            tripUpdate.addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopId(stopId)
+                    .setStopSequence(stopSequence++)
+                    .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(TimestampUtils.MIN_POSIX_TIME)));
+        }
+        return GtfsRealtime.FeedEntity.newBuilder()
+                .setId(entityId)
+                .setTripUpdate(tripUpdate)
+                .build();
+    }
+}
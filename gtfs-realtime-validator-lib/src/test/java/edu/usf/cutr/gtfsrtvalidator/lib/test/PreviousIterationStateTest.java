@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.IterationHistory;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for summarizing the previous iteration of a feed
+ */
+public class PreviousIterationStateTest {
+
+    @Test
+    public void testSummary() {
+        GtfsRealtime.FeedMessage message = buildMessage(TimestampUtils.MIN_POSIX_TIME,
+                vehicle("1", "A", TimestampUtils.MIN_POSIX_TIME - 10),
+                vehicle("2", "B", 0),
+                vehicle("1", "C", TimestampUtils.MIN_POSIX_TIME - 20));
+        PreviousIterationState state = PreviousIterationState.of(message);
+
+        assertEquals(TimestampUtils.MIN_POSIX_TIME, state.getHeaderTimestamp());
+        assertEquals(3, state.getEntityCount());
+        assertEquals("2", state.getEntityId(1));
+        assertEquals(TimestampUtils.MIN_POSIX_TIME - 10, state.getEntityTimestamp(0));
+        assertEquals(0, state.getEntityTimestamp(1));
+        // The first entity is returned for duplicate IDs
+        assertEquals(0, state.indexOf("1"));
+        assertEquals(-1, state.indexOf("3"));
+        assertNotEquals(state.getEntityHash(0), state.getEntityHash(2));
+        assertNull(PreviousIterationState.of(null));
+
+        // Summaries built one entity at a time are the same as summaries of the entire message
+        PreviousIterationState.Builder builder = new PreviousIterationState.Builder(message.getHeader());
+        for (GtfsRealtime.FeedEntity entity : message.getEntityList()) {
+            builder.addEntity(entity);
+        }
+        assertEquals(state.getContentHash(), builder.build().getContentHash());
+    }
+
+    @Test
+    public void testSameContent() {
+        GtfsRealtime.FeedMessage message = buildMessage(TimestampUtils.MIN_POSIX_TIME,
+                vehicle("1", "A", TimestampUtils.MIN_POSIX_TIME),
+                vehicle("2", "B", TimestampUtils.MIN_POSIX_TIME));
+        PreviousIterationState state = PreviousIterationState.of(message);
+
+        // An equal message that is a different object has the same content
+        GtfsRealtime.FeedMessage copy = buildMessage(TimestampUtils.MIN_POSIX_TIME,
+                vehicle("1", "A", TimestampUtils.MIN_POSIX_TIME),
+                vehicle("2", "B", TimestampUtils.MIN_POSIX_TIME));
+        assertTrue(state.isSameContent(copy));
+        assertEquals(state.getContentHash(), PreviousIterationState.of(copy).getContentHash());
+
+        // Any change to the header or an entity changes the content
+        assertFalse(state.isSameContent(buildMessage(TimestampUtils.MIN_POSIX_TIME + 1,
+                vehicle("1", "A", TimestampUtils.MIN_POSIX_TIME),
+                vehicle("2", "B", TimestampUtils.MIN_POSIX_TIME))));
+        assertFalse(state.isSameContent(buildMessage(TimestampUtils.MIN_POSIX_TIME,
+                vehicle("1", "A", TimestampUtils.MIN_POSIX_TIME),
+                vehicle("2", "C", TimestampUtils.MIN_POSIX_TIME))));
+        // Entities in a different order are a different message
+        assertFalse(state.isSameContent(buildMessage(TimestampUtils.MIN_POSIX_TIME,
+                vehicle("2", "B", TimestampUtils.MIN_POSIX_TIME),
+                vehicle("1", "A", TimestampUtils.MIN_POSIX_TIME))));
+        assertFalse(state.isSameContent(null));
+    }
+
+    @Test
+    public void testEntitySummary() {
+        GtfsRealtime.FeedEntity tripUpdate = GtfsRealtime.FeedEntity.newBuilder()
+                .setId("3")
+                .setTripUpdate(GtfsRealtime.TripUpdate.newBuilder()
+                        .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("1.1"))
+                        .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                                .setStopSequence(1)
+                                .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(TimestampUtils.MIN_POSIX_TIME)))
+                        .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                                .setStopId("B")
+                                .setDeparture(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(TimestampUtils.MIN_POSIX_TIME + 60))))
+                .build();
+        GtfsRealtime.FeedEntity vehicle = GtfsRealtime.FeedEntity.newBuilder()
+                .setId("4")
+                .setVehicle(GtfsRealtime.VehiclePosition.newBuilder()
+                        .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("1.2"))
+                        .setPosition(GtfsRealtime.Position.newBuilder().setLatitude(28.0587f).setLongitude(-82.4139f)))
+                .build();
+        PreviousIterationState state = PreviousIterationState.of(buildMessage(TimestampUtils.MIN_POSIX_TIME,
+                vehicle("1", "A", 0), tripUpdate, vehicle));
+
+        assertNull(state.getTripId(0));
+        assertTrue(Float.isNaN(state.getLatitude(0)));
+        assertEquals(0, state.getPredictionCount(0));
+
+        assertEquals("1.1", state.getTripId(1));
+        assertTrue(Float.isNaN(state.getLongitude(1)));
+        assertEquals(2, state.getPredictionCount(1));
+        assertEquals(1, state.getPredictionStopSequence(1, 0));
+        assertNull(state.getPredictionStopId(1, 0));
+        assertEquals(TimestampUtils.MIN_POSIX_TIME, state.getPredictionTime(1, 0));
+        assertEquals(-1, state.getPredictionStopSequence(1, 1));
+        assertEquals("B", state.getPredictionStopId(1, 1));
+        assertEquals(TimestampUtils.MIN_POSIX_TIME + 60, state.getPredictionTime(1, 1));
+
+        assertEquals("1.2", state.getTripId(2));
+        assertEquals(28.0587f, state.getLatitude(2), 0);
+        assertEquals(-82.4139f, state.getLongitude(2), 0);
+        assertEquals(0, state.getPredictionCount(2));
+
+        try {
+            state.getPredictionTime(0, 0);
+            fail("Entities without predictions shouldn't return predictions of the next entity");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testHistory() {
+        // Without withHistory() the history only contains the summary itself
+        PreviousIterationState state = PreviousIterationState.of(buildMessage(TimestampUtils.MIN_POSIX_TIME, vehicle("1", "A", 0)));
+        assertEquals(1, state.getHistory().size());
+        assertSame(state, state.getHistory().get(0));
+
+        // Keep the last 3 iterations
+        List<PreviousIterationState> states = new ArrayList<>();
+        state = null;
+        for (int i = 0; i < 5; i++) {
+            GtfsRealtime.FeedMessage message = i < 2
+                    ? buildMessage(TimestampUtils.MIN_POSIX_TIME + i, vehicle("1", "A", 0), vehicle("2", "B", 0))
+                    : buildMessage(TimestampUtils.MIN_POSIX_TIME + i, vehicle("1", "A", 0));
+            state = PreviousIterationState.of(message).withHistory(state, 3);
+            states.add(state);
+        }
+        IterationHistory history = state.getHistory();
+        assertEquals(3, history.size());
+        assertEquals(3, history.getMaxIterations());
+        for (int age = 0; age < 3; age++) {
+            assertEquals(TimestampUtils.MIN_POSIX_TIME + 4 - age, history.get(age).getHeaderTimestamp());
+        }
+        assertEquals(3, history.countConsecutive("1"));
+        assertEquals(0, history.countConsecutive("2"));
+
+        // Earlier histories aren't changed by later iterations
+        IterationHistory earlier = states.get(1).getHistory();
+        assertEquals(2, earlier.size());
+        assertEquals(TimestampUtils.MIN_POSIX_TIME + 1, earlier.get(0).getHeaderTimestamp());
+        assertEquals(TimestampUtils.MIN_POSIX_TIME, earlier.get(1).getHeaderTimestamp());
+        assertEquals(2, earlier.countConsecutive("2"));
+
+        // Summaries in a history don't hold on to the iterations before them
+        assertEquals(1, history.get(2).getHistory().size());
+
+        // Changing the size of the history keeps the newest iterations
+        state = PreviousIterationState.of(buildMessage(TimestampUtils.MIN_POSIX_TIME + 5)).withHistory(state, 2);
+        assertEquals(2, state.getHistory().size());
+        assertEquals(TimestampUtils.MIN_POSIX_TIME + 5, state.getHistory().get(0).getHeaderTimestamp());
+        assertEquals(TimestampUtils.MIN_POSIX_TIME + 4, state.getHistory().get(1).getHeaderTimestamp());
+        state = PreviousIterationState.of(buildMessage(TimestampUtils.MIN_POSIX_TIME + 6)).withHistory(state, 4);
+        assertEquals(3, state.getHistory().size());
+        assertEquals(TimestampUtils.MIN_POSIX_TIME + 4, state.getHistory().get(2).getHeaderTimestamp());
+        try {
+            state.getHistory().get(3);
+            fail("Iterations older than the history shouldn't be returned");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    private GtfsRealtime.FeedMessage buildMessage(long timestamp, GtfsRealtime.FeedEntity... entities) {
+        GtfsRealtime.FeedMessage.Builder message = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion("1.0")
+                        .setTimestamp(timestamp));
+        for (GtfsRealtime.FeedEntity entity : entities) {
+            message.addEntity(entity);
+        }
+        return message.build();
+    }
+
+    private GtfsRealtime.FeedEntity vehicle(String entityId, String vehicleId, long timestamp) {
+        GtfsRealtime.VehiclePosition.Builder vehicle = GtfsRealtime.VehiclePosition.newBuilder()
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(vehicleId));
+        if (timestamp != 0) {
+            vehicle.setTimestamp(timestamp);
+        }
+        return GtfsRealtime.FeedEntity.newBuilder()
+                .setId(entityId)
+                .setVehicle(vehicle)
+                .build();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RulePlan;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.*;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ordering validators by cost and running independent validators in parallel
+ */
+public class RulePlanTest {
+
+    private final FeedEntityValidator mStopValidator = new StopValidator();
+    private final FeedEntityValidator mTimestampValidator = new TimestampValidator();
+    private final FeedEntityValidator mVehicleValidator = new VehicleValidator();
+    private final FeedEntityValidator mTripDescriptorValidator = new TripDescriptorValidator();
+    private final List<FeedEntityValidator> mRules = Arrays.asList(mStopValidator, mTimestampValidator, mVehicleValidator, mTripDescriptorValidator);
+
+    @Test
+    public void testExecutionOrder() {
+        RulePlan plan = new RulePlan(mRules);
+        assertEquals(mRules, plan.getRules());
+        // Most expensive first, keeping the provided order for validators with the same cost
+        assertEquals(Arrays.asList(mVehicleValidator, mTimestampValidator, mTripDescriptorValidator, mStopValidator), plan.getExecutionOrder());
+
+        // Only entity-local validators that don't read the previous or combined feed can run in parallel
+        assertTrue(plan.isIndependent(mStopValidator));
+        assertTrue(plan.isIndependent(mTripDescriptorValidator));
+        assertFalse(plan.isIndependent(mTimestampValidator));
+        assertFalse(plan.isIndependent(mVehicleValidator));
+
+        assertFalse(plan.usesCombinedFeed());
+        assertTrue(new RulePlan(Arrays.asList(mStopValidator, new CrossFeedDescriptorValidator())).usesCombinedFeed());
+    }
+
+    @Test
+    public void testRunOnCallingThread() {
+        RulePlan plan = new RulePlan(mRules);
+        Map<FeedEntityValidator, Thread> threads = new ConcurrentHashMap<>();
+        List<FeedEntityValidator> started = Collections.synchronizedList(new ArrayList<>());
+        List<List<ErrorListHelperModel>> results = plan.run(rule -> {
+            started.add(rule);
+            threads.put(rule, Thread.currentThread());
+            return resultOf(rule);
+        }, null);
+        assertResults(results);
+        assertEquals(plan.getExecutionOrder(), started);
+        for (Thread thread : threads.values()) {
+            assertSame(Thread.currentThread(), thread);
+        }
+
+        // The calling thread runs independent validators that the executor never starts
+        threads.clear();
+        Executor neverRuns = task -> {
+        };
+        assertResults(plan.run(rule -> {
+            threads.put(rule, Thread.currentThread());
+            return resultOf(rule);
+        }, neverRuns));
+        assertEquals(mRules.size(), threads.size());
+        for (Thread thread : threads.values()) {
+            assertSame(Thread.currentThread(), thread);
+        }
+
+        // Exceptions thrown by validators are passed to the caller
+        try {
+            plan.run(rule -> {
+                if (rule == mStopValidator) {
+                    throw new IllegalStateException("Test");
+                }
+                return resultOf(rule);
+            }, neverRuns);
+            fail("Exception should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Test", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRunInParallel() {
+        RulePlan plan = new RulePlan(mRules);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Map<FeedEntityValidator, Thread> threads = new ConcurrentHashMap<>();
+                List<List<ErrorListHelperModel>> results = plan.run(rule -> {
+                    threads.put(rule, Thread.currentThread());
+                    return resultOf(rule);
+                }, executor);
+                // Results are in the provided order no matter which thread ran each validator
+                assertResults(results);
+                assertEquals(mRules.size(), threads.size());
+                assertSame(Thread.currentThread(), threads.get(mTimestampValidator));
+                assertSame(Thread.currentThread(), threads.get(mVehicleValidator));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns a result that identifies the validator that produced it
+     */
+    private static List<ErrorListHelperModel> resultOf(FeedEntityValidator rule) {
+        return new RuleResult(rule);
+    }
+
+    private void assertResults(List<List<ErrorListHelperModel>> results) {
+        assertEquals(mRules.size(), results.size());
+        for (int i = 0; i < mRules.size(); i++) {
+            assertSame(mRules.get(i), ((RuleResult) results.get(i)).mRule);
+        }
+    }
+
+    /**
+     * An empty result that remembers the validator that produced it
+     */
+    private static class RuleResult extends ArrayList<ErrorListHelperModel> {
+        private final FeedEntityValidator mRule;
+
+        RuleResult(FeedEntityValidator rule) {
+            mRule = rule;
+        }
+    }
+}
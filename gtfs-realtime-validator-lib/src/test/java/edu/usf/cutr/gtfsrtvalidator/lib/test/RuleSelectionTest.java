@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MessageLogModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleDescriptor;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.*;
+import org.junit.Test;
+import org.onebusaway.gtfs.impl.GtfsDaoImpl;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+import org.onebusaway.gtfs.services.GtfsMutableDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.E001;
+import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.W009;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for selecting rules using profiles and enabled/disabled rules
+ */
+public class RuleSelectionTest {
+
+    @Test
+    public void testDefaultSelection() {
+        List<FeedEntityValidator> validators = new RuleSelection().createValidators();
+        assertEquals(RuleSelection.getValidatorNames().size(), validators.size());
+        // Validators should be in execution order
+        assertTrue(validators.get(0) instanceof CrossFeedDescriptorValidator);
+        assertTrue(validators.get(validators.size() - 1) instanceof HeaderValidator);
+        assertEquals(MetadataFacet.all(), RuleSelection.getRequiredMetadata(validators));
+    }
+
+    @Test
+    public void testFreshnessProfile() {
+        List<FeedEntityValidator> validators = new RuleSelection()
+                .setProfile(RuleSelection.PROFILE_FRESHNESS)
+                .createValidators();
+        assertEquals(3, validators.size());
+        assertTrue(validators.get(0) instanceof CrossFeedDescriptorValidator);
+        assertTrue(validators.get(1) instanceof TimestampValidator);
+        assertTrue(validators.get(2) instanceof HeaderValidator);
+        // None of the freshness rules need shapes, stop_times, or frequencies
+        assertTrue(RuleSelection.getRequiredMetadata(validators).isEmpty());
+    }
+
+    @Test
+    public void testEnableDisable() {
+        List<FeedEntityValidator> validators = new RuleSelection()
+                .setProfile(RuleSelection.PROFILE_FRESHNESS)
+                .enable(Arrays.asList("VehicleValidator", "StopValidator"))
+                .disable(RuleSelection.parseList("HeaderValidator, W009"))
+                .createValidators();
+        assertEquals(4, validators.size());
+        assertTrue(validators.get(0) instanceof CrossFeedDescriptorValidator);
+        assertTrue(validators.get(1) instanceof VehicleValidator);
+        assertTrue(validators.get(2) instanceof TimestampValidator);
+        assertTrue(validators.get(3) instanceof StopValidator);
+        assertEquals(EnumSet.of(MetadataFacet.SHAPES), RuleSelection.getRequiredMetadata(validators));
+    }
+
+    @Test
+    public void testFilterResults() {
+        RuleSelection ruleSelection = new RuleSelection().disable(Collections.singletonList("W009"));
+        assertFalse(ruleSelection.isRuleEnabled("W009"));
+        assertTrue(ruleSelection.isRuleEnabled("E001"));
+
+        List<ErrorListHelperModel> results = new ArrayList<>();
+        results.add(new ErrorListHelperModel(new MessageLogModel(E001), Collections.singletonList(new OccurrenceModel("E001"))));
+        results.add(new ErrorListHelperModel(new MessageLogModel(W009), Collections.singletonList(new OccurrenceModel("W009"))));
+        ruleSelection.filterResults(results);
+        assertEquals(1, results.size());
+        assertEquals(E001, results.get(0).getErrorMessage().getValidationRule());
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("profile.positions", "VehicleValidator, TimestampValidator");
+        properties.setProperty(RuleSelection.KEY_PROFILE, "positions");
+        properties.setProperty(RuleSelection.KEY_DISABLE, "TimestampValidator");
+        RuleSelection ruleSelection = RuleSelection.fromProperties(properties);
+        assertEquals("positions", ruleSelection.getProfile());
+        List<FeedEntityValidator> validators = ruleSelection.createValidators();
+        assertEquals(1, validators.size());
+        assertTrue(validators.get(0) instanceof VehicleValidator);
+    }
+
+    @Test
+    public void testDescriptors() {
+        // Built-in validators are registered through META-INF/services
+        assertEquals(10, RuleSelection.getValidatorNames().size());
+        for (String name : RuleSelection.getValidatorNames()) {
+            RuleDescriptor descriptor = RuleSelection.getDescriptor(name);
+            assertEquals(name, descriptor.getName());
+            assertFalse(descriptor.getRules().isEmpty());
+        }
+
+        RuleDescriptor stopValidator = RuleSelection.getDescriptor("StopValidator");
+        assertEquals(new HashSet<>(Arrays.asList("E011", "E015")), stopValidator.getRuleIds());
+        assertTrue(stopValidator.isEntityLocal());
+        assertFalse(stopValidator.usesPreviousFeedMessage());
+        assertEquals(RuleDescriptor.Cost.LOW, stopValidator.getCost());
+        assertEquals(new StopValidator().getRequiredMetadata(), stopValidator.getRequiredMetadata());
+
+        assertTrue(RuleSelection.getDescriptor("TimestampValidator").usesPreviousFeedMessage());
+        assertTrue(RuleSelection.getDescriptor("CrossFeedDescriptorValidator").usesCombinedFeed());
+        assertEquals(RuleDescriptor.Cost.HIGH, RuleSelection.getDescriptor("VehicleValidator").getCost());
+
+        // A validator is skipped if all of its rules are disabled
+        List<FeedEntityValidator> validators = new RuleSelection()
+                .disable(Arrays.asList("E011", "E015"))
+                .createValidators();
+        assertEquals(RuleSelection.getValidatorNames().size() - 1, validators.size());
+        for (FeedEntityValidator validator : validators) {
+            assertFalse(validator instanceof StopValidator);
+        }
+        // ...but not if only some of them are disabled
+        validators = new RuleSelection()
+                .disable(Collections.singletonList("E011"))
+                .createValidators();
+        assertEquals(RuleSelection.getValidatorNames().size(), validators.size());
+    }
+
+    /**
+     * The previous feed message isn't kept, so rules that use it must read the PreviousIterationState instead
+     */
+    @Test
+    public void testDefaultValidateWithCombinedFeed() {
+        GtfsRealtime.FeedMessage message = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0"))
+                .build();
+        PreviousIterationState previousState = PreviousIterationState.of(message);
+
+        // Validators that aren't entity-local are assumed to use the previous feed message - the default implementation
+        // can't pass it, so they are detected when they're loaded instead of failing in every iteration
+        FeedEntityValidator undeclared = new PluginValidator(null);
+        assertTrue(undeclared.getDescriptor().usesPreviousFeedMessage());
+        assertFalse(RuleSelection.readsPreviousIteration(undeclared));
+        assertTrue(undeclared.validateWithCombinedFeed(0, null, null, message, null, null).isEmpty());
+        assertTrue(undeclared.validateWithCombinedFeed(0, null, null, message, previousState, null).isEmpty());
+        assertNull(((PluginValidator) undeclared).mLastPreviousFeedMessage);
+
+        // Validators that declare they don't use it are run as before
+        FeedEntityValidator declared = new PluginValidator(false);
+        assertTrue(RuleSelection.readsPreviousIteration(declared));
+        assertTrue(declared.validateWithCombinedFeed(0, null, null, message, previousState, null).isEmpty());
+
+        // Built-in validators that use the previous iteration read it in validateWithCombinedFeed()
+        for (FeedEntityValidator validator : new RuleSelection().createValidators()) {
+            assertTrue(validator.getDescriptor().getName(), RuleSelection.readsPreviousIteration(validator));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownProfile() {
+        new RuleSelection().setProfile("doesNotExist");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownValidator() {
+        new RuleSelection().enable(Collections.singletonList("DoesNotExistValidator"));
+    }
+
+    /**
+     * GtfsMetadata should only build the facets that were requested
+     */
+    @Test
+    public void testMetadataFacets() throws IOException {
+        GtfsDaoImpl gtfsData = new GtfsDaoImpl();
+        GtfsReader reader = new GtfsReader();
+        reader.setInputLocation(new File("src/test/resources/testagency.zip"));
+        reader.setEntityStore(gtfsData);
+        reader.run();
+
+        GtfsMetadata noFacets = new GtfsMetadata("testagency.zip", TimeZone.getTimeZone("America/New_York"), gtfsData, MetadataFacet.none());
+        assertTrue(noFacets.getFacets().isEmpty());
+        assertFalse(noFacets.getTrips().isEmpty());
+        assertTrue(noFacets.getTripStopTimes().isEmpty());
+        assertTrue(noFacets.getExactTimesOneTrips().isEmpty());
+
+        GtfsMetadata allFacets = new GtfsMetadata("testagency.zip", TimeZone.getTimeZone("America/New_York"), gtfsData, MetadataFacet.all());
+        assertTrue(allFacets.hasFacets(MetadataFacet.all()));
+        assertFalse(allFacets.getTripStopTimes().isEmpty());
+        assertFalse(allFacets.getExactTimesOneTrips().isEmpty());
+
+        // Multi-stop trips are built from stop_times.txt, so they also require STOP_TIMES
+        GtfsMetadata multiStops = new GtfsMetadata("testagency.zip", TimeZone.getTimeZone("America/New_York"), gtfsData, EnumSet.of(MetadataFacet.MULTI_STOP_TRIPS));
+        assertTrue(multiStops.hasFacets(EnumSet.of(MetadataFacet.STOP_TIMES, MetadataFacet.MULTI_STOP_TRIPS)));
+    }
+
+    /**
+     * A validator from another jar that doesn't override validateWithCombinedFeed()
+     */
+    private static class PluginValidator implements FeedEntityValidator {
+        // Declared value of usesPreviousFeedMessage, or null to use the default descriptor
+        private final Boolean mUsesPreviousFeedMessage;
+        private GtfsRealtime.FeedMessage mLastPreviousFeedMessage;
+
+        PluginValidator(Boolean usesPreviousFeedMessage) {
+            mUsesPreviousFeedMessage = usesPreviousFeedMessage;
+        }
+
+        @Override
+        public List<ErrorListHelperModel> validate(long currentTimeMillis, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, GtfsRealtime.FeedMessage previousFeedMessage, GtfsRealtime.FeedMessage combinedFeedMessage) {
+            mLastPreviousFeedMessage = previousFeedMessage;
+            return new ArrayList<>();
+        }
+
+        @Override
+        public RuleDescriptor getDescriptor() {
+            RuleDescriptor.Builder builder = RuleDescriptor.newBuilder(this);
+            if (mUsesPreviousFeedMessage != null) {
+                builder.setUsesPreviousFeedMessage(mUsesPreviousFeedMessage);
+            }
+            return builder.build();
+        }
+    }
+}
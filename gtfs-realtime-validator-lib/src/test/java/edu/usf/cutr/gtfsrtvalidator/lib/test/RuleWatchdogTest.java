@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.HeaderValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.VehicleValidator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.W010;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for enforcing time budgets on validators
+ */
+public class RuleWatchdogTest {
+
+    private static final long BUDGET_MILLIS = 200;
+
+    @Test
+    public void testCooperativeTimeout() {
+        RuleWatchdog watchdog = new RuleWatchdog(BUDGET_MILLIS);
+        FeedEntityValidator rule = new VehicleValidator();
+
+        // A validator that checks its budget is stopped and W010 is returned instead of its results
+        AtomicInteger checks = new AtomicInteger();
+        List<ErrorListHelperModel> results = watchdog.validate(rule, () -> {
+            while (true) {
+                RuleWatchdog.checkBudget();
+                checks.incrementAndGet();
+            }
+        });
+        assertTimedOut(results, "VehicleValidator");
+        assertTrue(checks.get() > 0);
+
+        // Validators that finish within the budget return their results
+        List<ErrorListHelperModel> expected = new ArrayList<>();
+        assertSame(expected, watchdog.validate(rule, () -> expected));
+        assertFalse(watchdog.isDisabled("VehicleValidator"));
+
+        // Without a watchdog checkBudget() doesn't do anything
+        RuleWatchdog.checkBudget();
+    }
+
+    @Test
+    public void testWatchdogTimeout() {
+        RuleWatchdog watchdog = new RuleWatchdog(BUDGET_MILLIS, 2, TimeUnit.MINUTES.toMillis(1));
+        FeedEntityValidator rule = new HeaderValidator();
+
+        // A validator that is blocked is interrupted by the watchdog, and the interrupt is cleared afterwards
+        Thread caller = Thread.currentThread();
+        long startTimeNanos = System.nanoTime();
+        List<ErrorListHelperModel> results = watchdog.validate(rule, () -> {
+            assertSame(caller, Thread.currentThread());
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            RuleWatchdog.checkBudget();
+            return new ArrayList<>();
+        });
+        assertTimedOut(results, "HeaderValidator");
+        assertTrue(System.nanoTime() - startTimeNanos < TimeUnit.SECONDS.toNanos(10));
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertFalse(watchdog.isDisabled("HeaderValidator"));
+
+        // Finishing within the budget resets the count of timeouts in a row
+        assertTrue(watchdog.validate(rule, ArrayList::new).isEmpty());
+
+        // A validator that finishes after its budget without checking it still times out
+        results = watchdog.validate(rule, () -> {
+            spin(TimeUnit.MILLISECONDS.toNanos(BUDGET_MILLIS * 2));
+            return new ArrayList<>();
+        });
+        assertTimedOut(results, "HeaderValidator");
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertFalse(watchdog.isDisabled("HeaderValidator"));
+
+        // The second timeout in a row disables the validator, and it isn't run while it's disabled
+        results = watchdog.validate(rule, () -> {
+            while (true) {
+                RuleWatchdog.checkBudget();
+            }
+        });
+        assertTimedOut(results, "HeaderValidator");
+        assertTrue(watchdog.isDisabled("HeaderValidator"));
+        results = watchdog.validate(rule, () -> {
+            fail("Disabled validators shouldn't be run");
+            return null;
+        });
+        assertTimedOut(results, "HeaderValidator");
+
+        // Other validators are still run
+        assertFalse(watchdog.isDisabled("VehicleValidator"));
+        assertTrue(watchdog.validate(new VehicleValidator(), ArrayList::new).isEmpty());
+    }
+
+    @Test
+    public void testNoBudget() {
+        RuleWatchdog watchdog = new RuleWatchdog(RuleWatchdog.NO_BUDGET);
+        Thread caller = Thread.currentThread();
+        // Validators run on the calling thread
+        assertTrue(watchdog.validate(new HeaderValidator(), () -> {
+            assertSame(caller, Thread.currentThread());
+            return new ArrayList<>();
+        }).isEmpty());
+
+        // Validators are stopped without a timeout if the calling thread is interrupted by someone else
+        watchdog = new RuleWatchdog(BUDGET_MILLIS);
+        Thread.currentThread().interrupt();
+        try {
+            assertTrue(watchdog.validate(new HeaderValidator(), () -> {
+                RuleWatchdog.checkBudget();
+                fail("The validator should be stopped");
+                return null;
+            }).isEmpty());
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+
+        // Exceptions thrown by validators are passed to the caller
+        try {
+            watchdog.validate(new HeaderValidator(), () -> {
+                throw new IllegalStateException("Test");
+            });
+            fail("Exception should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Test", e.getMessage());
+        }
+    }
+
+    private void assertTimedOut(List<ErrorListHelperModel> results, String validatorName) {
+        assertEquals(1, results.size());
+        assertEquals(W010.getErrorId(), results.get(0).getErrorMessage().getValidationRule().getErrorId());
+        assertEquals(1, results.get(0).getOccurrenceList().size());
+        assertTrue(results.get(0).getOccurrenceList().get(0).getPrefix().startsWith(validatorName));
+    }
+
+    /**
+     * Busy-waits without checking the time budget or the interrupted flag, like a validator stuck in a loop
+     */
+    private static void spin(long durationNanos) {
+        long endNanos = System.nanoTime() + durationNanos;
+        while (System.nanoTime() < endNanos) {
+            // Nothing to do
+        }
+    }
+}
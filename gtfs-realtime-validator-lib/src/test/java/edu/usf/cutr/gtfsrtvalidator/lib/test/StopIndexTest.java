@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.StopIndex;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the spatial index of GTFS stops.txt locations
+ */
+public class StopIndexTest extends FeedMessageTest {
+
+    public StopIndexTest() throws IOException {
+    }
+
+    @Test
+    public void testDistance() {
+        assertEquals(0, StopIndex.distanceMeters(41, -73, 41, -73), 0.001);
+        // One degree of latitude is about 111 km
+        assertEquals(111195, StopIndex.distanceMeters(41, -73, 42, -73), 10);
+        // One degree of longitude at 41 degrees latitude is about 84 km
+        assertEquals(83920, StopIndex.distanceMeters(41, -73, 41, -72), 50);
+    }
+
+    @Test
+    public void testGtfsStops() {
+        StopIndex stopIndex = gtfsDataMetadata.getStopIndex();
+        assertEquals(gtfsData.getAllStops().size(), stopIndex.size());
+
+        // Stops J, L and M are all within a meter of each other, and stop I is the next closest
+        int[] nearest = stopIndex.findNearest(41, -73, 4);
+        assertEquals(4, nearest.length);
+        assertEquals("J", stopIndex.getStopId(nearest[0]));
+        assertEquals("L", stopIndex.getStopId(nearest[1]));
+        assertEquals("M", stopIndex.getStopId(nearest[2]));
+        assertEquals(41, stopIndex.getLatitude(nearest[0]), 0);
+        assertEquals(-73, stopIndex.getLongitude(nearest[0]), 0);
+
+        int[] withinRadius = stopIndex.findWithinRadius(41, -73, 1);
+        assertEquals(3, withinRadius.length);
+        assertEquals("J", stopIndex.getStopId(withinRadius[0]));
+        assertEquals(0, stopIndex.findWithinRadius(0, 0, 1000).length);
+
+        // A point far away from all stops still has nearest stops
+        assertEquals(1, stopIndex.findNearest(0, 0, 1).length);
+        // Asking for more stops than there are returns all stops
+        assertEquals(stopIndex.size(), stopIndex.findNearest(41, -73, Integer.MAX_VALUE).length);
+        assertEquals(0, stopIndex.findNearest(41, -73, 0).length);
+
+        // The STOP_INDEX facet isn't built
+        assertEquals(0, StopIndex.EMPTY.size());
+        assertEquals(0, StopIndex.EMPTY.findNearest(41, -73, 1).length);
+        assertEquals(0, StopIndex.EMPTY.findWithinRadius(41, -73, 1000).length);
+    }
+
+    /**
+     * Compares the results of the index to checking the distance to every stop
+     */
+    @Test
+    public void testRandomStops() {
+        Random random = new Random(0);
+        List<Stop> stops = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            // Dense stops in a city, plus a few stops far away
+            double spread = i % 100 == 0 ? 5 : 0.2;
+            stops.add(newStop("stop." + i, 28 + random.nextDouble() * spread, -82.5 + random.nextDouble() * spread));
+        }
+        StopIndex stopIndex = new StopIndex(stops);
+
+        for (int q = 0; q < 200; q++) {
+            double lat = 27.5 + random.nextDouble() * 6;
+            double lon = -83 + random.nextDouble() * 6;
+            assertSameAsAllStops(stops, stopIndex, random, lat, lon);
+        }
+    }
+
+    /**
+     * Stops on both sides of the antimeridian are close to each other (e.g., in Fiji)
+     */
+    @Test
+    public void testAntimeridian() {
+        Random random = new Random(0);
+        List<Stop> stops = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            double lon = 179 + random.nextDouble() * 2;
+            stops.add(newStop("stop." + i, -17 + random.nextDouble(), lon > 180 ? lon - 360 : lon));
+        }
+        // Stops far away on the other side of the world, so the first split is near longitude 0
+        for (int i = 0; i < 500; i++) {
+            stops.add(newStop("far." + i, -17 + random.nextDouble(), -1 + random.nextDouble() * 2));
+        }
+        stops.add(newStop("179.999", -16.5, 179.999));
+        stops.add(newStop("-179.999", -16.5, -179.999));
+        StopIndex stopIndex = new StopIndex(stops);
+
+        // The nearest stops to a point at -179.997 include the stop across the antimeridian
+        int[] nearest = stopIndex.findNearest(-16.5, -179.997, 2);
+        assertEquals("-179.999", stopIndex.getStopId(nearest[0]));
+        assertEquals("179.999", stopIndex.getStopId(nearest[1]));
+        assertEquals(213, stopIndex.distanceMeters(nearest[0], -16.5, -179.997), 1);
+        assertEquals(426, stopIndex.distanceMeters(nearest[1], -16.5, -179.997), 1);
+        int[] withinRadius = stopIndex.findWithinRadius(-16.5, 179.9995, 200);
+        assertEquals(2, withinRadius.length);
+        assertEquals("179.999", stopIndex.getStopId(withinRadius[0]));
+        assertEquals("-179.999", stopIndex.getStopId(withinRadius[1]));
+
+        for (int q = 0; q < 200; q++) {
+            double lat = -17 + random.nextDouble();
+            double lon = 179 + random.nextDouble() * 2;
+            assertSameAsAllStops(stops, stopIndex, random, lat, lon > 180 ? lon - 360 : lon);
+        }
+    }
+
+    /**
+     * Asserts that the index finds the same nearest stops and stops within a random radius of a point as checking the
+     * distance to every stop
+     */
+    private void assertSameAsAllStops(List<Stop> stops, StopIndex stopIndex, Random random, double lat, double lon) {
+        double[] distances = new double[stops.size()];
+        for (int i = 0; i < stops.size(); i++) {
+            distances[i] = StopIndex.distanceMeters(lat, lon, stops.get(i).getLat(), stops.get(i).getLon());
+        }
+        double[] sorted = distances.clone();
+        Arrays.sort(sorted);
+
+        int k = 1 + random.nextInt(10);
+        int[] nearest = stopIndex.findNearest(lat, lon, k);
+        assertEquals(k, nearest.length);
+        for (int i = 0; i < k; i++) {
+            assertEquals(sorted[i], stopIndex.distanceMeters(nearest[i], lat, lon), 0.001);
+        }
+
+        double radius = random.nextDouble() * 5000;
+        int expectedCount = 0;
+        for (double distance : distances) {
+            if (distance <= radius) {
+                expectedCount++;
+            }
+        }
+        int[] withinRadius = stopIndex.findWithinRadius(lat, lon, radius);
+        assertEquals(expectedCount, withinRadius.length);
+        for (int i = 0; i < withinRadius.length; i++) {
+            assertEquals(sorted[i], stopIndex.distanceMeters(withinRadius[i], lat, lon), 0.001);
+        }
+    }
+
+    private Stop newStop(String stopId, double lat, double lon) {
+        Stop stop = new Stop();
+        stop.setId(new AgencyAndId("agency", stopId));
+        stop.setLat(lat);
+        stop.setLon(lon);
+        return stop;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.StreamingValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.StopTimeUpdateValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.StopValidator;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.TripDescriptorValidator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reading GTFS-realtime feeds one entity at a time and validating them while they are read
+ */
+public class StreamingValidatorTest extends FeedMessageTest {
+
+    public StreamingValidatorTest() throws IOException {
+    }
+
+    @Test
+    public void testFeedMessageReader() throws IOException {
+        GtfsRealtime.FeedMessage message = buildMessage(
+                tripUpdate("1", "1", "A", "B"),
+                tripUpdate("2", "BAD_TRIP", "A"),
+                tripUpdate("3", "15.1", "A", "B", "C"));
+        byte[] bytes = message.toByteArray();
+
+        FeedMessageReader reader = new FeedMessageReader(new ByteArrayInputStream(bytes));
+        assertEquals(message.getHeader(), reader.readHeader());
+        assertEquals(message.getEntity(0), reader.nextEntity());
+        assertEquals(1, reader.getEntityCount());
+        // The rest of the entities are materialized with the header
+        assertEquals(message, reader.readFeedMessage());
+        assertEquals(3, reader.getEntityCount());
+        assertEquals(bytes.length, reader.getBytesRead());
+        assertNull(reader.nextEntity());
+
+        // Entities larger than the limit are rejected
+        int entitySize = message.getEntity(2).getSerializedSize();
+        reader = new FeedMessageReader(new ByteArrayInputStream(bytes), entitySize - 1, FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES);
+        reader.nextEntity();
+        reader.nextEntity();
+        try {
+            reader.nextEntity();
+            fail("Entity larger than the limit should be rejected");
+        } catch (InvalidProtocolBufferException e) {
+            // Expected
+        }
+
+        // Messages larger than the limit are rejected
+        reader = new FeedMessageReader(new ByteArrayInputStream(bytes), FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES, bytes.length - 1);
+        try {
+            reader.readFeedMessage();
+            fail("Message larger than the limit should be rejected");
+        } catch (InvalidProtocolBufferException e) {
+            // Expected
+        }
+
+        // Entities written before the header can't be streamed
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        output.writeMessage(GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER, message.getEntity(0));
+        output.writeMessage(GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER, message.getHeader());
+        output.flush();
+        reader = new FeedMessageReader(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            reader.readHeader();
+            fail("Entities before the header should be rejected");
+        } catch (InvalidProtocolBufferException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testStreamingMatchesFullValidation() throws IOException {
+        GtfsRealtime.FeedMessage message = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("2", "BAD_TRIP", "A", "DUMMY2"),
+                tripUpdate("3", "1", "A", "B"));
+
+        // All rules - the feed message is materialized for rules that aren't entity-local
+        List<FeedEntityValidator> validators = new RuleSelection().createValidators();
+        StreamingValidator streamingValidator = new StreamingValidator(validators);
+        assertTrue(streamingValidator.isFeedMessageMaterialized());
+        assertSameResults(validators, streamingValidator, message);
+        assertEquals(message, streamingValidator.getFeedMessage());
+
+        // Only entity-local rules - one entity is held in memory at a time
+        validators = Arrays.asList(new StopValidator(), new StopTimeUpdateValidator(), new TripDescriptorValidator());
+        streamingValidator = new StreamingValidator(validators);
+        assertFalse(streamingValidator.isFeedMessageMaterialized());
+        assertSameResults(validators, streamingValidator, message);
+        assertNull(streamingValidator.getFeedMessage());
+    }
+
+    @Test
+    public void testW009ForEachTrip() throws IOException {
+        // Neither trip has a schedule_relationship for its stop_time_updates, so W009 is flagged once for each trip
+        // whether the trips are validated together or one at a time
+        GtfsRealtime.FeedMessage message = buildMessage(
+                tripUpdate("1", "1", "DUMMY1", "A"),
+                tripUpdate("2", "1", "A", "B"));
+        List<FeedEntityValidator> validators = Arrays.asList(new TripDescriptorValidator());
+        assertSameResults(validators, new StreamingValidator(validators), message);
+    }
+
+    /**
+     * Asserts that the results from the StreamingValidator are the same as validating the entire feed message for each rule
+     */
+    private void assertSameResults(List<FeedEntityValidator> validators, StreamingValidator streamingValidator, GtfsRealtime.FeedMessage message) throws IOException {
+        List<ErrorListHelperModel> expected = new ArrayList<>();
+        for (FeedEntityValidator validator : validators) {
+            expected.addAll(validator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, message, null, null));
+        }
+        FeedMessageReader reader = new FeedMessageReader(new ByteArrayInputStream(message.toByteArray()));
+        List<ErrorListHelperModel> actual = streamingValidator.validate(reader, TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, null, null);
+        assertEquals(toStrings(expected), toStrings(actual));
+    }
+
+    private List<String> toStrings(List<ErrorListHelperModel> errorLists) {
+        List<String> strings = new ArrayList<>();
+        for (ErrorListHelperModel errorList : errorLists) {
+            for (OccurrenceModel occurrence : errorList.getOccurrenceList()) {
+                strings.add(errorList.getErrorMessage().getValidationRule().getErrorId() + " " + occurrence.getPrefix());
+            }
+        }
+        return strings;
+    }
+
+    private GtfsRealtime.FeedMessage buildMessage(GtfsRealtime.FeedEntity... entities) {
+        GtfsRealtime.FeedHeader.Builder header = GtfsRealtime.FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion("1.0")
+                .setTimestamp(TimestampUtils.MIN_POSIX_TIME);
+        return GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(header)
+                .addAllEntity(Arrays.asList(entities))
+                .build();
+    }
+
+    private GtfsRealtime.FeedEntity tripUpdate(String entityId, String tripId, String... stopIds) {
+        GtfsRealtime.TripUpdate.Builder tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId));
+        int stopSequence = 1;
+        for (String stopId : stopIds) {
+            tripUpdate.addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopId(stopId)
+                    .setStopSequence(stopSequence++)
+                    .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(TimestampUtils.MIN_POSIX_TIME)));
+        }
+        return GtfsRealtime.FeedEntity.newBuilder()
+                .setId(entityId)
+                .setTripUpdate(tripUpdate)
+                .build();
+    }
+}
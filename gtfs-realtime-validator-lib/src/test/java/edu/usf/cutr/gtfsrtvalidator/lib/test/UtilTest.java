@@ -23,6 +23,7 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.util.TestUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.SortUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules;
@@ -86,6 +87,40 @@ public class UtilTest {
         TestUtils.assertResults(expected, results);
     }
 
+    /**
+     * Make sure RuleUtils.limitOccurrences() keeps only the first N occurrences while recording the total
+     */
+    @Test
+    public void testLimitOccurrences() {
+        List<OccurrenceModel> errorListE001 = new ArrayList<>();
+        List<OccurrenceModel> errorListE002 = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            errorListE001.add(new OccurrenceModel("E001 " + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            errorListE002.add(new OccurrenceModel("E002 " + i));
+        }
+        List<ErrorListHelperModel> results = new ArrayList<>();
+        results.add(new ErrorListHelperModel(new MessageLogModel(E001), errorListE001));
+        results.add(new ErrorListHelperModel(new MessageLogModel(E002), errorListE002));
+
+        // No limit - all occurrences are kept
+        RuleUtils.limitOccurrences(results, RuleUtils.NO_OCCURRENCE_LIMIT);
+        assertEquals(10, results.get(0).getOccurrenceList().size());
+        assertEquals(10, results.get(0).getErrorMessage().getTotalOccurrences());
+        assertEquals(3, results.get(1).getOccurrenceList().size());
+        assertEquals(3, results.get(1).getErrorMessage().getTotalOccurrences());
+
+        // Limit of 5 - first 5 occurrences of E001 are kept, all E002 occurrences are kept
+        RuleUtils.limitOccurrences(results, 5);
+        assertEquals(5, results.get(0).getOccurrenceList().size());
+        assertEquals("E001 0", results.get(0).getOccurrenceList().get(0).getPrefix());
+        assertEquals("E001 4", results.get(0).getOccurrenceList().get(4).getPrefix());
+        assertEquals(10, results.get(0).getErrorMessage().getTotalOccurrences());
+        assertEquals(3, results.get(1).getOccurrenceList().size());
+        assertEquals(3, results.get(1).getErrorMessage().getTotalOccurrences());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testAssertResultsThrowExceptionNullExpected() {
         // Make sure we throw an exception if the expected map is null
@@ -277,6 +312,33 @@ public class UtilTest {
 
     }
 
+    @Test
+    public void testClockToSecondsAfterMidnight() {
+        assertEquals(59, TimestampUtils.clockToSecondsAfterMidnight("00:00:59"));
+        assertEquals(21901, TimestampUtils.clockToSecondsAfterMidnight("06:05:01"));
+        assertEquals(86399, TimestampUtils.clockToSecondsAfterMidnight("23:59:59"));
+        // Service that continues into the next service day
+        assertEquals(90000, TimestampUtils.clockToSecondsAfterMidnight("25:00:00"));
+        assertEquals(360000, TimestampUtils.clockToSecondsAfterMidnight("100:00:00"));
+
+        // Round trip with secondsAfterMidnightToClock()
+        for (int time = 0; time < 200000; time += 997) {
+            assertEquals(time, TimestampUtils.clockToSecondsAfterMidnight(TimestampUtils.secondsAfterMidnightToClock(time)));
+        }
+
+        // Text that secondsAfterMidnightToClock() would never produce
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight(null));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight(""));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("6:00:00"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("06:00"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("06:60:00"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("06:00:60"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("06-00-00"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("0a:00:00"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("006:00:00"));
+        assertEquals(-1, TimestampUtils.clockToSecondsAfterMidnight("123456:00:00"));
+    }
+
     @Test
     public void testPosixToClock() {
         int time = 1493383886;  // POSIX time
@@ -844,6 +906,6 @@ public class UtilTest {
     @Test
     public void testGetAllRules() {
         List<ValidationRule> rules = ValidationRules.getRules();
-        assertEquals(61, rules.size());
+        assertEquals(62, rules.size());
     }
 }
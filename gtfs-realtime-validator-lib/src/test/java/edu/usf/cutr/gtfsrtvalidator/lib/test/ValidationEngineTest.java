@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationEngine;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationResult;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for validating GTFS-realtime messages in memory with a shared ValidationEngine
+ */
+public class ValidationEngineTest extends FeedMessageTest {
+
+    public ValidationEngineTest() throws IOException {
+    }
+
+    @Test
+    public void testEngineMatchesRules() throws IOException {
+        ValidationEngine engine = new ValidationEngine.Builder(gtfsData).build();
+        GtfsRealtime.FeedMessage previous = buildMessage(TimestampUtils.MIN_POSIX_TIME, tripUpdate("1", "1.1"));
+        GtfsRealtime.FeedMessage current = buildMessage(TimestampUtils.MIN_POSIX_TIME, tripUpdate("1", "1.1"), tripUpdate("2", "BAD_TRIP"));
+
+        ValidationResult previousResult = engine.validate(previous.toByteArray(), null, TimestampUtils.MIN_POSIX_TIME);
+        assertSame(engine.getGtfsData(), gtfsData);
+        assertEquals(previous.getHeader().getTimestamp(), previousResult.getIterationState().getHeaderTimestamp());
+        assertTrue(previousResult.getIterationState().isSameContent(previous));
+
+        List<String> expected = validateRules(engine, current, previous);
+        ValidationResult result = engine.validate(current.toByteArray(), previousResult, TimestampUtils.MIN_POSIX_TIME);
+        assertEquals(expected, toStrings(result.getErrorLists()));
+        // The history of the feed is carried from the previous result
+        assertEquals(2, result.getIterationState().getHistory().size());
+        assertEquals(1, result.getIterationState().getHistory().countConsecutive("2"));
+
+        // Heap and direct buffers give the same results, and the position of the buffer isn't changed
+        byte[] bytes = current.toByteArray();
+        ByteBuffer heapBuffer = ByteBuffer.allocate(bytes.length + 2);
+        heapBuffer.put(new byte[]{1, 2}).put(bytes).position(2);
+        assertEquals(expected, toStrings(engine.validate(heapBuffer, previousResult, TimestampUtils.MIN_POSIX_TIME).getErrorLists()));
+        assertEquals(2, heapBuffer.position());
+
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(bytes.length);
+        directBuffer.put(bytes).flip();
+        assertEquals(expected, toStrings(engine.validate(directBuffer, previousResult, TimestampUtils.MIN_POSIX_TIME).getErrorLists()));
+        assertEquals(0, directBuffer.position());
+    }
+
+    @Test
+    public void testConcurrentValidation() throws Exception {
+        final ValidationEngine engine = new ValidationEngine.Builder(gtfsData).build();
+        final List<GtfsRealtime.FeedMessage> messages = new ArrayList<>();
+        messages.add(buildMessage(TimestampUtils.MIN_POSIX_TIME, tripUpdate("1", "1.1")));
+        messages.add(buildMessage(TimestampUtils.MIN_POSIX_TIME + 30, tripUpdate("1", "1.1"), tripUpdate("2", "BAD_TRIP")));
+        messages.add(buildMessage(TimestampUtils.MIN_POSIX_TIME + 60, tripUpdate("2", "15.1"), tripUpdate("3", "1.2")));
+
+        // Results when each feed is validated alone
+        List<List<String>> expected = new ArrayList<>();
+        ValidationResult previous = null;
+        for (GtfsRealtime.FeedMessage message : messages) {
+            previous = engine.validate(message.toByteArray(), previous, TimestampUtils.MIN_POSIX_TIME + 60);
+            expected.add(toStrings(previous.getErrorLists()));
+        }
+
+        // Validate the same feed from several threads at once, each thread with its own previous state
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<List<String>>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    List<List<String>> actual = new ArrayList<>();
+                    ValidationResult threadPrevious = null;
+                    for (GtfsRealtime.FeedMessage message : messages) {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(message.getSerializedSize());
+                        buffer.put(message.toByteArray()).flip();
+                        threadPrevious = engine.validate(buffer, threadPrevious, TimestampUtils.MIN_POSIX_TIME + 60);
+                        actual.add(toStrings(threadPrevious.getErrorLists()));
+                    }
+                    return actual;
+                }));
+            }
+            for (Future<List<List<String>>> future : futures) {
+                assertEquals(expected, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParallelRules() throws IOException {
+        ValidationEngine engine = new ValidationEngine.Builder(gtfsData).build();
+        GtfsRealtime.FeedMessage previous = buildMessage(TimestampUtils.MIN_POSIX_TIME, tripUpdate("1", "1.1"));
+        GtfsRealtime.FeedMessage current = buildMessage(TimestampUtils.MIN_POSIX_TIME + 30, tripUpdate("1", "1.1"), tripUpdate("2", "BAD_TRIP"));
+        ValidationResult previousResult = engine.validate(previous.toByteArray(), null, TimestampUtils.MIN_POSIX_TIME + 30);
+        List<String> expected = toStrings(engine.validate(current.toByteArray(), previousResult, TimestampUtils.MIN_POSIX_TIME + 30).getErrorLists());
+
+        // Running entity-local rules on an executor gives the same results in the same order
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ValidationEngine parallelEngine = new ValidationEngine.Builder(gtfsData).setExecutor(executor).build();
+            for (int i = 0; i < 10; i++) {
+                ValidationResult result = parallelEngine.validate(current.toByteArray(), previousResult, TimestampUtils.MIN_POSIX_TIME + 30);
+                assertEquals(expected, toStrings(result.getErrorLists()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the results of running each rule of the engine directly on the provided message
+     */
+    private List<String> validateRules(ValidationEngine engine, GtfsRealtime.FeedMessage message, GtfsRealtime.FeedMessage previous) {
+        List<ErrorListHelperModel> errorLists = new ArrayList<>();
+        for (FeedEntityValidator rule : engine.getValidationRules()) {
+            errorLists.addAll(rule.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, engine.getGtfsMetadata(), message, previous, null));
+        }
+        return toStrings(errorLists);
+    }
+
+    private List<String> toStrings(List<ErrorListHelperModel> errorLists) {
+        List<String> strings = new ArrayList<>();
+        for (ErrorListHelperModel errorList : errorLists) {
+            for (OccurrenceModel occurrence : errorList.getOccurrenceList()) {
+                strings.add(errorList.getErrorMessage().getValidationRule().getErrorId() + " " + occurrence.getPrefix());
+            }
+        }
+        return strings;
+    }
+
+    private GtfsRealtime.FeedMessage buildMessage(long timestamp, GtfsRealtime.FeedEntity... entities) {
+        GtfsRealtime.FeedMessage.Builder message = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion("1.0")
+                        .setTimestamp(timestamp));
+        for (GtfsRealtime.FeedEntity entity : entities) {
+            message.addEntity(entity);
+        }
+        return message.build();
+    }
+
+    private GtfsRealtime.FeedEntity tripUpdate(String entityId, String tripId) {
+        return GtfsRealtime.FeedEntity.newBuilder()
+                .setId(entityId)
+                .setTripUpdate(GtfsRealtime.TripUpdate.newBuilder()
+                        .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId))
+                        .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                                .setStopSequence(1)
+                                .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(TimestampUtils.MIN_POSIX_TIME))))
+                .build();
+    }
+}
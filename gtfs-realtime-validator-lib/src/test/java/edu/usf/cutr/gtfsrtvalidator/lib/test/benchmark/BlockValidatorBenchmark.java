@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test.benchmark;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.BlockValidator;
+import org.onebusaway.gtfs.impl.GtfsDaoImpl;
+import org.onebusaway.gtfs.model.*;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of BlockValidator (E007, E008 and E014) per trip_update as the blocks in the GTFS data get longer.
+ * Each run uses GTFS data with the same number of trips, split into blocks of a different length, and a GTFS-realtime
+ * message with the same number of trip_updates, so the time per trip_update should stay the same for every block length.
+ * This isn't run as part of the unit tests - run it from the gtfs-realtime-validator-lib directory with:
+ * <p>
+ * java -cp target/classes:target/test-classes:[dependencies] edu.usf.cutr.gtfsrtvalidator.lib.test.benchmark.BlockValidatorBenchmark [trips] [trip_updates] [seconds]
+ * <p>
+ * Defaults are 100,000 trips, 20,000 trip_updates, and 5 seconds for each block length.
+ */
+public class BlockValidatorBenchmark {
+
+    private static final int STOPS_PER_TRIP = 10;
+    private static final int[] TRIPS_PER_BLOCK = {1, 10, 100, 1000, 10000};
+
+    public static void main(String[] args) {
+        int trips = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int tripUpdates = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        for (int tripsPerBlock : TRIPS_PER_BLOCK) {
+            GtfsDaoImpl gtfsData = buildGtfs(trips, tripsPerBlock);
+            GtfsMetadata gtfsMetadata = new GtfsMetadata("blocks-" + tripsPerBlock, TimeZone.getTimeZone("America/New_York"),
+                    gtfsData, EnumSet.of(MetadataFacet.BLOCKS));
+            GtfsRealtime.FeedMessage feedMessage = buildFeed(trips, tripsPerBlock, tripUpdates);
+            BlockValidator validator = new BlockValidator();
+
+            // Warm up the JIT before measuring
+            run(validator, gtfsData, gtfsMetadata, feedMessage, TimeUnit.SECONDS.toNanos(1));
+            long startTimeNanos = System.nanoTime();
+            long iterations = run(validator, gtfsData, gtfsMetadata, feedMessage, TimeUnit.SECONDS.toNanos(seconds));
+            double nanosPerEntity = (double) (System.nanoTime() - startTimeNanos) / (iterations * feedMessage.getEntityCount());
+
+            System.out.println(String.format("%d trips per block (%d blocks): %.1f ns per trip_update",
+                    tripsPerBlock, gtfsMetadata.getBlockIndex().getBlockIdCount(), nanosPerEntity));
+        }
+    }
+
+    private static long run(BlockValidator validator, GtfsDaoImpl gtfsData, GtfsMetadata gtfsMetadata, GtfsRealtime.FeedMessage feedMessage, long durationNanos) {
+        long endTimeNanos = System.nanoTime() + durationNanos;
+        long count = 0;
+        while (System.nanoTime() < endTimeNanos) {
+            validator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsMetadata, feedMessage, null, null);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Builds GTFS data with the provided number of trips, where consecutive trip_ids are in the same block and each
+     * trip starts where the previous trip in the block ended (so every block has repeated stop_ids)
+     */
+    private static GtfsDaoImpl buildGtfs(int trips, int tripsPerBlock) {
+        GtfsDaoImpl gtfsData = new GtfsDaoImpl();
+        Agency agency = new Agency();
+        agency.setId("agency");
+        agency.setName("Benchmark");
+        agency.setTimezone("America/New_York");
+        gtfsData.saveEntity(agency);
+
+        Route route = new Route();
+        route.setId(new AgencyAndId("agency", "route"));
+        route.setAgency(agency);
+        gtfsData.saveEntity(route);
+
+        Stop[] stops = new Stop[STOPS_PER_TRIP];
+        for (int i = 0; i < stops.length; i++) {
+            stops[i] = new Stop();
+            stops[i].setId(new AgencyAndId("agency", "stop." + i));
+            stops[i].setLat(28.0 + i * 0.001);
+            stops[i].setLon(-82.4);
+            gtfsData.saveEntity(stops[i]);
+        }
+
+        for (int t = 0; t < trips; t++) {
+            Trip trip = new Trip();
+            trip.setId(new AgencyAndId("agency", "trip." + t));
+            trip.setRoute(route);
+            trip.setServiceId(new AgencyAndId("agency", "service"));
+            trip.setBlockId("block." + (t / tripsPerBlock));
+            gtfsData.saveEntity(trip);
+
+            // Each trip in the block starts an hour after the previous one
+            int startTime = (t % tripsPerBlock) * 3600;
+            for (int s = 0; s < STOPS_PER_TRIP; s++) {
+                StopTime stopTime = new StopTime();
+                stopTime.setTrip(trip);
+                stopTime.setStop(stops[s]);
+                stopTime.setStopSequence(s);
+                stopTime.setArrivalTime(startTime + s * 300);
+                stopTime.setDepartureTime(startTime + s * 300);
+                gtfsData.saveEntity(stopTime);
+            }
+        }
+        return gtfsData;
+    }
+
+    /**
+     * Builds a feed with trip_updates for random trips, with the vehicle_id of the block, and some trip_updates without a trip_id
+     */
+    private static GtfsRealtime.FeedMessage buildFeed(int trips, int tripsPerBlock, int tripUpdates) {
+        Random random = new Random(0);
+        GtfsRealtime.FeedMessage.Builder feedMessage = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion("1.0")
+                        .setTimestamp(TimestampUtils.MIN_POSIX_TIME));
+        for (int i = 0; i < tripUpdates; i++) {
+            int t = random.nextInt(trips);
+            GtfsRealtime.TripDescriptor.Builder trip = GtfsRealtime.TripDescriptor.newBuilder();
+            if (i % 10 == 0) {
+                trip.setRouteId("route");
+            } else {
+                trip.setTripId("trip." + t);
+            }
+            feedMessage.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId(String.valueOf(i))
+                    .setTripUpdate(GtfsRealtime.TripUpdate.newBuilder()
+                            .setTrip(trip)
+                            .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("vehicle." + (t / tripsPerBlock)))
+                            .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                                    .setStopId("stop." + random.nextInt(STOPS_PER_TRIP)))));
+        }
+        return feedMessage.build();
+    }
+}
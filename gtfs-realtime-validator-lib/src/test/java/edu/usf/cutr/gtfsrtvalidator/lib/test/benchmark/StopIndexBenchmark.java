@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test.benchmark;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.StopIndex;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of StopIndex nearest-stop and radius queries for one iteration of a large feed, where every vehicle
+ * position is checked against the stops, compared to checking the distance to every stop.  Stops are spread over a
+ * metro area of about 1 x 1 degrees, with a fifth of them clustered downtown.
+ * This isn't run as part of the unit tests - run it from the gtfs-realtime-validator-lib directory with:
+ * <p>
+ * java -cp target/classes:target/test-classes:[dependencies] edu.usf.cutr.gtfsrtvalidator.lib.test.benchmark.StopIndexBenchmark [stops] [vehicles] [seconds]
+ * <p>
+ * Defaults are 100,000 stops, 10,000 vehicles, and 5 seconds for each query type.
+ */
+public class StopIndexBenchmark {
+
+    private static final int NEAREST_STOPS = 5;
+    private static final double RADIUS_METERS = 200;
+    // Vehicles checked by the brute force scan, which is too slow to run for every vehicle
+    private static final int BRUTE_FORCE_VEHICLES = 100;
+
+    public static void main(String[] args) {
+        int stopCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int vehicleCount = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(0);
+        List<Stop> stops = new ArrayList<>(stopCount);
+        for (int i = 0; i < stopCount; i++) {
+            Stop stop = new Stop();
+            stop.setId(new AgencyAndId("agency", "stop." + i));
+            stop.setLat(randomLatitude(random, i));
+            stop.setLon(randomLongitude(random, i));
+            stops.add(stop);
+        }
+        double[] vehicleLats = new double[vehicleCount];
+        double[] vehicleLons = new double[vehicleCount];
+        for (int i = 0; i < vehicleCount; i++) {
+            vehicleLats[i] = randomLatitude(random, i);
+            vehicleLons[i] = randomLongitude(random, i);
+        }
+
+        long buildStartTimeNanos = System.nanoTime();
+        StopIndex stopIndex = new StopIndex(stops);
+        System.out.println(String.format("Indexed %d stops in %d ms", stopIndex.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - buildStartTimeNanos)));
+
+        Query nearest = (lat, lon) -> stopIndex.findNearest(lat, lon, NEAREST_STOPS).length;
+        Query withinRadius = (lat, lon) -> stopIndex.findWithinRadius(lat, lon, RADIUS_METERS).length;
+        Query bruteForce = (lat, lon) -> {
+            int count = 0;
+            for (int i = 0; i < stopIndex.size(); i++) {
+                if (stopIndex.distanceMeters(i, lat, lon) <= RADIUS_METERS) {
+                    count++;
+                }
+            }
+            return count;
+        };
+
+        report(NEAREST_STOPS + " nearest stops", nearest, vehicleLats, vehicleLons, vehicleCount, seconds);
+        report("Stops within " + (int) RADIUS_METERS + " meters", withinRadius, vehicleLats, vehicleLons, vehicleCount, seconds);
+        report("Brute force stops within " + (int) RADIUS_METERS + " meters", bruteForce, vehicleLats, vehicleLons,
+                Math.min(BRUTE_FORCE_VEHICLES, vehicleCount), seconds);
+    }
+
+    /**
+     * A fifth of the points are downtown, and the rest are spread over the metro area
+     */
+    private static double randomLatitude(Random random, int i) {
+        return i % 5 == 0 ? 27.9 + random.nextDouble() * 0.1 : 27.5 + random.nextDouble();
+    }
+
+    private static double randomLongitude(Random random, int i) {
+        return i % 5 == 0 ? -82.5 + random.nextDouble() * 0.1 : -82.9 + random.nextDouble();
+    }
+
+    private static void report(String name, Query query, double[] lats, double[] lons, int vehicleCount, int seconds) {
+        // Warm up the JIT before measuring
+        run(query, lats, lons, vehicleCount, TimeUnit.SECONDS.toNanos(1));
+        long startTimeNanos = System.nanoTime();
+        long iterations = run(query, lats, lons, vehicleCount, TimeUnit.SECONDS.toNanos(seconds));
+        long elapsedNanos = System.nanoTime() - startTimeNanos;
+        double nanosPerVehicle = (double) elapsedNanos / (iterations * vehicleCount);
+        System.out.println(String.format("%s: %.1f ns per vehicle (%.2f ms per iteration of %d vehicles)",
+                name, nanosPerVehicle, nanosPerVehicle * lats.length / 1_000_000, lats.length));
+    }
+
+    private static long run(Query query, double[] lats, double[] lons, int vehicleCount, long durationNanos) {
+        long endTimeNanos = System.nanoTime() + durationNanos;
+        long count = 0;
+        long found = 0;
+        while (System.nanoTime() < endTimeNanos) {
+            for (int i = 0; i < vehicleCount; i++) {
+                found += query.count(lats[i], lons[i]);
+            }
+            count++;
+        }
+        if (found < 0) {
+            // Use the result so the JIT can't skip the queries
+            System.out.println(found);
+        }
+        return count;
+    }
+
+    private interface Query {
+        int count(double lat, double lon);
+    }
+}
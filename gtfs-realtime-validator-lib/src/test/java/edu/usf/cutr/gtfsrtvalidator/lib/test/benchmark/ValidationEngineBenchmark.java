@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.lib.test.benchmark;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationEngine;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of a single ValidationEngine shared by several threads.  This isn't run as part of the unit
+ * tests - run it from the gtfs-realtime-validator-lib directory with:
+ * <p>
+ * java -cp target/classes:target/test-classes:[dependencies] edu.usf.cutr.gtfsrtvalidator.lib.test.benchmark.ValidationEngineBenchmark [threads] [seconds] [gtfs-zip] [gtfs-rt-file]
+ * <p>
+ * Defaults are the number of available processors, 30 seconds, and the bullrunner GTFS and vehicle positions test files.
+ */
+public class ValidationEngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        String gtfsPath = args.length > 2 ? args[2] : "src/test/resources/bullrunner-gtfs.zip";
+        String gtfsRtPath = args.length > 3 ? args[3] : "src/test/resources/bullrunner-vehicle-positions";
+
+        ValidationEngine engine = new ValidationEngine.Builder(gtfsPath).build();
+        final byte[] protobuf = Files.readAllBytes(Paths.get(gtfsRtPath));
+
+        // Warm up the JIT and the lazy GtfsMetadata caches before measuring
+        runThreads(engine, protobuf, threads, TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 5)));
+
+        long startTimeNanos = System.nanoTime();
+        long messages = runThreads(engine, protobuf, threads, TimeUnit.SECONDS.toNanos(seconds));
+        double elapsedSeconds = (System.nanoTime() - startTimeNanos) / 1_000_000_000.0;
+
+        System.out.println(String.format("%d threads validated %d messages (%d bytes each) in %.1f seconds - %.1f messages/second",
+                threads, messages, protobuf.length, elapsedSeconds, messages / elapsedSeconds));
+    }
+
+    /**
+     * Validates the message repeatedly from each thread until the duration has passed, and returns the total number of
+     * messages validated.  Each thread keeps its own previous result, as if it were monitoring a separate feed.
+     */
+    private static long runThreads(ValidationEngine engine, byte[] protobuf, int threads, long durationNanos) throws Exception {
+        final long endTimeNanos = System.nanoTime() + durationNanos;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    long count = 0;
+                    ValidationResult previous = null;
+                    while (System.nanoTime() < endTimeNanos) {
+                        try {
+                            previous = engine.validate(protobuf, previous, System.currentTimeMillis());
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Couldn't parse the GTFS-realtime message", e);
+                        }
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package edu.usf.cutr.gtfsrtvalidator.lib.test.rules;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
+import edu.usf.cutr.gtfsrtvalidator.lib.test.FeedMessageTest;
+import edu.usf.cutr.gtfsrtvalidator.lib.test.util.TestUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.BlockIndex;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.BlockValidator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests to evaluate rules for trips that belong to blocks
+ * <p>
+ * Tests:
+ *
+ * E007 - Trips with same vehicle_id are not in the same block
+ * E008 - trip_id not provided for blocks with reoccurring stop_ids
+ * E014 - Predictions for trips are out-of-order in the block
+ *
+ * testagency.zip has block.1 with trips 6.1 and 7.1 (both visit stop J), and block.2 with trips 6.2, 7.2 and 8.1
+ * (stop J is visited by 6.2 and 7.2, stop K by 7.2 and 8.1).
+ */
+public class BlockValidatorTest extends FeedMessageTest {
+
+    public BlockValidatorTest() throws IOException {
+    }
+
+    @Test
+    public void testBlockIndex() {
+        BlockIndex blockIndex = gtfsDataMetadata.getBlockIndex();
+        assertEquals(2, blockIndex.getBlockIdCount());
+
+        BlockIndex.Block block = blockIndex.getBlock("7.2");
+        assertEquals("block.2", block.getBlockId());
+        assertEquals("alldays", block.getServiceId());
+        assertEquals(3, block.getTripCount());
+        assertEquals("6.2", block.getTripId(0));
+        assertEquals("7.2", block.getTripId(1));
+        assertEquals("8.1", block.getTripId(2));
+        assertEquals(13 * 3600, block.getFirstDepartureTime(0));
+        assertEquals(1, blockIndex.getPosition("7.2"));
+        assertTrue(block.getRepeatedStopIds().contains("J"));
+        assertTrue(block.getRepeatedStopIds().contains("K"));
+        assertFalse(block.getRepeatedStopIds().contains("N"));
+        assertSame(block, blockIndex.getBlocks("block.2").get(0));
+
+        // Trips without a block_id
+        assertNull(blockIndex.getBlock("1.1"));
+        assertEquals(-1, blockIndex.getPosition("1.1"));
+        assertTrue(blockIndex.getBlocks("block.3").isEmpty());
+
+        // Route 8 is only in block.2
+        assertTrue(blockIndex.getRepeatedStopIds("8").contains("J"));
+        assertTrue(blockIndex.getRepeatedStopIds("1").isEmpty());
+    }
+
+    /**
+     * E007 - Trips with same vehicle_id are not in the same block
+     */
+    @Test
+    public void testE007() {
+        BlockValidator blockValidator = new BlockValidator();
+        Map<ValidationRule, Integer> expected = new HashMap<>();
+
+        // Same vehicle on two trips of the same block - no errors
+        GtfsRealtime.FeedMessage.Builder feedMessage = newFeedMessage();
+        feedMessage.addEntity(tripUpdate("1", "6.1", "A"));
+        feedMessage.addEntity(tripUpdate("2", "7.1", "A"));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        TestUtils.assertResults(expected, results);
+
+        // Same vehicle on trips from different blocks - 1 error
+        feedMessage.addEntity(tripUpdate("3", "7.2", "A"));
+        // Trips without a block_id aren't checked
+        feedMessage.addEntity(tripUpdate("4", "1.1", "A"));
+        // A different vehicle in another block
+        feedMessage.addEntity(tripUpdate("5", "8.1", "B"));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        expected.put(ValidationRules.E007, 1);
+        TestUtils.assertResults(expected, results);
+
+        // GTFS data without blocks - nothing is checked
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, bullRunnerGtfs, bullRunnerGtfsMetadata, feedMessage.build(), null, null);
+        expected.clear();
+        TestUtils.assertResults(expected, results);
+    }
+
+    /**
+     * E008 - trip_id not provided for blocks with reoccurring stop_ids
+     */
+    @Test
+    public void testE008() {
+        BlockValidator blockValidator = new BlockValidator();
+        Map<ValidationRule, Integer> expected = new HashMap<>();
+
+        // route_id 6 without trip_id, but stop I is only visited by one trip in each block - no errors
+        GtfsRealtime.FeedMessage.Builder feedMessage = newFeedMessage();
+        feedMessage.addEntity(routeUpdate("1", "6", "I"));
+        // route_id 1 isn't in any blocks
+        feedMessage.addEntity(routeUpdate("2", "1", "J"));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        TestUtils.assertResults(expected, results);
+
+        // route_id 6 without trip_id at stop J, which is visited twice in both blocks - 1 error
+        feedMessage.addEntity(routeUpdate("3", "6", "J"));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        expected.put(ValidationRules.E008, 1);
+        TestUtils.assertResults(expected, results);
+
+        // Providing the trip_id fixes the error
+        feedMessage.setEntity(2, tripUpdate("3", "6.1", null));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        expected.clear();
+        TestUtils.assertResults(expected, results);
+    }
+
+    /**
+     * E014 - Predictions for trips are out-of-order in the block
+     */
+    @Test
+    public void testE014() {
+        BlockValidator blockValidator = new BlockValidator();
+        Map<ValidationRule, Integer> expected = new HashMap<>();
+
+        // Trips in block order - no errors
+        GtfsRealtime.FeedMessage.Builder feedMessage = newFeedMessage();
+        feedMessage.addEntity(tripUpdate("1", "6.2", "A"));
+        feedMessage.addEntity(tripUpdate("2", "7.2", "A"));
+        feedMessage.addEntity(tripUpdate("3", "8.1", "A"));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        TestUtils.assertResults(expected, results);
+
+        // 7.2 after 8.1 - 1 error
+        feedMessage.clearEntity();
+        feedMessage.addEntity(tripUpdate("1", "6.2", "A"));
+        feedMessage.addEntity(tripUpdate("3", "8.1", "A"));
+        feedMessage.addEntity(tripUpdate("2", "7.2", "A"));
+        // Trips in other blocks don't affect the order
+        feedMessage.addEntity(tripUpdate("4", "6.1", "B"));
+        results = blockValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessage.build(), null, null);
+        expected.put(ValidationRules.E014, 1);
+        TestUtils.assertResults(expected, results);
+    }
+
+    private GtfsRealtime.FeedMessage.Builder newFeedMessage() {
+        feedHeaderBuilder.setTimestamp(TimestampUtils.MIN_POSIX_TIME);
+        return GtfsRealtime.FeedMessage.newBuilder().setHeader(feedHeaderBuilder.build());
+    }
+
+    private GtfsRealtime.FeedEntity tripUpdate(String entityId, String tripId, String vehicleId) {
+        GtfsRealtime.TripUpdate.Builder tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId));
+        if (vehicleId != null) {
+            tripUpdate.setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId(vehicleId));
+        }
+        return GtfsRealtime.FeedEntity.newBuilder().setId(entityId).setTripUpdate(tripUpdate).build();
+    }
+
+    private GtfsRealtime.FeedEntity routeUpdate(String entityId, String routeId, String stopId) {
+        GtfsRealtime.TripUpdate.Builder tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setRouteId(routeId))
+                .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder().setStopId(stopId));
+        return GtfsRealtime.FeedEntity.newBuilder().setId(entityId).setTripUpdate(tripUpdate).build();
+    }
+}
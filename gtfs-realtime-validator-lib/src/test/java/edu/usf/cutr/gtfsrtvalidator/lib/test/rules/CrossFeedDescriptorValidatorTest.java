@@ -21,13 +21,17 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.FeedMessageTest;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.util.TestUtils;
 import edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.CrossFeedDescriptorValidator;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+
 /**
  * Tests for rules implemented in CrossFeedDescriptorValidator
  */
@@ -447,4 +451,50 @@ public class CrossFeedDescriptorValidatorTest extends FeedMessageTest {
         expected.put(ValidationRules.W003, 2);
         TestUtils.assertResults(expected, results);
     }
+
+    /**
+     * W003 using a combined view of separate TripUpdates and VehiclePositions feeds, instead of a merged feed message
+     */
+    @Test
+    public void testCombinedFeed() {
+        Map<ValidationRule, Integer> expected = new HashMap<>();
+
+        CrossFeedDescriptorValidator crossFeedDescriptorValidator = new CrossFeedDescriptorValidator();
+
+        // TripUpdates feed has trip_id 1.1 and vehicle.id 1, and VehiclePositions feed has trip_id 100 and vehicle.id 44 - 4 warnings
+        tripUpdateBuilder.setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("1.1"));
+        tripUpdateBuilder.setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("1"));
+        GtfsRealtime.FeedMessage tripUpdates = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(feedHeaderBuilder.setTimestamp(TimestampUtils.MIN_POSIX_TIME))
+                .addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("1").setTripUpdate(tripUpdateBuilder))
+                .build();
+
+        vehiclePositionBuilder.setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("100"));
+        vehiclePositionBuilder.setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("44"));
+        GtfsRealtime.FeedMessage vehiclePositions = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(feedHeaderBuilder.setTimestamp(TimestampUtils.MIN_POSIX_TIME + 10))
+                .addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("2").setVehicle(vehiclePositionBuilder))
+                .build();
+
+        CombinedFeed combinedFeed = new CombinedFeed(Arrays.asList(tripUpdates, null, vehiclePositions));
+        assertEquals(2, combinedFeed.getFeedMessages().size());
+        assertEquals(2, combinedFeed.getEntityCount());
+        // Use largest header timestamp with multiple feeds - see #239
+        assertEquals(vehiclePositions.getHeader(), combinedFeed.getHeader());
+
+        results = crossFeedDescriptorValidator.validateWithCombinedFeed(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, null, null, combinedFeed);
+        expected.clear();
+        expected.put(ValidationRules.W003, 4);
+        TestUtils.assertResults(expected, results);
+
+        // The same results from a merged feed message
+        GtfsRealtime.FeedMessage merged = combinedFeed.toFeedMessage();
+        assertEquals(vehiclePositions.getHeader(), merged.getHeader());
+        assertEquals(tripUpdates.getEntity(0), merged.getEntity(0));
+        assertEquals(vehiclePositions.getEntity(0), merged.getEntity(1));
+        results = crossFeedDescriptorValidator.validate(TimestampUtils.MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, null, null, merged);
+        TestUtils.assertResults(expected, results);
+
+        clearAndInitRequiredFeedFields();
+    }
 }
@@ -20,15 +20,22 @@ import com.google.transit.realtime.GtfsRealtime;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.FeedMessageTest;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.util.TestUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.TripFrequencies;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.FrequencyTypeOneValidator;
 import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.Trip;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.MIN_POSIX_TIME;
 import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.E019;
+import static org.junit.Assert.*;
 
 /**
  * Tests to evaluate rules for Frequency-based exact_times=1 trips
@@ -127,4 +134,73 @@ public class FrequencyTypeOneValidatorTest extends FeedMessageTest {
 
         clearAndInitRequiredFeedFields();
     }
+
+    /**
+     * Checking GTFS-rt start_time against frequencies.txt periods, including malformed headway_secs
+     */
+    @Test
+    public void testTripFrequencies() {
+        Trip trip = new Trip();
+        trip.setId(new AgencyAndId("agency", "trip"));
+
+        // 06:00:00 to 07:00:00 every 90 seconds
+        Frequency f1 = new Frequency();
+        f1.setTrip(trip);
+        f1.setStartTime(21600);
+        f1.setEndTime(25200);
+        f1.setHeadwaySecs(90);
+        f1.setExactTimes(1);
+
+        // 08:00:00 to 09:00:00 with an invalid headway_secs
+        Frequency f2 = new Frequency();
+        f2.setTrip(trip);
+        f2.setStartTime(28800);
+        f2.setEndTime(32400);
+        f2.setHeadwaySecs(0);
+        f2.setExactTimes(1);
+
+        TripFrequencies frequencies = new TripFrequencies(Arrays.asList(f1, f2));
+        assertTrue(frequencies.isStartTime(21600));
+        assertTrue(frequencies.isStartTime(21690));
+        assertTrue(frequencies.isStartTime(25110));
+        assertFalse(frequencies.isStartTime(21645));
+        // End of period is exclusive
+        assertFalse(frequencies.isStartTime(25200));
+        assertFalse(frequencies.isStartTime(-1));
+
+        // Only the start_time of the period with an invalid headway matches (and this doesn't loop forever)
+        assertTrue(frequencies.isStartTime(28800));
+        assertFalse(frequencies.isStartTime(28890));
+        assertEquals("08:00:00", frequencies.getLastStartTime());
+        assertEquals(Integer.valueOf(0), frequencies.getLastHeadwaySecs());
+
+        frequencies = new TripFrequencies(Collections.singletonList(f1));
+        assertEquals("06:58:30", frequencies.getLastStartTime());
+        assertEquals(Integer.valueOf(90), frequencies.getLastHeadwaySecs());
+    }
+
+    /**
+     * E019 - VehiclePosition start_time within a frequency period that isn't a multiple of headway_secs
+     * <p>
+     * testagency.zip (gtfsData) has exact_times = 1 trips for 15.1 with a 1 hr (3600 sec) headway from 06:00:00 to 10:00:01
+     */
+    @Test
+    public void testE019VehiclePosition() {
+        Map<ValidationRule, Integer> expected = new HashMap<>();
+        FrequencyTypeOneValidator frequencyTypeOneValidator = new FrequencyTypeOneValidator();
+        GtfsRealtime.TripDescriptor.Builder tripDescriptorBuilder = GtfsRealtime.TripDescriptor.newBuilder();
+        tripDescriptorBuilder.setTripId("15.1");
+        tripDescriptorBuilder.setStartTime("06:06:00");
+
+        vehiclePositionBuilder.setTimestamp(MIN_POSIX_TIME);
+        vehiclePositionBuilder.setTrip(tripDescriptorBuilder.build());
+        feedEntityBuilder.setVehicle(vehiclePositionBuilder.build());
+        feedMessageBuilder.setEntity(0, feedEntityBuilder.build());
+
+        results = frequencyTypeOneValidator.validate(MIN_POSIX_TIME, gtfsData, gtfsDataMetadata, feedMessageBuilder.build(), null, null);
+        expected.put(E019, 1);
+        TestUtils.assertResults(expected, results);
+
+        clearAndInitRequiredFeedFields();
+    }
 }
@@ -20,6 +20,7 @@ import com.google.transit.realtime.GtfsRealtime;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.FeedMessageTest;
 import edu.usf.cutr.gtfsrtvalidator.lib.test.util.TestUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.TripFacts;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.TripDescriptorValidator;
 import org.junit.Test;
 
@@ -28,7 +29,7 @@ import java.util.Map;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.MIN_POSIX_TIME;
 import static edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules.*;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  * Tests related to rules implemented in TripDescriptorValidator
@@ -1004,4 +1005,38 @@ public class TripDescriptorValidatorTest extends FeedMessageTest {
 
         clearAndInitRequiredFeedFields();
     }
+
+    /**
+     * Facts derived for each GTFS trip that are used by TripDescriptorValidator rules
+     */
+    @Test
+    public void testTripFacts() {
+        TripFacts tripFacts = gtfsDataMetadata.getTripFacts("1.1");
+        assertEquals("1.1", tripFacts.getTripId());
+        assertEquals("1", tripFacts.getRouteId());
+        assertTrue(tripFacts.hasFirstArrivalTime());
+        assertEquals(0, tripFacts.getFirstArrivalTime());
+        assertEquals("00:00:00", tripFacts.getFirstArrivalClock());
+        assertEquals(TripFacts.FrequencyType.NONE, tripFacts.getFrequencyType());
+        assertFalse(tripFacts.isFrequencyBased());
+
+        // Non-numeric GTFS direction_id never matches a GTFS-rt direction_id
+        tripFacts = gtfsDataMetadata.getTripFacts("18.1");
+        assertEquals("N", tripFacts.getDirectionId());
+        assertFalse(tripFacts.isDirectionId(0));
+        assertFalse(tripFacts.isDirectionId(1));
+
+        // exact_times = 1 trip
+        tripFacts = gtfsDataMetadata.getTripFacts("15.1");
+        assertEquals(TripFacts.FrequencyType.EXACT_TIMES_ONE, tripFacts.getFrequencyType());
+        assertTrue(tripFacts.isFrequencyBased());
+
+        // exact_times = 0 trip
+        tripFacts = bullRunnerGtfsMetadata.getTripFacts("1");
+        assertEquals("A", tripFacts.getRouteId());
+        assertEquals(TripFacts.FrequencyType.EXACT_TIMES_ZERO, tripFacts.getFrequencyType());
+
+        // Trip isn't in GTFS data
+        assertNull(gtfsDataMetadata.getTripFacts("100"));
+    }
 }
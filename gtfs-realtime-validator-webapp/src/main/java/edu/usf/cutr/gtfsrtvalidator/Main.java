@@ -17,8 +17,18 @@
 
 package edu.usf.cutr.gtfsrtvalidator;
 
+import edu.usf.cutr.gtfsrtvalidator.api.resource.GtfsRtFeed;
+import edu.usf.cutr.gtfsrtvalidator.background.BackgroundTask;
+import edu.usf.cutr.gtfsrtvalidator.background.FeedFetcher;
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
+import edu.usf.cutr.gtfsrtvalidator.cluster.ClusterCoordinator;
+import edu.usf.cutr.gtfsrtvalidator.cluster.HibernateClusterStore;
 import edu.usf.cutr.gtfsrtvalidator.db.GTFSDB;
+import edu.usf.cutr.gtfsrtvalidator.helper.DBHelper;
 import edu.usf.cutr.gtfsrtvalidator.hibernate.HibernateUtil;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
 import edu.usf.cutr.gtfsrtvalidator.servlets.GetFeedJSON;
 import edu.usf.cutr.gtfsrtvalidator.util.FileUtil;
 import org.apache.commons.cli.*;
@@ -31,6 +41,14 @@ import org.glassfish.jersey.servlet.ServletContainer;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import static edu.usf.cutr.gtfsrtvalidator.util.FileUtil.GTFS_VALIDATOR_OUTPUT_FILE_PATH;
 
@@ -40,6 +58,22 @@ public class Main {
     static String BASE_RESOURCE = Main.class.getResource("/webroot").toExternalForm();
 
     private final static String PORT_NUMBER_OPTION = "port";
+    private final static String MAX_OCCURRENCES_OPTION = "maxOccurrences";
+    private final static String RULE_CONFIG_OPTION = "ruleConfig";
+    private final static String RULE_TIME_BUDGET_OPTION = "ruleTimeBudget";
+    private final static String WORKER_THREADS_OPTION = "workerThreads";
+    private final static String CONNECT_TIMEOUT_OPTION = "connectTimeout";
+    private final static String READ_TIMEOUT_OPTION = "readTimeout";
+    private final static String WRITE_BATCH_SIZE_OPTION = "writeBatchSize";
+    private final static String WRITE_LATENCY_OPTION = "writeLatency";
+    private final static String VIRTUAL_THREADS_OPTION = "virtualThreads";
+    private final static String MAX_REQUESTS_PER_HOST_OPTION = "maxRequestsPerHost";
+    private final static String ADAPTIVE_POLLING_OPTION = "adaptivePolling";
+    private final static String MAX_ENTITY_SIZE_OPTION = "maxEntitySize";
+    private final static String MAX_FEED_SIZE_OPTION = "maxFeedSize";
+    private final static String DATABASE_URL_OPTION = "databaseUrl";
+    private final static String CLUSTER_OPTION = "cluster";
+    private final static String NODE_ID_OPTION = "nodeId";
 
     public static void main(String[] args) throws InterruptedException, ParseException {
         // Parse command line parameters
@@ -47,8 +81,39 @@ public class Main {
 
         // Start validator in normal server mode
         int port = getPortFromArgs(options, args);
-        HibernateUtil.configureSessionFactory();
+        BackgroundTask.setMaxOccurrencesPerRule(getMaxOccurrencesFromArgs(options, args));
+        BackgroundTask.setRuleConfig(getRuleConfigFromArgs(options, args));
+        BackgroundTask.setRuleTimeBudgetMillis(getRuleTimeBudgetFromArgs(options, args));
+        BackgroundTask.setAdaptivePolling(getAdaptivePollingFromArgs(options, args));
+        BackgroundTask.setFeedSizeLimits(getMaxEntitySizeFromArgs(options, args), getMaxFeedSizeFromArgs(options, args));
+        boolean virtualThreads = getVirtualThreadsFromArgs(options, args);
+        FeedScheduler.setSharedVirtualThreads(virtualThreads);
+        FeedScheduler.setSharedWorkerThreads(getWorkerThreadsFromArgs(options, args, virtualThreads));
+        FeedFetcher.setMaxRequestsPerHost(getMaxRequestsPerHostFromArgs(options, args));
+        FeedFetcher.setTimeouts(getConnectTimeoutFromArgs(options, args), getReadTimeoutFromArgs(options, args));
+        DBHelper.setWriteBehind(getWriteBatchSizeFromArgs(options, args), getWriteLatencyFromArgs(options, args));
+        HibernateUtil.configureSessionFactory(getDatabaseUrlFromArgs(options, args));
         GTFSDB.initializeDB();
+        if (getClusterFromArgs(options, args)) {
+            ClusterCoordinator coordinator = new ClusterCoordinator(getNodeIdFromArgs(options, args, port), new HibernateClusterStore(),
+                    ClusterCoordinator.DEFAULT_LEASE_MILLIS, GtfsRtFeed::runClusterFeeds);
+            ClusterCoordinator.setShared(coordinator);
+            coordinator.start();
+            _log.info("Sharing monitored feeds with the other servers of the cluster as " + coordinator.getNodeId());
+        }
+        // Write the validation results that are still queued before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ClusterCoordinator coordinator = ClusterCoordinator.getShared();
+            if (coordinator != null) {
+                // Stop the feeds of this server and give up its leases, so the other servers take them over right away
+                coordinator.stop();
+            }
+            try {
+                DBHelper.getWriteQueue().shutdown(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
 
         Server server = new Server(port);
         ServletContextHandler context = new ServletContextHandler();
@@ -104,7 +169,84 @@ public class Main {
                 .hasArg()
                 .desc("Port number the server should run on")
                 .build();
+        Option maxOccurrencesOption = Option.builder(MAX_OCCURRENCES_OPTION)
+                .hasArg()
+                .desc("The maximum number of occurrences stored for each rule in each iteration (-1 to store all occurrences)")
+                .build();
+        Option ruleConfigOption = Option.builder(RULE_CONFIG_OPTION)
+                .hasArg()
+                .desc("The path to a properties file that defines the rule profile and rules that are enabled or disabled for all feeds")
+                .build();
         options.addOption(portOption);
+        options.addOption(maxOccurrencesOption);
+        Option ruleTimeBudgetOption = Option.builder(RULE_TIME_BUDGET_OPTION)
+                .hasArg()
+                .desc("The maximum time in milliseconds each rule may run in each iteration before it is stopped (0 for no limit)")
+                .build();
+        Option workerThreadsOption = Option.builder(WORKER_THREADS_OPTION)
+                .hasArg()
+                .desc("The number of threads shared by all monitored feeds to fetch and validate feed iterations")
+                .build();
+        options.addOption(ruleConfigOption);
+        options.addOption(ruleTimeBudgetOption);
+        Option connectTimeoutOption = Option.builder(CONNECT_TIMEOUT_OPTION)
+                .hasArg()
+                .desc("The maximum time in milliseconds to wait for a connection to a GTFS-realtime feed server (0 for no limit)")
+                .build();
+        Option readTimeoutOption = Option.builder(READ_TIMEOUT_OPTION)
+                .hasArg()
+                .desc("The maximum time in milliseconds to wait for data from a GTFS-realtime feed server (0 for no limit)")
+                .build();
+        options.addOption(workerThreadsOption);
+        options.addOption(connectTimeoutOption);
+        Option writeBatchSizeOption = Option.builder(WRITE_BATCH_SIZE_OPTION)
+                .hasArg()
+                .desc("The maximum number of rule results and iterations written to the database in one transaction")
+                .build();
+        Option writeLatencyOption = Option.builder(WRITE_LATENCY_OPTION)
+                .hasArg()
+                .desc("The maximum time in milliseconds rule results and iterations wait to be written to the database")
+                .build();
+        options.addOption(readTimeoutOption);
+        options.addOption(writeBatchSizeOption);
+        Option virtualThreadsOption = Option.builder(VIRTUAL_THREADS_OPTION)
+                .desc("Run each feed iteration on a virtual thread (requires Java 21 or later)")
+                .build();
+        Option maxRequestsPerHostOption = Option.builder(MAX_REQUESTS_PER_HOST_OPTION)
+                .hasArg()
+                .desc("The maximum number of requests to the same GTFS-realtime feed server that can run at the same time")
+                .build();
+        options.addOption(writeLatencyOption);
+        options.addOption(virtualThreadsOption);
+        Option adaptivePollingOption = Option.builder(ADAPTIVE_POLLING_OPTION)
+                .desc("Poll each GTFS-realtime feed when its next message is expected, instead of at the update interval")
+                .build();
+        options.addOption(maxRequestsPerHostOption);
+        options.addOption(adaptivePollingOption);
+        Option maxEntitySizeOption = Option.builder(MAX_ENTITY_SIZE_OPTION)
+                .hasArg()
+                .desc("The maximum size in bytes of the header or of a single entity of a GTFS-realtime feed message")
+                .build();
+        Option maxFeedSizeOption = Option.builder(MAX_FEED_SIZE_OPTION)
+                .hasArg()
+                .desc("The maximum size in bytes of a GTFS-realtime feed message")
+                .build();
+        options.addOption(maxEntitySizeOption);
+        options.addOption(maxFeedSizeOption);
+        Option databaseUrlOption = Option.builder(DATABASE_URL_OPTION)
+                .hasArg()
+                .desc("The JDBC URL of the database, instead of the URL in hibernate.cfg.xml (e.g., jdbc:hsqldb:hsql://localhost/gtfsrt)")
+                .build();
+        Option clusterOption = Option.builder(CLUSTER_OPTION)
+                .desc("Share the monitored GTFS-realtime feeds with the other servers that use the same database")
+                .build();
+        Option nodeIdOption = Option.builder(NODE_ID_OPTION)
+                .hasArg()
+                .desc("The ID of this server in the cluster, which must be unique (defaults to the host name and port)")
+                .build();
+        options.addOption(databaseUrlOption);
+        options.addOption(clusterOption);
+        options.addOption(nodeIdOption);
         return options;
     }
 
@@ -124,4 +266,302 @@ public class Main {
         }
         return port;
     }
+
+    /**
+     * Returns the maximum number of occurrences stored for each rule in each iteration from command line arguments, or
+     * BackgroundTask.DEFAULT_MAX_OCCURRENCES_PER_RULE if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum number of occurrences stored for each rule in each iteration from command line arguments, or
+     * BackgroundTask.DEFAULT_MAX_OCCURRENCES_PER_RULE if no args are provided
+     */
+    private static int getMaxOccurrencesFromArgs(Options options, String[] args) throws ParseException {
+        int maxOccurrences = BackgroundTask.DEFAULT_MAX_OCCURRENCES_PER_RULE;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_OCCURRENCES_OPTION)) {
+            maxOccurrences = Integer.valueOf(cmd.getOptionValue(MAX_OCCURRENCES_OPTION));
+        }
+        return maxOccurrences;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds each rule may run in each iteration from command line arguments, or
+     * RuleWatchdog.DEFAULT_BUDGET_MILLIS if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum time in milliseconds each rule may run in each iteration from command line arguments, or
+     * RuleWatchdog.DEFAULT_BUDGET_MILLIS if no args are provided
+     */
+    private static long getRuleTimeBudgetFromArgs(Options options, String[] args) throws ParseException {
+        long ruleTimeBudget = RuleWatchdog.DEFAULT_BUDGET_MILLIS;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(RULE_TIME_BUDGET_OPTION)) {
+            ruleTimeBudget = Long.valueOf(cmd.getOptionValue(RULE_TIME_BUDGET_OPTION));
+        }
+        return ruleTimeBudget;
+    }
+
+    /**
+     * Returns the number of threads shared by all monitored feeds (or the number of iterations that can run at the same
+     * time, with virtual threads) from command line arguments, or FeedScheduler.DEFAULT_WORKER_THREADS
+     * (FeedScheduler.DEFAULT_VIRTUAL_CONCURRENCY with virtual threads) if no args are provided
+     *
+     * @param options        command line options that this application supports
+     * @param args
+     * @param virtualThreads true if iterations run on virtual threads, false if they don't
+     * @return the number of threads shared by all monitored feeds (or the number of iterations that can run at the same
+     * time, with virtual threads) from command line arguments, or the default if no args are provided
+     */
+    private static int getWorkerThreadsFromArgs(Options options, String[] args, boolean virtualThreads) throws ParseException {
+        int workerThreads = virtualThreads ? FeedScheduler.DEFAULT_VIRTUAL_CONCURRENCY : FeedScheduler.DEFAULT_WORKER_THREADS;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(WORKER_THREADS_OPTION)) {
+            workerThreads = Integer.valueOf(cmd.getOptionValue(WORKER_THREADS_OPTION));
+        }
+        return workerThreads;
+    }
+
+    /**
+     * Returns true if feed iterations should run on virtual threads from command line arguments, or false if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return true if feed iterations should run on virtual threads from command line arguments, or false if no args are provided
+     */
+    private static boolean getVirtualThreadsFromArgs(Options options, String[] args) throws ParseException {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        return cmd.hasOption(VIRTUAL_THREADS_OPTION);
+    }
+
+    /**
+     * Returns true if feeds should be polled when their next message is expected from command line arguments, or false
+     * if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return true if feeds should be polled when their next message is expected from command line arguments, or false
+     * if no args are provided
+     */
+    private static boolean getAdaptivePollingFromArgs(Options options, String[] args) throws ParseException {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        return cmd.hasOption(ADAPTIVE_POLLING_OPTION);
+    }
+
+    /**
+     * Returns the maximum size in bytes of the header or of a single entity of a feed message from command line
+     * arguments, or FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum size in bytes of the header or of a single entity of a feed message from command line
+     * arguments, or FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES if no args are provided
+     */
+    private static int getMaxEntitySizeFromArgs(Options options, String[] args) throws ParseException {
+        int maxEntitySize = FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_ENTITY_SIZE_OPTION)) {
+            maxEntitySize = Integer.valueOf(cmd.getOptionValue(MAX_ENTITY_SIZE_OPTION));
+        }
+        return maxEntitySize;
+    }
+
+    /**
+     * Returns the maximum size in bytes of a feed message from command line arguments, or
+     * FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum size in bytes of a feed message from command line arguments, or
+     * FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES if no args are provided
+     */
+    private static long getMaxFeedSizeFromArgs(Options options, String[] args) throws ParseException {
+        long maxFeedSize = FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_FEED_SIZE_OPTION)) {
+            maxFeedSize = Long.valueOf(cmd.getOptionValue(MAX_FEED_SIZE_OPTION));
+        }
+        return maxFeedSize;
+    }
+
+    /**
+     * Returns the maximum number of requests to the same feed server that can run at the same time from command line
+     * arguments, or FeedFetcher.DEFAULT_MAX_REQUESTS_PER_HOST if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum number of requests to the same feed server that can run at the same time from command line
+     * arguments, or FeedFetcher.DEFAULT_MAX_REQUESTS_PER_HOST if no args are provided
+     */
+    private static int getMaxRequestsPerHostFromArgs(Options options, String[] args) throws ParseException {
+        int maxRequestsPerHost = FeedFetcher.DEFAULT_MAX_REQUESTS_PER_HOST;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(MAX_REQUESTS_PER_HOST_OPTION)) {
+            maxRequestsPerHost = Integer.valueOf(cmd.getOptionValue(MAX_REQUESTS_PER_HOST_OPTION));
+        }
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds to wait for a connection to a feed server from command line arguments, or
+     * FeedFetcher.DEFAULT_CONNECT_TIMEOUT_MILLIS if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum time in milliseconds to wait for a connection to a feed server from command line arguments, or
+     * FeedFetcher.DEFAULT_CONNECT_TIMEOUT_MILLIS if no args are provided
+     */
+    private static int getConnectTimeoutFromArgs(Options options, String[] args) throws ParseException {
+        int connectTimeout = FeedFetcher.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(CONNECT_TIMEOUT_OPTION)) {
+            connectTimeout = Integer.valueOf(cmd.getOptionValue(CONNECT_TIMEOUT_OPTION));
+        }
+        return connectTimeout;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds to wait for data from a feed server from command line arguments, or
+     * FeedFetcher.DEFAULT_READ_TIMEOUT_MILLIS if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum time in milliseconds to wait for data from a feed server from command line arguments, or
+     * FeedFetcher.DEFAULT_READ_TIMEOUT_MILLIS if no args are provided
+     */
+    private static int getReadTimeoutFromArgs(Options options, String[] args) throws ParseException {
+        int readTimeout = FeedFetcher.DEFAULT_READ_TIMEOUT_MILLIS;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(READ_TIMEOUT_OPTION)) {
+            readTimeout = Integer.valueOf(cmd.getOptionValue(READ_TIMEOUT_OPTION));
+        }
+        return readTimeout;
+    }
+
+    /**
+     * Returns the maximum number of rule results and iterations written to the database in one transaction from command
+     * line arguments, or DBHelper.DEFAULT_WRITE_BATCH_SIZE if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum number of rule results and iterations written to the database in one transaction from command
+     * line arguments, or DBHelper.DEFAULT_WRITE_BATCH_SIZE if no args are provided
+     */
+    private static int getWriteBatchSizeFromArgs(Options options, String[] args) throws ParseException {
+        int writeBatchSize = DBHelper.DEFAULT_WRITE_BATCH_SIZE;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(WRITE_BATCH_SIZE_OPTION)) {
+            writeBatchSize = Integer.valueOf(cmd.getOptionValue(WRITE_BATCH_SIZE_OPTION));
+        }
+        return writeBatchSize;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds rule results and iterations wait to be written to the database from
+     * command line arguments, or DBHelper.DEFAULT_WRITE_LATENCY_MILLIS if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the maximum time in milliseconds rule results and iterations wait to be written to the database from
+     * command line arguments, or DBHelper.DEFAULT_WRITE_LATENCY_MILLIS if no args are provided
+     */
+    private static long getWriteLatencyFromArgs(Options options, String[] args) throws ParseException {
+        long writeLatency = DBHelper.DEFAULT_WRITE_LATENCY_MILLIS;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(WRITE_LATENCY_OPTION)) {
+            writeLatency = Long.valueOf(cmd.getOptionValue(WRITE_LATENCY_OPTION));
+        }
+        return writeLatency;
+    }
+
+    /**
+     * Returns the JDBC URL of the database from command line arguments, or null (the URL in hibernate.cfg.xml) if no args
+     * are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the JDBC URL of the database from command line arguments, or null (the URL in hibernate.cfg.xml) if no args
+     * are provided
+     */
+    private static String getDatabaseUrlFromArgs(Options options, String[] args) throws ParseException {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        return cmd.getOptionValue(DATABASE_URL_OPTION);
+    }
+
+    /**
+     * Returns true if monitored feeds should be shared with the other servers of a cluster from command line arguments,
+     * or false if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return true if monitored feeds should be shared with the other servers of a cluster from command line arguments,
+     * or false if no args are provided
+     */
+    private static boolean getClusterFromArgs(Options options, String[] args) throws ParseException {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        return cmd.hasOption(CLUSTER_OPTION);
+    }
+
+    /**
+     * Returns the ID of this server in the cluster from command line arguments, or the host name and port of this server
+     * if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @param port    the port the server runs on
+     * @return the ID of this server in the cluster from command line arguments, or the host name and port of this server
+     * if no args are provided
+     */
+    private static String getNodeIdFromArgs(Options options, String[] args, int port) throws ParseException {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(NODE_ID_OPTION)) {
+            return cmd.getOptionValue(NODE_ID_OPTION);
+        }
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            hostName = "localhost";
+        }
+        return hostName + ":" + port;
+    }
+
+    /**
+     * Returns the rule configuration from the file provided in the command line arguments, or empty properties (all rules) if no args are provided
+     *
+     * @param options command line options that this application supports
+     * @param args
+     * @return the rule configuration from the file provided in the command line arguments, or empty properties (all rules) if no args are provided
+     */
+    private static Properties getRuleConfigFromArgs(Options options, String[] args) throws ParseException {
+        Properties ruleConfig = new Properties();
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption(RULE_CONFIG_OPTION)) {
+            try (InputStream in = Files.newInputStream(Paths.get(cmd.getOptionValue(RULE_CONFIG_OPTION)))) {
+                ruleConfig.load(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read rule configuration file " + cmd.getOptionValue(RULE_CONFIG_OPTION), e);
+            }
+            // Fail on startup if the file references a profile or validator that doesn't exist
+            RuleSelection.fromProperties(ruleConfig);
+        }
+        return ruleConfig;
+    }
 }
@@ -274,7 +274,43 @@ public class GtfsFeed {
         return digest;
     }
 
-    private GtfsMutableDao loadGtfsFeedFromDisk(GtfsFeedModel gtfsFeed) {
+    /**
+     * Returns the GTFS data of the provided GTFS feed, loading it into memory if it isn't loaded yet.  In a cluster, the
+     * GTFS data may have been posted to another server, so it's downloaded again if the zip file isn't on this server.
+     *
+     * @param gtfsFeed the GTFS feed
+     * @return the GTFS data of the provided GTFS feed, or null if it couldn't be downloaded or read
+     */
+    public static GtfsMutableDao getGtfsData(GtfsFeedModel gtfsFeed) {
+        GtfsMutableDao gtfsMutableDao = GtfsDaoMap.get(gtfsFeed.getFeedId());
+        if (gtfsMutableDao != null) {
+            return gtfsMutableDao;
+        }
+        if (!new File(gtfsFeed.getFeedLocation()).exists()) {
+            _log.info(String.format("Downloading GTFS data from %s...", gtfsFeed.getGtfsUrl()));
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(gtfsFeed.getGtfsUrl()).openConnection();
+                if (downloadGtfsFeed(gtfsFeed.getFeedLocation(), connection) != Response.Status.OK) {
+                    return null;
+                }
+            } catch (IOException e) {
+                _log.error("Can't open a connection to " + gtfsFeed.getGtfsUrl(), e);
+                return null;
+            }
+        }
+        _log.info("Loading GTFS from downloaded zip file on disk to memory...");
+        gtfsMutableDao = loadGtfsFeedFromDisk(gtfsFeed);
+        if (gtfsMutableDao != null) {
+            // Keep reference in memory to loaded GTFS data, unless it was loaded by a client at the same time
+            GtfsMutableDao loaded = GtfsDaoMap.putIfAbsent(gtfsFeed.getFeedId(), gtfsMutableDao);
+            if (loaded != null) {
+                gtfsMutableDao = loaded;
+            }
+        }
+        return gtfsMutableDao;
+    }
+
+    private static GtfsMutableDao loadGtfsFeedFromDisk(GtfsFeedModel gtfsFeed) {
         GtfsMutableDao store = new GtfsDaoImpl();
 
         try {
@@ -290,7 +326,7 @@ public class GtfsFeed {
         return store;
     }
 
-    private Response.Status downloadGtfsFeed(String saveFilePath, HttpURLConnection connection) {
+    private static Response.Status downloadGtfsFeed(String saveFilePath, HttpURLConnection connection) {
         try {
             // Set user agent (#320)
             connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
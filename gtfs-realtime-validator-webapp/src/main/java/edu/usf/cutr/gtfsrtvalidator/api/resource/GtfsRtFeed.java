@@ -18,8 +18,11 @@
 package edu.usf.cutr.gtfsrtvalidator.api.resource;
 
 import com.google.gson.JsonObject;
-import com.google.transit.realtime.GtfsRealtime;
+import com.google.protobuf.UninitializedMessageException;
 import edu.usf.cutr.gtfsrtvalidator.background.BackgroundTask;
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
+import edu.usf.cutr.gtfsrtvalidator.background.LastIterationCache;
+import edu.usf.cutr.gtfsrtvalidator.cluster.ClusterCoordinator;
 import edu.usf.cutr.gtfsrtvalidator.db.GTFSDB;
 import edu.usf.cutr.gtfsrtvalidator.helper.QueryHelper;
 import edu.usf.cutr.gtfsrtvalidator.helper.ServiceScheduler;
@@ -28,6 +31,8 @@ import edu.usf.cutr.gtfsrtvalidator.lib.model.combined.CombinedIterationMessageM
 import edu.usf.cutr.gtfsrtvalidator.lib.model.combined.CombinedMessageOccurrenceModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.IterationErrorListHelperModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.MergeMonitorData;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
+import edu.usf.cutr.gtfsrtvalidator.metrics.MetricsRegistry;
 import org.hibernate.Session;
 import org.slf4j.LoggerFactory;
 
@@ -44,8 +49,7 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 @Path("/gtfs-rt-feed")
@@ -56,7 +60,6 @@ public class GtfsRtFeed {
     private static final int INVALID_FEED = 0;
     private static final int VALID_FEED = 1;
     public static String agencyTimezone;
-    public static long currentTimestamp;
 
     public Response generateError(String errorMessage) {
         return Response
@@ -130,7 +133,11 @@ public class GtfsRtFeed {
         return Response.ok(feedList).build();
     }
 
-    private static HashMap<String, ServiceScheduler> runningTasks = new HashMap<>();
+    // Maps GTFS-realtime feed URL to the scheduled iterations of that feed, which are shared by all clients monitoring the URL
+    private static final Map<String, ServiceScheduler> runningTasks = new ConcurrentHashMap<>();
+    // In a cluster, maps the ID of each feed this server monitors to the settings it was started with, and to its URL
+    private static final Map<Integer, MonitoredFeedModel> clusterFeeds = new HashMap<>();
+    private static final Map<Integer, String> clusterFeedUrls = new HashMap<>();
 
     @PUT
     @Path("/monitor/{id}")
@@ -138,9 +145,14 @@ public class GtfsRtFeed {
             @PathParam("id") int id,
             @QueryParam("clientId") String clientId,
             @DefaultValue("10") @QueryParam("updateInterval") int updateInterval,
-            @DefaultValue("true") @QueryParam("enableShapes") String enableShapesStr) {
+            @DefaultValue("true") @QueryParam("enableShapes") String enableShapesStr,
+            @QueryParam("ruleProfile") String ruleProfile,
+            @QueryParam("enableRules") String enableRules,
+            @QueryParam("disableRules") String disableRules,
+            @DefaultValue("skip") @QueryParam("overrunPolicy") String overrunPolicyStr,
+            @DefaultValue("normal") @QueryParam("priority") String priorityStr) {
         // Store the timestamp when we start monitoring feeds that can be used to query database
-        currentTimestamp = System.currentTimeMillis();
+        long sessionStartTime = System.currentTimeMillis();
         //Get RtFeedModel from id
         Session session = GTFSDB.initSessionBeginTrans();
         GtfsRtFeedModel gtfsRtFeed = (GtfsRtFeedModel) session.createQuery(" FROM GtfsRtFeedModel "
@@ -148,26 +160,53 @@ public class GtfsRtFeed {
                 .setParameter("id", id)
                 .uniqueResult();
 
+        // Make sure the overrun policy and priority are valid before we start monitoring
+        FeedScheduler.OverrunPolicy overrunPolicy;
+        FeedScheduler.Priority priority;
+        try {
+            overrunPolicy = FeedScheduler.OverrunPolicy.valueOf(overrunPolicyStr.toUpperCase());
+            priority = FeedScheduler.Priority.valueOf(priorityStr.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            GTFSDB.closeSession(session);
+            return generateError("Unknown overrunPolicy '" + overrunPolicyStr + "' or priority '" + priorityStr + "'");
+        }
+        if (overrunPolicy == FeedScheduler.OverrunPolicy.PARALLEL) {
+            // Each iteration is validated against the previous one, so iterations of a feed can't run at the same time
+            GTFSDB.closeSession(session);
+            return generateError("overrunPolicy must be skip or delay");
+        }
+
+        // Make sure the rule profile and enabled/disabled rules exist before we start monitoring
+        gtfsRtFeed.setRuleProfile(ruleProfile);
+        gtfsRtFeed.setEnableRules(enableRules);
+        gtfsRtFeed.setDisableRules(disableRules);
+        try {
+            BackgroundTask.getRuleSelection(gtfsRtFeed);
+        } catch (IllegalArgumentException e) {
+            GTFSDB.closeSession(session);
+            return generateError(e.getMessage());
+        }
+
         // Save the session data of a client monitoring feeds.
         SessionModel sessionModel = new SessionModel();
         sessionModel.setClientId(clientId);
-        sessionModel.setSessionStartTime(currentTimestamp);
+        sessionModel.setSessionStartTime(sessionStartTime);
         sessionModel.setGtfsRtFeedModel(gtfsRtFeed);
 
         session.save(sessionModel);
         GTFSDB.commitAndCloseSession(session);
-        boolean intervalUpdated = false;
-        int leastInterval = updateInterval;
-        if(runningTasks.containsKey(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl()) &&
-                leastInterval< runningTasks.get(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl()).getUpdateInterval()){
-            intervalUpdated=true;
-        }
         boolean enableShapes = true;
         if ("false".equals(enableShapesStr)) {
             enableShapes = false;
         }
-        //Extract the Url and gtfsId to start the background process
-        startBackgroundTask(gtfsRtFeed, leastInterval, intervalUpdated, enableShapes);
+        ClusterCoordinator coordinator = ClusterCoordinator.getShared();
+        if (coordinator != null) {
+            // The feed is monitored by the server of the cluster that holds the lease of its GTFS feed
+            coordinator.addClient(gtfsRtFeed, updateInterval, enableShapes, overrunPolicy, priority);
+        } else {
+            //Extract the Url and gtfsId to start the background process
+            startBackgroundTask(gtfsRtFeed, updateInterval, enableShapes, overrunPolicy, priority);
+        }
 
         return Response.ok(sessionModel, MediaType.APPLICATION_JSON).build();
     }
@@ -187,13 +226,14 @@ public class GtfsRtFeed {
             @DefaultValue("0") @QueryParam("endTime") long sessionEndTime) {
 
         MergeMonitorData mergeMonitorData = new MergeMonitorData();
-        if(sessionStartTime <= 0) {
-            sessionStartTime = currentTimestamp;
-        }
         if(sessionEndTime <= 0) {
             sessionEndTime = System.currentTimeMillis();
         }
         Session session = GTFSDB.initSessionBeginTrans();
+        if(sessionStartTime <= 0) {
+            // Read from the database, so every server of a cluster returns the same data
+            sessionStartTime = getLastSessionStartTime(session, gtfsRtId);
+        }
 
         ViewFeedIterationsCount iterationsCount;
         iterationsCount = (ViewFeedIterationsCount) session.createNamedQuery("feedIterationsCount", ViewFeedIterationsCount.class)
@@ -303,7 +343,7 @@ public class GtfsRtFeed {
         IterationErrorListHelperModel iterationErrorListHelperModel;
         List<IterationErrorListHelperModel> iterationErrorListHelperModelList = new ArrayList<>();
 
-        List<Integer> messageIdList;
+        List<Object[]> messageIdList;
         Session session = GTFSDB.initSessionBeginTrans();
 
         /*
@@ -311,7 +351,7 @@ public class GtfsRtFeed {
          * Each messageId corresponds to an errorId whose list of error occurrences are retrieved from Occurrence table
          * ORDER BY errorId helps to have errors/warnings in ascending order i.e., first errors in ascending order then warnings in ascending order
          */
-        messageIdList = session.createQuery(" SELECT messageId FROM MessageLogModel" +
+        messageIdList = session.createQuery(" SELECT messageId, totalOccurrences FROM MessageLogModel" +
                                                 " WHERE iterationId = :iterationId" +
                                                 " ORDER BY errorId")
                 .setParameter("iterationId", iterationId)
@@ -326,7 +366,9 @@ public class GtfsRtFeed {
          * We separately retrieve list of ViewIterationErrorsModel for each error/warning so that we can have
          *  rowIds in increasing order starting from 1 and have separate list for each error/warning.
          */
-        for (int messageId: messageIdList) {
+        for (Object[] message : messageIdList) {
+            int messageId = ((Number) message[0]).intValue();
+            int totalOccurrences = ((Number) message[1]).intValue();
             session = GTFSDB.initSessionBeginTrans();
             viewIterationErrorsModelList = session.createNamedQuery("IterationIdErrors", ViewIterationErrorsModel.class)
                     .setParameter(0, iterationId)
@@ -344,6 +386,8 @@ public class GtfsRtFeed {
                 iterationErrorListHelperModel.setTitle(viewIterationErrorsModelList.get(0).getTitle());
                 // Get the number of occurrences of each error/warning
                 iterationErrorListHelperModel.setErrorOccurrences(viewIterationErrorsModelList.size());
+                // Occurrences may have been capped when saved - messages saved before totals were recorded have a total of 0
+                iterationErrorListHelperModel.setTotalOccurrences(Math.max(totalOccurrences, viewIterationErrorsModelList.size()));
 
                 iterationErrorListHelperModelList.add(iterationErrorListHelperModel);
             }
@@ -464,12 +508,11 @@ public class GtfsRtFeed {
         sessionModel.setWarningCount(warningCount);
         session.saveOrUpdate(sessionModel);
         GTFSDB.commitAndCloseSession(session);
-        if (runningTasks.get(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl()).getParallelClientCount() == 1) {
-            runningTasks.get(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl()).getScheduler().shutdown();
-            runningTasks.remove(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl());
+        ClusterCoordinator coordinator = ClusterCoordinator.getShared();
+        if (coordinator != null) {
+            coordinator.removeClient(sessionModel.getGtfsRtFeedModel().getGtfsRtId());
         } else {
-            runningTasks.get(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl()).setParallelClientCount(
-                    runningTasks.get(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl()).getParallelClientCount()-1);
+            stopBackgroundTask(sessionModel.getGtfsRtFeedModel().getGtfsRtUrl());
         }
     }
 
@@ -516,53 +559,219 @@ public class GtfsRtFeed {
         return Response.ok(messageList).build();
     }
 
+    /**
+     * Returns the time the last client started monitoring the provided feed, or 0 if no client has monitored it
+     */
+    private static long getLastSessionStartTime(Session session, int gtfsRtId) {
+        Long startTime = session.createQuery("SELECT MAX(sessionStartTime) FROM SessionModel"
+                + " WHERE gtfsRtFeedModel.gtfsRtId = :gtfsRtId", Long.class)
+                .setParameter("gtfsRtId", gtfsRtId)
+                .uniqueResult();
+        return startTime != null ? startTime : 0;
+    }
+
     //TODO: DELETE {id} remove feed with {id}
     private int checkFeedType(String FeedURL) {
-        GtfsRealtime.FeedMessage feed;
+        // Entities are read one at a time and discarded, so large feeds are checked in full without holding them in memory
         try {
             URI FeedURI = new URI(FeedURL);
             URL url = FeedURI.toURL();
-            feed = GtfsRealtime.FeedMessage.parseFrom(url.openStream());
-        } catch (URISyntaxException | IllegalArgumentException | IOException e) {
+            // Same limits as the iterations of the feed, so a feed that passes this check can be parsed when it's monitored
+            try (FeedMessageReader reader = new FeedMessageReader(url.openStream(), BackgroundTask.getMaxEntitySizeBytes(), BackgroundTask.getMaxMessageSizeBytes())) {
+                while (reader.nextEntity() != null) {
+                    // A corrupt or truncated entity throws an exception
+                }
+            }
+        } catch (URISyntaxException | IllegalArgumentException | IOException | UninitializedMessageException e) {
             return INVALID_FEED;
         }
-        if (feed.hasHeader()) {
-            _log.info(String.format("%s is a valid GTFS-realtime feed", FeedURL));
-            return VALID_FEED;
-        }
-        return INVALID_FEED;
+        _log.info(String.format("%s is a valid GTFS-realtime feed", FeedURL));
+        return VALID_FEED;
+    }
+
+    /**
+     * Starts monitoring the provided feed for a client.  Clients monitoring the same URL share one iteration of the feed,
+     * which runs at the shortest update interval requested by any of those clients.  Overruns are skipped, and the feed
+     * has normal priority.
+     *
+     * @param gtfsRtFeed     the feed to monitor
+     * @param updateInterval the update interval requested by the client, in seconds
+     * @param enableShapes   true if shapes.txt should be used to validate the feed, false if it shouldn't
+     * @return the scheduled iterations of the feed
+     */
+    public static ServiceScheduler startBackgroundTask(GtfsRtFeedModel gtfsRtFeed, int updateInterval, boolean enableShapes) {
+        return startBackgroundTask(gtfsRtFeed, updateInterval, enableShapes, FeedScheduler.OverrunPolicy.SKIP, FeedScheduler.Priority.NORMAL);
     }
 
-    public synchronized static ServiceScheduler startBackgroundTask(GtfsRtFeedModel gtfsRtFeed, int updateInterval,
-                                                                    boolean intervalUpdated, boolean enableShapes) {
-        String rtFeedUrl = gtfsRtFeed.getGtfsRtUrl();
+    /**
+     * Starts monitoring the provided feed for a client.  Clients monitoring the same URL share one iteration of the feed,
+     * which runs at the shortest update interval requested by any of those clients, and with normal priority if any of
+     * those clients requested it.  The overrun policy is the one requested by the client that started the iterations
+     * (or the last client that requested a shorter interval).
+     *
+     * @param gtfsRtFeed     the feed to monitor
+     * @param updateInterval the update interval requested by the client, in seconds
+     * @param enableShapes   true if shapes.txt should be used to validate the feed, false if it shouldn't
+     * @param overrunPolicy  what happens when an iteration is due while the previous iteration is still running
+     * @param priority       the priority of the feed when the workers are saturated
+     * @return the scheduled iterations of the feed
+     */
+    public static ServiceScheduler startBackgroundTask(GtfsRtFeedModel gtfsRtFeed, int updateInterval, boolean enableShapes,
+                                                       FeedScheduler.OverrunPolicy overrunPolicy, FeedScheduler.Priority priority) {
         gtfsRtFeed.setEnableShapes(enableShapes);
-        if (!runningTasks.containsKey(rtFeedUrl)) {
-            ServiceScheduler serviceScheduler = new ServiceScheduler();
-            ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-            scheduler.scheduleAtFixedRate(new BackgroundTask(gtfsRtFeed), 0, updateInterval, TimeUnit.SECONDS);
-            serviceScheduler.setScheduler(scheduler);
-            serviceScheduler.setUpdateInterval(updateInterval);
-            serviceScheduler.setParallelClientCount(1);
-            runningTasks.put(rtFeedUrl, serviceScheduler);
-            return serviceScheduler;
-        } else {
-            if (intervalUpdated) {
-                ServiceScheduler serviceScheduler = runningTasks.get(rtFeedUrl);
-                serviceScheduler.getScheduler().shutdown();
-                ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-                scheduler.scheduleAtFixedRate(new BackgroundTask(gtfsRtFeed), 0, updateInterval, TimeUnit.SECONDS);
-                serviceScheduler.setScheduler(scheduler);
+        // compute() makes the check and update atomic for each URL, without blocking clients of other URLs
+        return runningTasks.compute(gtfsRtFeed.getGtfsRtUrl(), (rtFeedUrl, serviceScheduler) -> {
+            if (serviceScheduler == null) {
+                serviceScheduler = new ServiceScheduler();
+                scheduleBackgroundTask(serviceScheduler, gtfsRtFeed, updateInterval, overrunPolicy, priority, null);
                 serviceScheduler.setUpdateInterval(updateInterval);
-                serviceScheduler.setParallelClientCount(serviceScheduler.getParallelClientCount()+1);
-                runningTasks.replace(rtFeedUrl, serviceScheduler);
+                serviceScheduler.setParallelClientCount(1);
                 return serviceScheduler;
-            } else {
-                runningTasks.get(rtFeedUrl).setParallelClientCount(runningTasks.get(rtFeedUrl).getParallelClientCount()+1);
-                runningTasks.get(rtFeedUrl).setUpdateInterval(updateInterval);
-                return runningTasks.get(rtFeedUrl);
             }
+            if (updateInterval < serviceScheduler.getUpdateInterval()) {
+                // This client wants more frequent updates than the existing clients
+                FeedScheduler.ScheduledFeed existingFeed = serviceScheduler.getScheduledFeed();
+                cancelBackgroundTask(serviceScheduler);
+                scheduleBackgroundTask(serviceScheduler, gtfsRtFeed, updateInterval, overrunPolicy, existingFeed.getPriority(), existingFeed);
+                serviceScheduler.setUpdateInterval(updateInterval);
+            }
+            if (priority == FeedScheduler.Priority.NORMAL) {
+                serviceScheduler.getScheduledFeed().setPriority(priority);
+            }
+            serviceScheduler.setParallelClientCount(serviceScheduler.getParallelClientCount() + 1);
+            return serviceScheduler;
+        });
+    }
+
+    /**
+     * Stops monitoring the provided feed URL for a client, and stops the iterations of the feed and removes its last
+     * iteration from the LastIterationCache if no other clients are monitoring it
+     *
+     * @param rtFeedUrl the URL of the feed to stop monitoring
+     */
+    public static void stopBackgroundTask(String rtFeedUrl) {
+        runningTasks.computeIfPresent(rtFeedUrl, (url, serviceScheduler) -> {
+            if (serviceScheduler.getParallelClientCount() <= 1) {
+                cancelBackgroundTask(serviceScheduler);
+                // Kept when the feed is only rescheduled, but not once nobody monitors it
+                serviceScheduler.getBackgroundTask().forgetLastIteration();
+                return null;
+            }
+            serviceScheduler.setParallelClientCount(serviceScheduler.getParallelClientCount() - 1);
+            return serviceScheduler;
+        });
+    }
+
+    /**
+     * Starts and stops the iterations of feeds on this server so it monitors exactly the provided feeds - the feeds of the
+     * GTFS feeds this server holds the leases of in a cluster.  Feeds whose settings changed are restarted with the new
+     * settings.  A feed whose GTFS data can't be loaded isn't started, and is tried again the next time this is called.
+     * The LastIterationCache entry of a feed is removed when this server takes or loses its lease, because the other
+     * servers save iterations of the feed while they hold the lease.
+     *
+     * @param monitoredFeeds the feeds this server should monitor
+     */
+    public static synchronized void runClusterFeeds(List<MonitoredFeedModel> monitoredFeeds) {
+        Map<Integer, MonitoredFeedModel> assignedFeeds = new HashMap<>();
+        for (MonitoredFeedModel monitoredFeed : monitoredFeeds) {
+            assignedFeeds.put(monitoredFeed.getGtfsRtId(), monitoredFeed);
+        }
+
+        Iterator<Map.Entry<Integer, MonitoredFeedModel>> runningFeeds = clusterFeeds.entrySet().iterator();
+        while (runningFeeds.hasNext()) {
+            Map.Entry<Integer, MonitoredFeedModel> runningFeed = runningFeeds.next();
+            MonitoredFeedModel assignedFeed = assignedFeeds.get(runningFeed.getKey());
+            if (assignedFeed == null || assignedFeed.getVersion() != runningFeed.getValue().getVersion()) {
+                _log.info("Stopping GTFS-rt feed " + runningFeed.getKey() + " on this server");
+                stopBackgroundTask(clusterFeedUrls.remove(runningFeed.getKey()));
+                if (assignedFeed == null) {
+                    // The lease was lost, so the server that takes it over saves the next iterations
+                    LastIterationCache.getShared().remove(runningFeed.getKey());
+                }
+                runningFeeds.remove();
+            }
+        }
+
+        for (MonitoredFeedModel assignedFeed : monitoredFeeds) {
+            if (clusterFeeds.containsKey(assignedFeed.getGtfsRtId())) {
+                continue;
+            }
+            Session session = GTFSDB.initSessionBeginTrans();
+            GtfsRtFeedModel gtfsRtFeed = (GtfsRtFeedModel) session.createQuery(" FROM GtfsRtFeedModel "
+                    + "WHERE rtFeedID = :id")
+                    .setParameter("id", assignedFeed.getGtfsRtId())
+                    .uniqueResult();
+            GTFSDB.closeSession(session);
+            if (gtfsRtFeed == null) {
+                continue;
+            }
+            if (GtfsFeed.getGtfsData(gtfsRtFeed.getGtfsFeedModel()) == null) {
+                _log.error("Can't load the GTFS data of GTFS-rt feed " + assignedFeed.getGtfsRtId() + " - it will be started later");
+                continue;
+            }
+            gtfsRtFeed.setRuleProfile(assignedFeed.getRuleProfile());
+            gtfsRtFeed.setEnableRules(assignedFeed.getEnableRules());
+            gtfsRtFeed.setDisableRules(assignedFeed.getDisableRules());
+            // Another server may have saved iterations of the feed while it held the lease - start from the database
+            LastIterationCache.getShared().remove(assignedFeed.getGtfsRtId());
+            _log.info("Starting GTFS-rt feed " + assignedFeed.getGtfsRtId() + " on this server");
+            startBackgroundTask(gtfsRtFeed, assignedFeed.getUpdateInterval(), assignedFeed.getEnableShapes(),
+                    FeedScheduler.OverrunPolicy.valueOf(assignedFeed.getOverrunPolicy()),
+                    FeedScheduler.Priority.valueOf(assignedFeed.getPriority()));
+            clusterFeeds.put(assignedFeed.getGtfsRtId(), assignedFeed);
+            clusterFeedUrls.put(assignedFeed.getGtfsRtId(), gtfsRtFeed.getGtfsRtUrl());
+        }
+    }
+
+    /**
+     * Schedules the iterations of the provided feed.  If the feed replaces the cancelled iterations of the same feed
+     * (previousFeed), iterations are skipped until the iteration of previousFeed that may still be running finishes, so
+     * two iterations of the feed never run at the same time and the new iterations start from its results.  With
+     * adaptive polling, overrunPolicy isn't used, because the next iteration isn't scheduled until the previous one finishes.
+     */
+    private static void scheduleBackgroundTask(ServiceScheduler serviceScheduler, GtfsRtFeedModel gtfsRtFeed, int updateInterval,
+                                               FeedScheduler.OverrunPolicy overrunPolicy, FeedScheduler.Priority priority,
+                                               FeedScheduler.ScheduledFeed previousFeed) {
+        long updateIntervalMillis = TimeUnit.SECONDS.toMillis(updateInterval);
+        BackgroundTask backgroundTask = new BackgroundTask(gtfsRtFeed, updateIntervalMillis);
+        serviceScheduler.setBackgroundTask(backgroundTask);
+        Runnable iteration = backgroundTask;
+        if (previousFeed != null) {
+            iteration = () -> {
+                if (previousFeed.isPending()) {
+                    _log.info("Skipping iteration of " + gtfsRtFeed.getGtfsRtUrl() + " until its previous iteration finishes");
+                    return;
+                }
+                backgroundTask.run();
+            };
         }
+        FeedScheduler.ScheduledFeed scheduledFeed;
+        if (BackgroundTask.isAdaptivePolling()) {
+            if (overrunPolicy != FeedScheduler.OverrunPolicy.SKIP) {
+                // The next adaptive iteration is only scheduled once the previous one finishes, so iterations never overrun
+                _log.warn("Overrun policy " + overrunPolicy + " of " + gtfsRtFeed.getGtfsRtUrl() + " isn't used with adaptive polling");
+            }
+            scheduledFeed = FeedScheduler.getShared().scheduleAdaptive(iteration, updateIntervalMillis, backgroundTask::getNextDelayMillis);
+        } else {
+            scheduledFeed = FeedScheduler.getShared().schedule(iteration, updateIntervalMillis, overrunPolicy, 1);
+        }
+        scheduledFeed.setPriority(priority);
+        serviceScheduler.setScheduledFeed(scheduledFeed);
+
+        // Removed with the other metrics of the feed when the BackgroundTask stops
+        MetricsRegistry metrics = MetricsRegistry.getShared();
+        String feedId = String.valueOf(gtfsRtFeed.getGtfsRtId());
+        metrics.counter("gtfsrt_skipped_iterations_total", "Iterations of a feed skipped because the previous iteration was still running",
+                scheduledFeed::getSkippedCount, "feed_id", feedId);
+        metrics.counter("gtfsrt_late_iterations_total", "Iterations of a feed that started more than an interval after they were due",
+                scheduledFeed::getLateCount, "feed_id", feedId);
+        metrics.counter("gtfsrt_shed_iterations_total", "Iterations of a low-priority feed skipped while the workers were saturated",
+                scheduledFeed::getShedCount, "feed_id", feedId);
+    }
+
+    private static void cancelBackgroundTask(ServiceScheduler serviceScheduler) {
+        serviceScheduler.getScheduledFeed().cancel();
+        serviceScheduler.getBackgroundTask().stop();
     }
 
     public String getDateFormat(long feedTimestamp, int gtfsRtId) {
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import java.util.Arrays;
+
+/**
+ * Learns how often the producer of a GTFS-realtime feed publishes a new message, and decides when to poll the feed next
+ * so each poll happens just after the next message is expected, instead of polling at a fixed interval and mostly
+ * receiving the same message again.
+ * <p>
+ * The update period of the producer is the median of the differences between the header timestamps of the last
+ * SAMPLES new messages (or of the times they were received, if the feed doesn't have increasing header timestamps).
+ * The producer's clock and publishing delay are accounted for with the smallest recent difference between the time a
+ * new message was received and its header timestamp.  The next poll is scheduled a short margin after the next message
+ * is expected.  If the message isn't new yet, the feed is polled again after the minimum interval, backing off
+ * exponentially while the feed doesn't change, and also backing off exponentially after errors.
+ * <p>
+ * The time between polls is never shorter than the minimum interval requested by the client, and never longer than
+ * MAX_INTERVAL_MULTIPLE times that interval.  Instances are used by the iterations of one feed, which never run at the
+ * same time.
+ */
+public class AdaptivePollingSchedule {
+
+    // Number of recent new messages used to estimate the update period and delay of the producer
+    public static final int SAMPLES = 8;
+    // Maximum delay between polls, as a multiple of the minimum interval
+    public static final int MAX_INTERVAL_MULTIPLE = 12;
+    // Minimum time to wait after the next message is expected, to allow for jitter in when the producer publishes
+    private static final long MIN_MARGIN_MILLIS = 500;
+
+    private final long mMinIntervalMillis;
+    private final long mMaxIntervalMillis;
+
+    // Ring buffers of recent samples - the first new message has a lag but no period, so each has its own next index
+    private final long[] mPeriods = new long[SAMPLES];
+    private int mPeriodCount = 0;
+    private int mNextPeriod = 0;
+    private final long[] mLags = new long[SAMPLES];
+    private int mLagCount = 0;
+    private int mNextLag = 0;
+
+    // Header timestamp (or time received) of the last new message, or 0 if no message has been received
+    private long mLastUpdateMillis = 0;
+    private boolean mUsingHeaderTimestamps = true;
+    private int mConsecutiveDuplicates = 0;
+    private int mConsecutiveErrors = 0;
+    // Time of the next poll, in milliseconds, or 0 if no poll has been recorded yet
+    private long mNextPollMillis = 0;
+
+    /**
+     * @param minIntervalMillis the update interval requested by the client, which is the shortest delay between polls
+     */
+    public AdaptivePollingSchedule(long minIntervalMillis) {
+        if (minIntervalMillis < 1) {
+            throw new IllegalArgumentException("minIntervalMillis must be at least 1");
+        }
+        mMinIntervalMillis = minIntervalMillis;
+        mMaxIntervalMillis = minIntervalMillis * MAX_INTERVAL_MULTIPLE;
+    }
+
+    /**
+     * Records a poll that received a new message
+     *
+     * @param feedTimestampMillis the header timestamp of the message, in milliseconds, or 0 if it doesn't have one
+     * @param nowMillis           the time the message was received, in milliseconds
+     */
+    public void onUpdate(long feedTimestampMillis, long nowMillis) {
+        mConsecutiveDuplicates = 0;
+        mConsecutiveErrors = 0;
+        if (mUsingHeaderTimestamps && (feedTimestampMillis <= 0 || (mLastUpdateMillis > 0 && feedTimestampMillis <= mLastUpdateMillis))) {
+            // The header timestamp doesn't tell us when the message was published - use the time it was received
+            mUsingHeaderTimestamps = false;
+            mPeriodCount = 0;
+            mNextPeriod = 0;
+            mLagCount = 0;
+            mNextLag = 0;
+            mLastUpdateMillis = 0;
+        }
+        long updateMillis = mUsingHeaderTimestamps ? feedTimestampMillis : nowMillis;
+        if (mLastUpdateMillis > 0 && updateMillis > mLastUpdateMillis) {
+            mPeriods[mNextPeriod] = updateMillis - mLastUpdateMillis;
+            mPeriodCount = Math.min(mPeriodCount + 1, SAMPLES);
+            mNextPeriod = (mNextPeriod + 1) % SAMPLES;
+        }
+        mLags[mNextLag] = nowMillis - updateMillis;
+        mLagCount = Math.min(mLagCount + 1, SAMPLES);
+        mNextLag = (mNextLag + 1) % SAMPLES;
+        mLastUpdateMillis = updateMillis;
+
+        if (mPeriodCount == 0) {
+            mNextPollMillis = nowMillis + mMinIntervalMillis;
+            return;
+        }
+        long period = getEstimatedPeriodMillis();
+        long expectedNextUpdate = updateMillis + period + getMinLagMillis();
+        long margin = Math.max(MIN_MARGIN_MILLIS, period / 10);
+        mNextPollMillis = nowMillis + clamp(expectedNextUpdate + margin - nowMillis);
+    }
+
+    /**
+     * Records a poll that received the same message as the last poll (or a 304 Not Modified response)
+     *
+     * @param nowMillis the time the response was received, in milliseconds
+     */
+    public void onDuplicate(long nowMillis) {
+        mConsecutiveErrors = 0;
+        mConsecutiveDuplicates++;
+        // The next message is late - poll again soon, but back off if the feed stops changing
+        mNextPollMillis = nowMillis + clamp(backOff(mConsecutiveDuplicates - 1));
+    }
+
+    /**
+     * Records a poll that failed (e.g., the server didn't respond, or the response isn't a valid GTFS-realtime message)
+     *
+     * @param nowMillis the time the poll failed, in milliseconds
+     */
+    public void onError(long nowMillis) {
+        mConsecutiveErrors++;
+        mNextPollMillis = nowMillis + clamp(backOff(mConsecutiveErrors));
+    }
+
+    /**
+     * Returns the time to wait before the next poll, in milliseconds, or 0 if no poll has been recorded yet
+     *
+     * @param nowMillis the current time, in milliseconds
+     * @return the time to wait before the next poll, in milliseconds, or 0 if no poll has been recorded yet
+     */
+    public long getNextDelayMillis(long nowMillis) {
+        return Math.max(0, mNextPollMillis - nowMillis);
+    }
+
+    /**
+     * Returns the estimated time between new messages from the producer, in milliseconds, or 0 if there aren't enough
+     * new messages yet to estimate it
+     *
+     * @return the estimated time between new messages from the producer, in milliseconds, or 0 if it can't be estimated yet
+     */
+    public long getEstimatedPeriodMillis() {
+        if (mPeriodCount == 0) {
+            return 0;
+        }
+        long[] periods = Arrays.copyOf(mPeriods, mPeriodCount);
+        Arrays.sort(periods);
+        return periods[periods.length / 2];
+    }
+
+    private long getMinLagMillis() {
+        long minLag = Long.MAX_VALUE;
+        for (int i = 0; i < mLagCount; i++) {
+            minLag = Math.min(minLag, mLags[i]);
+        }
+        return minLag;
+    }
+
+    private long backOff(int attempts) {
+        // The result is clamped to the maximum interval - just don't let it overflow
+        return mMinIntervalMillis << Math.min(attempts, 20);
+    }
+
+    private long clamp(long delayMillis) {
+        return Math.max(mMinIntervalMillis, Math.min(mMaxIntervalMillis, delayMillis));
+    }
+}
@@ -24,27 +24,34 @@ import edu.usf.cutr.gtfsrtvalidator.helper.DBHelper;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.GtfsRtFeedIterationModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.GtfsRtFeedModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
-import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.FeedMessageReader;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.RuleUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.DeltaValidator;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.GtfsMetadata;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.IterationHistory;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.MetadataFacet;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleSelection;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.RuleWatchdog;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.interfaces.FeedEntityValidator;
-import edu.usf.cutr.gtfsrtvalidator.lib.validation.rules.*;
-import org.apache.commons.io.IOUtils;
+import edu.usf.cutr.gtfsrtvalidator.metrics.MetricsRegistry;
 import org.hibernate.Session;
 import org.onebusaway.gtfs.services.GtfsMutableDao;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.MessageDigest;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.getElapsedTime;
 import static edu.usf.cutr.gtfsrtvalidator.lib.util.TimestampUtils.getElapsedTimeString;
@@ -53,30 +60,237 @@ public class BackgroundTask implements Runnable {
 
     private static final org.slf4j.Logger _log = LoggerFactory.getLogger(BackgroundTask.class);
 
-    private static Map<Integer, GtfsRealtime.FeedMessage> mGtfsRtFeedMap = new ConcurrentHashMap<>();
+    // Maps gtfsFeedId to the latest messages of the GTFS-realtime feeds being monitored for that GTFS data
+    private static Map<Integer, CombinedFeedAggregator> mCombinedFeeds = new ConcurrentHashMap<>();
     private static Map<Integer, GtfsMetadata> mGtfsMetadata = new ConcurrentHashMap<>();
-    private final static List<FeedEntityValidator> mValidationRules = new ArrayList<>();
 
-    private GtfsRtFeedModel mCurrentGtfsRtFeed = null;
+    // Server-wide rule configuration, which can be overridden per feed when monitoring starts
+    private static volatile Properties mRuleConfig = new Properties();
+
+    // Maximum number of occurrences per rule that are stored for each iteration
+    public final static int DEFAULT_MAX_OCCURRENCES_PER_RULE = 1000;
+    private static volatile int mMaxOccurrencesPerRule = DEFAULT_MAX_OCCURRENCES_PER_RULE;
+
+    // Maximum time each rule may run in each iteration before it is stopped
+    private static volatile long mRuleTimeBudgetMillis = RuleWatchdog.DEFAULT_BUDGET_MILLIS;
 
-    public BackgroundTask(GtfsRtFeedModel gtfsRtFeed) {
-        // Accept the gtfs feed id and save entities of the same feed in an array
+    // True to poll each feed when its next message is expected instead of at the update interval
+    private static volatile boolean mAdaptivePolling = false;
+
+    // Maximum sizes of the feed messages that are parsed, when monitoring starts and in each iteration (see FeedMessageReader)
+    private static volatile int mMaxEntitySizeBytes = FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES;
+    private static volatile long mMaxMessageSizeBytes = FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES;
+
+    private GtfsRtFeedModel mCurrentGtfsRtFeed = null;
+    private final RuleSelection mRuleSelection;
+    private final List<FeedEntityValidator> mValidationRules;
+    // Carries forward results for unchanged entities between iterations of this feed
+    private final DeltaValidator mDeltaValidator = new DeltaValidator();
+    // Stops rules that exceed their time budget, and disables rules that time out repeatedly for this feed
+    private final RuleWatchdog mRuleWatchdog;
+    // Fetches the feed, and remembers its ETag and Last-Modified for conditional requests
+    private FeedFetcher mFeedFetcher = null;
+    // Learns when this feed publishes new messages, to decide when to poll it next (see isAdaptivePolling())
+    private final AdaptivePollingSchedule mPollingSchedule;
+
+    // Time spent in each step of the iterations of this feed, exposed at /api/metrics
+    private final String mFeedId;
+    private final MetricsRegistry.Histogram mFetchSeconds;
+    private final MetricsRegistry.Histogram mDownloadSeconds;
+    private final MetricsRegistry.Histogram mDecodeSeconds;
+    private final MetricsRegistry.Histogram mValidateSeconds;
+    private final MetricsRegistry.Histogram mPersistSeconds;
+    private final MetricsRegistry.Counter mReceivedBytes;
+    private final MetricsRegistry.Counter mUniqueIterations;
+    private final MetricsRegistry.Counter mDuplicateIterations;
+    private final MetricsRegistry.Counter mNotModifiedIterations;
+    private final MetricsRegistry.Counter mFailedIterations;
+    private final Map<FeedEntityValidator, MetricsRegistry.Histogram> mRuleSeconds = new HashMap<>();
+    private final Map<FeedEntityValidator, MetricsRegistry.Counter> mRuleFailures = new HashMap<>();
+    // Time spent saving the current iteration and queueing its results for the database, in nanoseconds
+    private long mPersistNanos;
+    // True once the feed is no longer monitored, so a running iteration doesn't cache its message (see forgetLastIteration())
+    private volatile boolean mForgetLastIteration = false;
+
+    /**
+     * Creates the iterations of the provided feed, and adds the feed to the feeds combined for cross-feed validation
+     * with the other feeds for the same GTFS data.  stop() must be called when the iterations are no longer run.
+     *
+     * @param gtfsRtFeed           the feed to monitor
+     * @param updateIntervalMillis the time between iterations of the feed, in milliseconds
+     */
+    public BackgroundTask(GtfsRtFeedModel gtfsRtFeed, long updateIntervalMillis) {
         mCurrentGtfsRtFeed = gtfsRtFeed;
+        // With adaptive polling, a feed that doesn't change is polled up to MAX_INTERVAL_MULTIPLE times less often
+        long maxPollIntervalMillis = mAdaptivePolling ? updateIntervalMillis * AdaptivePollingSchedule.MAX_INTERVAL_MULTIPLE : updateIntervalMillis;
+        mCombinedFeeds.compute(gtfsRtFeed.getGtfsFeedModel().getFeedId(), (k, aggregator) -> {
+            if (aggregator == null) {
+                aggregator = new CombinedFeedAggregator();
+            }
+            aggregator.join(gtfsRtFeed.getGtfsRtId(), maxPollIntervalMillis);
+            return aggregator;
+        });
 
         // Initialize validation rules
-        synchronized (mValidationRules) {
-            if (mValidationRules.isEmpty()) {
-                mValidationRules.add(new CrossFeedDescriptorValidator());
-                mValidationRules.add(new VehicleValidator());
-                mValidationRules.add(new TimestampValidator());
-                mValidationRules.add(new StopTimeUpdateValidator());
-                mValidationRules.add(new TripDescriptorValidator());
-                mValidationRules.add(new StopValidator());
-                mValidationRules.add(new FrequencyTypeZeroValidator());
-                mValidationRules.add(new FrequencyTypeOneValidator());
-                mValidationRules.add(new HeaderValidator());
-            }
+        mRuleSelection = getRuleSelection(gtfsRtFeed);
+        mValidationRules = mRuleSelection.createValidators();
+        mRuleWatchdog = new RuleWatchdog(mRuleTimeBudgetMillis);
+        mPollingSchedule = new AdaptivePollingSchedule(updateIntervalMillis);
+
+        MetricsRegistry metrics = MetricsRegistry.getShared();
+        mFeedId = String.valueOf(gtfsRtFeed.getGtfsRtId());
+        mFetchSeconds = metrics.histogram("gtfsrt_fetch_seconds", "Time from requesting a feed to receiving the response headers", "feed_id", mFeedId);
+        mDownloadSeconds = metrics.histogram("gtfsrt_download_seconds", "Time downloading and uncompressing the body of a feed response", "feed_id", mFeedId);
+        mDecodeSeconds = metrics.histogram("gtfsrt_decode_seconds", "Time parsing the protocol buffer of a new feed message", "feed_id", mFeedId);
+        mValidateSeconds = metrics.histogram("gtfsrt_validate_seconds", "Time running all rules on a new feed message", "feed_id", mFeedId);
+        mPersistSeconds = metrics.histogram("gtfsrt_persist_seconds", "Time saving an iteration and queueing its results for the database", "feed_id", mFeedId);
+        mReceivedBytes = metrics.counter("gtfsrt_received_bytes_total", "Bytes received for feed responses, before they were uncompressed", "feed_id", mFeedId);
+        String iterationsHelp = "Iterations of a feed, by result (unique, duplicate, not_modified or error)";
+        mUniqueIterations = metrics.counter("gtfsrt_iterations_total", iterationsHelp, "feed_id", mFeedId, "result", "unique");
+        mDuplicateIterations = metrics.counter("gtfsrt_iterations_total", iterationsHelp, "feed_id", mFeedId, "result", "duplicate");
+        mNotModifiedIterations = metrics.counter("gtfsrt_iterations_total", iterationsHelp, "feed_id", mFeedId, "result", "not_modified");
+        mFailedIterations = metrics.counter("gtfsrt_iterations_total", iterationsHelp, "feed_id", mFeedId, "result", "error");
+        for (FeedEntityValidator rule : mValidationRules) {
+            mRuleSeconds.put(rule, metrics.histogram("gtfsrt_rule_seconds", "Time running one rule on a new feed message",
+                    "feed_id", mFeedId, "rule", rule.getClass().getSimpleName()));
+            mRuleFailures.put(rule, metrics.counter("gtfsrt_rule_failures_total", "Iterations in which one rule failed with an exception",
+                    "feed_id", mFeedId, "rule", rule.getClass().getSimpleName()));
+        }
+    }
+
+    /**
+     * Removes the last iteration of the feed from the LastIterationCache when the feed is no longer monitored, including
+     * one saved by an iteration that is still running.  Not called when the feed is only rescheduled, so the new task
+     * can keep using the cached iteration.
+     */
+    public void forgetLastIteration() {
+        mForgetLastIteration = true;
+        LastIterationCache.getShared().remove(mCurrentGtfsRtFeed.getGtfsRtId());
+    }
+
+    /**
+     * Removes the feed from the feeds combined for cross-feed validation, so the other feeds for the same GTFS data
+     * don't wait for it
+     */
+    public void stop() {
+        mCombinedFeeds.computeIfPresent(mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId(), (k, aggregator) -> {
+            aggregator.leave(mCurrentGtfsRtFeed.getGtfsRtId());
+            return aggregator.isEmpty() ? null : aggregator;
+        });
+        MetricsRegistry.getShared().remove("feed_id", mFeedId);
+    }
+
+    /**
+     * Sets the server-wide rule configuration (see RuleSelection.fromProperties()) used for all feeds.  The rule profile
+     * and enabled/disabled rules provided when monitoring of a feed starts are applied on top of this configuration.
+     *
+     * @param ruleConfig the server-wide rule configuration
+     */
+    public static void setRuleConfig(Properties ruleConfig) {
+        mRuleConfig = ruleConfig;
+    }
+
+    /**
+     * Returns the rules to validate the provided feed with, based on the server-wide rule configuration and the rule
+     * profile and enabled/disabled rules for the feed
+     *
+     * @param gtfsRtFeed the feed to get the rules for
+     * @return the rules to validate the provided feed with
+     * @throws IllegalArgumentException if the rule profile or enabled/disabled rules for the feed don't exist
+     */
+    public static RuleSelection getRuleSelection(GtfsRtFeedModel gtfsRtFeed) {
+        RuleSelection ruleSelection = RuleSelection.fromProperties(mRuleConfig);
+        if (gtfsRtFeed.getRuleProfile() != null && !gtfsRtFeed.getRuleProfile().isEmpty()) {
+            ruleSelection.setProfile(gtfsRtFeed.getRuleProfile());
+        }
+        ruleSelection.enable(RuleSelection.parseList(gtfsRtFeed.getEnableRules()));
+        ruleSelection.disable(RuleSelection.parseList(gtfsRtFeed.getDisableRules()));
+        return ruleSelection;
+    }
+
+    /**
+     * Sets the maximum number of occurrences that will be stored in the database for each rule for each iteration.  The total
+     * number of occurrences is still stored for each rule.  Default is DEFAULT_MAX_OCCURRENCES_PER_RULE.
+     *
+     * @param maxOccurrencesPerRule the maximum number of occurrences that will be stored for each rule, or RuleUtils.NO_OCCURRENCE_LIMIT to store all occurrences
+     */
+    public static void setMaxOccurrencesPerRule(int maxOccurrencesPerRule) {
+        mMaxOccurrencesPerRule = maxOccurrencesPerRule;
+    }
+
+    /**
+     * Sets the maximum time each rule may run in each iteration of a feed.  A rule that exceeds its budget is stopped
+     * and W010 is stored instead of its results, and a rule that times out repeatedly is temporarily disabled for that
+     * feed (see RuleWatchdog).  Applies to feeds that start monitoring after this is called.  Default is RuleWatchdog.DEFAULT_BUDGET_MILLIS.
+     *
+     * @param ruleTimeBudgetMillis the maximum time each rule may run in each iteration, in milliseconds, or RuleWatchdog.NO_BUDGET for no limit
+     */
+    public static void setRuleTimeBudgetMillis(long ruleTimeBudgetMillis) {
+        mRuleTimeBudgetMillis = ruleTimeBudgetMillis;
+    }
+
+    /**
+     * Sets whether feeds are polled when their next message is expected (see AdaptivePollingSchedule), never more often
+     * than the update interval requested by the client, instead of at the update interval.  Applies to feeds that start
+     * monitoring after this is called.  Default is false.
+     *
+     * @param adaptivePolling true to poll feeds when their next message is expected, false to poll them at the update interval
+     */
+    public static void setAdaptivePolling(boolean adaptivePolling) {
+        mAdaptivePolling = adaptivePolling;
+    }
+
+    /**
+     * Sets the maximum sizes of the feed messages that are parsed.  The same limits are used to check a feed when
+     * monitoring starts and to parse it in each iteration, so a feed that passes the check can be parsed.  An iteration
+     * that receives a larger message fails.  Defaults are FeedMessageReader.DEFAULT_MAX_ENTITY_SIZE_BYTES and
+     * FeedMessageReader.DEFAULT_MAX_MESSAGE_SIZE_BYTES.
+     *
+     * @param maxEntitySizeBytes  the maximum size of the header or of a single entity, in bytes
+     * @param maxMessageSizeBytes the maximum size of an entire feed message, in bytes
+     */
+    public static void setFeedSizeLimits(int maxEntitySizeBytes, long maxMessageSizeBytes) {
+        if (maxEntitySizeBytes <= 0 || maxMessageSizeBytes <= 0) {
+            throw new IllegalArgumentException("Size limits must be positive");
         }
+        mMaxEntitySizeBytes = maxEntitySizeBytes;
+        mMaxMessageSizeBytes = maxMessageSizeBytes;
+    }
+
+    /**
+     * Returns the maximum size of the header or of a single entity of the feed messages that are parsed, in bytes
+     *
+     * @return the maximum size of the header or of a single entity of the feed messages that are parsed, in bytes
+     */
+    public static int getMaxEntitySizeBytes() {
+        return mMaxEntitySizeBytes;
+    }
+
+    /**
+     * Returns the maximum size of the feed messages that are parsed, in bytes
+     *
+     * @return the maximum size of the feed messages that are parsed, in bytes
+     */
+    public static long getMaxMessageSizeBytes() {
+        return mMaxMessageSizeBytes;
+    }
+
+    /**
+     * Returns true if feeds are polled when their next message is expected, false if they are polled at the update interval
+     *
+     * @return true if feeds are polled when their next message is expected, false if they are polled at the update interval
+     */
+    public static boolean isAdaptivePolling() {
+        return mAdaptivePolling;
+    }
+
+    /**
+     * Returns the time to wait before the next iteration of this feed when it's polled adaptively, in milliseconds
+     *
+     * @return the time to wait before the next iteration of this feed when it's polled adaptively, in milliseconds
+     */
+    public long getNextDelayMillis() {
+        return mPollingSchedule.getNextDelayMillis(System.currentTimeMillis());
     }
 
     @Override
@@ -84,7 +298,7 @@ public class BackgroundTask implements Runnable {
         try {
             long startTimeNanos = System.nanoTime();
             GtfsRealtime.FeedMessage currentFeedMessage;
-            GtfsRealtime.FeedMessage previousFeedMessage = null;
+            PreviousIterationState previousState;
             GtfsMutableDao gtfsData;
             GtfsMetadata gtfsMetadata;
             // Holds data needed in the database under each iteration
@@ -93,12 +307,23 @@ public class BackgroundTask implements Runnable {
             
             // Get the GTFS feed from the GtfsDaoMap using the gtfsFeedId of the current feed.
             gtfsData = GtfsFeed.GtfsDaoMap.get(mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId());
-            // Create the GTFS metadata if it doesn't already exist
-            // TODO - read ignoreShapes from website checkbox - see https://github.com/CUTR-at-USF/gtfs-realtime-validator/issues/286
-            gtfsMetadata = mGtfsMetadata.computeIfAbsent(mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId(),
-                    k -> new GtfsMetadata(mCurrentGtfsRtFeed.getGtfsFeedModel().getGtfsUrl(),
-                            TimeZone.getTimeZone(mCurrentGtfsRtFeed.getGtfsFeedModel().getAgency()),
-                            gtfsData, mCurrentGtfsRtFeed.getEnableShapes()));
+            // Create the GTFS metadata if it doesn't already exist, or rebuild it if this feed's rules need more metadata than existing feeds for the same GTFS data
+            Set<MetadataFacet> facets = RuleSelection.getRequiredMetadata(mValidationRules);
+            if (!mCurrentGtfsRtFeed.getEnableShapes()) {
+                facets.remove(MetadataFacet.SHAPES);
+            }
+            gtfsMetadata = mGtfsMetadata.compute(mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId(),
+                    (k, existing) -> {
+                        if (existing != null && existing.hasFacets(facets)) {
+                            return existing;
+                        }
+                        if (existing != null) {
+                            facets.addAll(existing.getFacets());
+                        }
+                        return new GtfsMetadata(mCurrentGtfsRtFeed.getGtfsFeedModel().getGtfsUrl(),
+                                TimeZone.getTimeZone(mCurrentGtfsRtFeed.getGtfsFeedModel().getAgency()),
+                                gtfsData, facets);
+                    });
 
             // Read the GTFS-rt feed from the feed URL
             URL gtfsRtFeedUrl;
@@ -108,137 +333,112 @@ public class BackgroundTask implements Runnable {
             } catch (MalformedURLException e) {
                 _log.error("Malformed Url: " + mCurrentGtfsRtFeed.getGtfsRtUrl(), e);
                 e.printStackTrace();
+                mPollingSchedule.onError(System.currentTimeMillis());
+                mFailedIterations.increment();
                 return;
             }
+            if (mFeedFetcher == null) {
+                mFeedFetcher = new FeedFetcher(gtfsRtFeedUrl);
+            }
 
             try {
                 // Get the GTFS-RT feedMessage for this method
-                long startHttpRequest = System.nanoTime();
-                InputStream in = gtfsRtFeedUrl.openStream();
-                consoleOutput.append("\n" + mCurrentGtfsRtFeed.getGtfsRtUrl() + " gtfsRtFeedUrl.openStream() in " + getElapsedTimeString(getElapsedTime(startHttpRequest, System.nanoTime())));
-                long startToByteArray = System.nanoTime();
-                byte[] gtfsRtProtobuf = IOUtils.toByteArray(in);
-                consoleOutput.append("\n" + mCurrentGtfsRtFeed.getGtfsRtUrl() + " IOUtils.toByteArray(in) in " + getElapsedTimeString(getElapsedTime(startToByteArray, System.nanoTime())));
-
-                boolean isUniqueFeed = true;
-                MessageDigest md = MessageDigest.getInstance("MD5");
-                byte[] prevFeedDigest = null;
-                byte[] currentFeedDigest = md.digest(gtfsRtProtobuf);
-
-                session = GTFSDB.initSessionBeginTrans();
-                feedIteration = (GtfsRtFeedIterationModel) session.createQuery("FROM GtfsRtFeedIterationModel"
-                        + " WHERE rtFeedId = :gtfsRtId"
-                        + " ORDER BY IterationId DESC")
-                        .setParameter("gtfsRtId", mCurrentGtfsRtFeed.getGtfsRtId())
-                        .setMaxResults(1)
-                        .uniqueResult();
-                if (feedIteration != null) {
-                    prevFeedDigest = feedIteration.getFeedHash();
+                FeedFetcher.Result response = mFeedFetcher.fetch();
+                mFetchSeconds.observeNanos(response.getResponseNanos());
+                mReceivedBytes.add(response.getReceivedBytes());
+                // Hash, timestamp and summary of the last message of this feed - only read from the database after a restart
+                LastIterationCache.LastIteration lastIteration = LastIterationCache.getShared().get(mCurrentGtfsRtFeed.getGtfsRtId());
+                if (lastIteration == null) {
+                    lastIteration = readLastIteration();
                 }
+                if (response.isNotModified()) {
+                    mPollingSchedule.onDuplicate(System.currentTimeMillis());
+                    mNotModifiedIterations.increment();
+                    refreshCombinedFeed();
+                }
+                if (response.isNotModified() && lastIteration != null) {
+                    // The feed hasn't changed since the last iteration, so there is nothing to parse or validate - just record the iteration
+                    saveDuplicateIteration(lastIteration);
+                    _log.info("\n" + mCurrentGtfsRtFeed.getGtfsRtUrl() + " not modified (304) in " + getElapsedTimeString(getElapsedTime(0, response.getLatencyNanos())));
+                    return;
+                }
+                if (response.isNotModified()) {
+                    // Can't record the iteration without the last message of the feed - fetch it again next iteration
+                    mFeedFetcher = null;
+                    return;
+                }
+                byte[] gtfsRtProtobuf = response.getBody();
+                mDownloadSeconds.observeNanos(response.getLatencyNanos() - response.getResponseNanos());
+                consoleOutput.append("\n" + mCurrentGtfsRtFeed.getGtfsRtUrl() + " fetched " + response.getReceivedBytes() + " bytes (" + gtfsRtProtobuf.length + " uncompressed) in " + getElapsedTimeString(getElapsedTime(0, response.getLatencyNanos())));
 
-                if(MessageDigest.isEqual(currentFeedDigest, prevFeedDigest)) {
-                    // If previous feed digest and newly fetched/current feed digest are equal means, we received the same feed again.
-                    isUniqueFeed = false;
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                byte[] currentFeedDigest = md.digest(gtfsRtProtobuf);
+                if (lastIteration != null && MessageDigest.isEqual(currentFeedDigest, lastIteration.getFeedHash())) {
+                    // We received the same feed again, so it has the same timestamp and doesn't need to be parsed or validated
+                    mPollingSchedule.onDuplicate(System.currentTimeMillis());
+                    mDuplicateIterations.increment();
+                    refreshCombinedFeed();
+                    saveDuplicateIteration(lastIteration);
+                    mFeedFetcher.commit(response);
+                    _log.info(consoleOutput.toString());
+                    return;
                 }
 
                 long startProtobufDecode = System.nanoTime();
-                currentFeedMessage = GtfsRealtime.FeedMessage.parseFrom(gtfsRtProtobuf);
+                // Parsed the same way the feed was checked when monitoring started
+                currentFeedMessage = FeedMessageReader.parseFrom(gtfsRtProtobuf, mMaxEntitySizeBytes, mMaxMessageSizeBytes);
+                mDecodeSeconds.observeNanos(System.nanoTime() - startProtobufDecode);
                 consoleOutput.append("\n" + mCurrentGtfsRtFeed.getGtfsRtUrl() + " protobuf decode in " + getElapsedTimeString(getElapsedTime(startProtobufDecode, System.nanoTime())));
                 _log.info(consoleOutput.toString());
                 consoleOutput.setLength(0);  // Clear the buffer for the next set of log statements
 
                 long feedTimestamp = TimeUnit.SECONDS.toMillis(currentFeedMessage.getHeader().getTimestamp());
+                mPollingSchedule.onUpdate(feedTimestamp, System.currentTimeMillis());
+                mUniqueIterations.increment();
+                previousState = lastIteration != null ? lastIteration.getState() : null;
 
-                // Create new feedIteration object and save the iteration to the database
-                if(isUniqueFeed) {
-                    if (feedIteration != null && feedIteration.getFeedprotobuf() != null) {
-                        // Get the previous feed message
-                        InputStream previousIs = new ByteArrayInputStream(feedIteration.getFeedprotobuf());
-                        previousFeedMessage = GtfsRealtime.FeedMessage.parseFrom(previousIs);
-                    }
-
-                    feedIteration = new GtfsRtFeedIterationModel(System.currentTimeMillis(), feedTimestamp, gtfsRtProtobuf, mCurrentGtfsRtFeed, currentFeedDigest);
-                } else {
-                    feedIteration = new GtfsRtFeedIterationModel(System.currentTimeMillis(), feedTimestamp, null, mCurrentGtfsRtFeed, currentFeedDigest);
-                }
+                // Save the iteration to the database
+                long startSaveNanos = System.nanoTime();
+                feedIteration = new GtfsRtFeedIterationModel(System.currentTimeMillis(), feedTimestamp, gtfsRtProtobuf, mCurrentGtfsRtFeed, currentFeedDigest);
+                session = GTFSDB.initSessionBeginTrans();
                 session.save(feedIteration);
                 GTFSDB.commitAndCloseSession(session);
+                mPersistNanos = System.nanoTime() - startSaveNanos;
 
-                if (!isUniqueFeed) {
-                    return;
-                }
+                // Keep the summaries of the last iterations so rules can look back further than the previous iteration
+                cacheLastIteration(new LastIterationCache.LastIteration(currentFeedDigest, feedTimestamp,
+                        PreviousIterationState.of(currentFeedMessage).withHistory(previousState, IterationHistory.DEFAULT_MAX_ITERATIONS)));
+                // Only ask the server whether the feed changed since this message now that it has been saved
+                mFeedFetcher.commit(response);
             } catch (Exception e) {
                 _log.error("The URL '" + gtfsRtFeedUrl + "' does not contain valid Gtfs-Rt data", e);
+                mPollingSchedule.onError(System.currentTimeMillis());
+                mFailedIterations.increment();
                 return;
             }
 
-            // Read all GTFS-rt entities for the current feed
-            mGtfsRtFeedMap.put(feedIteration.getGtfsRtFeedModel().getGtfsRtId(), currentFeedMessage);
-
-            session = GTFSDB.initSessionBeginTrans();
-
-            List<GtfsRealtime.FeedEntity> allEntitiesArrayList = new ArrayList<>();
-
-            List<GtfsRtFeedModel> gtfsRtFeedModelList;
-            gtfsRtFeedModelList = session.createQuery("FROM GtfsRtFeedModel"
-                    + " WHERE gtfsFeedID = :feedID")
-                    .setParameter("feedID", mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId())
-                    .list();
-
-            GTFSDB.closeSession(session);
-
-            while (!mGtfsRtFeedMap.keySet().containsAll(gtfsRtFeedModelList.stream().map(GtfsRtFeedModel::getGtfsRtId).collect(Collectors.toSet()))) {
-                Thread.sleep(200);
-            }
-            GtfsRealtime.FeedHeader header = null;
-
-            if (gtfsRtFeedModelList.size() < 1) {
-                _log.error("The URL '" + gtfsRtFeedUrl + "' is not stored properly into the database");
-                return;
-            }
-
-            GtfsRealtime.FeedMessage combinedFeed = null;
-
-            if (gtfsRtFeedModelList.size() == 1) {
-                // See if more than one entity type exists in this feed
-                GtfsRealtime.FeedMessage message = mGtfsRtFeedMap.get(gtfsRtFeedModelList.get(0).getGtfsRtId());
-                if (GtfsUtils.isCombinedFeed(message)) {
-                    // Run CrossFeedDescriptorValidator on this message
-                    combinedFeed = message;
+            // Combine this feed with the latest messages of the other feeds for the same GTFS data, without waiting for
+            // feeds that haven't been read yet - cross-feed rules run in the first iteration of any of the feeds after all have been read
+            CombinedFeed combinedFeed = null;
+            CombinedFeedAggregator aggregator = mCombinedFeeds.get(mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId());
+            if (aggregator != null) {
+                combinedFeed = aggregator.publish(mCurrentGtfsRtFeed.getGtfsRtId(), currentFeedMessage);
+                if (combinedFeed == null && !aggregator.getStaleFeedIds().isEmpty()) {
+                    _log.debug("Skipping cross-feed rules for " + mCurrentGtfsRtFeed.getGtfsRtUrl() + " - waiting for feeds " + aggregator.getStaleFeedIds());
                 }
             }
 
-            if (gtfsRtFeedModelList.size() > 1) {
-                // We're monitoring multiple GTFS-rt feeds for the same GTFS data - create a combined feed message include all entities for all of those GTFS-rt feeds
-                _log.debug("Creating combined feed message for " + gtfsRtFeedModelList.toString());
-                for (GtfsRtFeedModel gtfsRtFeedModel : gtfsRtFeedModelList) {
-                    GtfsRealtime.FeedMessage message = mGtfsRtFeedMap.get(gtfsRtFeedModel.getGtfsRtId());
-                    if (header == null) {
-                        // Save one header to use in our combined feed below
-                        header = message.getHeader();
-                    } else {
-                        if (message.getHeader() != null && message.getHeader().getTimestamp() > header.getTimestamp()) {
-                            // Use largest header timestamp with multiple feeds - see #239
-                            header = message.getHeader();
-                        }
-                    }
-                    if (message != null) {
-                        allEntitiesArrayList.addAll(message.getEntityList());
-                    }
-                }
-
-                GtfsRealtime.FeedMessage.Builder feedMessageBuilder = GtfsRealtime.FeedMessage.newBuilder();
-                feedMessageBuilder.setHeader(header);
-                feedMessageBuilder.addAllEntity(allEntitiesArrayList);
-                combinedFeed = feedMessageBuilder.build();
-            }
-
             // Use the same current time for all rules for consistency
             long currentTimeMillis = System.currentTimeMillis();
             // Run validation rules
+            long startValidateNanos = System.nanoTime();
+            long saveNanos = mPersistNanos;
             for (FeedEntityValidator rule : mValidationRules) {
-                consoleOutput.append(validateEntity(currentTimeMillis, currentFeedMessage, previousFeedMessage, combinedFeed, gtfsData, gtfsMetadata, feedIteration, rule));
+                consoleOutput.append(validateEntity(currentTimeMillis, currentFeedMessage, previousState, combinedFeed, gtfsData, gtfsMetadata, feedIteration, rule));
             }
+            // Queueing the results is counted as persisting them, not validating them
+            mValidateSeconds.observeNanos(System.nanoTime() - startValidateNanos - (mPersistNanos - saveNanos));
+            mPersistSeconds.observeNanos(mPersistNanos);
             consoleOutput.append("\nProcessed " + mCurrentGtfsRtFeed.getGtfsRtUrl() + " in " + getElapsedTimeString(getElapsedTime(startTimeNanos, System.nanoTime())));
             consoleOutput.append("\n---------------------");
             _log.info(consoleOutput.toString());
@@ -247,24 +447,110 @@ public class BackgroundTask implements Runnable {
         }
     }
 
-    private StringBuffer validateEntity(long currentTimeMillis, GtfsRealtime.FeedMessage currentFeedMessage, GtfsRealtime.FeedMessage previousFeedMessage,
-                                        GtfsRealtime.FeedMessage combinedFeedMessage, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata,
-                                        GtfsRtFeedIterationModel feedIteration, FeedEntityValidator feedEntityValidator) {
+    /**
+     * Returns the hash, timestamp and summary of the last message of this feed stored in the database, or null if the
+     * feed hasn't been read before.  This is only needed for the first iteration of a feed after the server starts.
+     */
+    private LastIterationCache.LastIteration readLastIteration() throws IOException {
+        Session session = GTFSDB.initSessionBeginTrans();
+        GtfsRtFeedIterationModel lastIteration = (GtfsRtFeedIterationModel) session.createQuery("FROM GtfsRtFeedIterationModel"
+                + " WHERE rtFeedId = :gtfsRtId"
+                + " ORDER BY IterationId DESC")
+                .setParameter("gtfsRtId", mCurrentGtfsRtFeed.getGtfsRtId())
+                .setMaxResults(1)
+                .uniqueResult();
+        // Iterations that received the same feed again don't store the protobuf, so find the last one that does
+        GtfsRtFeedIterationModel lastUniqueIteration = null;
+        if (lastIteration != null && lastIteration.getFeedprotobuf() == null) {
+            lastUniqueIteration = (GtfsRtFeedIterationModel) session.createQuery("FROM GtfsRtFeedIterationModel"
+                    + " WHERE rtFeedId = :gtfsRtId AND feedprotobuf IS NOT NULL"
+                    + " ORDER BY IterationId DESC")
+                    .setParameter("gtfsRtId", mCurrentGtfsRtFeed.getGtfsRtId())
+                    .setMaxResults(1)
+                    .uniqueResult();
+        } else {
+            lastUniqueIteration = lastIteration;
+        }
+        GTFSDB.closeSession(session);
+
+        if (lastIteration == null) {
+            return null;
+        }
+        PreviousIterationState state = null;
+        if (lastUniqueIteration != null) {
+            // The message was accepted when it was stored, so it isn't checked against the current size limits (and
+            // parsing a byte array isn't limited to 64 MB like parsing a stream)
+            state = PreviousIterationState.of(GtfsRealtime.FeedMessage.parseFrom(lastUniqueIteration.getFeedprotobuf()));
+        }
+        LastIterationCache.LastIteration result = new LastIterationCache.LastIteration(lastIteration.getFeedHash(), lastIteration.getFeedTimestamp(), state);
+        cacheLastIteration(result);
+        return result;
+    }
+
+    /**
+     * Keeps the latest message of this feed fresh for cross-feed validation by the other feeds for the same GTFS data,
+     * after a poll that didn't receive a new message
+     */
+    private void refreshCombinedFeed() {
+        CombinedFeedAggregator aggregator = mCombinedFeeds.get(mCurrentGtfsRtFeed.getGtfsFeedModel().getFeedId());
+        if (aggregator != null) {
+            aggregator.refresh(mCurrentGtfsRtFeed.getGtfsRtId());
+        }
+    }
+
+    /**
+     * Stores the last iteration of the feed in the LastIterationCache, unless the feed is no longer monitored
+     */
+    private void cacheLastIteration(LastIterationCache.LastIteration lastIteration) {
+        LastIterationCache.getShared().put(mCurrentGtfsRtFeed.getGtfsRtId(), lastIteration);
+        // Checked after the put, so either this or forgetLastIteration() removes it
+        if (mForgetLastIteration) {
+            LastIterationCache.getShared().remove(mCurrentGtfsRtFeed.getGtfsRtId());
+        }
+    }
+
+    /**
+     * Records an iteration that received the same message as the last iteration, without storing the message again.
+     * Nothing refers to this iteration, so it's written to the database by the write queue.
+     */
+    private void saveDuplicateIteration(LastIterationCache.LastIteration lastIteration) throws InterruptedException {
+        DBHelper.saveLater(new GtfsRtFeedIterationModel(System.currentTimeMillis(), lastIteration.getFeedTimestamp(), null, mCurrentGtfsRtFeed, lastIteration.getFeedHash()));
+    }
+
+    private StringBuffer validateEntity(long currentTimeMillis, GtfsRealtime.FeedMessage currentFeedMessage, PreviousIterationState previousState,
+                                        CombinedFeed combinedFeed, GtfsMutableDao gtfsData, GtfsMetadata gtfsMetadata,
+                                        GtfsRtFeedIterationModel feedIteration, FeedEntityValidator feedEntityValidator) throws InterruptedException {
         StringBuffer consoleLine = new StringBuffer();
         long startTimeNanos = System.nanoTime();
-        List<ErrorListHelperModel> errorLists = feedEntityValidator.validate(currentTimeMillis, gtfsData, gtfsMetadata, currentFeedMessage, previousFeedMessage, combinedFeedMessage);
+        List<ErrorListHelperModel> errorLists;
+        try {
+            errorLists = mRuleWatchdog.validate(feedEntityValidator,
+                    () -> mDeltaValidator.validate(feedEntityValidator, currentTimeMillis, gtfsData, gtfsMetadata, currentFeedMessage, previousState, combinedFeed));
+        } catch (RuntimeException e) {
+            // A failing rule (e.g., a plugin from another jar) doesn't stop the other rules for this iteration
+            _log.error(feedEntityValidator.getClass().getSimpleName() + " failed on " + mCurrentGtfsRtFeed.getGtfsRtUrl(), e);
+            mRuleFailures.get(feedEntityValidator).increment();
+            errorLists = null;
+        }
+        mRuleSelection.filterResults(errorLists);
+        mRuleSeconds.get(feedEntityValidator).observeNanos(System.nanoTime() - startTimeNanos);
         consoleLine.append("\n" + feedEntityValidator.getClass().getSimpleName() + " - rule = " + getElapsedTimeString(getElapsedTime(startTimeNanos, System.nanoTime())));
+        if (errorLists == null) {
+            consoleLine.append(", failed");
+        }
         if (errorLists != null) {
+            RuleUtils.limitOccurrences(errorLists, mMaxOccurrencesPerRule);
             startTimeNanos = System.nanoTime();
             for (ErrorListHelperModel errorList : errorLists) {
                 if (!errorList.getOccurrenceList().isEmpty()) {
                     //Set iteration Id
                     errorList.getErrorMessage().setGtfsRtFeedIterationModel(feedIteration);
-                    //Save the captured errors to the database
-                    DBHelper.saveError(errorList);
+                    //Queue the captured errors to be saved to the database
+                    DBHelper.saveLater(errorList);
                 }
             }
-            consoleLine.append(", database = " + getElapsedTimeString(getElapsedTime(startTimeNanos, System.nanoTime())));
+            mPersistNanos += System.nanoTime() - startTimeNanos;
+            consoleLine.append(", queue for database = " + getElapsedTimeString(getElapsedTime(startTimeNanos, System.nanoTime())));
         }
         return consoleLine;
     }
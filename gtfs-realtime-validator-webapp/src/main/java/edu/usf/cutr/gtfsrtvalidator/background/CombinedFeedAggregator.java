@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.util.GtfsUtils;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the latest message of each GTFS-realtime feed being monitored for the same GTFS data, so each iteration can
+ * validate against a combined view of all of those feeds without waiting for the other feeds.
+ * <p>
+ * A feed joins the group when monitoring starts and leaves it when monitoring stops.  Each iteration publishes its
+ * message, and gets a CombinedFeed of the latest message of every feed in the group - as soon as every feed has a
+ * fresh message, the next iteration of any of the feeds runs the cross-feed rules.  Until then (e.g., before a feed has
+ * been read for the first time, or while a feed is failing), publish() returns null so cross-feed rules are skipped
+ * instead of reporting errors for entities that are only missing because a feed hasn't been read.  A feed is fresh if
+ * it was polled successfully within MAX_MISSED_ITERATIONS update intervals - iterations that receive the same message
+ * again (or a 304 Not Modified response) call refresh(), so a feed that changes less often than that is still combined
+ * with its latest message.
+ */
+public class CombinedFeedAggregator {
+
+    // Number of update intervals a feed can fail before its last message is no longer used in the combined feed
+    public static final int MAX_MISSED_ITERATIONS = 3;
+
+    // Maps gtfsRtId to the feed in the group, ordered by gtfsRtId so the combined feed has the same order each iteration
+    private final Map<Integer, Member> mMembers = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds a feed to the group.  Calling this again for a feed that is already in the group (e.g., with a new update
+     * interval) keeps its latest message.
+     *
+     * @param gtfsRtId             the ID of the GTFS-realtime feed
+     * @param updateIntervalMillis the longest time between polls of the feed (its update interval, or the longest adaptive
+     *                             polling interval), in milliseconds
+     */
+    public void join(int gtfsRtId, long updateIntervalMillis) {
+        long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(updateIntervalMillis) * MAX_MISSED_ITERATIONS;
+        mMembers.compute(gtfsRtId, (id, member) -> {
+            Member newMember = new Member(maxAgeNanos);
+            if (member != null) {
+                newMember.mLatest = member.mLatest;
+                newMember.mLastPollNanos = member.mLastPollNanos;
+            }
+            return newMember;
+        });
+    }
+
+    /**
+     * Removes a feed and its latest message from the group
+     *
+     * @param gtfsRtId the ID of the GTFS-realtime feed
+     */
+    public void leave(int gtfsRtId) {
+        mMembers.remove(gtfsRtId);
+    }
+
+    /**
+     * Returns true if there aren't any feeds in the group, false if there are
+     *
+     * @return true if there aren't any feeds in the group, false if there are
+     */
+    public boolean isEmpty() {
+        return mMembers.isEmpty();
+    }
+
+    /**
+     * Stores the latest message of a feed, and returns a combined view of the latest messages of all feeds in the group
+     * if all of them are fresh.  This never blocks.
+     *
+     * @param gtfsRtId    the ID of the GTFS-realtime feed
+     * @param feedMessage the message that was just read from the feed
+     * @return a combined view of the latest messages of all feeds in the group, or null if any feed in the group doesn't
+     * have a fresh message or if there is only one feed and its message has only one type of entity
+     */
+    public CombinedFeed publish(int gtfsRtId, GtfsRealtime.FeedMessage feedMessage) {
+        long nowNanos = System.nanoTime();
+        Member publisher = mMembers.get(gtfsRtId);
+        if (publisher == null) {
+            // The feed stopped monitoring while this iteration was running
+            return null;
+        }
+        publisher.mLatest = feedMessage;
+        publisher.mLastPollNanos = nowNanos;
+
+        List<GtfsRealtime.FeedMessage> messages = new ArrayList<>(mMembers.size());
+        for (Member member : mMembers.values()) {
+            GtfsRealtime.FeedMessage latest = member.mLatest;
+            if (latest == null || member.isStale(nowNanos)) {
+                return null;
+            }
+            messages.add(latest);
+        }
+        if (messages.size() == 1) {
+            // Cross-feed rules only apply to a single feed if it has more than one type of entity
+            return GtfsUtils.isCombinedFeed(feedMessage) ? CombinedFeed.of(feedMessage) : null;
+        }
+        return new CombinedFeed(messages);
+    }
+
+    /**
+     * Records that a feed was polled successfully and still has the message it last published (e.g., the server
+     * returned 304 Not Modified, or the same message again), so its latest message stays fresh.  This never blocks.
+     *
+     * @param gtfsRtId the ID of the GTFS-realtime feed
+     */
+    public void refresh(int gtfsRtId) {
+        Member member = mMembers.get(gtfsRtId);
+        if (member != null) {
+            member.mLastPollNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns the IDs of the feeds in the group that don't have a fresh message
+     *
+     * @return the IDs of the feeds in the group that don't have a fresh message
+     */
+    public List<Integer> getStaleFeedIds() {
+        long nowNanos = System.nanoTime();
+        List<Integer> staleIds = new ArrayList<>();
+        for (Map.Entry<Integer, Member> entry : mMembers.entrySet()) {
+            Member member = entry.getValue();
+            if (member.mLatest == null || member.isStale(nowNanos)) {
+                staleIds.add(entry.getKey());
+            }
+        }
+        return staleIds;
+    }
+
+    private static class Member {
+        private final long mMaxAgeNanos;
+        private volatile GtfsRealtime.FeedMessage mLatest;
+        // Time of the last successful poll, whether or not it received a new message
+        private volatile long mLastPollNanos;
+
+        private Member(long maxAgeNanos) {
+            mMaxAgeNanos = maxAgeNanos;
+        }
+
+        private boolean isStale(long nowNanos) {
+            return nowNanos - mLastPollNanos > mMaxAgeNanos;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the GTFS-realtime feed at a URL for each iteration of a monitored feed.  Each fetch:
+ * <ul>
+ * <li>fails after the connect and read timeouts, so a server that stops responding can't hold a worker thread
+ * (see FeedScheduler) forever</li>
+ * <li>asks for a gzip or deflate compressed response</li>
+ * <li>sends the ETag and Last-Modified of the last committed response as If-None-Match and If-Modified-Since, so
+ * servers that support conditional requests can answer 304 Not Modified without sending the feed again.  A response
+ * is only committed (see commit()) after its iteration was saved, so a 304 never skips a message that failed to parse
+ * or couldn't be saved.</li>
+ * <li>reads the response to the end and closes it, so the JDK keeps the connection alive and reuses it for the next
+ * request to the same host (the number of idle connections kept per host is set by the http.maxConnections system
+ * property)</li>
+ * <li>waits if the maximum number of requests to the same host are already running, so monitoring many feeds from
+ * one server (e.g., with virtual threads - see FeedScheduler) can't overload that server</li>
+ * </ul>
+ * The bytes received, the bytes saved by compression and 304 responses, and the latency of each fetch are recorded per
+ * feed URL - see getStats().  Each instance is used by the iterations of one feed, which never run at the same time.
+ */
+public class FeedFetcher {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private static volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private static volatile int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    // Default maximum number of requests to the same host running at the same time
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8;
+    private static volatile int mMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    // Maps host (and port) to the permits for requests to that host
+    private static final Map<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+
+    // Maps feed URL to the fetch statistics for that URL
+    private static final Map<String, FetchStats> mStats = new ConcurrentHashMap<>();
+
+    private final URL mUrl;
+    private final FetchStats mFeedStats;
+    // Validators from the last committed response, sent with the next request
+    private String mETag = null;
+    private String mLastModified = null;
+    // Bytes received for the last response with a body, which a 304 response saves
+    private long mLastReceivedBytes = 0;
+
+    public FeedFetcher(URL url) {
+        mUrl = url;
+        mFeedStats = mStats.computeIfAbsent(url.toString(), k -> new FetchStats());
+    }
+
+    /**
+     * Sets the timeouts for connecting to feed servers and for reading responses, for all feeds.  Default is
+     * DEFAULT_CONNECT_TIMEOUT_MILLIS and DEFAULT_READ_TIMEOUT_MILLIS.
+     *
+     * @param connectTimeoutMillis the maximum time to wait for a connection to a feed server, in milliseconds (0 for no limit)
+     * @param readTimeoutMillis    the maximum time to wait for data from a feed server, in milliseconds (0 for no limit)
+     */
+    public static void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        if (connectTimeoutMillis < 0 || readTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeouts can't be negative");
+        }
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sets the maximum number of requests to the same host that can run at the same time, for all feeds.  Applies to
+     * hosts that haven't been fetched from yet.  Default is DEFAULT_MAX_REQUESTS_PER_HOST.
+     *
+     * @param maxRequestsPerHost the maximum number of requests to the same host that can run at the same time
+     */
+    public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be at least 1");
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    /**
+     * Returns the fetch statistics for the provided feed URL, or null if the URL hasn't been fetched
+     *
+     * @param url the URL of the feed
+     * @return the fetch statistics for the provided feed URL, or null if the URL hasn't been fetched
+     */
+    public static FetchStats getStats(String url) {
+        return mStats.get(url);
+    }
+
+    /**
+     * Returns the fetch statistics for all feed URLs, where key is the feed URL
+     *
+     * @return the fetch statistics for all feed URLs, where key is the feed URL
+     */
+    public static Map<String, FetchStats> getAllStats() {
+        return Collections.unmodifiableMap(mStats);
+    }
+
+    /**
+     * Fetches the feed
+     *
+     * @return the response, which doesn't have a body if the feed hasn't changed since the last fetch
+     * @throws IOException if the feed can't be fetched, or the server responds with an error
+     */
+    public Result fetch() throws IOException {
+        Semaphore hostPermits = mHostPermits.computeIfAbsent(mUrl.getProtocol() + "://" + mUrl.getAuthority(), k -> new Semaphore(mMaxRequestsPerHost));
+        try {
+            acquireHostPermit(hostPermits);
+        } catch (IOException e) {
+            mFeedStats.recordFailure();
+            throw e;
+        }
+        try {
+            return fetch(System.nanoTime());
+        } catch (IOException e) {
+            mFeedStats.recordFailure();
+            throw e;
+        } finally {
+            hostPermits.release();
+        }
+    }
+
+    private void acquireHostPermit(Semaphore hostPermits) throws IOException {
+        try {
+            if (mConnectTimeoutMillis == 0 || mReadTimeoutMillis == 0) {
+                hostPermits.acquire();
+            } else if (!hostPermits.tryAcquire((long) mConnectTimeoutMillis + mReadTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                // Don't wait for other requests to the host longer than this request could take
+                throw new IOException("Timed out waiting for other requests to " + mUrl.getAuthority() + " to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for other requests to " + mUrl.getAuthority() + " to finish", e);
+        }
+    }
+
+    private Result fetch(long startTimeNanos) throws IOException {
+        URLConnection connection = mUrl.openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        HttpURLConnection httpConnection = connection instanceof HttpURLConnection ? (HttpURLConnection) connection : null;
+
+        if (httpConnection != null) {
+            if (mETag != null) {
+                httpConnection.setRequestProperty("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                httpConnection.setRequestProperty("If-Modified-Since", mLastModified);
+            }
+            int responseCode = httpConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                closeQuietly(httpConnection.getInputStream());
+                long latencyNanos = System.nanoTime() - startTimeNanos;
+                mFeedStats.recordNotModified(mLastReceivedBytes, latencyNanos);
+                return new Result(null, 0, latencyNanos, latencyNanos, null, null);
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // Read the error body so the connection can be reused
+                closeQuietly(httpConnection.getErrorStream());
+                throw new IOException("HTTP " + responseCode + " " + httpConnection.getResponseMessage() + " from " + mUrl);
+            }
+        }
+
+        CountingInputStream received = new CountingInputStream(connection.getInputStream());
+        long responseNanos = System.nanoTime() - startTimeNanos;
+        byte[] body;
+        try (InputStream in = decode(received, connection.getContentEncoding())) {
+            body = IOUtils.toByteArray(in);
+        }
+        String eTag = null;
+        String lastModified = null;
+        if (httpConnection != null) {
+            eTag = httpConnection.getHeaderField("ETag");
+            lastModified = httpConnection.getHeaderField("Last-Modified");
+        }
+        mLastReceivedBytes = received.getByteCount();
+        long latencyNanos = System.nanoTime() - startTimeNanos;
+        mFeedStats.recordFetched(mLastReceivedBytes, body.length, latencyNanos);
+        return new Result(body, mLastReceivedBytes, responseNanos, latencyNanos, eTag, lastModified);
+    }
+
+    /**
+     * Sends the ETag and Last-Modified of the provided response with the next requests, so the server can answer 304
+     * Not Modified if the feed hasn't changed since.  This should be called once the iteration of the response has
+     * been saved - until then, the next request asks for the feed again.
+     *
+     * @param result a response returned by fetch() - committing a 304 Not Modified response doesn't change anything
+     */
+    public void commit(Result result) {
+        if (result.isNotModified()) {
+            return;
+        }
+        mETag = result.mETag;
+        mLastModified = result.mLastModified;
+    }
+
+    private static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            IOUtils.toByteArray(in);
+            in.close();
+        } catch (IOException e) {
+            // The connection won't be reused
+        }
+    }
+
+    /**
+     * The response to a fetch
+     */
+    public static class Result {
+        private final byte[] mBody;
+        private final long mReceivedBytes;
+        private final long mResponseNanos;
+        private final long mLatencyNanos;
+        // Validators of the response, which are sent with the next requests once the response is committed
+        private final String mETag;
+        private final String mLastModified;
+
+        private Result(byte[] body, long receivedBytes, long responseNanos, long latencyNanos, String eTag, String lastModified) {
+            mBody = body;
+            mReceivedBytes = receivedBytes;
+            mResponseNanos = responseNanos;
+            mLatencyNanos = latencyNanos;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * Returns true if the server responded with 304 Not Modified, so the feed hasn't changed since the last fetch
+         *
+         * @return true if the server responded with 304 Not Modified, false if the response has a body
+         */
+        public boolean isNotModified() {
+            return mBody == null;
+        }
+
+        /**
+         * Returns the uncompressed body of the response, or null if the server responded with 304 Not Modified
+         *
+         * @return the uncompressed body of the response, or null if the server responded with 304 Not Modified
+         */
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns the number of bytes received for the body of the response, before it was uncompressed
+         *
+         * @return the number of bytes received for the body of the response, before it was uncompressed
+         */
+        public long getReceivedBytes() {
+            return mReceivedBytes;
+        }
+
+        /**
+         * Returns the time from opening the connection to reading the end of the response, in nanoseconds
+         *
+         * @return the time from opening the connection to reading the end of the response, in nanoseconds
+         */
+        public long getLatencyNanos() {
+            return mLatencyNanos;
+        }
+
+        /**
+         * Returns the time from opening the connection to receiving the response headers, in nanoseconds.  The rest of
+         * the latency is the time spent downloading the body.
+         *
+         * @return the time from opening the connection to receiving the response headers, in nanoseconds
+         */
+        public long getResponseNanos() {
+            return mResponseNanos;
+        }
+    }
+
+    /**
+     * Counts of the fetches of one feed URL since the server started
+     */
+    public static class FetchStats {
+        private final AtomicLong mFetchCount = new AtomicLong();
+        private final AtomicLong mNotModifiedCount = new AtomicLong();
+        private final AtomicLong mFailureCount = new AtomicLong();
+        private final AtomicLong mReceivedBytes = new AtomicLong();
+        private final AtomicLong mSavedBytes = new AtomicLong();
+        private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+        private volatile long mLastLatencyNanos = 0;
+
+        private void recordFetched(long receivedBytes, long uncompressedBytes, long latencyNanos) {
+            mFetchCount.incrementAndGet();
+            mReceivedBytes.addAndGet(receivedBytes);
+            mSavedBytes.addAndGet(Math.max(0, uncompressedBytes - receivedBytes));
+            recordLatency(latencyNanos);
+        }
+
+        private void recordNotModified(long savedBytes, long latencyNanos) {
+            mFetchCount.incrementAndGet();
+            mNotModifiedCount.incrementAndGet();
+            mSavedBytes.addAndGet(savedBytes);
+            recordLatency(latencyNanos);
+        }
+
+        private void recordFailure() {
+            mFailureCount.incrementAndGet();
+        }
+
+        private void recordLatency(long latencyNanos) {
+            mTotalLatencyNanos.addAndGet(latencyNanos);
+            mLastLatencyNanos = latencyNanos;
+        }
+
+        /**
+         * Returns the number of successful fetches, including 304 Not Modified responses
+         *
+         * @return the number of successful fetches, including 304 Not Modified responses
+         */
+        public long getFetchCount() {
+            return mFetchCount.get();
+        }
+
+        /**
+         * Returns the number of 304 Not Modified responses
+         *
+         * @return the number of 304 Not Modified responses
+         */
+        public long getNotModifiedCount() {
+            return mNotModifiedCount.get();
+        }
+
+        /**
+         * Returns the number of fetches that failed with an error response, a timeout or another IOException
+         *
+         * @return the number of fetches that failed with an error response, a timeout or another IOException
+         */
+        public long getFailureCount() {
+            return mFailureCount.get();
+        }
+
+        /**
+         * Returns the number of bytes received for response bodies, before they were uncompressed
+         *
+         * @return the number of bytes received for response bodies, before they were uncompressed
+         */
+        public long getReceivedBytes() {
+            return mReceivedBytes.get();
+        }
+
+        /**
+         * Returns the number of bytes that weren't received because responses were compressed, or were 304 Not
+         * Modified responses (counted as the size of the last response with a body)
+         *
+         * @return the number of bytes that weren't received because of compression and 304 Not Modified responses
+         */
+        public long getSavedBytes() {
+            return mSavedBytes.get();
+        }
+
+        /**
+         * Returns the total time of all successful fetches, in nanoseconds
+         *
+         * @return the total time of all successful fetches, in nanoseconds
+         */
+        public long getTotalLatencyNanos() {
+            return mTotalLatencyNanos.get();
+        }
+
+        /**
+         * Returns the time of the last successful fetch, in nanoseconds
+         *
+         * @return the time of the last successful fetch, in nanoseconds
+         */
+        public long getLastLatencyNanos() {
+            return mLastLatencyNanos;
+        }
+    }
+}
@@ -0,0 +1,751 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import edu.usf.cutr.gtfsrtvalidator.metrics.MetricsRegistry;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs the iterations of every monitored GTFS-realtime feed on shared threads, so the number of threads doesn't grow with
+ * the number of feeds.  A single timer thread fires each feed at its update interval and hands the iteration to a fixed
+ * pool of worker threads, which do the HTTP request, validation and database writes.
+ * <p>
+ * Each feed starts at a random offset within its first interval, so feeds that start at the same time (e.g., many
+ * clients at once) are spread over the interval instead of all reaching the workers at the same moment.  By default,
+ * an iteration is skipped if the previous iteration of the same feed is still queued or running, so a slow feed can't
+ * pile up work in the queue or run concurrently with itself - the queue never holds more than one iteration per feed.
+ * Other overrun policies can be chosen for each feed (see OverrunPolicy).  When the workers are saturated (see
+ * isSaturated()), low-priority feeds are slowed down so the other feeds keep running at their intervals (see Priority).
+ * <p>
+ * Feeds can also be scheduled adaptively (see scheduleAdaptive()), in which case the task decides after each iteration
+ * how long to wait before the next one (e.g., with an AdaptivePollingSchedule), as long as iterations don't start more
+ * often than the interval requested for the feed.
+ * <p>
+ * On Java 21 and later, iterations can instead run on virtual threads (see setSharedVirtualThreads()).  Each iteration
+ * gets its own virtual thread, and the number of iterations running at the same time is limited by a semaphore instead
+ * of by the number of worker threads.  An iteration that waits for a feed server or the database then doesn't hold an
+ * OS thread, so many more feeds can be monitored with the same hardware.  Virtual threads are created by reflection so
+ * the validator still builds and runs on Java 8 - on older versions, the platform worker threads are used.
+ */
+public class FeedScheduler {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(FeedScheduler.class);
+
+    // Validation is mostly CPU-bound, but the HTTP request and database writes block, so use more threads than cores
+    public static final int DEFAULT_WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    // With virtual threads, iterations only use an OS thread while they're running on the CPU, so many more can run at the same time
+    public static final int DEFAULT_VIRTUAL_CONCURRENCY = 1000;
+
+    // While the workers are saturated, low-priority feeds run at most once every SHED_INTERVAL_MULTIPLE intervals
+    public static final int SHED_INTERVAL_MULTIPLE = 4;
+
+    private static int mSharedWorkerThreads = DEFAULT_WORKER_THREADS;
+    private static boolean mSharedVirtualThreads = false;
+    private static FeedScheduler mShared = null;
+
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final ExecutorService mWorkers;
+    private final int mConcurrency;
+    // Limits the iterations running at the same time on virtual threads, or null when using platform worker threads
+    private final Semaphore mVirtualPermits;
+    private final AtomicInteger mScheduledFeedCount = new AtomicInteger();
+    private final AtomicInteger mQueuedIterationCount = new AtomicInteger();
+    private final AtomicInteger mRunningIterationCount = new AtomicInteger();
+    private final AtomicLong mStartedIterationCount = new AtomicLong();
+    private final AtomicLong mSkippedIterationCount = new AtomicLong();
+    private final AtomicLong mLateIterationCount = new AtomicLong();
+    private final AtomicLong mShedIterationCount = new AtomicLong();
+
+    /**
+     * What happens when an iteration of a feed is due while its previous iteration is still queued or running
+     */
+    public enum OverrunPolicy {
+        /**
+         * The iteration is skipped, and the feed runs again at the next interval after the previous iteration finishes
+         */
+        SKIP,
+        /**
+         * The iteration starts as soon as the previous iteration finishes.  Further iterations due before then are
+         * skipped, so at most one iteration is waiting.
+         */
+        DELAY,
+        /**
+         * Up to maxParallel iterations of the feed run at the same time, and further iterations are skipped.  Only for
+         * tasks that can run concurrently with themselves - a BackgroundTask can't, because each iteration is validated
+         * against the previous one.
+         */
+        PARALLEL
+    }
+
+    /**
+     * How important a feed is when there are more iterations due than the workers can run
+     */
+    public enum Priority {
+        /**
+         * The feed runs at its interval, even when the workers are saturated
+         */
+        NORMAL,
+        /**
+         * The feed runs at most once every SHED_INTERVAL_MULTIPLE intervals while the workers are saturated
+         */
+        LOW
+    }
+
+    /**
+     * Creates a scheduler with its own timer thread and worker threads
+     *
+     * @param workerThreads the number of iterations that can run at the same time
+     */
+    public FeedScheduler(int workerThreads) {
+        this(workerThreads, false);
+    }
+
+    /**
+     * Creates a scheduler with its own timer thread, which runs iterations on virtual threads if virtualThreads is true
+     * and the JVM supports them, or on its own worker threads if it doesn't
+     *
+     * @param concurrency    the number of iterations that can run at the same time
+     * @param virtualThreads true to run each iteration on a virtual thread if the JVM supports them, false to use worker threads
+     */
+    public FeedScheduler(int concurrency, boolean virtualThreads) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        mTimer = new ScheduledThreadPoolExecutor(1, newThreadFactory("feed-timer"));
+        // Don't keep cancelled feeds in the timer queue until their next interval
+        mTimer.setRemoveOnCancelPolicy(true);
+        mConcurrency = concurrency;
+        ExecutorService virtualThreadExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtualThreadExecutor != null) {
+            mWorkers = virtualThreadExecutor;
+            mVirtualPermits = new Semaphore(concurrency);
+        } else {
+            if (virtualThreads) {
+                _log.warn("Virtual threads require Java 21 or later - using " + concurrency + " worker threads instead");
+            }
+            // The queue holds at most one iteration per feed, so it's bounded by the number of feeds
+            mWorkers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), newThreadFactory("feed-worker"));
+            mVirtualPermits = null;
+        }
+    }
+
+    /**
+     * Returns true if this JVM supports virtual threads (Java 21 and later), false if it doesn't
+     *
+     * @return true if this JVM supports virtual threads, false if it doesn't
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return getVirtualThreadExecutorFactory() != null;
+    }
+
+    private static Method getVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        Method factory = getVirtualThreadExecutorFactory();
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            _log.error("Couldn't create virtual thread executor", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets the number of worker threads of the scheduler shared by all monitored feeds.  Must be called before the
+     * shared scheduler is first used.  Default is DEFAULT_WORKER_THREADS.
+     *
+     * @param workerThreads the number of iterations of monitored feeds that can run at the same time
+     * @throws IllegalStateException if the shared scheduler has already been created
+     */
+    public static synchronized void setSharedWorkerThreads(int workerThreads) {
+        if (mShared != null) {
+            throw new IllegalStateException("The shared FeedScheduler has already been created");
+        }
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("workerThreads must be at least 1");
+        }
+        mSharedWorkerThreads = workerThreads;
+    }
+
+    /**
+     * Sets whether the scheduler shared by all monitored feeds runs iterations on virtual threads, if the JVM supports
+     * them.  When true, the number set by setSharedWorkerThreads() is the number of iterations that can run at the same
+     * time.  Must be called before the shared scheduler is first used.  Default is false.
+     *
+     * @param virtualThreads true to run each iteration on a virtual thread, false to use worker threads
+     * @throws IllegalStateException if the shared scheduler has already been created
+     */
+    public static synchronized void setSharedVirtualThreads(boolean virtualThreads) {
+        if (mShared != null) {
+            throw new IllegalStateException("The shared FeedScheduler has already been created");
+        }
+        mSharedVirtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the scheduler shared by all monitored feeds, creating it the first time this is called
+     *
+     * @return the scheduler shared by all monitored feeds
+     */
+    public static synchronized FeedScheduler getShared() {
+        if (mShared == null) {
+            mShared = new FeedScheduler(mSharedWorkerThreads, mSharedVirtualThreads);
+            mShared.registerMetrics(MetricsRegistry.getShared());
+        }
+        return mShared;
+    }
+
+    /**
+     * Exposes the number of feeds and iterations of this scheduler, so it can be seen when the workers are saturated
+     * (running iterations reach the concurrency, and iterations are queued or skipped)
+     *
+     * @param metrics the registry to add the metrics to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("gtfsrt_scheduler_feeds", "Feeds that are scheduled", this::getScheduledFeedCount);
+        metrics.gauge("gtfsrt_scheduler_concurrency", "Iterations that can run at the same time", this::getWorkerThreadCount);
+        metrics.gauge("gtfsrt_scheduler_running_iterations", "Iterations that are running", this::getRunningIterationCount);
+        metrics.gauge("gtfsrt_scheduler_queued_iterations", "Iterations waiting for a worker", this::getQueuedIterationCount);
+        metrics.counter("gtfsrt_scheduler_started_iterations_total", "Iterations that have been started", this::getStartedIterationCount);
+        metrics.counter("gtfsrt_scheduler_skipped_iterations_total", "Iterations skipped because the previous iteration of the same feed was still queued or running",
+                this::getSkippedIterationCount);
+        metrics.counter("gtfsrt_scheduler_late_iterations_total", "Iterations that started more than an interval after they were due", this::getLateIterationCount);
+        metrics.counter("gtfsrt_scheduler_shed_iterations_total", "Iterations of low-priority feeds skipped while the workers were saturated",
+                this::getShedIterationCount);
+        metrics.gauge("gtfsrt_scheduler_saturated", "1 if the workers are saturated and low-priority feeds are slowed down, 0 if they aren't",
+                () -> isSaturated() ? 1 : 0);
+    }
+
+    /**
+     * Runs the provided task every intervalMillis, starting at a random offset within the first interval
+     *
+     * @param task           the iteration of a feed (e.g., a BackgroundTask)
+     * @param intervalMillis the time between the start of each iteration, in milliseconds
+     * @return the scheduled feed, which can be used to stop running the task
+     */
+    public ScheduledFeed schedule(Runnable task, long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("intervalMillis must be at least 1");
+        }
+        return schedule(task, intervalMillis, ThreadLocalRandom.current().nextLong(intervalMillis));
+    }
+
+    /**
+     * Runs the provided task every intervalMillis, starting after startOffsetMillis
+     *
+     * @param task              the iteration of a feed (e.g., a BackgroundTask)
+     * @param intervalMillis    the time between the start of each iteration, in milliseconds
+     * @param startOffsetMillis the time before the first iteration, in milliseconds
+     * @return the scheduled feed, which can be used to stop running the task
+     */
+    public ScheduledFeed schedule(Runnable task, long intervalMillis, long startOffsetMillis) {
+        return schedule(task, intervalMillis, startOffsetMillis, OverrunPolicy.SKIP, 1);
+    }
+
+    /**
+     * Runs the provided task every intervalMillis, starting at a random offset within the first interval, handling
+     * iterations that take longer than the interval with the provided policy
+     *
+     * @param task           the iteration of a feed (e.g., a BackgroundTask)
+     * @param intervalMillis the time between the start of each iteration, in milliseconds
+     * @param overrunPolicy  what happens when an iteration is due while the previous iteration is still queued or running
+     * @param maxParallel    the maximum number of iterations that can run at the same time with OverrunPolicy.PARALLEL
+     * @return the scheduled feed, which can be used to stop running the task
+     */
+    public ScheduledFeed schedule(Runnable task, long intervalMillis, OverrunPolicy overrunPolicy, int maxParallel) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("intervalMillis must be at least 1");
+        }
+        return schedule(task, intervalMillis, ThreadLocalRandom.current().nextLong(intervalMillis), overrunPolicy, maxParallel);
+    }
+
+    /**
+     * Runs the provided task every intervalMillis, starting after startOffsetMillis, handling iterations that take
+     * longer than the interval with the provided policy
+     *
+     * @param task              the iteration of a feed (e.g., a BackgroundTask)
+     * @param intervalMillis    the time between the start of each iteration, in milliseconds
+     * @param startOffsetMillis the time before the first iteration, in milliseconds
+     * @param overrunPolicy     what happens when an iteration is due while the previous iteration is still queued or running
+     * @param maxParallel       the maximum number of iterations that can run at the same time with OverrunPolicy.PARALLEL
+     * @return the scheduled feed, which can be used to stop running the task
+     */
+    public ScheduledFeed schedule(Runnable task, long intervalMillis, long startOffsetMillis, OverrunPolicy overrunPolicy, int maxParallel) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("intervalMillis must be at least 1");
+        }
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel must be at least 1");
+        }
+        ScheduledFeed scheduledFeed = new ScheduledFeed(task, intervalMillis, overrunPolicy, maxParallel, null);
+        scheduledFeed.mFuture = mTimer.scheduleAtFixedRate(scheduledFeed::fire, startOffsetMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        mScheduledFeedCount.incrementAndGet();
+        return scheduledFeed;
+    }
+
+    /**
+     * Runs the provided task repeatedly, starting at a random offset within the first interval, and asking nextDelayMillis
+     * after each iteration how long to wait before the next one
+     *
+     * @param task              the iteration of a feed (e.g., a BackgroundTask)
+     * @param minIntervalMillis the minimum time between the start of each iteration, in milliseconds
+     * @param nextDelayMillis   returns the time to wait after an iteration before starting the next one, in milliseconds
+     * @return the scheduled feed, which can be used to stop running the task
+     */
+    public ScheduledFeed scheduleAdaptive(Runnable task, long minIntervalMillis, LongSupplier nextDelayMillis) {
+        if (minIntervalMillis < 1) {
+            throw new IllegalArgumentException("minIntervalMillis must be at least 1");
+        }
+        return scheduleAdaptive(task, minIntervalMillis, nextDelayMillis, ThreadLocalRandom.current().nextLong(minIntervalMillis));
+    }
+
+    /**
+     * Runs the provided task repeatedly, starting after startOffsetMillis, and asking nextDelayMillis after each
+     * iteration how long to wait before the next one.  Iterations never start less than minIntervalMillis apart, even
+     * if nextDelayMillis returns a shorter time.  The next iteration is only scheduled once the previous one finishes, so
+     * iterations can't overrun and there is no OverrunPolicy - getOverrunPolicy() returns SKIP.
+     *
+     * @param task              the iteration of a feed (e.g., a BackgroundTask)
+     * @param minIntervalMillis the minimum time between the start of each iteration, in milliseconds
+     * @param nextDelayMillis   returns the time to wait after an iteration before starting the next one, in milliseconds
+     * @param startOffsetMillis the time before the first iteration, in milliseconds
+     * @return the scheduled feed, which can be used to stop running the task
+     */
+    public ScheduledFeed scheduleAdaptive(Runnable task, long minIntervalMillis, LongSupplier nextDelayMillis, long startOffsetMillis) {
+        if (minIntervalMillis < 1) {
+            throw new IllegalArgumentException("minIntervalMillis must be at least 1");
+        }
+        ScheduledFeed scheduledFeed = new ScheduledFeed(task, minIntervalMillis, OverrunPolicy.SKIP, 1, nextDelayMillis);
+        scheduledFeed.mFuture = mTimer.schedule(scheduledFeed::fire, startOffsetMillis, TimeUnit.MILLISECONDS);
+        mScheduledFeedCount.incrementAndGet();
+        return scheduledFeed;
+    }
+
+    /**
+     * Stops all feeds and interrupts the iterations that are running
+     */
+    public void shutdown() {
+        mTimer.shutdownNow();
+        mWorkers.shutdownNow();
+    }
+
+    /**
+     * Returns the number of iterations that can run at the same time, which is the number of worker threads unless
+     * iterations run on virtual threads
+     *
+     * @return the number of iterations that can run at the same time
+     */
+    public int getWorkerThreadCount() {
+        return mConcurrency;
+    }
+
+    /**
+     * Returns true if iterations run on virtual threads, false if they run on worker threads
+     *
+     * @return true if iterations run on virtual threads, false if they run on worker threads
+     */
+    public boolean isVirtualThreads() {
+        return mVirtualPermits != null;
+    }
+
+    /**
+     * Returns the number of feeds that are scheduled and haven't been cancelled
+     *
+     * @return the number of feeds that are scheduled and haven't been cancelled
+     */
+    public int getScheduledFeedCount() {
+        return mScheduledFeedCount.get();
+    }
+
+    /**
+     * Returns the number of iterations that are running right now
+     *
+     * @return the number of iterations that are running right now
+     */
+    public int getRunningIterationCount() {
+        return mRunningIterationCount.get();
+    }
+
+    /**
+     * Returns the number of iterations waiting for a worker thread (or for a permit to run, with virtual threads)
+     *
+     * @return the number of iterations waiting for a worker thread (or for a permit to run, with virtual threads)
+     */
+    public int getQueuedIterationCount() {
+        return mQueuedIterationCount.get();
+    }
+
+    /**
+     * Returns the number of iterations that have been started since this scheduler was created
+     *
+     * @return the number of iterations that have been started since this scheduler was created
+     */
+    public long getStartedIterationCount() {
+        return mStartedIterationCount.get();
+    }
+
+    /**
+     * Returns the number of iterations that were skipped because the previous iteration of the same feed was still
+     * queued or running, since this scheduler was created
+     *
+     * @return the number of iterations that were skipped because the previous iteration of the same feed was still queued or running
+     */
+    public long getSkippedIterationCount() {
+        return mSkippedIterationCount.get();
+    }
+
+    /**
+     * Returns the number of iterations that started more than an interval after they were due (because of an overrun,
+     * or because they waited for a worker), since this scheduler was created
+     *
+     * @return the number of iterations that started more than an interval after they were due
+     */
+    public long getLateIterationCount() {
+        return mLateIterationCount.get();
+    }
+
+    /**
+     * Returns the number of iterations of low-priority feeds that were skipped because the workers were saturated,
+     * since this scheduler was created
+     *
+     * @return the number of iterations of low-priority feeds that were skipped because the workers were saturated
+     */
+    public long getShedIterationCount() {
+        return mShedIterationCount.get();
+    }
+
+    /**
+     * Returns true if the workers are saturated - all iterations that can run at the same time are running, and at
+     * least as many are waiting - so low-priority feeds are slowed down
+     *
+     * @return true if the workers are saturated, false if they aren't
+     */
+    public boolean isSaturated() {
+        return mQueuedIterationCount.get() >= mConcurrency;
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A task that is run at a fixed interval, or adaptively, by a FeedScheduler
+     */
+    public class ScheduledFeed {
+        private final Runnable mTask;
+        private final long mIntervalMillis;
+        private final long mIntervalNanos;
+        private final OverrunPolicy mOverrunPolicy;
+        // Maximum number of iterations of this feed that can be queued or running at the same time
+        private final int mMaxInFlight;
+        // Returns the delay before the next iteration of an adaptive feed, or null for a fixed interval
+        private final LongSupplier mNextDelayMillis;
+        private volatile Priority mPriority = Priority.NORMAL;
+        private volatile long mLastStartNanos;
+        private volatile ScheduledFuture<?> mFuture;
+        private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+        // Guarded by this - iterations of this feed that are queued or running, and the iteration delayed by an overrun
+        private int mInFlight = 0;
+        private boolean mDelayed = false;
+        private long mDelayedDueNanos;
+        // Time the last iteration was queued, used to slow down low-priority feeds
+        private long mLastQueuedNanos;
+
+        private final AtomicLong mSkippedCount = new AtomicLong();
+        private final AtomicLong mLateCount = new AtomicLong();
+        private final AtomicLong mShedCount = new AtomicLong();
+
+        private ScheduledFeed(Runnable task, long intervalMillis, OverrunPolicy overrunPolicy, int maxParallel, LongSupplier nextDelayMillis) {
+            mTask = task;
+            mIntervalMillis = intervalMillis;
+            mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            mOverrunPolicy = overrunPolicy;
+            mMaxInFlight = overrunPolicy == OverrunPolicy.PARALLEL ? maxParallel : 1;
+            mNextDelayMillis = nextDelayMillis;
+        }
+
+        /**
+         * Called on the timer thread at each interval - this must return quickly, so the iteration runs on a worker
+         */
+        private void fire() {
+            long dueNanos = System.nanoTime();
+            synchronized (this) {
+                if (mCancelled.get()) {
+                    return;
+                }
+                if (mNextDelayMillis == null && mPriority == Priority.LOW && isSaturated()
+                        && mLastQueuedNanos != 0 && dueNanos - mLastQueuedNanos < mIntervalNanos * SHED_INTERVAL_MULTIPLE) {
+                    // Leave the workers to the other feeds until they catch up
+                    mShedCount.incrementAndGet();
+                    mShedIterationCount.incrementAndGet();
+                    return;
+                }
+                if (mInFlight >= mMaxInFlight) {
+                    if (mOverrunPolicy == OverrunPolicy.DELAY && !mDelayed) {
+                        // Run as soon as the current iteration finishes - later intervals are coalesced into this one
+                        mDelayed = true;
+                        mDelayedDueNanos = dueNanos;
+                    } else {
+                        mSkippedCount.incrementAndGet();
+                        mSkippedIterationCount.incrementAndGet();
+                    }
+                    return;
+                }
+                mInFlight++;
+                mLastQueuedNanos = dueNanos;
+            }
+            submit(dueNanos);
+        }
+
+        private void submit(long dueNanos) {
+            mQueuedIterationCount.incrementAndGet();
+            try {
+                mWorkers.execute(() -> runIteration(dueNanos));
+            } catch (RejectedExecutionException e) {
+                // The scheduler is shutting down
+                mQueuedIterationCount.decrementAndGet();
+                synchronized (this) {
+                    mInFlight--;
+                    mDelayed = false;
+                }
+            }
+        }
+
+        private void runIteration(long dueNanos) {
+            boolean permitAcquired = false;
+            try {
+                if (mVirtualPermits != null) {
+                    // Blocking here only parks the virtual thread
+                    mVirtualPermits.acquire();
+                    permitAcquired = true;
+                }
+                mQueuedIterationCount.decrementAndGet();
+                mRunningIterationCount.incrementAndGet();
+                try {
+                    if (!mCancelled.get()) {
+                        mStartedIterationCount.incrementAndGet();
+                        mLastStartNanos = System.nanoTime();
+                        if (mLastStartNanos - dueNanos > mIntervalNanos) {
+                            // Started after the next iteration was due, because of an overrun or because the workers were busy
+                            mLateCount.incrementAndGet();
+                            mLateIterationCount.incrementAndGet();
+                        }
+                        mTask.run();
+                    }
+                } finally {
+                    mRunningIterationCount.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // The scheduler is shutting down
+                mQueuedIterationCount.decrementAndGet();
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // Keep running the feed at the next interval
+                _log.error("Iteration failed", e);
+            } finally {
+                if (permitAcquired) {
+                    mVirtualPermits.release();
+                }
+                // Also after an Error, so the feed isn't left with an iteration in flight that never finishes
+                finishIteration();
+            }
+        }
+
+        /**
+         * Starts the iteration delayed by an overrun, if there is one, and schedules the next iteration of an adaptive feed
+         */
+        private void finishIteration() {
+            long delayedDueNanos;
+            synchronized (this) {
+                if (!mDelayed || mCancelled.get() || Thread.currentThread().isInterrupted()) {
+                    mInFlight--;
+                    mDelayed = false;
+                    delayedDueNanos = 0;
+                } else {
+                    // The delayed iteration takes over the slot of the iteration that just finished
+                    mDelayed = false;
+                    delayedDueNanos = mDelayedDueNanos;
+                    mLastQueuedNanos = System.nanoTime();
+                }
+            }
+            if (delayedDueNanos != 0) {
+                submit(delayedDueNanos);
+            } else if (mNextDelayMillis != null && !Thread.currentThread().isInterrupted()) {
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Schedules the next iteration of an adaptive feed, no sooner than the interval after the start of the last
+         * iteration, and later for a low-priority feed while the workers are saturated
+         */
+        private void scheduleNext() {
+            if (mCancelled.get()) {
+                return;
+            }
+            long delayMillis;
+            try {
+                delayMillis = mNextDelayMillis.getAsLong();
+            } catch (RuntimeException e) {
+                _log.error("Couldn't get the delay before the next iteration", e);
+                delayMillis = mIntervalMillis;
+            }
+            long sinceStartMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLastStartNanos);
+            long minIntervalMillis = mPriority == Priority.LOW && isSaturated() ? mIntervalMillis * SHED_INTERVAL_MULTIPLE : mIntervalMillis;
+            delayMillis = Math.max(delayMillis, minIntervalMillis - sinceStartMillis);
+            try {
+                mFuture = mTimer.schedule(this::fire, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The scheduler is shutting down
+                return;
+            }
+            if (mCancelled.get()) {
+                // cancel() may have run before mFuture was set
+                mFuture.cancel(false);
+            }
+        }
+
+        /**
+         * Returns the time between the start of each iteration, or the minimum time for an adaptive feed, in milliseconds
+         *
+         * @return the time between the start of each iteration, or the minimum time for an adaptive feed, in milliseconds
+         */
+        public long getIntervalMillis() {
+            return mIntervalMillis;
+        }
+
+        /**
+         * Returns true if the task decides the delay before each iteration, false if it runs at a fixed interval
+         *
+         * @return true if the task decides the delay before each iteration, false if it runs at a fixed interval
+         */
+        public boolean isAdaptive() {
+            return mNextDelayMillis != null;
+        }
+
+        /**
+         * Returns what happens when an iteration is due while the previous iteration is still queued or running
+         *
+         * @return what happens when an iteration is due while the previous iteration is still queued or running
+         */
+        public OverrunPolicy getOverrunPolicy() {
+            return mOverrunPolicy;
+        }
+
+        /**
+         * Returns the priority of this feed when the workers are saturated
+         *
+         * @return the priority of this feed when the workers are saturated
+         */
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Sets the priority of this feed when the workers are saturated.  Default is Priority.NORMAL.
+         *
+         * @param priority the priority of this feed when the workers are saturated
+         */
+        public void setPriority(Priority priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Returns true if an iteration of this feed is queued, running or delayed by an overrun, false if it isn't
+         *
+         * @return true if an iteration of this feed is queued, running or delayed by an overrun, false if it isn't
+         */
+        public synchronized boolean isPending() {
+            return mInFlight > 0 || mDelayed;
+        }
+
+        /**
+         * Returns the number of iterations of this feed that were skipped because of an overrun
+         *
+         * @return the number of iterations of this feed that were skipped because of an overrun
+         */
+        public long getSkippedCount() {
+            return mSkippedCount.get();
+        }
+
+        /**
+         * Returns the number of iterations of this feed that started more than an interval after they were due
+         *
+         * @return the number of iterations of this feed that started more than an interval after they were due
+         */
+        public long getLateCount() {
+            return mLateCount.get();
+        }
+
+        /**
+         * Returns the number of iterations of this feed that were skipped because it has a low priority and the workers
+         * were saturated
+         *
+         * @return the number of iterations of this feed that were skipped to shed load
+         */
+        public long getShedCount() {
+            return mShedCount.get();
+        }
+
+        /**
+         * Returns true if this feed has been cancelled, false if it hasn't
+         *
+         * @return true if this feed has been cancelled, false if it hasn't
+         */
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
+
+        /**
+         * Stops running the task.  An iteration that is already running is allowed to finish, and iterations that are
+         * queued or delayed won't be run.
+         */
+        public void cancel() {
+            if (mCancelled.compareAndSet(false, true)) {
+                mFuture.cancel(false);
+                synchronized (this) {
+                    mDelayed = false;
+                }
+                mScheduledFeedCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.PreviousIterationState;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the hash, header timestamp and summary of the last message read from each GTFS-realtime feed, so an iteration
+ * can tell if the feed changed and validate against the previous message without reading the last iteration from the
+ * database and parsing its protobuf again.  The cache holds one entry per monitored feed, so it grows with the number
+ * of monitored feeds instead of evicting feeds that are still monitored.  The entry of a feed is kept when the feed is
+ * rescheduled with a new update interval, and removed when monitoring of the feed stops (see remove()), so the database
+ * is only used for a feed after the server restarts or after the feed is monitored again.
+ */
+public class LastIterationCache {
+
+    private static final LastIterationCache mShared = new LastIterationCache();
+
+    // Maps gtfsRtId to the last iteration of that feed
+    private final Map<Integer, LastIteration> mLastIterations = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cache shared by all monitored feeds
+     *
+     * @return the cache shared by all monitored feeds
+     */
+    public static LastIterationCache getShared() {
+        return mShared;
+    }
+
+    /**
+     * Returns the last iteration of the provided feed, or null if it isn't in the cache
+     *
+     * @param gtfsRtId the ID of the GTFS-realtime feed
+     * @return the last iteration of the provided feed, or null if it isn't in the cache
+     */
+    public LastIteration get(int gtfsRtId) {
+        return mLastIterations.get(gtfsRtId);
+    }
+
+    /**
+     * Stores the last iteration of the provided feed
+     *
+     * @param gtfsRtId      the ID of the GTFS-realtime feed
+     * @param lastIteration the last iteration of the feed
+     */
+    public void put(int gtfsRtId, LastIteration lastIteration) {
+        mLastIterations.put(gtfsRtId, lastIteration);
+    }
+
+    /**
+     * Removes the last iteration of the provided feed, when the feed is no longer monitored by this server or its last
+     * iteration may have been written by another server
+     *
+     * @param gtfsRtId the ID of the GTFS-realtime feed
+     */
+    public void remove(int gtfsRtId) {
+        mLastIterations.remove(gtfsRtId);
+    }
+
+    /**
+     * Returns the number of feeds in the cache
+     *
+     * @return the number of feeds in the cache
+     */
+    public int size() {
+        return mLastIterations.size();
+    }
+
+    /**
+     * The last message read from a feed
+     */
+    public static class LastIteration {
+        private final byte[] mFeedHash;
+        private final long mFeedTimestamp;
+        private final PreviousIterationState mState;
+
+        /**
+         * @param feedHash      the MD5 digest of the protobuf of the message
+         * @param feedTimestamp the header timestamp of the message, in milliseconds
+         * @param state         the summary of the message (and of the iterations before it), or null if the message isn't
+         *                      available (e.g., only its hash was read from the database)
+         */
+        public LastIteration(byte[] feedHash, long feedTimestamp, PreviousIterationState state) {
+            mFeedHash = feedHash;
+            mFeedTimestamp = feedTimestamp;
+            mState = state;
+        }
+
+        /**
+         * Returns the MD5 digest of the protobuf of the message
+         *
+         * @return the MD5 digest of the protobuf of the message
+         */
+        public byte[] getFeedHash() {
+            return mFeedHash;
+        }
+
+        /**
+         * Returns the header timestamp of the message, in milliseconds
+         *
+         * @return the header timestamp of the message, in milliseconds
+         */
+        public long getFeedTimestamp() {
+            return mFeedTimestamp;
+        }
+
+        /**
+         * Returns the summary of the message, or null if the message isn't available
+         *
+         * @return the summary of the message, or null if the message isn't available
+         */
+        public PreviousIterationState getState() {
+            return mState;
+        }
+    }
+}
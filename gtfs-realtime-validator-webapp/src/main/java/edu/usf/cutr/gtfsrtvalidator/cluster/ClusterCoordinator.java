@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.cluster;
+
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.FeedLeaseModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.GtfsRtFeedModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MonitoredFeedModel;
+import edu.usf.cutr.gtfsrtvalidator.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Shares the monitored GTFS-realtime feeds between the servers of a cluster that use the same database.  Each server
+ * holds renewable leases on GTFS feeds (see FeedLeaseModel), and monitors the GTFS-realtime feeds of the GTFS feeds it
+ * holds the leases of.  Clients can start and stop monitoring feeds on any server, and read the results from any server.
+ * <p>
+ * Every third of the lease time each server renews its leases and its own heartbeat, and then balances the leases:
+ * <ul>
+ * <li>The fair share of each server is the number of monitored GTFS-realtime feeds divided by the number of running
+ * servers, rounded up</li>
+ * <li>A server that holds more than its fair share (e.g., because a server joined) gives up GTFS feeds, as long as it
+ * still holds at least its fair share</li>
+ * <li>A server that holds less than its fair share takes GTFS feeds that no server holds, or whose server stopped
+ * renewing them (e.g., because it crashed)</li>
+ * </ul>
+ * Every feed is taken by some server, because if any feed is left no server can hold its fair share.  Leases expire at
+ * a time of the clock of the store (see ClusterStore.currentTimeMillis()), so the clocks of the servers don't need to
+ * be synchronized.
+ */
+public class ClusterCoordinator {
+
+    private static final Logger _log = LoggerFactory.getLogger(ClusterCoordinator.class);
+
+    public static final long DEFAULT_LEASE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // The coordinator of this server, or null if this server isn't part of a cluster
+    private static volatile ClusterCoordinator mShared;
+
+    private final String mNodeId;
+    private final ClusterStore mStore;
+    private final long mLeaseMillis;
+    // Called with the feeds this server should monitor each time the leases are balanced
+    private final Consumer<List<MonitoredFeedModel>> mOnAssignment;
+
+    private final ScheduledExecutorService mExecutor;
+    // Starting and stopping feeds can take a while (e.g., to load GTFS data), so it's done without delaying lease renewal
+    private final ExecutorService mAssignmentExecutor;
+    // The latest feeds assigned to this server that haven't been passed to mOnAssignment yet, or null if there are none
+    private final AtomicReference<List<MonitoredFeedModel>> mPendingAssignment = new AtomicReference<>();
+
+    // IDs of the GTFS feeds this server holds the leases of
+    private volatile Set<Integer> mOwnedGtfsFeedIds = Collections.emptySet();
+    private volatile int mLiveNodeCount;
+    // System.nanoTime() by which the leases of this server have expired, if they aren't renewed - measured with the
+    // clock of this server, which may not match the clock of the store
+    private volatile long mLeaseDeadlineNanos = System.nanoTime();
+    private volatile boolean mStopped;
+
+    /**
+     * Creates a coordinator for a server of a cluster - start() must be called to start taking leases
+     *
+     * @param nodeId       the ID of this server, which must be different from the IDs of the other servers
+     * @param store        the state shared by the servers
+     * @param leaseMillis  the time in milliseconds a lease is held without being renewed
+     * @param onAssignment called with the feeds this server should monitor each time they may have changed
+     */
+    public ClusterCoordinator(String nodeId, ClusterStore store, long leaseMillis, Consumer<List<MonitoredFeedModel>> onAssignment) {
+        if (leaseMillis <= 0) {
+            throw new IllegalArgumentException("leaseMillis must be greater than zero");
+        }
+        mNodeId = nodeId;
+        mStore = store;
+        mLeaseMillis = leaseMillis;
+        mOnAssignment = onAssignment;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> newDaemonThread(runnable, "cluster-coordinator"));
+        mAssignmentExecutor = Executors.newSingleThreadExecutor(runnable -> newDaemonThread(runnable, "cluster-assignment"));
+    }
+
+    /**
+     * Sets the coordinator of this server, when this server is part of a cluster
+     *
+     * @param coordinator the coordinator of this server
+     */
+    public static void setShared(ClusterCoordinator coordinator) {
+        mShared = coordinator;
+    }
+
+    /**
+     * Returns the coordinator of this server, or null if this server isn't part of a cluster and monitors feeds on its own
+     *
+     * @return the coordinator of this server, or null if this server isn't part of a cluster and monitors feeds on its own
+     */
+    public static ClusterCoordinator getShared() {
+        return mShared;
+    }
+
+    /**
+     * Returns the fair share of each server - the number of monitored feeds each server should hold, rounded up
+     *
+     * @param monitoredFeedCount the number of monitored GTFS-realtime feeds
+     * @param nodeCount          the number of running servers
+     * @return the fair share of each server
+     */
+    public static int getFairShare(int monitoredFeedCount, int nodeCount) {
+        int nodes = Math.max(nodeCount, 1);
+        return (monitoredFeedCount + nodes - 1) / nodes;
+    }
+
+    /**
+     * Merges the settings of a new client into the settings of the clients already monitoring the same feed, the same way
+     * they are merged when feeds are monitored without a cluster (see GtfsRtFeed.startBackgroundTask()) - the feed runs
+     * at the shortest update interval requested by any client, with the other settings of the client that requested it,
+     * and with normal priority if any client requested it.  The version is incremented if the settings changed, so the
+     * server monitoring the feed restarts it.
+     *
+     * @param existing  the feed and settings of the clients already monitoring it, which are updated
+     * @param requested the feed and settings requested by the new client
+     */
+    public static void mergeClient(MonitoredFeedModel existing, MonitoredFeedModel requested) {
+        existing.setClientCount(existing.getClientCount() + 1);
+        boolean changed = false;
+        if (requested.getUpdateInterval() < existing.getUpdateInterval()) {
+            existing.setUpdateInterval(requested.getUpdateInterval());
+            existing.setEnableShapes(requested.getEnableShapes());
+            existing.setRuleProfile(requested.getRuleProfile());
+            existing.setEnableRules(requested.getEnableRules());
+            existing.setDisableRules(requested.getDisableRules());
+            existing.setOverrunPolicy(requested.getOverrunPolicy());
+            changed = true;
+        }
+        if (FeedScheduler.Priority.NORMAL.name().equals(requested.getPriority())
+                && !FeedScheduler.Priority.NORMAL.name().equals(existing.getPriority())) {
+            existing.setPriority(requested.getPriority());
+            changed = true;
+        }
+        if (changed) {
+            existing.setVersion(existing.getVersion() + 1);
+        }
+    }
+
+    /**
+     * Starts renewing and balancing leases, and registers the cluster metrics
+     */
+    public void start() {
+        MetricsRegistry metrics = MetricsRegistry.getShared();
+        metrics.gauge("gtfsrt_cluster_nodes", "Servers of the cluster that are running", () -> mLiveNodeCount);
+        metrics.gauge("gtfsrt_cluster_owned_leases", "GTFS feeds this server holds the leases of", () -> mOwnedGtfsFeedIds.size());
+        mExecutor.scheduleWithFixedDelay(this::balanceSafely, 0, getRenewIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops monitoring feeds on this server, and gives up its leases so the other servers take over its feeds right away
+     */
+    public void stop() {
+        mStopped = true;
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(mLeaseMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Stop the feeds before giving up the leases, so they aren't monitored by two servers
+        mOwnedGtfsFeedIds = Collections.emptySet();
+        assign(Collections.emptyList());
+        mAssignmentExecutor.shutdown();
+        try {
+            mAssignmentExecutor.awaitTermination(mLeaseMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mStore.releaseAll(mNodeId);
+            mStore.removeNode(mNodeId);
+        } catch (RuntimeException e) {
+            _log.error("Couldn't give up the leases of " + mNodeId + " - they will expire in " + mLeaseMillis + " ms", e);
+        }
+    }
+
+    /**
+     * Adds a client monitoring the provided feed, on whichever server holds the lease of its GTFS feed
+     *
+     * @param gtfsRtFeed     the feed to monitor, with the rule profile and enabled/disabled rules requested by the client
+     * @param updateInterval the update interval requested by the client, in seconds
+     * @param enableShapes   true if shapes.txt should be used to validate the feed, false if it shouldn't
+     * @param overrunPolicy  what happens when an iteration is due while the previous iteration is still running
+     * @param priority       the priority of the feed when the workers are saturated
+     */
+    public void addClient(GtfsRtFeedModel gtfsRtFeed, int updateInterval, boolean enableShapes,
+                          FeedScheduler.OverrunPolicy overrunPolicy, FeedScheduler.Priority priority) {
+        MonitoredFeedModel requested = new MonitoredFeedModel();
+        requested.setGtfsRtId(gtfsRtFeed.getGtfsRtId());
+        requested.setGtfsFeedId(gtfsRtFeed.getGtfsFeedModel().getFeedId());
+        requested.setClientCount(1);
+        requested.setVersion(1);
+        requested.setUpdateInterval(updateInterval);
+        requested.setEnableShapes(enableShapes);
+        requested.setRuleProfile(gtfsRtFeed.getRuleProfile());
+        requested.setEnableRules(gtfsRtFeed.getEnableRules());
+        requested.setDisableRules(gtfsRtFeed.getDisableRules());
+        requested.setOverrunPolicy(overrunPolicy.name());
+        requested.setPriority(priority.name());
+        mStore.addClient(requested);
+        // Start the feed now if this server takes it, instead of at the next renewal
+        wakeUp();
+    }
+
+    /**
+     * Removes a client monitoring the provided feed, and stops monitoring the feed if it was the last client
+     *
+     * @param gtfsRtId the ID of the feed
+     */
+    public void removeClient(int gtfsRtId) {
+        mStore.removeClient(gtfsRtId);
+        wakeUp();
+    }
+
+    /**
+     * Renews the leases of this server and balances the leases between the running servers, and then assigns the feeds of
+     * the GTFS feeds this server holds to it.  Called periodically after start() with the time of the store, and can be
+     * called directly (e.g., in tests).
+     *
+     * @param now the current time of the store (see ClusterStore.currentTimeMillis())
+     */
+    public void balance(long now) {
+        balance(now, System.nanoTime());
+    }
+
+    /**
+     * Balances the leases at the provided time of the store, which was read after the provided System.nanoTime()
+     */
+    private synchronized void balance(long now, long startNanos) {
+        if (mStopped) {
+            return;
+        }
+        long expirationTime = now + mLeaseMillis;
+        mStore.heartbeat(mNodeId, expirationTime);
+        mStore.renew(mNodeId, expirationTime);
+        // The leases expire mLeaseMillis after now was read, which was no earlier than startNanos
+        mLeaseDeadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(mLeaseMillis);
+
+        List<String> liveNodes = mStore.getLiveNodes(now);
+        mLiveNodeCount = liveNodes.size();
+        List<FeedLeaseModel> leases = mStore.getLeases();
+        int monitoredFeedCount = 0;
+        List<FeedLeaseModel> owned = new ArrayList<>();
+        List<FeedLeaseModel> available = new ArrayList<>();
+        for (FeedLeaseModel lease : leases) {
+            monitoredFeedCount += lease.getMonitoredFeedCount();
+            if (mNodeId.equals(lease.getOwnerNodeId())) {
+                owned.add(lease);
+            } else if (lease.getMonitoredFeedCount() > 0 && lease.isAvailable(now)) {
+                available.add(lease);
+            }
+        }
+        int fairShare = getFairShare(monitoredFeedCount, liveNodes.size());
+
+        // Give up the largest GTFS feeds first, so as few feeds as possible move to other servers
+        owned.sort(Comparator.comparingInt(FeedLeaseModel::getMonitoredFeedCount).reversed());
+        int load = 0;
+        for (FeedLeaseModel lease : owned) {
+            load += lease.getMonitoredFeedCount();
+        }
+        Set<Integer> ownedGtfsFeedIds = new HashSet<>();
+        for (FeedLeaseModel lease : owned) {
+            int feedCount = lease.getMonitoredFeedCount();
+            if (feedCount == 0 || load - feedCount >= fairShare) {
+                mStore.release(lease.getGtfsFeedId(), mNodeId);
+                load -= feedCount;
+                _log.info(mNodeId + " released the lease of GTFS feed " + lease.getGtfsFeedId());
+            } else {
+                ownedGtfsFeedIds.add(lease.getGtfsFeedId());
+            }
+        }
+
+        // Servers try the available leases in a different order, so they don't all race for the same lease
+        Collections.shuffle(available);
+        for (FeedLeaseModel lease : available) {
+            if (load >= fairShare) {
+                break;
+            }
+            if (mStore.claim(lease, mNodeId, expirationTime)) {
+                ownedGtfsFeedIds.add(lease.getGtfsFeedId());
+                load += lease.getMonitoredFeedCount();
+                _log.info(mNodeId + " took the lease of GTFS feed " + lease.getGtfsFeedId()
+                        + (lease.getOwnerNodeId() != null ? " from " + lease.getOwnerNodeId() : ""));
+            }
+        }
+
+        mOwnedGtfsFeedIds = Collections.unmodifiableSet(ownedGtfsFeedIds);
+        assign(mStore.getMonitoredFeeds(ownedGtfsFeedIds));
+    }
+
+    /**
+     * Returns the IDs of the GTFS feeds this server holds the leases of
+     *
+     * @return the IDs of the GTFS feeds this server holds the leases of
+     */
+    public Set<Integer> getOwnedGtfsFeedIds() {
+        return mOwnedGtfsFeedIds;
+    }
+
+    /**
+     * Returns the ID of this server
+     *
+     * @return the ID of this server
+     */
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    private long getRenewIntervalMillis() {
+        return Math.max(mLeaseMillis / 3, 1);
+    }
+
+    private void wakeUp() {
+        try {
+            mExecutor.execute(this::balanceSafely);
+        } catch (RejectedExecutionException e) {
+            // Stopped - the feed is monitored by the other servers
+        }
+    }
+
+    private void balanceSafely() {
+        try {
+            long startNanos = System.nanoTime();
+            balance(mStore.currentTimeMillis(), startNanos);
+        } catch (RuntimeException e) {
+            _log.error("Couldn't renew the leases of " + mNodeId, e);
+            if (System.nanoTime() - mLeaseDeadlineNanos >= 0 && !mOwnedGtfsFeedIds.isEmpty()) {
+                // Other servers can take the leases now, so stop monitoring the feeds until the leases are renewed
+                _log.error("The leases of " + mNodeId + " expired - stopping its feeds");
+                mOwnedGtfsFeedIds = Collections.emptySet();
+                assign(Collections.emptyList());
+            }
+        }
+    }
+
+    private void assign(List<MonitoredFeedModel> monitoredFeeds) {
+        if (mPendingAssignment.getAndSet(monitoredFeeds) == null) {
+            mAssignmentExecutor.execute(() -> {
+                try {
+                    mOnAssignment.accept(mPendingAssignment.getAndSet(null));
+                } catch (RuntimeException e) {
+                    _log.error("Couldn't start or stop the feeds of " + mNodeId, e);
+                }
+            });
+        }
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
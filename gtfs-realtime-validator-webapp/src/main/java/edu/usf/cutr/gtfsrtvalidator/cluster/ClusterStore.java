@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.cluster;
+
+import edu.usf.cutr.gtfsrtvalidator.lib.model.FeedLeaseModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MonitoredFeedModel;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The state shared by the servers of a cluster - the servers that are running, the feeds that are monitored, and which
+ * server holds the lease of each GTFS feed.  Each method is atomic, so servers can call them at the same time.
+ * <p>
+ * All times are read from the clock of the store (see currentTimeMillis()), not from the clock of each server, so a
+ * server whose clock is wrong can't hold a lease that has expired for the other servers.
+ */
+public interface ClusterStore {
+
+    /**
+     * Returns the current time of the clock shared by all servers (e.g., the clock of the database)
+     *
+     * @return the current time of the clock shared by all servers, in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * Records that the provided server is running until expirationTime, adding it if it's new
+     *
+     * @param nodeId         the ID of the server
+     * @param expirationTime the time after which the server is assumed to have stopped, in milliseconds since the epoch of currentTimeMillis()
+     */
+    void heartbeat(String nodeId, long expirationTime);
+
+    /**
+     * Removes the provided server, so the other servers no longer share feeds with it
+     *
+     * @param nodeId the ID of the server
+     */
+    void removeNode(String nodeId);
+
+    /**
+     * Returns the IDs of the servers that haven't expired at the provided time
+     *
+     * @param now the current time from currentTimeMillis()
+     * @return the IDs of the servers that haven't expired at the provided time
+     */
+    List<String> getLiveNodes(long now);
+
+    /**
+     * Returns the leases of all GTFS feeds that have been monitored, with the number of GTFS-realtime feeds of each GTFS
+     * feed that are still monitored
+     *
+     * @return the leases of all GTFS feeds that have been monitored
+     */
+    List<FeedLeaseModel> getLeases();
+
+    /**
+     * Gives the provided lease to a server, if the lease hasn't changed since it was read
+     *
+     * @param lease          the lease, as returned by getLeases()
+     * @param nodeId         the ID of the server taking the lease
+     * @param expirationTime the time the lease expires if it isn't renewed, in milliseconds since the epoch of currentTimeMillis()
+     * @return true if the server now holds the lease, false if another server changed it first
+     */
+    boolean claim(FeedLeaseModel lease, String nodeId, long expirationTime);
+
+    /**
+     * Extends all leases held by the provided server
+     *
+     * @param nodeId         the ID of the server
+     * @param expirationTime the time the leases expire if they aren't renewed again, in milliseconds since the epoch of currentTimeMillis()
+     */
+    void renew(String nodeId, long expirationTime);
+
+    /**
+     * Gives up the lease of the provided GTFS feed, if the provided server holds it
+     *
+     * @param gtfsFeedId the ID of the GTFS feed
+     * @param nodeId     the ID of the server
+     */
+    void release(int gtfsFeedId, String nodeId);
+
+    /**
+     * Gives up all leases held by the provided server
+     *
+     * @param nodeId the ID of the server
+     */
+    void releaseAll(String nodeId);
+
+    /**
+     * Returns the GTFS-realtime feeds of the provided GTFS feeds that are monitored
+     *
+     * @param gtfsFeedIds the IDs of the GTFS feeds
+     * @return the GTFS-realtime feeds of the provided GTFS feeds that are monitored
+     */
+    List<MonitoredFeedModel> getMonitoredFeeds(Collection<Integer> gtfsFeedIds);
+
+    /**
+     * Adds a client monitoring a GTFS-realtime feed, and creates the lease of its GTFS feed if it doesn't exist yet.  If
+     * other clients are already monitoring the feed, the settings are merged with ClusterCoordinator.mergeClient().
+     *
+     * @param requested the feed and the settings requested by the client, with clientCount 1
+     */
+    void addClient(MonitoredFeedModel requested);
+
+    /**
+     * Removes a client monitoring a GTFS-realtime feed, and stops monitoring the feed if it was the last client
+     *
+     * @param gtfsRtId the ID of the GTFS-realtime feed
+     */
+    void removeClient(int gtfsRtId);
+}
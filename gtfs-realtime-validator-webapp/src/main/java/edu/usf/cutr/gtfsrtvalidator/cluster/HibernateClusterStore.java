@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.cluster;
+
+import edu.usf.cutr.gtfsrtvalidator.db.GTFSDB;
+import edu.usf.cutr.gtfsrtvalidator.hibernate.HibernateUtil;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.ClusterNodeModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.FeedLeaseModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MonitoredFeedModel;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import javax.persistence.PersistenceException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Keeps the state shared by the servers of a cluster in the database, in the ClusterNode, FeedLease and MonitoredFeed
+ * tables.  Leases are taken with a compare-and-set on their version, so two servers can't hold the same lease.  Times
+ * are read from the clock of the database (CURRENT_TIMESTAMP), so the clocks of the servers don't need to be synchronized.
+ */
+public class HibernateClusterStore implements ClusterStore {
+
+    // Query that returns the current time of the database
+    private final String mCurrentTimestampQuery;
+
+    /**
+     * Creates a store that uses the database of HibernateUtil.getSessionFactory(), which must be configured first
+     *
+     * @throws IllegalStateException if the database can't return its current time
+     */
+    public HibernateClusterStore() {
+        Dialect dialect = ((SessionFactoryImplementor) HibernateUtil.getSessionFactory()).getJdbcServices().getDialect();
+        if (!dialect.supportsCurrentTimestampSelection() || dialect.isCurrentTimestampSelectStringCallable()) {
+            throw new IllegalStateException("The database (" + dialect + ") can't be used for a cluster, because its current time can't be read");
+        }
+        mCurrentTimestampQuery = dialect.getCurrentTimestampSelectString();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return inTransaction(session -> session.doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(mCurrentTimestampQuery);
+                 ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getTimestamp(1).getTime();
+            }
+        }));
+    }
+
+    @Override
+    public void heartbeat(String nodeId, long expirationTime) {
+        inTransaction(session -> {
+            ClusterNodeModel node = session.get(ClusterNodeModel.class, nodeId);
+            if (node == null) {
+                session.save(new ClusterNodeModel(nodeId, expirationTime));
+            } else {
+                node.setExpirationTime(expirationTime);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void removeNode(String nodeId) {
+        inTransaction(session -> session.createQuery("DELETE FROM ClusterNodeModel WHERE nodeId = :nodeId")
+                .setParameter("nodeId", nodeId)
+                .executeUpdate());
+    }
+
+    @Override
+    public List<String> getLiveNodes(long now) {
+        return inTransaction(session -> session.createQuery("SELECT nodeId FROM ClusterNodeModel WHERE expirationTime > :now "
+                + "ORDER BY nodeId", String.class)
+                .setParameter("now", now)
+                .list());
+    }
+
+    @Override
+    public List<FeedLeaseModel> getLeases() {
+        return inTransaction(session -> {
+            List<FeedLeaseModel> leases = session.createQuery("FROM FeedLeaseModel ORDER BY gtfsFeedId", FeedLeaseModel.class).list();
+            List<Object[]> feedCounts = session.createQuery("SELECT gtfsFeedId, COUNT(*) FROM MonitoredFeedModel "
+                    + "GROUP BY gtfsFeedId", Object[].class).list();
+            Map<Integer, Integer> feedCountById = new HashMap<>();
+            for (Object[] feedCount : feedCounts) {
+                feedCountById.put(((Number) feedCount[0]).intValue(), ((Number) feedCount[1]).intValue());
+            }
+            for (FeedLeaseModel lease : leases) {
+                lease.setMonitoredFeedCount(feedCountById.getOrDefault(lease.getGtfsFeedId(), 0));
+            }
+            return leases;
+        });
+    }
+
+    @Override
+    public boolean claim(FeedLeaseModel lease, String nodeId, long expirationTime) {
+        int updated = inTransaction(session -> session.createQuery("UPDATE FeedLeaseModel SET ownerNodeId = :nodeId, "
+                + "expirationTime = :expirationTime, version = version + 1 WHERE gtfsFeedId = :gtfsFeedId AND version = :version")
+                .setParameter("nodeId", nodeId)
+                .setParameter("expirationTime", expirationTime)
+                .setParameter("gtfsFeedId", lease.getGtfsFeedId())
+                .setParameter("version", lease.getVersion())
+                .executeUpdate());
+        return updated == 1;
+    }
+
+    @Override
+    public void renew(String nodeId, long expirationTime) {
+        // Changing the version makes claims of leases that were read while they were expired fail
+        inTransaction(session -> session.createQuery("UPDATE FeedLeaseModel SET expirationTime = :expirationTime, "
+                + "version = version + 1 WHERE ownerNodeId = :nodeId")
+                .setParameter("expirationTime", expirationTime)
+                .setParameter("nodeId", nodeId)
+                .executeUpdate());
+    }
+
+    @Override
+    public void release(int gtfsFeedId, String nodeId) {
+        inTransaction(session -> session.createQuery("UPDATE FeedLeaseModel SET ownerNodeId = NULL, expirationTime = 0, "
+                + "version = version + 1 WHERE gtfsFeedId = :gtfsFeedId AND ownerNodeId = :nodeId")
+                .setParameter("gtfsFeedId", gtfsFeedId)
+                .setParameter("nodeId", nodeId)
+                .executeUpdate());
+    }
+
+    @Override
+    public void releaseAll(String nodeId) {
+        inTransaction(session -> session.createQuery("UPDATE FeedLeaseModel SET ownerNodeId = NULL, expirationTime = 0, "
+                + "version = version + 1 WHERE ownerNodeId = :nodeId")
+                .setParameter("nodeId", nodeId)
+                .executeUpdate());
+    }
+
+    @Override
+    public List<MonitoredFeedModel> getMonitoredFeeds(Collection<Integer> gtfsFeedIds) {
+        if (gtfsFeedIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return inTransaction(session -> session.createQuery("FROM MonitoredFeedModel WHERE gtfsFeedId IN (:gtfsFeedIds) "
+                + "ORDER BY gtfsRtId", MonitoredFeedModel.class)
+                .setParameterList("gtfsFeedIds", gtfsFeedIds)
+                .list());
+    }
+
+    @Override
+    public void addClient(MonitoredFeedModel requested) {
+        try {
+            addClientInTransaction(requested);
+        } catch (PersistenceException e) {
+            // Another server added the first client of the same feed, or the first feed of the same GTFS feed, at the same time
+            addClientInTransaction(requested);
+        }
+    }
+
+    private void addClientInTransaction(MonitoredFeedModel requested) {
+        inTransaction(session -> {
+            MonitoredFeedModel existing = session.get(MonitoredFeedModel.class, requested.getGtfsRtId(), LockMode.PESSIMISTIC_WRITE);
+            if (existing == null) {
+                session.save(requested);
+            } else {
+                ClusterCoordinator.mergeClient(existing, requested);
+            }
+            if (session.get(FeedLeaseModel.class, requested.getGtfsFeedId()) == null) {
+                session.save(new FeedLeaseModel(requested.getGtfsFeedId()));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void removeClient(int gtfsRtId) {
+        inTransaction(session -> {
+            MonitoredFeedModel existing = session.get(MonitoredFeedModel.class, gtfsRtId, LockMode.PESSIMISTIC_WRITE);
+            if (existing == null) {
+                return null;
+            }
+            if (existing.getClientCount() <= 1) {
+                session.delete(existing);
+            } else {
+                existing.setClientCount(existing.getClientCount() - 1);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs work in a new transaction and commits it, or rolls it back and rethrows the exception if the work fails, so
+     * the caller knows whether it was stored
+     */
+    private static <T> T inTransaction(Function<Session, T> work) {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Transaction tx = null;
+        try {
+            tx = GTFSDB.beginTransaction(session);
+            T result = work.apply(session);
+            tx.commit();
+            return result;
+        } catch (RuntimeException e) {
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -20,6 +20,7 @@ package edu.usf.cutr.gtfsrtvalidator.db;
 import edu.usf.cutr.gtfsrtvalidator.hibernate.HibernateUtil;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.ValidationRule;
 import edu.usf.cutr.gtfsrtvalidator.lib.validation.ValidationRules;
+import edu.usf.cutr.gtfsrtvalidator.metrics.MetricsRegistry;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.slf4j.Logger;
@@ -31,6 +32,10 @@ public class GTFSDB {
 
     private static final Logger _log = LoggerFactory.getLogger(GTFSDB.class);
 
+    // Time to begin a transaction, which is mostly the time waiting for a connection from the pool
+    private static final MetricsRegistry.Histogram mConnectionWait = MetricsRegistry.getShared().histogram("gtfsrt_db_connection_wait_seconds",
+            "Time to get a database connection from the pool and begin a transaction");
+
     public static void initializeDB() {
         Session session = initSessionBeginTrans();
         List<ValidationRule> rules = ValidationRules.getRules();
@@ -51,13 +56,28 @@ public class GTFSDB {
         Transaction tx = null;
         try{
             session = HibernateUtil.getSessionFactory().openSession();
-            tx = session.beginTransaction();
+            tx = beginTransaction(session);
         }catch (Exception ex) {
             ex.printStackTrace();
         }
         return session;
     }
 
+    /**
+     * Begins a transaction in the provided session, recording how long it waited for a database connection
+     *
+     * @param session the session to begin a transaction in
+     * @return the transaction
+     */
+    public static Transaction beginTransaction(Session session) {
+        long startTimeNanos = System.nanoTime();
+        try {
+            return session.beginTransaction();
+        } finally {
+            mConnectionWait.observeNanos(System.nanoTime() - startTimeNanos);
+        }
+    }
+
     /**
      * Closes a session opened for an UPDATE operation or single READ-ONLY operation
      * @param session session to be committed and closed
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.db;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes items to the database on a background thread, in batches, so the threads producing the items (e.g., feed
+ * iterations) don't wait for the database.  A batch is written as soon as it has batchSize items, or when its first
+ * item has waited maxLatencyMillis, whichever comes first.
+ * <p>
+ * The queue holds at most capacity items.  When it's full, add() blocks until the writer thread has made room, so
+ * producers are slowed down to the rate the database can sustain instead of using more and more memory.
+ * <p>
+ * If a batch can't be written, it's split in half and each half is written again, down to single items, so one item
+ * the database rejects (e.g., a value too long for its column) only loses that item instead of the whole batch.
+ *
+ * @param <T> the type of the items written
+ */
+public class WriteBehindQueue<T> {
+
+    private static final org.slf4j.Logger _log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    // How often the writer thread checks if it has been shut down while the queue is empty
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLIS);
+
+    /**
+     * Writes a batch of items to the database
+     *
+     * @param <T> the type of the items written
+     */
+    public interface BatchWriter<T> {
+        /**
+         * Writes the provided items to the database, in one transaction - if it throws, none of the items may have been
+         * written, because the items are written again in smaller batches
+         *
+         * @param batch the items to write
+         * @throws Exception if the items couldn't be written
+         */
+        void write(List<T> batch) throws Exception;
+    }
+
+    private final BlockingQueue<T> mQueue;
+    private final int mBatchSize;
+    private final long mMaxLatencyNanos;
+    private final BatchWriter<T> mWriter;
+    private final Thread mThread;
+    private volatile boolean mShutdown = false;
+
+    private final AtomicLong mAddedCount = new AtomicLong();
+    private final AtomicLong mWrittenCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final AtomicLong mTotalWriteNanos = new AtomicLong();
+
+    /**
+     * Creates a queue and starts its writer thread
+     *
+     * @param name             the name of the writer thread
+     * @param capacity         the maximum number of items waiting to be written before add() blocks
+     * @param batchSize        the maximum number of items written in one transaction
+     * @param maxLatencyMillis the maximum time an item waits for more items before it is written, in milliseconds
+     * @param writer           writes each batch to the database
+     */
+    public WriteBehindQueue(String name, int capacity, int batchSize, long maxLatencyMillis, BatchWriter<T> writer) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("capacity and batchSize must be at least 1");
+        }
+        if (maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("maxLatencyMillis can't be negative");
+        }
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mBatchSize = batchSize;
+        mMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        mWriter = writer;
+        mThread = new Thread(this::run, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Adds an item to be written, waiting for room in the queue if it's full
+     *
+     * @param item the item to write
+     * @throws InterruptedException  if the thread is interrupted while waiting for room in the queue
+     * @throws IllegalStateException if the queue has been shut down
+     */
+    public void add(T item) throws InterruptedException {
+        if (mShutdown) {
+            throw new IllegalStateException("The queue has been shut down");
+        }
+        if (!mQueue.offer(item)) {
+            mBlockedCount.incrementAndGet();
+            mQueue.put(item);
+        }
+        mAddedCount.incrementAndGet();
+    }
+
+    /**
+     * Stops accepting items, and waits for the items already in the queue to be written
+     *
+     * @param timeoutMillis the maximum time to wait for the queue to be written, in milliseconds
+     * @return true if all items were written, false if the timeout elapsed first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        mShutdown = true;
+        mThread.join(timeoutMillis);
+        return !mThread.isAlive();
+    }
+
+    private void run() {
+        List<T> batch = new ArrayList<>(mBatchSize);
+        while (true) {
+            T first;
+            try {
+                first = mQueue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (mShutdown && mQueue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            long deadlineNanos = System.nanoTime() + mMaxLatencyNanos;
+            try {
+                while (batch.size() < mBatchSize) {
+                    mQueue.drainTo(batch, mBatchSize - batch.size());
+                    long remainingNanos = deadlineNanos - System.nanoTime();
+                    if (batch.size() >= mBatchSize || remainingNanos <= 0 || mShutdown) {
+                        break;
+                    }
+                    // Wake up periodically to see if the queue has been shut down
+                    T next = mQueue.poll(Math.min(remainingNanos, IDLE_POLL_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Write what we have before stopping
+                Thread.currentThread().interrupt();
+            }
+            writeBatch(batch);
+            batch.clear();
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(List<T> batch) {
+        long startNanos = System.nanoTime();
+        writeOrSplit(batch);
+        mBatchCount.incrementAndGet();
+        mTotalWriteNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Writes the provided items, splitting them in half and writing each half again if they can't be written together,
+     * until only the items that can't be written on their own are dropped
+     */
+    private void writeOrSplit(List<T> batch) {
+        try {
+            mWriter.write(batch);
+            mWrittenCount.addAndGet(batch.size());
+            return;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                mFailedCount.incrementAndGet();
+                _log.error("Failed to write an item to the database - it is dropped: " + batch.get(0), e);
+                return;
+            }
+            _log.warn("Failed to write " + batch.size() + " items to the database - writing them again in smaller batches", e);
+        }
+        int half = batch.size() / 2;
+        // Copies, because the writer may keep a reference to the batch and the caller clears it
+        writeOrSplit(new ArrayList<>(batch.subList(0, half)));
+        writeOrSplit(new ArrayList<>(batch.subList(half, batch.size())));
+    }
+
+    /**
+     * Returns the number of items waiting to be written
+     *
+     * @return the number of items waiting to be written
+     */
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the maximum number of items waiting to be written before add() blocks
+     *
+     * @return the maximum number of items waiting to be written before add() blocks
+     */
+    public int getCapacity() {
+        return mQueue.size() + mQueue.remainingCapacity();
+    }
+
+    /**
+     * Returns the number of items added to the queue
+     *
+     * @return the number of items added to the queue
+     */
+    public long getAddedCount() {
+        return mAddedCount.get();
+    }
+
+    /**
+     * Returns the number of items written to the database
+     *
+     * @return the number of items written to the database
+     */
+    public long getWrittenCount() {
+        return mWrittenCount.get();
+    }
+
+    /**
+     * Returns the number of items that were dropped because they couldn't be written, even on their own
+     *
+     * @return the number of items that were dropped because they couldn't be written, even on their own
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * Returns the number of batches taken from the queue and written, including batches that had to be split
+     *
+     * @return the number of batches taken from the queue and written, including batches that had to be split
+     */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /**
+     * Returns the number of times add() had to wait because the queue was full
+     *
+     * @return the number of times add() had to wait because the queue was full
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * Returns the total time spent writing batches, in nanoseconds
+     *
+     * @return the total time spent writing batches, in nanoseconds
+     */
+    public long getTotalWriteNanos() {
+        return mTotalWriteNanos.get();
+    }
+}
@@ -18,21 +18,141 @@
 package edu.usf.cutr.gtfsrtvalidator.helper;
 
 import edu.usf.cutr.gtfsrtvalidator.db.GTFSDB;
+import edu.usf.cutr.gtfsrtvalidator.db.WriteBehindQueue;
+import edu.usf.cutr.gtfsrtvalidator.hibernate.HibernateUtil;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.OccurrenceModel;
 import edu.usf.cutr.gtfsrtvalidator.lib.model.helper.ErrorListHelperModel;
+import edu.usf.cutr.gtfsrtvalidator.metrics.MetricsRegistry;
 import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class DBHelper {
-    public static void saveError(ErrorListHelperModel errorListHelperModel) {
-        Session session = GTFSDB.initSessionBeginTrans();
-        session.save(errorListHelperModel.getErrorMessage());
-        GTFSDB.commitAndCloseSession(session);
-
-        session = GTFSDB.initSessionBeginTrans();
-        for (OccurrenceModel occurrence : errorListHelperModel.getOccurrenceList()) {
-            occurrence.setMessageLogModel(errorListHelperModel.getErrorMessage());
-            session.save(occurrence);
+
+    // Default maximum number of error lists and iterations written to the database in one transaction
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 500;
+    // Default maximum time validation results wait to be written to the database, in milliseconds
+    public static final long DEFAULT_WRITE_LATENCY_MILLIS = 1000;
+    // Maximum number of error lists and iterations waiting to be written before feed iterations wait for the database
+    public static final int WRITE_QUEUE_CAPACITY = 20000;
+
+    // Occurrences are inserted with JDBC batches - Hibernate can't batch inserts of entities with IDENTITY IDs
+    private static final String INSERT_OCCURRENCE = "INSERT INTO Occurrence (messageID, prefix) VALUES (?, ?)";
+    private static final int JDBC_BATCH_SIZE = 1000;
+
+    private static int mWriteBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    private static long mWriteLatencyMillis = DEFAULT_WRITE_LATENCY_MILLIS;
+    private static WriteBehindQueue<Object> mWriteQueue = null;
+
+    /**
+     * Sets the maximum number of error lists and iterations written in one transaction, and the maximum time they wait
+     * to be written.  Must be called before the write queue is first used.  Defaults are DEFAULT_WRITE_BATCH_SIZE and
+     * DEFAULT_WRITE_LATENCY_MILLIS.
+     *
+     * @param batchSize     the maximum number of error lists and iterations written in one transaction
+     * @param latencyMillis the maximum time error lists and iterations wait to be written, in milliseconds
+     * @throws IllegalStateException if the write queue has already been created
+     */
+    public static synchronized void setWriteBehind(int batchSize, long latencyMillis) {
+        if (mWriteQueue != null) {
+            throw new IllegalStateException("The write queue has already been created");
+        }
+        if (batchSize < 1 || latencyMillis < 0) {
+            throw new IllegalArgumentException("batchSize must be at least 1 and latencyMillis can't be negative");
+        }
+        mWriteBatchSize = batchSize;
+        mWriteLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Returns the queue of error lists and iterations waiting to be written to the database, creating it the first
+     * time this is called
+     *
+     * @return the queue of error lists and iterations waiting to be written to the database
+     */
+    public static synchronized WriteBehindQueue<Object> getWriteQueue() {
+        if (mWriteQueue == null) {
+            mWriteQueue = new WriteBehindQueue<>("result-writer", WRITE_QUEUE_CAPACITY, mWriteBatchSize, mWriteLatencyMillis, DBHelper::saveAll);
+            registerMetrics(mWriteQueue);
+        }
+        return mWriteQueue;
+    }
+
+    private static void registerMetrics(WriteBehindQueue<Object> queue) {
+        MetricsRegistry metrics = MetricsRegistry.getShared();
+        metrics.gauge("gtfsrt_write_queue_items", "Rule results and iterations waiting to be written to the database", queue::getQueuedCount);
+        metrics.gauge("gtfsrt_write_queue_capacity", "Maximum number of items waiting to be written before feed iterations wait for the database", queue::getCapacity);
+        metrics.counter("gtfsrt_write_queue_added_total", "Items added to the write queue", queue::getAddedCount);
+        metrics.counter("gtfsrt_write_queue_written_total", "Items written to the database", queue::getWrittenCount);
+        metrics.counter("gtfsrt_write_queue_failed_total", "Items dropped because they couldn't be written, even on their own", queue::getFailedCount);
+        metrics.counter("gtfsrt_write_queue_batches_total", "Batches written to the database, including batches that had to be split", queue::getBatchCount);
+        metrics.counter("gtfsrt_write_queue_blocked_total", "Times a feed iteration waited because the write queue was full", queue::getBlockedCount);
+        metrics.counter("gtfsrt_write_queue_write_seconds_total", "Time spent writing batches to the database",
+                () -> queue.getTotalWriteNanos() / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Queues the provided error list (or other entity, such as an iteration that nothing else refers to) to be written
+     * to the database by the write queue, waiting only if the queue is full
+     *
+     * @param entity an ErrorListHelperModel, or an entity that doesn't need to be in the database before this returns
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    public static void saveLater(Object entity) throws InterruptedException {
+        getWriteQueue().add(entity);
+    }
+
+    /**
+     * Writes the provided error lists and entities to the database in one transaction
+     *
+     * @param entities ErrorListHelperModels and other entities to write
+     */
+    public static void saveAll(List<Object> entities) {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Transaction tx = GTFSDB.beginTransaction(session);
+        try {
+            List<OccurrenceModel> occurrences = new ArrayList<>();
+            for (Object entity : entities) {
+                if (entity instanceof ErrorListHelperModel) {
+                    ErrorListHelperModel errorList = (ErrorListHelperModel) entity;
+                    // The message is inserted immediately, which sets the messageId used by its occurrences
+                    session.save(errorList.getErrorMessage());
+                    for (OccurrenceModel occurrence : errorList.getOccurrenceList()) {
+                        occurrence.setMessageLogModel(errorList.getErrorMessage());
+                        occurrences.add(occurrence);
+                    }
+                } else {
+                    session.save(entity);
+                }
+            }
+            session.flush();
+            session.doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_OCCURRENCE)) {
+                    int batchCount = 0;
+                    for (OccurrenceModel occurrence : occurrences) {
+                        statement.setInt(1, occurrence.getMessageLogModel().getMessageId());
+                        statement.setString(2, occurrence.getPrefix());
+                        statement.addBatch();
+                        if (++batchCount == JDBC_BATCH_SIZE) {
+                            statement.executeBatch();
+                            batchCount = 0;
+                        }
+                    }
+                    if (batchCount > 0) {
+                        statement.executeBatch();
+                    }
+                }
+            });
+            tx.commit();
+        } catch (RuntimeException e) {
+            tx.rollback();
+            throw e;
+        } finally {
+            session.close();
         }
-        GTFSDB.commitAndCloseSession(session);
     }
 }
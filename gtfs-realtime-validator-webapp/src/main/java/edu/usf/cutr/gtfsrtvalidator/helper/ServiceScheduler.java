@@ -1,9 +1,11 @@
 package edu.usf.cutr.gtfsrtvalidator.helper;
 
-import java.util.concurrent.ScheduledExecutorService;
+import edu.usf.cutr.gtfsrtvalidator.background.BackgroundTask;
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
 
 public class ServiceScheduler {
-    ScheduledExecutorService scheduler;
+    BackgroundTask backgroundTask;
+    FeedScheduler.ScheduledFeed scheduledFeed;
     Integer updateInterval;
     Integer parallelClientCount;
 
@@ -23,11 +25,19 @@ public class ServiceScheduler {
         this.parallelClientCount = parallelClientCount;
     }
 
-    public ScheduledExecutorService getScheduler() {
-        return scheduler;
+    public BackgroundTask getBackgroundTask() {
+        return backgroundTask;
     }
 
-    public void setScheduler(ScheduledExecutorService scheduler) {
-        this.scheduler = scheduler;
+    public void setBackgroundTask(BackgroundTask backgroundTask) {
+        this.backgroundTask = backgroundTask;
+    }
+
+    public FeedScheduler.ScheduledFeed getScheduledFeed() {
+        return scheduledFeed;
+    }
+
+    public void setScheduledFeed(FeedScheduler.ScheduledFeed scheduledFeed) {
+        this.scheduledFeed = scheduledFeed;
     }
 }
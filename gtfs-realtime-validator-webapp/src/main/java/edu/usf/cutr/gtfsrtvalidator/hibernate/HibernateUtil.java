@@ -13,10 +13,24 @@ public class HibernateUtil {
     private static SessionFactory sessionFactory = null;  
        
     public static void configureSessionFactory() throws HibernateException {
+        configureSessionFactory(null);
+    }
+
+    /**
+     * Configures the session factory from hibernate.cfg.xml, connecting to the provided database instead of the one in
+     * hibernate.cfg.xml (e.g., an HSQLDB server shared by the servers of a cluster)
+     *
+     * @param connectionUrl the JDBC URL of the database, or null to use the URL in hibernate.cfg.xml
+     */
+    public static void configureSessionFactory(String connectionUrl) throws HibernateException {
         // Set jboss logging provider to use slf4j configuration provided in 'simplelogger.properties' file
         System.setProperty("org.jboss.logging.provider", "slf4j");
 
-        sessionFactory = new Configuration().configure().buildSessionFactory();
+        Configuration configuration = new Configuration().configure();
+        if (connectionUrl != null) {
+            configuration.setProperty("hibernate.connection.url", connectionUrl);
+        }
+        sessionFactory = configuration.buildSessionFactory();
     }
  
     public static SessionFactory getSessionFactory() {
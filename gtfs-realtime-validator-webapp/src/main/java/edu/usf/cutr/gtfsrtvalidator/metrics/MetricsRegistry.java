@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Holds the metrics of the validator (e.g., how long each step of each feed iteration takes) and writes them in the
+ * Prometheus text exposition format (https://prometheus.io/docs/instrumenting/exposition_formats/), so they can be
+ * scraped from /api/metrics and aggregated by a monitoring system.
+ * <p>
+ * Histograms and counters are recorded by the code being measured, and gauges (and counters kept elsewhere) are read from
+ * a supplier each time the metrics are written.  Each metric can have several series, one for each combination of label
+ * values (e.g., feed_id="3").  Recording is lock-free, so metrics can be recorded from any number of threads.
+ */
+public class MetricsRegistry {
+
+    // Content type of the Prometheus text exposition format
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Upper bounds of the histogram buckets, in seconds
+    public static final double[] DEFAULT_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final MetricsRegistry mShared = new MetricsRegistry();
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        private String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    // Maps the name of each metric to its series
+    private final Map<String, Family> mFamilies = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns the registry shared by the whole validator, which is exposed at /api/metrics
+     *
+     * @return the registry shared by the whole validator
+     */
+    public static MetricsRegistry getShared() {
+        return mShared;
+    }
+
+    /**
+     * Returns the histogram with the provided name and label values, creating it the first time it's used
+     *
+     * @param name   the name of the metric (e.g., gtfsrt_fetch_seconds)
+     * @param help   a description of the metric
+     * @param labels the names and values of the labels of the series, as name, value, name, value...
+     * @return the histogram with the provided name and label values
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) getFamily(name, help, Type.HISTOGRAM).mSeries.computeIfAbsent(formatLabels(labels), k -> new Histogram(DEFAULT_BUCKETS));
+    }
+
+    /**
+     * Returns the counter with the provided name and label values, creating it the first time it's used
+     *
+     * @param name   the name of the metric, which should end with _total (e.g., gtfsrt_iterations_total)
+     * @param help   a description of the metric
+     * @param labels the names and values of the labels of the series, as name, value, name, value...
+     * @return the counter with the provided name and label values
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) getFamily(name, help, Type.COUNTER).mSeries.computeIfAbsent(formatLabels(labels), k -> new Counter());
+    }
+
+    /**
+     * Adds a counter that is kept elsewhere, and is read from value each time the metrics are written.  Replaces the
+     * supplier of a series that already exists.
+     *
+     * @param name   the name of the metric, which should end with _total
+     * @param help   a description of the metric
+     * @param value  returns the current value of the counter
+     * @param labels the names and values of the labels of the series, as name, value, name, value...
+     */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        getFamily(name, help, Type.COUNTER).mSeries.put(formatLabels(labels), value);
+    }
+
+    /**
+     * Adds a gauge, which is read from value each time the metrics are written.  Replaces the supplier of a series that
+     * already exists.
+     *
+     * @param name   the name of the metric (e.g., gtfsrt_scheduler_running_iterations)
+     * @param help   a description of the metric
+     * @param value  returns the current value of the gauge
+     * @param labels the names and values of the labels of the series, as name, value, name, value...
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        getFamily(name, help, Type.GAUGE).mSeries.put(formatLabels(labels), value);
+    }
+
+    /**
+     * Removes all series that have the provided label value (e.g., all metrics of a feed that is no longer monitored)
+     *
+     * @param labelName  the name of the label
+     * @param labelValue the value of the label
+     */
+    public void remove(String labelName, String labelValue) {
+        String label = formatLabels(labelName, labelValue);
+        for (Family family : mFamilies.values()) {
+            family.mSeries.keySet().removeIf(labels -> labels.equals(label)
+                    || labels.startsWith(label + ",") || labels.contains("," + label + ",") || labels.endsWith("," + label));
+        }
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format
+     *
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : mFamilies.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            if (family.mSeries.isEmpty()) {
+                continue;
+            }
+            out.append("# HELP ").append(name).append(' ').append(escapeHelp(family.mHelp)).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.mType.getName()).append('\n');
+            for (Map.Entry<String, Object> series : family.mSeries.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    ((Histogram) metric).write(out, name, labels);
+                } else if (metric instanceof Counter) {
+                    writeSample(out, name, labels, ((Counter) metric).get());
+                } else {
+                    writeSample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family getFamily(String name, String help, Type type) {
+        Family family = mFamilies.computeIfAbsent(name, k -> new Family(help, type));
+        if (family.mType != type) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.mType.getName() + ", not a " + type.getName());
+        }
+        return family;
+    }
+
+    private static String formatLabels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name, value pairs");
+        }
+        StringBuilder formatted = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                formatted.append(',');
+            }
+            formatted.append(labels[i]).append("=\"").append(escapeLabelValue(labels[i + 1])).append('"');
+        }
+        return formatted.toString();
+    }
+
+    private static String escapeLabelValue(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * The series of one metric
+     */
+    private static class Family {
+        private final String mHelp;
+        private final Type mType;
+        // Maps the formatted labels of each series to its Histogram, Counter or DoubleSupplier
+        private final Map<String, Object> mSeries = new ConcurrentSkipListMap<>();
+
+        private Family(String help, Type type) {
+            mHelp = help;
+            mType = type;
+        }
+    }
+
+    /**
+     * A count that only goes up (e.g., the number of iterations of a feed)
+     */
+    public static class Counter {
+        private final LongAdder mCount = new LongAdder();
+
+        /**
+         * Adds one to the count
+         */
+        public void increment() {
+            mCount.increment();
+        }
+
+        /**
+         * Adds the provided amount to the count
+         *
+         * @param amount the amount to add, which must not be negative
+         */
+        public void add(long amount) {
+            mCount.add(amount);
+        }
+
+        /**
+         * Returns the count
+         *
+         * @return the count
+         */
+        public long get() {
+            return mCount.sum();
+        }
+    }
+
+    /**
+     * Counts durations in buckets (e.g., how long fetching a feed takes), so percentiles can be calculated by the
+     * monitoring system across feeds and servers
+     */
+    public static class Histogram {
+        private final double[] mBuckets;
+        // Number of observations in each bucket, not cumulative - the last bucket is +Inf
+        private final LongAdder[] mCounts;
+        private final DoubleAdder mSum = new DoubleAdder();
+
+        private Histogram(double[] buckets) {
+            mBuckets = buckets;
+            mCounts = new LongAdder[buckets.length + 1];
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration
+         *
+         * @param nanos the duration, in nanoseconds
+         */
+        public void observeNanos(long nanos) {
+            observe((double) nanos / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * Records a value
+         *
+         * @param value the value, in seconds for durations
+         */
+        public void observe(double value) {
+            int bucket = 0;
+            while (bucket < mBuckets.length && value > mBuckets[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket].increment();
+            mSum.add(value);
+        }
+
+        /**
+         * Returns the number of values recorded
+         *
+         * @return the number of values recorded
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucketCount : mCounts) {
+                count += bucketCount.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Returns the sum of the values recorded
+         *
+         * @return the sum of the values recorded
+         */
+        public double getSum() {
+            return mSum.sum();
+        }
+
+        private void write(StringBuilder out, String name, String labels) {
+            String bucketLabels = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                cumulative += mCounts[i].sum();
+                String le = i < mBuckets.length ? Double.toString(mBuckets[i]) : "+Inf";
+                writeSample(out, name + "_bucket", bucketLabels + "le=\"" + le + "\"", cumulative);
+            }
+            writeSample(out, name + "_sum", labels, mSum.sum());
+            // Use the same count as the +Inf bucket, even if a value was recorded while writing
+            writeSample(out, name + "_count", labels, cumulative);
+        }
+    }
+}
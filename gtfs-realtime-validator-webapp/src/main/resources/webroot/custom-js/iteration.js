@@ -79,6 +79,9 @@ if (iterationId != -1) {
 
         // Get the correct count of error occurrences to show in text '...and xx more'
         for (errorListIndex in data) {
+            // If occurrences were capped when saved, show "N of M" where N is the stored and M is the total number of occurrences
+            data[errorListIndex]["storedOccurrences"] = data[errorListIndex]["errorOccurrences"];
+            data[errorListIndex]["isCapped"] = data[errorListIndex]["totalOccurrences"] > data[errorListIndex]["errorOccurrences"];
             data[errorListIndex]["errorOccurrences"] = data[errorListIndex]["errorOccurrences"] - MAX_ERRORS_TO_DISPLAY;
         }
 
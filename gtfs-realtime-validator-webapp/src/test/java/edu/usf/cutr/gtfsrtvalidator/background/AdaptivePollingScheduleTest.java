@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests deciding when to poll a feed based on when it publishes new messages
+ */
+public class AdaptivePollingScheduleTest {
+
+    private static final long INTERVAL = 10000;
+
+    @Test
+    public void testMinimumIntervalUntilPeriodIsKnown() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        assertEquals(0, schedule.getNextDelayMillis(1000000));
+        schedule.onUpdate(1000000, 1001000);
+        assertEquals(0, schedule.getEstimatedPeriodMillis());
+        assertEquals(INTERVAL, schedule.getNextDelayMillis(1001000));
+    }
+
+    @Test
+    public void testPeriodAfterTwoUpdates() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        schedule.onUpdate(30000, 32000);
+        schedule.onUpdate(60000, 62000);
+        // The first new message has no period, so the second one is the only sample
+        assertEquals(30000, schedule.getEstimatedPeriodMillis());
+        assertEquals(30000 + 3000, schedule.getNextDelayMillis(62000));
+    }
+
+    @Test
+    public void testPeriodsWrapAround() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        // The producer publishes every 10 seconds, then slows down to every 40 seconds
+        long timestamp = 1000000;
+        schedule.onUpdate(timestamp, timestamp);
+        for (int i = 0; i < AdaptivePollingSchedule.SAMPLES; i++) {
+            timestamp += 10000;
+            schedule.onUpdate(timestamp, timestamp);
+        }
+        assertEquals(10000, schedule.getEstimatedPeriodMillis());
+        for (int i = 0; i < AdaptivePollingSchedule.SAMPLES / 2 + 1; i++) {
+            timestamp += 40000;
+            schedule.onUpdate(timestamp, timestamp);
+        }
+        // Only the last SAMPLES periods are used, and most of them are now 40 seconds
+        assertEquals(40000, schedule.getEstimatedPeriodMillis());
+    }
+
+    @Test
+    public void testPollJustAfterExpectedUpdate() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        // The producer publishes every 30 seconds, and its messages are received 2 seconds after their header timestamp
+        long now = 0;
+        for (int i = 1; i <= 5; i++) {
+            now = i * 30000 + 2000;
+            schedule.onUpdate(i * 30000, now);
+        }
+        assertEquals(30000, schedule.getEstimatedPeriodMillis());
+        // The next message is expected 30 seconds later, plus a margin of 10% of the period
+        assertEquals(30000 + 3000, schedule.getNextDelayMillis(now));
+        // The delay is measured from the poll, so it's shorter if asked later (e.g., after validation)
+        assertEquals(30000 + 3000 - 500, schedule.getNextDelayMillis(now + 500));
+    }
+
+    @Test
+    public void testMedianIgnoresMissedUpdate() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        long[] timestamps = {0, 30000, 60000, 120000, 150000};
+        for (long timestamp : timestamps) {
+            schedule.onUpdate(timestamp + 1000000, timestamp + 1000000);
+        }
+        assertEquals(30000, schedule.getEstimatedPeriodMillis());
+    }
+
+    @Test
+    public void testNeverBelowMinimumInterval() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        // The producer publishes every second, more often than the client asked for
+        long now = 0;
+        for (int i = 1; i <= 5; i++) {
+            now = i * 1000;
+            schedule.onUpdate(now, now);
+        }
+        assertEquals(1000, schedule.getEstimatedPeriodMillis());
+        assertEquals(INTERVAL, schedule.getNextDelayMillis(now));
+
+        schedule.onDuplicate(now);
+        assertEquals(INTERVAL, schedule.getNextDelayMillis(now));
+    }
+
+    @Test
+    public void testBackOffWhileUnchanged() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        schedule.onUpdate(1000, 1000);
+        // The first poll after a missed update is at the minimum interval, and later polls back off
+        schedule.onDuplicate(2000);
+        assertEquals(INTERVAL, schedule.getNextDelayMillis(2000));
+        schedule.onDuplicate(3000);
+        assertEquals(2 * INTERVAL, schedule.getNextDelayMillis(3000));
+        schedule.onDuplicate(4000);
+        assertEquals(4 * INTERVAL, schedule.getNextDelayMillis(4000));
+        // A new message resets the back off
+        schedule.onUpdate(5000, 5000);
+        schedule.onDuplicate(6000);
+        assertEquals(INTERVAL, schedule.getNextDelayMillis(6000));
+    }
+
+    @Test
+    public void testBackOffOnErrors() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        schedule.onError(0);
+        assertEquals(2 * INTERVAL, schedule.getNextDelayMillis(0));
+        schedule.onError(0);
+        assertEquals(4 * INTERVAL, schedule.getNextDelayMillis(0));
+        schedule.onError(0);
+        assertEquals(8 * INTERVAL, schedule.getNextDelayMillis(0));
+        // Never longer than the maximum interval
+        for (int i = 0; i < 100; i++) {
+            schedule.onError(0);
+        }
+        assertEquals(AdaptivePollingSchedule.MAX_INTERVAL_MULTIPLE * INTERVAL, schedule.getNextDelayMillis(0));
+
+        schedule.onUpdate(1000, 1000);
+        assertEquals(INTERVAL, schedule.getNextDelayMillis(1000));
+    }
+
+    @Test
+    public void testWithoutHeaderTimestamps() {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(INTERVAL);
+        // The feed has no header timestamps, so the times new messages are received are used instead
+        long[] received = {100000, 140000, 180000, 220000};
+        for (long now : received) {
+            schedule.onUpdate(0, now);
+        }
+        assertEquals(40000, schedule.getEstimatedPeriodMillis());
+        assertEquals(40000 + 4000, schedule.getNextDelayMillis(220000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        new AdaptivePollingSchedule(0);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import com.google.transit.realtime.GtfsRealtime;
+import edu.usf.cutr.gtfsrtvalidator.lib.validation.CombinedFeed;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests combining the latest messages of the feeds for the same GTFS data without waiting for feeds that haven't been read
+ */
+public class CombinedFeedAggregatorTest {
+
+    private static final int TRIP_UPDATES_ID = 1;
+    private static final int VEHICLE_POSITIONS_ID = 2;
+    private static final long INTERVAL_MILLIS = 10000;
+
+    @Test
+    public void testCombineAfterAllFeedsRead() {
+        CombinedFeedAggregator aggregator = new CombinedFeedAggregator();
+        aggregator.join(TRIP_UPDATES_ID, INTERVAL_MILLIS);
+        aggregator.join(VEHICLE_POSITIONS_ID, INTERVAL_MILLIS);
+        GtfsRealtime.FeedMessage tripUpdates = createFeedMessage(true, false);
+        GtfsRealtime.FeedMessage vehiclePositions = createFeedMessage(false, true);
+
+        // Vehicle positions haven't been read yet, so there is no combined feed - publish() doesn't wait for them
+        assertNull(aggregator.publish(TRIP_UPDATES_ID, tripUpdates));
+        assertEquals(Collections.singletonList(VEHICLE_POSITIONS_ID), aggregator.getStaleFeedIds());
+
+        // As soon as both feeds have been read, the combined feed has the latest message of each, in gtfsRtId order
+        CombinedFeed combinedFeed = aggregator.publish(VEHICLE_POSITIONS_ID, vehiclePositions);
+        assertNotNull(combinedFeed);
+        assertEquals(Arrays.asList(tripUpdates, vehiclePositions), combinedFeed.getFeedMessages());
+        assertTrue(aggregator.getStaleFeedIds().isEmpty());
+
+        // Next iteration of trip updates is combined with the latest vehicle positions
+        GtfsRealtime.FeedMessage newTripUpdates = createFeedMessage(true, false);
+        combinedFeed = aggregator.publish(TRIP_UPDATES_ID, newTripUpdates);
+        assertEquals(Arrays.asList(newTripUpdates, vehiclePositions), combinedFeed.getFeedMessages());
+    }
+
+    @Test
+    public void testSingleFeed() {
+        CombinedFeedAggregator aggregator = new CombinedFeedAggregator();
+        aggregator.join(TRIP_UPDATES_ID, INTERVAL_MILLIS);
+
+        // A single feed with one entity type doesn't need cross-feed validation
+        assertNull(aggregator.publish(TRIP_UPDATES_ID, createFeedMessage(true, false)));
+
+        // A single feed with more than one entity type is validated as a combined feed
+        GtfsRealtime.FeedMessage combinedMessage = createFeedMessage(true, true);
+        CombinedFeed combinedFeed = aggregator.publish(TRIP_UPDATES_ID, combinedMessage);
+        assertNotNull(combinedFeed);
+        assertEquals(Collections.singletonList(combinedMessage), combinedFeed.getFeedMessages());
+    }
+
+    @Test
+    public void testLeave() {
+        CombinedFeedAggregator aggregator = new CombinedFeedAggregator();
+        aggregator.join(TRIP_UPDATES_ID, INTERVAL_MILLIS);
+        aggregator.join(VEHICLE_POSITIONS_ID, INTERVAL_MILLIS);
+        aggregator.publish(VEHICLE_POSITIONS_ID, createFeedMessage(false, true));
+
+        // After vehicle positions stop monitoring, trip updates don't wait for them
+        aggregator.leave(VEHICLE_POSITIONS_ID);
+        assertFalse(aggregator.isEmpty());
+        assertNull(aggregator.publish(TRIP_UPDATES_ID, createFeedMessage(true, false)));
+        assertTrue(aggregator.getStaleFeedIds().isEmpty());
+
+        aggregator.leave(TRIP_UPDATES_ID);
+        assertTrue(aggregator.isEmpty());
+        // An iteration that was running when its feed stopped monitoring isn't added back
+        assertNull(aggregator.publish(TRIP_UPDATES_ID, createFeedMessage(true, true)));
+        assertTrue(aggregator.isEmpty());
+    }
+
+    @Test
+    public void testStaleFeed() throws InterruptedException {
+        CombinedFeedAggregator aggregator = new CombinedFeedAggregator();
+        aggregator.join(TRIP_UPDATES_ID, INTERVAL_MILLIS);
+        // Vehicle positions are stale after MAX_MISSED_ITERATIONS intervals of 1 ms
+        aggregator.join(VEHICLE_POSITIONS_ID, 1);
+        aggregator.publish(VEHICLE_POSITIONS_ID, createFeedMessage(false, true));
+        Thread.sleep(50);
+
+        assertNull(aggregator.publish(TRIP_UPDATES_ID, createFeedMessage(true, false)));
+        assertEquals(Collections.singletonList(VEHICLE_POSITIONS_ID), aggregator.getStaleFeedIds());
+
+        // A new message from vehicle positions is fresh again
+        assertNotNull(aggregator.publish(VEHICLE_POSITIONS_ID, createFeedMessage(false, true)));
+    }
+
+    @Test
+    public void testUnchangedFeedStaysFresh() throws InterruptedException {
+        CombinedFeedAggregator aggregator = new CombinedFeedAggregator();
+        aggregator.join(TRIP_UPDATES_ID, INTERVAL_MILLIS);
+        // Vehicle positions are stale after MAX_MISSED_ITERATIONS intervals of 20 ms without a successful poll
+        aggregator.join(VEHICLE_POSITIONS_ID, 20);
+        GtfsRealtime.FeedMessage vehiclePositions = createFeedMessage(false, true);
+        aggregator.publish(VEHICLE_POSITIONS_ID, vehiclePositions);
+
+        // Vehicle positions return 304 Not Modified (or the same message) for more than MAX_MISSED_ITERATIONS polls
+        for (int i = 0; i < CombinedFeedAggregator.MAX_MISSED_ITERATIONS + 3; i++) {
+            Thread.sleep(25);
+            aggregator.refresh(VEHICLE_POSITIONS_ID);
+            GtfsRealtime.FeedMessage tripUpdates = createFeedMessage(true, false);
+            CombinedFeed combinedFeed = aggregator.publish(TRIP_UPDATES_ID, tripUpdates);
+            // ...so trip updates are still combined with the last message of vehicle positions
+            assertNotNull(combinedFeed);
+            assertEquals(Arrays.asList(tripUpdates, vehiclePositions), combinedFeed.getFeedMessages());
+            assertTrue(aggregator.getStaleFeedIds().isEmpty());
+        }
+
+        // Once vehicle positions stop responding, they become stale
+        Thread.sleep(100);
+        assertNull(aggregator.publish(TRIP_UPDATES_ID, createFeedMessage(true, false)));
+        assertEquals(Collections.singletonList(VEHICLE_POSITIONS_ID), aggregator.getStaleFeedIds());
+
+        // Refreshing a feed that hasn't published a message yet doesn't make it fresh
+        aggregator.leave(VEHICLE_POSITIONS_ID);
+        aggregator.join(3, INTERVAL_MILLIS);
+        aggregator.refresh(3);
+        assertEquals(Collections.singletonList(3), aggregator.getStaleFeedIds());
+    }
+
+    private static GtfsRealtime.FeedMessage createFeedMessage(boolean tripUpdate, boolean vehiclePosition) {
+        GtfsRealtime.FeedMessage.Builder feedMessage = GtfsRealtime.FeedMessage.newBuilder();
+        feedMessage.setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion("1.0")
+                .setTimestamp(System.currentTimeMillis() / 1000));
+        if (tripUpdate) {
+            feedMessage.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId("1")
+                    .setTripUpdate(GtfsRealtime.TripUpdate.newBuilder()
+                            .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("1"))));
+        }
+        if (vehiclePosition) {
+            feedMessage.addEntity(GtfsRealtime.FeedEntity.newBuilder()
+                    .setId("2")
+                    .setVehicle(GtfsRealtime.VehiclePosition.newBuilder()
+                            .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("1"))));
+        }
+        return feedMessage.build();
+    }
+}
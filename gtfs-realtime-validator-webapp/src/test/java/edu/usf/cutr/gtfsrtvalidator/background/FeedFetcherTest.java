@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests fetching feeds with compression, conditional requests and timeouts
+ */
+public class FeedFetcherTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer mServer;
+    private byte[] mFeed;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        // A feed that compresses well, like a real GTFS-realtime feed with repeated IDs
+        mFeed = new byte[50000];
+        for (int i = 0; i < mFeed.length; i++) {
+            mFeed[i] = (byte) (i % 16);
+        }
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.createContext("/feed", this::handleFeed);
+        mServer.createContext("/error", exchange -> respond(exchange, 500, new byte[0]));
+        mServer.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, mFeed);
+        });
+        mServer.createContext("/held", exchange -> {
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, mFeed);
+        });
+        // Handle requests on more than one thread, so requests can run at the same time
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mServer.stop(0);
+        FeedFetcher.setMaxRequestsPerHost(FeedFetcher.DEFAULT_MAX_REQUESTS_PER_HOST);
+        FeedFetcher.setTimeouts(FeedFetcher.DEFAULT_CONNECT_TIMEOUT_MILLIS, FeedFetcher.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    private void handleFeed(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(mFeed);
+            }
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            respond(exchange, 200, compressed.toByteArray());
+        } else {
+            respond(exchange, 200, mFeed);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int responseCode, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(responseCode, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private URL getUrl(String path) throws IOException {
+        return new URL("http://localhost:" + mServer.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void testCompressedAndNotModified() throws IOException {
+        URL url = getUrl("/feed");
+        FeedFetcher fetcher = new FeedFetcher(url);
+
+        // First fetch gets the whole feed, compressed
+        FeedFetcher.Result result = fetcher.fetch();
+        assertFalse(result.isNotModified());
+        assertTrue(Arrays.equals(mFeed, result.getBody()));
+        long compressedBytes = result.getReceivedBytes();
+        assertTrue(compressedBytes > 0 && compressedBytes < mFeed.length);
+        // The time to the response headers is part of the latency, and the rest is the download
+        assertTrue(result.getResponseNanos() > 0 && result.getResponseNanos() <= result.getLatencyNanos());
+
+        // The ETag isn't sent until the response is committed, e.g., if the message couldn't be parsed or saved
+        result = fetcher.fetch();
+        assertFalse(result.isNotModified());
+        assertEquals(2, mRequestCount.get());
+        fetcher.commit(result);
+
+        // Next fetch sends the ETag, and the server responds 304
+        result = fetcher.fetch();
+        assertTrue(result.isNotModified());
+        assertNull(result.getBody());
+        assertEquals(3, mRequestCount.get());
+        // Committing a 304 keeps the ETag
+        fetcher.commit(result);
+        assertTrue(fetcher.fetch().isNotModified());
+
+        FeedFetcher.FetchStats stats = FeedFetcher.getStats(url.toString());
+        assertEquals(4, stats.getFetchCount());
+        assertEquals(2, stats.getNotModifiedCount());
+        assertEquals(0, stats.getFailureCount());
+        assertEquals(compressedBytes * 2, stats.getReceivedBytes());
+        // Saved by compression on the first two fetches, and the whole compressed feed on the last two fetches
+        assertEquals(mFeed.length * 2, stats.getSavedBytes());
+        assertTrue(stats.getTotalLatencyNanos() > 0);
+    }
+
+    @Test
+    public void testErrorResponse() throws IOException {
+        URL url = getUrl("/error");
+        FeedFetcher fetcher = new FeedFetcher(url);
+        try {
+            fetcher.fetch();
+            fail("Expected an IOException for a 500 response");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("500"));
+        }
+        assertEquals(1, FeedFetcher.getStats(url.toString()).getFailureCount());
+    }
+
+    @Test
+    public void testReadTimeout() throws IOException {
+        FeedFetcher.setTimeouts(1000, 200);
+        URL url = getUrl("/slow");
+        FeedFetcher fetcher = new FeedFetcher(url);
+        long startNanos = System.nanoTime();
+        try {
+            fetcher.fetch();
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        assertTrue(System.nanoTime() - startNanos < 1500_000_000L);
+        assertEquals(1, FeedFetcher.getStats(url.toString()).getFailureCount());
+    }
+
+    @Test
+    public void testMaxRequestsPerHost() throws Exception {
+        // The server's port is new for each test, so the limit applies to this host
+        FeedFetcher.setMaxRequestsPerHost(1);
+        URL url = getUrl("/held");
+        AtomicInteger firstSucceeded = new AtomicInteger();
+        Thread first = new Thread(() -> {
+            try {
+                new FeedFetcher(url).fetch();
+                firstSucceeded.incrementAndGet();
+            } catch (IOException e) {
+                // Checked below
+            }
+        });
+        first.start();
+        Thread.sleep(100);
+
+        // The first request to the host is held by the server, so the second waits for it and gives up after the timeouts
+        FeedFetcher.setTimeouts(50, 50);
+        try {
+            new FeedFetcher(getUrl("/feed")).fetch();
+            fail("Expected an IOException while the first request is running");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Timed out waiting for other requests"));
+        }
+        assertEquals(0, mRequestCount.get());
+        mRelease.countDown();
+        first.join(5000);
+        assertEquals(1, firstSucceeded.get());
+
+        // After the first request finishes, the next one runs
+        assertFalse(new FeedFetcher(getUrl("/feed")).fetch().isNotModified());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeTimeout() {
+        FeedFetcher.setTimeouts(-1, 1000);
+    }
+}
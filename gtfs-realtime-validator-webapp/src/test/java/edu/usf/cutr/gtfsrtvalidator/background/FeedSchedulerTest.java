@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests running the iterations of many feeds on the threads of a FeedScheduler
+ */
+public class FeedSchedulerTest {
+
+    private static final int WORKER_THREADS = 4;
+
+    private FeedScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FeedScheduler(WORKER_THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void testThreadCountDoesNotGrowWithFeeds() throws InterruptedException {
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        int feedCount = 2000;
+        AtomicInteger[] runs = new AtomicInteger[feedCount];
+        for (int i = 0; i < feedCount; i++) {
+            AtomicInteger feedRuns = new AtomicInteger();
+            runs[i] = feedRuns;
+            mScheduler.schedule(feedRuns::incrementAndGet, 100);
+        }
+        assertEquals(feedCount, mScheduler.getScheduledFeedCount());
+
+        waitFor(() -> {
+            for (AtomicInteger feedRuns : runs) {
+                if (feedRuns.get() < 2) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        // One timer thread plus the worker threads, regardless of the number of feeds
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        assertTrue("Created " + (threadsAfter - threadsBefore) + " threads", threadsAfter - threadsBefore <= WORKER_THREADS + 1);
+    }
+
+    @Test
+    public void testSlowFeedDoesNotOverlap() throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        AtomicInteger runs = new AtomicInteger();
+        // Each iteration takes longer than the interval
+        mScheduler.schedule(() -> {
+            if (!running.compareAndSet(false, true)) {
+                overlapped.set(true);
+            }
+            sleep(50);
+            running.set(false);
+            runs.incrementAndGet();
+        }, 10, 0);
+
+        waitFor(() -> runs.get() >= 3);
+        assertFalse(overlapped.get());
+        assertTrue(mScheduler.getSkippedIterationCount() > 0);
+        // A single slow feed only uses one worker thread, and never queues more than one iteration
+        assertTrue(mScheduler.getQueuedIterationCount() <= 1);
+    }
+
+    @Test
+    public void testDelayOverrun() throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        AtomicLong lastEndNanos = new AtomicLong();
+        AtomicLong maxWaitNanos = new AtomicLong();
+        AtomicInteger runs = new AtomicInteger();
+        // Each iteration takes two and a half intervals
+        FeedScheduler.ScheduledFeed scheduledFeed = mScheduler.schedule(() -> {
+            if (!running.compareAndSet(false, true)) {
+                overlapped.set(true);
+            }
+            if (lastEndNanos.get() != 0) {
+                maxWaitNanos.accumulateAndGet(System.nanoTime() - lastEndNanos.get(), Math::max);
+            }
+            sleep(250);
+            lastEndNanos.set(System.nanoTime());
+            running.set(false);
+            runs.incrementAndGet();
+        }, 100, 0, FeedScheduler.OverrunPolicy.DELAY, 1);
+
+        waitFor(() -> runs.get() >= 3);
+        scheduledFeed.cancel();
+        assertFalse(overlapped.get());
+        // The next iteration starts as soon as the previous one finishes, instead of waiting for the next interval
+        assertTrue("Waited " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()) + " ms", maxWaitNanos.get() < TimeUnit.MILLISECONDS.toNanos(40));
+        // Intervals that were due during the same iteration are coalesced into one
+        assertTrue(scheduledFeed.getSkippedCount() > 0);
+        assertTrue(scheduledFeed.getLateCount() > 0);
+        assertEquals(scheduledFeed.getLateCount(), mScheduler.getLateIterationCount());
+        waitFor(() -> !scheduledFeed.isPending());
+    }
+
+    @Test
+    public void testParallelOverrun() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+        // Each iteration takes five intervals
+        FeedScheduler.ScheduledFeed scheduledFeed = mScheduler.schedule(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(100);
+            running.decrementAndGet();
+            runs.incrementAndGet();
+        }, 20, 0, FeedScheduler.OverrunPolicy.PARALLEL, 3);
+
+        waitFor(() -> runs.get() >= 6);
+        assertEquals(FeedScheduler.OverrunPolicy.PARALLEL, scheduledFeed.getOverrunPolicy());
+        // Up to maxParallel iterations of the feed run at the same time, and the rest are skipped
+        assertTrue("Ran " + maxRunning.get() + " iterations at the same time", maxRunning.get() > 1 && maxRunning.get() <= 3);
+        assertTrue(scheduledFeed.getSkippedCount() > 0);
+    }
+
+    @Test
+    public void testShedLowPriority() throws InterruptedException {
+        FeedScheduler scheduler = new FeedScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // The only worker is busy, and another feed is waiting for it, so the workers are saturated
+            scheduler.schedule(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 10, 0);
+            AtomicInteger normalRuns = new AtomicInteger();
+            scheduler.schedule(normalRuns::incrementAndGet, 10, 0);
+            waitFor(scheduler::isSaturated);
+
+            AtomicInteger lowRuns = new AtomicInteger();
+            FeedScheduler.ScheduledFeed lowFeed = scheduler.schedule(lowRuns::incrementAndGet, 10, 0);
+            lowFeed.setPriority(FeedScheduler.Priority.LOW);
+            waitFor(() -> lowFeed.getShedCount() > 0);
+            assertEquals(lowFeed.getShedCount(), scheduler.getShedIterationCount());
+
+            // Once the workers catch up, the low-priority feed runs at its interval again
+            release.countDown();
+            waitFor(() -> lowRuns.get() >= 5);
+            assertFalse(scheduler.isSaturated());
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        FeedScheduler.ScheduledFeed scheduledFeed = mScheduler.schedule(runs::incrementAndGet, 10, 0);
+        waitFor(() -> runs.get() >= 1);
+
+        scheduledFeed.cancel();
+        assertTrue(scheduledFeed.isCancelled());
+        assertEquals(0, mScheduler.getScheduledFeedCount());
+        // Cancelling twice doesn't change the count
+        scheduledFeed.cancel();
+        assertEquals(0, mScheduler.getScheduledFeedCount());
+
+        // Wait for an iteration that was already running or queued, then make sure no more iterations start
+        waitFor(() -> !scheduledFeed.isPending());
+        int runsAfterCancel = runs.get();
+        sleep(100);
+        assertEquals(runsAfterCancel, runs.get());
+    }
+
+    @Test
+    public void testFailingIterationKeepsRunning() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        mScheduler.schedule(() -> {
+            runs.incrementAndGet();
+            throw new IllegalStateException("Test failure");
+        }, 10, 0);
+        waitFor(() -> runs.get() >= 3);
+    }
+
+    @Test
+    public void testErrorKeepsRunning() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        FeedScheduler.ScheduledFeed scheduledFeed = mScheduler.schedule(() -> {
+            if (runs.incrementAndGet() == 1) {
+                // e.g., an OutOfMemoryError or StackOverflowError in a rule
+                throw new Error("Test failure");
+            }
+        }, 10, 0);
+        waitFor(() -> runs.get() >= 3);
+        scheduledFeed.cancel();
+        waitFor(() -> !scheduledFeed.isPending());
+    }
+
+    @Test
+    public void testVirtualThreads() throws InterruptedException {
+        Assume.assumeTrue(FeedScheduler.isVirtualThreadsSupported());
+        int concurrency = 2;
+        FeedScheduler scheduler = new FeedScheduler(concurrency, true);
+        try {
+            assertTrue(scheduler.isVirtualThreads());
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            AtomicInteger runs = new AtomicInteger();
+            for (int i = 0; i < 100; i++) {
+                scheduler.schedule(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(5);
+                    running.decrementAndGet();
+                    runs.incrementAndGet();
+                }, 50, 0);
+            }
+            waitFor(() -> runs.get() >= 200);
+            // Each iteration has its own virtual thread, but no more than concurrency iterations run at the same time
+            assertTrue("Ran " + maxRunning.get() + " iterations at the same time", maxRunning.get() <= concurrency);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsNotSupported() {
+        Assume.assumeFalse(FeedScheduler.isVirtualThreadsSupported());
+        FeedScheduler scheduler = new FeedScheduler(WORKER_THREADS, true);
+        // Falls back to worker threads
+        assertFalse(scheduler.isVirtualThreads());
+        assertEquals(WORKER_THREADS, scheduler.getWorkerThreadCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testAdaptive() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicLong lastStartNanos = new AtomicLong();
+        AtomicLong minGapNanos = new AtomicLong(Long.MAX_VALUE);
+        // The task asks for a shorter delay than the minimum interval after odd iterations, and a longer one after even iterations
+        FeedScheduler.ScheduledFeed scheduledFeed = mScheduler.scheduleAdaptive(() -> {
+            long now = System.nanoTime();
+            if (runs.getAndIncrement() > 0) {
+                minGapNanos.accumulateAndGet(now - lastStartNanos.get(), Math::min);
+            }
+            lastStartNanos.set(now);
+        }, 50, () -> runs.get() % 2 == 1 ? 0 : 100, 0);
+        assertTrue(scheduledFeed.isAdaptive());
+        waitFor(() -> runs.get() >= 5);
+        // Iterations never start more often than the minimum interval
+        assertTrue("Iterations started " + TimeUnit.NANOSECONDS.toMillis(minGapNanos.get()) + " ms apart",
+                minGapNanos.get() >= TimeUnit.MILLISECONDS.toNanos(50) - TimeUnit.MILLISECONDS.toNanos(1));
+
+        scheduledFeed.cancel();
+        waitFor(() -> !scheduledFeed.isPending());
+        int runsAfterCancel = runs.get();
+        sleep(200);
+        assertEquals(runsAfterCancel, runs.get());
+        assertEquals(0, mScheduler.getScheduledFeedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        mScheduler.schedule(() -> {
+        }, 0);
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.isMet()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
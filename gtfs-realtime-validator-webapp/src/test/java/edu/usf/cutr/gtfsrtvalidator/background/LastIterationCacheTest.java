@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.background;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests keeping the last iteration of each feed in memory
+ */
+public class LastIterationCacheTest {
+
+    @Test
+    public void testGetAndPut() {
+        LastIterationCache cache = new LastIterationCache();
+        assertNull(cache.get(1));
+
+        byte[] hash = {1, 2, 3};
+        cache.put(1, new LastIterationCache.LastIteration(hash, 1000L, null));
+        LastIterationCache.LastIteration lastIteration = cache.get(1);
+        assertArrayEquals(hash, lastIteration.getFeedHash());
+        assertEquals(1000L, lastIteration.getFeedTimestamp());
+        assertNull(lastIteration.getState());
+
+        // A new iteration replaces the last one
+        cache.put(1, new LastIterationCache.LastIteration(new byte[]{4}, 2000L, null));
+        assertEquals(2000L, cache.get(1).getFeedTimestamp());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testRemove() {
+        LastIterationCache cache = new LastIterationCache();
+        // Feeds aren't evicted while they are monitored, however many there are
+        for (int i = 0; i < 5000; i++) {
+            cache.put(i, new LastIterationCache.LastIteration(new byte[]{1}, 1000L, null));
+        }
+        assertEquals(5000, cache.size());
+        assertNotNull(cache.get(0));
+
+        // ...only when monitoring of the feed stops
+        cache.remove(0);
+        assertNull(cache.get(0));
+        assertEquals(4999, cache.size());
+        // Removing a feed that isn't in the cache doesn't do anything
+        cache.remove(0);
+        assertEquals(4999, cache.size());
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.cluster;
+
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.FeedLeaseModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MonitoredFeedModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests sharing monitored feeds between the servers of a cluster, with the shared state kept in memory instead of a database
+ */
+public class ClusterCoordinatorTest {
+
+    private static final long LEASE_MILLIS = 1000;
+
+    private InMemoryClusterStore mStore;
+    private List<Node> mNodes;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryClusterStore();
+        mNodes = new ArrayList<>();
+        mNow = 1000000;
+    }
+
+    @After
+    public void tearDown() {
+        for (Node node : mNodes) {
+            node.mCoordinator.stop();
+        }
+    }
+
+    @Test
+    public void testFairShare() {
+        assertEquals(0, ClusterCoordinator.getFairShare(0, 2));
+        assertEquals(5, ClusterCoordinator.getFairShare(10, 2));
+        assertEquals(4, ClusterCoordinator.getFairShare(10, 3));
+        assertEquals(10, ClusterCoordinator.getFairShare(10, 1));
+        // A server that hasn't sent its first heartbeat still counts itself
+        assertEquals(10, ClusterCoordinator.getFairShare(10, 0));
+    }
+
+    @Test
+    public void testSingleNodeTakesAllFeeds() throws InterruptedException {
+        Node a = addNode("a");
+        addFeeds(6);
+        balance(a);
+        assertEquals(6, a.getAssignedFeedIds().size());
+        assertEquals(6, a.mCoordinator.getOwnedGtfsFeedIds().size());
+    }
+
+    @Test
+    public void testRebalanceWhenNodeJoins() throws InterruptedException {
+        Node a = addNode("a");
+        addFeeds(6);
+        balance(a);
+        assertEquals(6, a.getAssignedFeedIds().size());
+
+        Node b = addNode("b");
+        // b has nothing to take until a gives up the feeds above its fair share
+        balance(b);
+        assertEquals(0, b.getAssignedFeedIds().size());
+        balance(a);
+        assertEquals(3, a.getAssignedFeedIds().size());
+        balance(b);
+        assertEquals(3, b.getAssignedFeedIds().size());
+        assertDisjointAndComplete(6, a, b);
+
+        // Once balanced, the leases stay where they are
+        balance(a);
+        balance(b);
+        assertEquals(3, a.getAssignedFeedIds().size());
+        assertEquals(3, b.getAssignedFeedIds().size());
+    }
+
+    @Test
+    public void testTakeOverWhenNodeCrashes() throws InterruptedException {
+        Node a = addNode("a");
+        Node b = addNode("b");
+        addFeeds(4);
+        balance(a);
+        balance(b);
+        balance(a);
+        balance(b);
+        assertDisjointAndComplete(4, a, b);
+        assertEquals(2, b.getAssignedFeedIds().size());
+
+        // b stops renewing its leases - a can't take them before they expire
+        mNow += LEASE_MILLIS / 2;
+        balance(a);
+        assertEquals(2, a.getAssignedFeedIds().size());
+        mNow += LEASE_MILLIS;
+        balance(a);
+        assertEquals(4, a.getAssignedFeedIds().size());
+        assertEquals(Collections.singletonList("a"), mStore.getLiveNodes(mNow));
+    }
+
+    @Test
+    public void testTakeOverWhenNodeStops() throws InterruptedException {
+        Node a = addNode("a");
+        Node b = addNode("b");
+        addFeeds(4);
+        balance(a);
+        balance(b);
+        balance(a);
+        balance(b);
+
+        // b gives up its leases when it stops, so a takes them without waiting for them to expire
+        b.mCoordinator.stop();
+        mNodes.remove(b);
+        waitFor(() -> b.getAssignedFeedIds().isEmpty());
+        balance(a);
+        assertEquals(4, a.getAssignedFeedIds().size());
+    }
+
+    @Test
+    public void testFeedsOfSameGtfsFeedOnSameNode() throws InterruptedException {
+        Node a = addNode("a");
+        Node b = addNode("b");
+        // Two GTFS-realtime feeds (e.g., TripUpdates and VehiclePositions) of GTFS feed 1, and one of GTFS feed 2
+        mStore.addClient(newFeed(1, 1));
+        mStore.addClient(newFeed(2, 1));
+        mStore.addClient(newFeed(3, 2));
+        balance(a);
+        balance(b);
+        balance(a);
+        balance(b);
+        assertDisjointAndComplete(3, a, b);
+        for (Node node : Arrays.asList(a, b)) {
+            Set<Integer> feedIds = node.getAssignedFeedIds();
+            assertEquals(feedIds.contains(1), feedIds.contains(2));
+        }
+    }
+
+    @Test
+    public void testStopMonitoringLastClient() throws InterruptedException {
+        Node a = addNode("a");
+        mStore.addClient(newFeed(1, 1));
+        mStore.addClient(newFeed(1, 1));
+        balance(a);
+        assertEquals(Collections.singleton(1), a.getAssignedFeedIds());
+
+        // The feed is monitored until its last client stops monitoring it
+        mStore.removeClient(1);
+        balance(a);
+        assertEquals(Collections.singleton(1), a.getAssignedFeedIds());
+        mStore.removeClient(1);
+        balance(a);
+        assertTrue(a.getAssignedFeedIds().isEmpty());
+        assertTrue(a.mCoordinator.getOwnedGtfsFeedIds().isEmpty());
+    }
+
+    @Test
+    public void testLeasesUseStoreClock() throws InterruptedException {
+        // The clock of the store is an hour ahead of the clock of this server
+        mStore.mClockOffsetMillis = TimeUnit.HOURS.toMillis(1);
+        Node a = addNode("a");
+        addFeeds(2);
+        a.mCoordinator.start();
+        waitFor(() -> a.getAssignedFeedIds().size() == 2);
+
+        // The leases and the heartbeat haven't expired for the other servers
+        long storeNow = mStore.currentTimeMillis();
+        for (FeedLeaseModel lease : mStore.getLeases()) {
+            assertFalse(lease.isAvailable(storeNow));
+            assertTrue(lease.getExpirationTime() <= storeNow + LEASE_MILLIS);
+        }
+        assertEquals(Collections.singletonList("a"), mStore.getLiveNodes(storeNow));
+    }
+
+    @Test
+    public void testClaimFailsIfLeaseChanged() {
+        mStore.addClient(newFeed(1, 1));
+        FeedLeaseModel lease = mStore.getLeases().get(0);
+        assertTrue(mStore.claim(lease, "a", mNow + LEASE_MILLIS));
+        // b read the lease before a took it
+        assertFalse(mStore.claim(lease, "b", mNow + LEASE_MILLIS));
+        assertEquals("a", mStore.getLeases().get(0).getOwnerNodeId());
+    }
+
+    @Test
+    public void testMergeClient() {
+        MonitoredFeedModel existing = newFeed(1, 1);
+        existing.setUpdateInterval(10);
+        existing.setPriority(FeedScheduler.Priority.LOW.name());
+
+        // A longer interval and low priority don't change the settings
+        MonitoredFeedModel requested = newFeed(1, 1);
+        requested.setUpdateInterval(20);
+        requested.setRuleProfile("freshness");
+        requested.setPriority(FeedScheduler.Priority.LOW.name());
+        ClusterCoordinator.mergeClient(existing, requested);
+        assertEquals(2, existing.getClientCount());
+        assertEquals(1, existing.getVersion());
+        assertEquals(10, existing.getUpdateInterval());
+        assertNull(existing.getRuleProfile());
+
+        // A shorter interval takes the settings of the new client
+        requested.setUpdateInterval(5);
+        ClusterCoordinator.mergeClient(existing, requested);
+        assertEquals(3, existing.getClientCount());
+        assertEquals(2, existing.getVersion());
+        assertEquals(5, existing.getUpdateInterval());
+        assertEquals("freshness", existing.getRuleProfile());
+        assertEquals(FeedScheduler.Priority.LOW.name(), existing.getPriority());
+
+        // Normal priority wins
+        requested.setUpdateInterval(30);
+        requested.setPriority(FeedScheduler.Priority.NORMAL.name());
+        ClusterCoordinator.mergeClient(existing, requested);
+        assertEquals(3, existing.getVersion());
+        assertEquals(FeedScheduler.Priority.NORMAL.name(), existing.getPriority());
+    }
+
+    private Node addNode(String nodeId) {
+        Node node = new Node(nodeId, mStore);
+        mNodes.add(node);
+        return node;
+    }
+
+    /**
+     * Adds feeds 1 to count, each of a different GTFS feed
+     */
+    private void addFeeds(int count) {
+        for (int i = 1; i <= count; i++) {
+            mStore.addClient(newFeed(i, i));
+        }
+    }
+
+    private void balance(Node node) throws InterruptedException {
+        node.mCoordinator.balance(mNow);
+        // Wait for the assignment, which is passed to the server on another thread
+        Set<Integer> expected = new HashSet<>();
+        for (MonitoredFeedModel feed : mStore.getMonitoredFeeds(node.mCoordinator.getOwnedGtfsFeedIds())) {
+            expected.add(feed.getGtfsRtId());
+        }
+        waitFor(() -> expected.equals(node.getAssignedFeedIds()));
+    }
+
+    private static void assertDisjointAndComplete(int feedCount, Node... nodes) {
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (Node node : nodes) {
+            all.addAll(node.getAssignedFeedIds());
+            total += node.getAssignedFeedIds().size();
+        }
+        assertEquals("A feed is monitored by more than one server", all.size(), total);
+        assertEquals("A feed isn't monitored", feedCount, all.size());
+    }
+
+    private static MonitoredFeedModel newFeed(int gtfsRtId, int gtfsFeedId) {
+        MonitoredFeedModel feed = new MonitoredFeedModel();
+        feed.setGtfsRtId(gtfsRtId);
+        feed.setGtfsFeedId(gtfsFeedId);
+        feed.setClientCount(1);
+        feed.setVersion(1);
+        feed.setUpdateInterval(10);
+        feed.setOverrunPolicy(FeedScheduler.OverrunPolicy.SKIP.name());
+        feed.setPriority(FeedScheduler.Priority.NORMAL.name());
+        return feed;
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.isMet()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A server of the cluster, which records the feeds assigned to it
+     */
+    private static class Node {
+        private final ClusterCoordinator mCoordinator;
+        private final AtomicReference<Set<Integer>> mAssignedFeedIds = new AtomicReference<>(Collections.emptySet());
+
+        private Node(String nodeId, ClusterStore store) {
+            mCoordinator = new ClusterCoordinator(nodeId, store, LEASE_MILLIS, feeds -> {
+                Set<Integer> feedIds = new HashSet<>();
+                for (MonitoredFeedModel feed : feeds) {
+                    feedIds.add(feed.getGtfsRtId());
+                }
+                mAssignedFeedIds.set(feedIds);
+            });
+        }
+
+        private Set<Integer> getAssignedFeedIds() {
+            return mAssignedFeedIds.get();
+        }
+    }
+
+    /**
+     * Keeps the state shared by the servers in memory, with the same behavior as HibernateClusterStore
+     */
+    private static class InMemoryClusterStore implements ClusterStore {
+        private final Map<String, Long> mNodes = new HashMap<>();
+        private final Map<Integer, FeedLeaseModel> mLeases = new TreeMap<>();
+        private final Map<Integer, MonitoredFeedModel> mFeeds = new TreeMap<>();
+        // Difference between the clock of the store and the clock of this server
+        private volatile long mClockOffsetMillis;
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis() + mClockOffsetMillis;
+        }
+
+        @Override
+        public synchronized void heartbeat(String nodeId, long expirationTime) {
+            mNodes.put(nodeId, expirationTime);
+        }
+
+        @Override
+        public synchronized void removeNode(String nodeId) {
+            mNodes.remove(nodeId);
+        }
+
+        @Override
+        public synchronized List<String> getLiveNodes(long now) {
+            List<String> liveNodes = new ArrayList<>();
+            for (Map.Entry<String, Long> node : mNodes.entrySet()) {
+                if (node.getValue() > now) {
+                    liveNodes.add(node.getKey());
+                }
+            }
+            Collections.sort(liveNodes);
+            return liveNodes;
+        }
+
+        @Override
+        public synchronized List<FeedLeaseModel> getLeases() {
+            List<FeedLeaseModel> leases = new ArrayList<>();
+            for (FeedLeaseModel stored : mLeases.values()) {
+                // Return copies, like rows read from a database
+                FeedLeaseModel lease = new FeedLeaseModel(stored.getGtfsFeedId());
+                lease.setOwnerNodeId(stored.getOwnerNodeId());
+                lease.setExpirationTime(stored.getExpirationTime());
+                lease.setVersion(stored.getVersion());
+                int feedCount = 0;
+                for (MonitoredFeedModel feed : mFeeds.values()) {
+                    if (feed.getGtfsFeedId() == lease.getGtfsFeedId()) {
+                        feedCount++;
+                    }
+                }
+                lease.setMonitoredFeedCount(feedCount);
+                leases.add(lease);
+            }
+            return leases;
+        }
+
+        @Override
+        public synchronized boolean claim(FeedLeaseModel lease, String nodeId, long expirationTime) {
+            FeedLeaseModel stored = mLeases.get(lease.getGtfsFeedId());
+            if (stored == null || stored.getVersion() != lease.getVersion()) {
+                return false;
+            }
+            stored.setOwnerNodeId(nodeId);
+            stored.setExpirationTime(expirationTime);
+            stored.setVersion(stored.getVersion() + 1);
+            return true;
+        }
+
+        @Override
+        public synchronized void renew(String nodeId, long expirationTime) {
+            for (FeedLeaseModel stored : mLeases.values()) {
+                if (nodeId.equals(stored.getOwnerNodeId())) {
+                    stored.setExpirationTime(expirationTime);
+                    stored.setVersion(stored.getVersion() + 1);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void release(int gtfsFeedId, String nodeId) {
+            FeedLeaseModel stored = mLeases.get(gtfsFeedId);
+            if (stored != null && nodeId.equals(stored.getOwnerNodeId())) {
+                stored.setOwnerNodeId(null);
+                stored.setExpirationTime(0);
+                stored.setVersion(stored.getVersion() + 1);
+            }
+        }
+
+        @Override
+        public synchronized void releaseAll(String nodeId) {
+            for (FeedLeaseModel stored : mLeases.values()) {
+                release(stored.getGtfsFeedId(), nodeId);
+            }
+        }
+
+        @Override
+        public synchronized List<MonitoredFeedModel> getMonitoredFeeds(Collection<Integer> gtfsFeedIds) {
+            List<MonitoredFeedModel> feeds = new ArrayList<>();
+            for (MonitoredFeedModel feed : mFeeds.values()) {
+                if (gtfsFeedIds.contains(feed.getGtfsFeedId())) {
+                    feeds.add(feed);
+                }
+            }
+            return feeds;
+        }
+
+        @Override
+        public synchronized void addClient(MonitoredFeedModel requested) {
+            MonitoredFeedModel existing = mFeeds.get(requested.getGtfsRtId());
+            if (existing == null) {
+                mFeeds.put(requested.getGtfsRtId(), requested);
+            } else {
+                ClusterCoordinator.mergeClient(existing, requested);
+            }
+            mLeases.computeIfAbsent(requested.getGtfsFeedId(), FeedLeaseModel::new);
+        }
+
+        @Override
+        public synchronized void removeClient(int gtfsRtId) {
+            MonitoredFeedModel existing = mFeeds.get(gtfsRtId);
+            if (existing == null) {
+                return;
+            }
+            if (existing.getClientCount() <= 1) {
+                mFeeds.remove(gtfsRtId);
+            } else {
+                existing.setClientCount(existing.getClientCount() - 1);
+            }
+        }
+    }
+}
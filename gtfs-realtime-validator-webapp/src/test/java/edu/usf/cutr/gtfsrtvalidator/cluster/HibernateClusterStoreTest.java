@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 University of South Florida
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.cluster;
+
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
+import edu.usf.cutr.gtfsrtvalidator.db.GTFSDB;
+import edu.usf.cutr.gtfsrtvalidator.hibernate.HibernateUtil;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.FeedLeaseModel;
+import edu.usf.cutr.gtfsrtvalidator.lib.model.MonitoredFeedModel;
+import org.hibernate.Session;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the state shared by the servers of a cluster in the database, with two stores (one for each server) using the
+ * same in-memory HSQLDB database
+ */
+public class HibernateClusterStoreTest {
+
+    private static final long LEASE_MILLIS = 1000;
+
+    private HibernateClusterStore mStoreA;
+    private HibernateClusterStore mStoreB;
+    private List<ClusterCoordinator> mCoordinators;
+    private long mNow;
+
+    @BeforeClass
+    public static void setUpDatabase() {
+        HibernateUtil.configureSessionFactory("jdbc:hsqldb:mem:clusterstoretest");
+    }
+
+    @AfterClass
+    public static void tearDownDatabase() {
+        HibernateUtil.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        Session session = GTFSDB.initSessionBeginTrans();
+        session.createQuery("DELETE FROM ClusterNodeModel").executeUpdate();
+        session.createQuery("DELETE FROM FeedLeaseModel").executeUpdate();
+        session.createQuery("DELETE FROM MonitoredFeedModel").executeUpdate();
+        GTFSDB.commitAndCloseSession(session);
+
+        mStoreA = new HibernateClusterStore();
+        mStoreB = new HibernateClusterStore();
+        mCoordinators = new ArrayList<>();
+        mNow = 1000000;
+    }
+
+    @After
+    public void tearDown() {
+        for (ClusterCoordinator coordinator : mCoordinators) {
+            coordinator.stop();
+        }
+    }
+
+    @Test
+    public void testHeartbeat() {
+        mStoreA.heartbeat("a", mNow + LEASE_MILLIS);
+        mStoreB.heartbeat("b", mNow + 2 * LEASE_MILLIS);
+        assertEquals(Arrays.asList("a", "b"), mStoreA.getLiveNodes(mNow));
+        assertEquals(Collections.singletonList("b"), mStoreA.getLiveNodes(mNow + LEASE_MILLIS));
+
+        // A heartbeat extends the existing server
+        mStoreA.heartbeat("a", mNow + 3 * LEASE_MILLIS);
+        assertEquals(Arrays.asList("a", "b"), mStoreB.getLiveNodes(mNow + LEASE_MILLIS));
+
+        mStoreB.removeNode("b");
+        assertEquals(Collections.singletonList("a"), mStoreA.getLiveNodes(mNow));
+    }
+
+    @Test
+    public void testCurrentTimeMillis() {
+        // The database runs in this JVM, so its clock is the clock of this server
+        long before = System.currentTimeMillis();
+        long databaseTime = mStoreA.currentTimeMillis();
+        long after = System.currentTimeMillis();
+        assertTrue(databaseTime >= before - 1000 && databaseTime <= after + 1000);
+        assertTrue(mStoreB.currentTimeMillis() >= databaseTime);
+    }
+
+    @Test
+    public void testExclusiveClaim() {
+        mStoreA.addClient(newFeed(1, 1));
+        FeedLeaseModel leaseA = getLease(mStoreA, 1);
+        FeedLeaseModel leaseB = getLease(mStoreB, 1);
+        assertTrue(leaseA.isAvailable(mNow));
+        assertEquals(1, leaseA.getMonitoredFeedCount());
+
+        // Both servers read the lease while it was available, but only the first claim succeeds
+        assertTrue(mStoreA.claim(leaseA, "a", mNow + LEASE_MILLIS));
+        assertFalse(mStoreB.claim(leaseB, "b", mNow + LEASE_MILLIS));
+        FeedLeaseModel lease = getLease(mStoreB, 1);
+        assertEquals("a", lease.getOwnerNodeId());
+        assertEquals(mNow + LEASE_MILLIS, lease.getExpirationTime());
+        assertFalse(lease.isAvailable(mNow));
+
+        // A claim with an old version fails even for the server that holds the lease
+        assertFalse(mStoreA.claim(leaseA, "a", mNow + 2 * LEASE_MILLIS));
+        assertEquals(mNow + LEASE_MILLIS, getLease(mStoreA, 1).getExpirationTime());
+    }
+
+    @Test
+    public void testTakeOverExpiredLease() {
+        mStoreA.addClient(newFeed(1, 1));
+        assertTrue(mStoreA.claim(getLease(mStoreA, 1), "a", mNow + LEASE_MILLIS));
+
+        // b reads the lease just after it expired, but a renews it before b claims it
+        mNow += LEASE_MILLIS;
+        FeedLeaseModel expired = getLease(mStoreB, 1);
+        assertTrue(expired.isAvailable(mNow));
+        mStoreA.renew("a", mNow + LEASE_MILLIS);
+        assertFalse(mStoreB.claim(expired, "b", mNow + LEASE_MILLIS));
+        assertEquals("a", getLease(mStoreB, 1).getOwnerNodeId());
+
+        // a stops renewing it, so b takes it once it expires
+        mNow += LEASE_MILLIS;
+        expired = getLease(mStoreB, 1);
+        assertTrue(expired.isAvailable(mNow));
+        assertTrue(mStoreB.claim(expired, "b", mNow + LEASE_MILLIS));
+        assertEquals("b", getLease(mStoreA, 1).getOwnerNodeId());
+
+        // a no longer renews or releases the lease
+        mStoreA.renew("a", mNow + 5 * LEASE_MILLIS);
+        mStoreA.release(1, "a");
+        FeedLeaseModel lease = getLease(mStoreA, 1);
+        assertEquals("b", lease.getOwnerNodeId());
+        assertEquals(mNow + LEASE_MILLIS, lease.getExpirationTime());
+    }
+
+    @Test
+    public void testRelease() {
+        mStoreA.addClient(newFeed(1, 1));
+        mStoreA.addClient(newFeed(2, 2));
+        mStoreA.addClient(newFeed(3, 3));
+        for (int gtfsFeedId = 1; gtfsFeedId <= 3; gtfsFeedId++) {
+            assertTrue(mStoreA.claim(getLease(mStoreA, gtfsFeedId), "a", mNow + LEASE_MILLIS));
+        }
+
+        // Only the server that holds a lease can release it
+        mStoreB.release(1, "b");
+        assertEquals("a", getLease(mStoreB, 1).getOwnerNodeId());
+        mStoreA.release(1, "a");
+        FeedLeaseModel released = getLease(mStoreB, 1);
+        assertNull(released.getOwnerNodeId());
+        assertTrue(released.isAvailable(mNow));
+        // b can take it right away, without waiting for it to expire
+        assertTrue(mStoreB.claim(released, "b", mNow + LEASE_MILLIS));
+
+        mStoreA.releaseAll("a");
+        assertEquals("b", getLease(mStoreA, 1).getOwnerNodeId());
+        assertTrue(getLease(mStoreB, 2).isAvailable(mNow));
+        assertTrue(getLease(mStoreB, 3).isAvailable(mNow));
+    }
+
+    @Test
+    public void testAddAndRemoveClient() throws Exception {
+        // Clients start monitoring the same new feed on both servers at the same time
+        int clientCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(clientCount);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < clientCount; i++) {
+                HibernateClusterStore store = i % 2 == 0 ? mStoreA : mStoreB;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    store.addClient(newFeed(1, 1));
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        List<MonitoredFeedModel> feeds = mStoreB.getMonitoredFeeds(Collections.singleton(1));
+        assertEquals(1, feeds.size());
+        assertEquals(clientCount, feeds.get(0).getClientCount());
+        assertEquals(1, mStoreA.getLeases().size());
+
+        // A client with a shorter update interval changes the settings of the feed
+        MonitoredFeedModel faster = newFeed(1, 1);
+        faster.setUpdateInterval(5);
+        mStoreB.addClient(faster);
+        MonitoredFeedModel feed = mStoreA.getMonitoredFeeds(Collections.singleton(1)).get(0);
+        assertEquals(clientCount + 1, feed.getClientCount());
+        assertEquals(5, feed.getUpdateInterval());
+        assertEquals(2, feed.getVersion());
+
+        // The feed is monitored until its last client stops monitoring it, and its lease is kept
+        for (int i = 0; i < clientCount; i++) {
+            (i % 2 == 0 ? mStoreA : mStoreB).removeClient(1);
+        }
+        assertEquals(1, mStoreA.getMonitoredFeeds(Collections.singleton(1)).get(0).getClientCount());
+        mStoreB.removeClient(1);
+        assertTrue(mStoreA.getMonitoredFeeds(Collections.singleton(1)).isEmpty());
+        assertEquals(0, getLease(mStoreA, 1).getMonitoredFeedCount());
+        // Removing a feed that isn't monitored doesn't do anything
+        mStoreA.removeClient(1);
+        assertTrue(mStoreB.getMonitoredFeeds(Collections.singleton(1)).isEmpty());
+    }
+
+    @Test
+    public void testTwoCoordinators() {
+        ClusterCoordinator a = addCoordinator("a", mStoreA);
+        ClusterCoordinator b = addCoordinator("b", mStoreB);
+        for (int i = 1; i <= 4; i++) {
+            mStoreA.addClient(newFeed(i, i));
+        }
+        a.balance(mNow);
+        b.balance(mNow);
+        a.balance(mNow);
+        b.balance(mNow);
+        assertEquals(2, a.getOwnedGtfsFeedIds().size());
+        assertEquals(2, b.getOwnedGtfsFeedIds().size());
+        assertDisjointAndComplete(4, a, b);
+
+        // b stops renewing its leases - a takes them once they expire
+        mNow += LEASE_MILLIS / 2;
+        a.balance(mNow);
+        assertEquals(2, a.getOwnedGtfsFeedIds().size());
+        mNow += LEASE_MILLIS;
+        a.balance(mNow);
+        assertEquals(4, a.getOwnedGtfsFeedIds().size());
+        for (FeedLeaseModel lease : mStoreB.getLeases()) {
+            assertEquals("a", lease.getOwnerNodeId());
+        }
+    }
+
+    private ClusterCoordinator addCoordinator(String nodeId, ClusterStore store) {
+        ClusterCoordinator coordinator = new ClusterCoordinator(nodeId, store, LEASE_MILLIS, feeds -> {
+        });
+        mCoordinators.add(coordinator);
+        return coordinator;
+    }
+
+    private void assertDisjointAndComplete(int feedCount, ClusterCoordinator... coordinators) {
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (ClusterCoordinator coordinator : coordinators) {
+            all.addAll(coordinator.getOwnedGtfsFeedIds());
+            total += coordinator.getOwnedGtfsFeedIds().size();
+            for (Integer gtfsFeedId : coordinator.getOwnedGtfsFeedIds()) {
+                assertEquals(coordinator.getNodeId(), getLease(mStoreA, gtfsFeedId).getOwnerNodeId());
+            }
+        }
+        assertEquals("A lease is held by more than one server", all.size(), total);
+        assertEquals("A lease isn't held", feedCount, all.size());
+    }
+
+    private static FeedLeaseModel getLease(ClusterStore store, int gtfsFeedId) {
+        for (FeedLeaseModel lease : store.getLeases()) {
+            if (lease.getGtfsFeedId() == gtfsFeedId) {
+                return lease;
+            }
+        }
+        fail("No lease for GTFS feed " + gtfsFeedId);
+        return null;
+    }
+
+    private static MonitoredFeedModel newFeed(int gtfsRtId, int gtfsFeedId) {
+        MonitoredFeedModel feed = new MonitoredFeedModel();
+        feed.setGtfsRtId(gtfsRtId);
+        feed.setGtfsFeedId(gtfsFeedId);
+        feed.setClientCount(1);
+        feed.setVersion(1);
+        feed.setUpdateInterval(10);
+        feed.setOverrunPolicy(FeedScheduler.OverrunPolicy.SKIP.name());
+        feed.setPriority(FeedScheduler.Priority.NORMAL.name());
+        return feed;
+    }
+}
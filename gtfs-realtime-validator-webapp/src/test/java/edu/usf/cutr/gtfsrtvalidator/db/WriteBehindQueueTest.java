@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing items to the database in batches on a background thread
+ */
+public class WriteBehindQueueTest {
+
+    @Test
+    public void testBatchSize() throws InterruptedException {
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        // Long latency, so batches are only written when they're full (or at shutdown)
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test-writer", 1000, 10, 60000, batch -> batches.add(new ArrayList<>(batch)));
+        for (int i = 0; i < 25; i++) {
+            queue.add(i);
+        }
+        assertTrue(queue.shutdown(5000));
+
+        assertEquals(25, queue.getAddedCount());
+        assertEquals(25, queue.getWrittenCount());
+        assertEquals(0, queue.getQueuedCount());
+        List<Integer> written = new ArrayList<>();
+        for (List<Integer> batch : batches) {
+            assertTrue(batch.size() <= 10);
+            written.addAll(batch);
+        }
+        // Items are written in the order they were added
+        for (int i = 0; i < 25; i++) {
+            assertEquals(Integer.valueOf(i), written.get(i));
+        }
+        assertEquals(3, batches.size());
+    }
+
+    @Test
+    public void testLatency() throws InterruptedException {
+        CountDownLatch written = new CountDownLatch(1);
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test-writer", 1000, 100, 50, batch -> written.countDown());
+        long startNanos = System.nanoTime();
+        queue.add(1);
+        // A single item is written after the latency, without waiting for the batch to fill up
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(queue.shutdown(5000));
+        assertEquals(1, queue.getBatchCount());
+    }
+
+    @Test
+    public void testBackpressure() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test-writer", 2, 1, 0, batch -> release.await());
+        // The first item is taken by the writer, which waits - the next two fill the queue
+        for (int i = 0; i < 3; i++) {
+            queue.add(i);
+        }
+        Thread producer = new Thread(() -> {
+            try {
+                queue.add(3);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(200);
+        // The producer waits for room in the queue instead of growing it
+        assertTrue(producer.isAlive());
+        assertEquals(2, queue.getCapacity());
+
+        release.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(queue.shutdown(5000));
+        assertEquals(4, queue.getWrittenCount());
+        assertTrue(queue.getBlockedCount() >= 1);
+    }
+
+    @Test
+    public void testFailedBatch() throws InterruptedException {
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test-writer", 100, 1, 0, batch -> {
+            if (batch.contains(0)) {
+                throw new IllegalStateException("Test failure");
+            }
+        });
+        queue.add(0);
+        queue.add(1);
+        assertTrue(queue.shutdown(5000));
+        // The failed batch is dropped, and the writer keeps writing the next batches
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(1, queue.getWrittenCount());
+        assertEquals(2, queue.getBatchCount());
+    }
+
+    @Test
+    public void testInvalidItemInBatch() throws InterruptedException {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> attempts = Collections.synchronizedList(new ArrayList<>());
+        // Like a transaction, a batch with the invalid item 7 doesn't write any of its items
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test-writer", 100, 10, 60000, batch -> {
+            attempts.add(batch.size());
+            if (batch.contains(7)) {
+                throw new IllegalStateException("Test failure");
+            }
+            written.addAll(batch);
+        });
+        for (int i = 0; i < 10; i++) {
+            queue.add(i);
+        }
+        assertTrue(queue.shutdown(5000));
+
+        // Only the invalid item is dropped, and the valid items are still written in order
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(9, queue.getWrittenCount());
+        assertEquals(1, queue.getBatchCount());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 8, 9), written);
+        // Only the halves with the invalid item are split again: 10 -> 5 + 5 -> 2 + 3 -> 1 + 2
+        assertEquals(Arrays.asList(10, 5, 5, 2, 3, 1, 2), attempts);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterShutdown() throws InterruptedException {
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test-writer", 100, 10, 0, batch -> {
+        });
+        queue.shutdown(5000);
+        queue.add(1);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests recording metrics and writing them in the Prometheus text format
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testHistogram() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        MetricsRegistry.Histogram histogram = metrics.histogram("gtfsrt_fetch_seconds", "Fetch time", "feed_id", "1");
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(200));
+        histogram.observe(100);
+        // The same series is returned for the same labels
+        assertSame(histogram, metrics.histogram("gtfsrt_fetch_seconds", "Fetch time", "feed_id", "1"));
+        assertEquals(3, histogram.getCount());
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# HELP gtfsrt_fetch_seconds Fetch time\n"));
+        assertTrue(text.contains("# TYPE gtfsrt_fetch_seconds histogram\n"));
+        // Buckets are cumulative
+        assertTrue(text.contains("gtfsrt_fetch_seconds_bucket{feed_id=\"1\",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("gtfsrt_fetch_seconds_bucket{feed_id=\"1\",le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("gtfsrt_fetch_seconds_bucket{feed_id=\"1\",le=\"0.25\"} 2\n"));
+        assertTrue(text.contains("gtfsrt_fetch_seconds_bucket{feed_id=\"1\",le=\"60.0\"} 2\n"));
+        assertTrue(text.contains("gtfsrt_fetch_seconds_bucket{feed_id=\"1\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("gtfsrt_fetch_seconds_sum{feed_id=\"1\"} 100.203\n"));
+        assertTrue(text.contains("gtfsrt_fetch_seconds_count{feed_id=\"1\"} 3\n"));
+    }
+
+    @Test
+    public void testCountersAndGauges() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("gtfsrt_iterations_total", "Iterations", "feed_id", "1", "result", "unique").add(5);
+        metrics.counter("gtfsrt_iterations_total", "Iterations", "feed_id", "1", "result", "duplicate").increment();
+        metrics.gauge("gtfsrt_scheduler_running_iterations", "Running", () -> 4);
+        metrics.counter("gtfsrt_write_queue_write_seconds_total", "Write time", () -> 1.5);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE gtfsrt_iterations_total counter\n"));
+        assertTrue(text.contains("gtfsrt_iterations_total{feed_id=\"1\",result=\"unique\"} 5\n"));
+        assertTrue(text.contains("gtfsrt_iterations_total{feed_id=\"1\",result=\"duplicate\"} 1\n"));
+        assertTrue(text.contains("# TYPE gtfsrt_scheduler_running_iterations gauge\n"));
+        assertTrue(text.contains("gtfsrt_scheduler_running_iterations 4\n"));
+        assertTrue(text.contains("gtfsrt_write_queue_write_seconds_total 1.5\n"));
+        // Each metric has one HELP and TYPE line
+        assertEquals(text.indexOf("# TYPE gtfsrt_iterations_total"), text.lastIndexOf("# TYPE gtfsrt_iterations_total"));
+    }
+
+    @Test
+    public void testRemove() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("gtfsrt_iterations_total", "Iterations", "feed_id", "1", "result", "unique").increment();
+        metrics.counter("gtfsrt_iterations_total", "Iterations", "feed_id", "12", "result", "unique").increment();
+        metrics.histogram("gtfsrt_rule_seconds", "Rule time", "feed_id", "1", "rule", "VehicleValidator").observe(1);
+
+        metrics.remove("feed_id", "1");
+        String text = metrics.scrape();
+        assertFalse(text.contains("feed_id=\"1\""));
+        assertTrue(text.contains("gtfsrt_iterations_total{feed_id=\"12\",result=\"unique\"} 1\n"));
+        // Metrics without series aren't written
+        assertFalse(text.contains("gtfsrt_rule_seconds"));
+    }
+
+    @Test
+    public void testEscapeLabelValues() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("gtfsrt_test_total", "Test", "url", "http://example.com/\"feed\"\\\n").increment();
+        assertTrue(metrics.scrape().contains("gtfsrt_test_total{url=\"http://example.com/\\\"feed\\\"\\\\\\n\"} 1\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeMismatch() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("gtfsrt_test", "Test");
+        metrics.histogram("gtfsrt_test", "Test");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 University of South Florida.
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.usf.cutr.gtfsrtvalidator.test.benchmark;
+
+import edu.usf.cutr.gtfsrtvalidator.background.FeedScheduler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monitors a growing number of simulated feeds, and prints the number of live threads and the CPU time used per
+ * iteration for each number of feeds.  Each simulated iteration waits for a simulated HTTP response and then does some
+ * CPU work, like a real iteration fetching and validating a feed.  With FeedScheduler the thread count stays at the
+ * number of worker threads plus one and the CPU time per iteration stays flat as feeds are added, while scheduling each
+ * feed on its own executor (how feeds were monitored before FeedScheduler, run with "legacy") creates a thread per feed.
+ * Run with "virtual" on Java 21 or later to run each iteration on a virtual thread, with up to
+ * FeedScheduler.DEFAULT_VIRTUAL_CONCURRENCY iterations at the same time.
+ * This isn't run as part of the unit tests - run it from the gtfs-realtime-validator-webapp directory with:
+ * <p>
+ * java -cp target/classes:target/test-classes:[dependencies] edu.usf.cutr.gtfsrtvalidator.test.benchmark.FeedSchedulerLoadBenchmark [interval seconds] [seconds per step] [worker threads, legacy or virtual]
+ * <p>
+ * Defaults are a 10 second update interval, 20 seconds for each number of feeds (100, 500, 1000, 2000 and 5000), and
+ * 128 worker threads.  Iterations are skipped when there are too few worker threads to run every feed at its interval.
+ */
+public class FeedSchedulerLoadBenchmark {
+
+    private static final int[] FEED_COUNTS = {100, 500, 1000, 2000, 5000};
+    private static final long HTTP_WAIT_MILLIS = 20;
+    private static final long CPU_WORK_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    public static void main(String[] args) throws InterruptedException {
+        long intervalMillis = TimeUnit.SECONDS.toMillis(args.length > 0 ? Integer.parseInt(args[0]) : 10);
+        long stepMillis = TimeUnit.SECONDS.toMillis(args.length > 1 ? Integer.parseInt(args[1]) : 20);
+        boolean legacy = args.length > 2 && "legacy".equals(args[2]);
+        boolean virtual = args.length > 2 && "virtual".equals(args[2]);
+        int workerThreads = args.length > 2 && !legacy && !virtual ? Integer.parseInt(args[2]) : 128;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        FeedScheduler scheduler = virtual ? new FeedScheduler(FeedScheduler.DEFAULT_VIRTUAL_CONCURRENCY, true) : new FeedScheduler(workerThreads);
+        List<ScheduledExecutorService> legacyExecutors = new ArrayList<>();
+        SimulatedIteration iteration = new SimulatedIteration();
+        int scheduled = 0;
+
+        System.out.println((legacy ? "One executor per feed" : "FeedScheduler with " + scheduler.getWorkerThreadCount()
+                + (scheduler.isVirtualThreads() ? " concurrent virtual threads" : " worker threads"))
+                + ", " + intervalMillis + " ms update interval");
+        for (int feedCount : FEED_COUNTS) {
+            for (; scheduled < feedCount; scheduled++) {
+                if (legacy) {
+                    ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+                    executor.scheduleAtFixedRate(iteration, 0, intervalMillis, TimeUnit.MILLISECONDS);
+                    legacyExecutors.add(executor);
+                } else {
+                    scheduler.schedule(iteration, intervalMillis);
+                }
+            }
+            // Let the feeds spread out over the interval before measuring
+            Thread.sleep(intervalMillis);
+
+            long startCpuNanos = getTotalCpuNanos(threads);
+            long startIterations = iteration.getCount();
+            long startSkipped = scheduler.getSkippedIterationCount();
+            Thread.sleep(stepMillis);
+            long iterations = iteration.getCount() - startIterations;
+            double cpuMicrosPerIteration = iterations > 0 ? (getTotalCpuNanos(threads) - startCpuNanos) / 1000.0 / iterations : 0;
+
+            System.out.println(String.format("%d feeds: %d live threads, %.1f iterations/s (expected %.1f), %.0f us CPU per iteration, %d skipped",
+                    feedCount, threads.getThreadCount(), iterations * 1000.0 / stepMillis, feedCount * 1000.0 / intervalMillis,
+                    cpuMicrosPerIteration, scheduler.getSkippedIterationCount() - startSkipped));
+        }
+        scheduler.shutdown();
+        for (ScheduledExecutorService executor : legacyExecutors) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the CPU time used by all live threads, in nanoseconds
+     */
+    private static long getTotalCpuNanos(ThreadMXBean threads) {
+        long total = 0;
+        for (long threadId : threads.getAllThreadIds()) {
+            long cpuNanos = threads.getThreadCpuTime(threadId);
+            if (cpuNanos > 0) {
+                total += cpuNanos;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Waits for a simulated HTTP response, then does some CPU work
+     */
+    private static class SimulatedIteration implements Runnable {
+        private final AtomicLong mCount = new AtomicLong();
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(HTTP_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long endNanos = System.nanoTime() + CPU_WORK_NANOS;
+            long work = 0;
+            while (System.nanoTime() < endNanos) {
+                work++;
+            }
+            if (work < 0) {
+                System.out.println(work);
+            }
+            mCount.incrementAndGet();
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+    }
+}
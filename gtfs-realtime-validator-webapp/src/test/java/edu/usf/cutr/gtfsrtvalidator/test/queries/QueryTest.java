@@ -58,10 +58,9 @@ public class QueryTest extends TestCase {
         gtfsFeedTest = new GtfsFeedTest();
         gtfsRtFeed = new GtfsRtFeed();
         /*
-         * Timestamp value is given 0 because the Timestamp values inserted into database using 'testSQLScript.sql'
-         * file are 1 and 2. So, value 0 ensures to retrieve records from database whose Timestamp values are > 0
+         * 'testSQLScript.sql' doesn't insert any sessions, so getMonitorData() starts at Timestamp 0.  The Timestamp values
+         * inserted into database are 1 and 2, so this retrieves records from database whose Timestamp values are > 0
          */
-        gtfsRtFeed.currentTimestamp = 0;
         gtfsFeedTest.setUp();
 
         try {